@@ -471,6 +471,8 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
                 WindowManager.setTempCurrentImage(null);
 			deleteRoi(); //save any ROI so it can be restored later
 			Interpreter.removeBatchModeImage(this);
+			if (stack instanceof FileInfoVirtualStack)
+				((FileInfoVirtualStack)stack).close();
 		}
     }
 
@@ -2458,6 +2460,10 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 		if (roi!=null) roi.setImage(null);
 		roi = null;
 		if (stack!=null && stack.viewers(-1)<=0) {
+			if (stack instanceof VirtualStack)
+				VirtualStackCache.remove((VirtualStack)stack);
+			if (stack instanceof FileInfoVirtualStack)
+				((FileInfoVirtualStack)stack).close();
 			Object[] arrays = stack.getImageArray();
 			if (arrays!=null) {
 				for (int i=0; i<arrays.length; i++)
@@ -32,6 +32,7 @@ public class Prefs {
 	public static final String ROICOLOR = "roicolor";
 	public static final String SHOW_ALL_COLOR = "showcolor";
 	public static final String JPEG = "jpeg";
+	public static final String TIFF_COMPRESSION = "tiff.compression";
 	public static final String FPS = "fps";
     public static final String DIV_BY_ZERO_VALUE = "div-by-zero";
     public static final String NOISE_SD = "noise.sd";
@@ -492,6 +493,7 @@ public class Prefs {
 			prefs.put(FCOLOR, Tools.c2hex(Toolbar.getForegroundColor()));
 			prefs.put(BCOLOR, Tools.c2hex(Toolbar.getBackgroundColor()));
 			prefs.put(JPEG, Integer.toString(FileSaver.getJpegQuality()));
+			prefs.put(TIFF_COMPRESSION, Integer.toString(FileSaver.getTiffCompression()));
 			prefs.put(FPS, Double.toString(Animator.getFrameRate()));
 			prefs.put(DIV_BY_ZERO_VALUE, Double.toString(FloatBlitter.divideByZeroValue));
 			prefs.put(NOISE_SD, Double.toString(Filters.getSD()));
@@ -8,6 +8,7 @@ import java.io.*;
 import java.awt.*;
 import java.awt.image.ColorModel;
 import java.util.Properties;
+import java.util.Hashtable;
 
 /** This class represents an array of disk-resident images. */
 public class VirtualStack extends ImageStack {
@@ -19,8 +20,11 @@ public class VirtualStack extends ImageStack {
 	private int bitDepth;
 	private int delay;
 	private Properties properties;
+	private Hashtable sliceProperties = new Hashtable();  // FHT properties by file name
 	private boolean generateData;
 	private int[] indexes;  // used to translate non-CZT hyperstack slice numbers
+	int lastSlice;  // used by VirtualStackCache to find the scroll direction
+	int cacheGeneration;  // incremented when cached slices become invalid
 
 	
 	/** Default constructor. */
@@ -115,6 +119,7 @@ public class VirtualStack extends ImageStack {
 			names[i-1] = names[i];
 		names[nSlices-1] = null;
 		nSlices--;
+		VirtualStackCache.remove(this);
 	}
 	
 	/** Deletes the last slice in the stack. */
@@ -173,12 +178,41 @@ public class VirtualStack extends ImageStack {
 				IJ.wait(delay);
 			return ip;
 		}
+		ImageProcessor ip = getCachedProcessor(n);
+		String name = names[translate(n)-1];
+		properties = name!=null?(Properties)sliceProperties.get(name):null;
+		return ip;
+	}
+
+	/** Returns slice 'n' from the cache shared by all virtual stacks, or, if
+		it is not in the cache, reads it using readProcessor(n). The next few
+		slices in the direction the stack is being scrolled are read in the
+		background. Subclasses that implement readProcessor() can call this
+		method from getProcessor().
+		@see VirtualStackCache
+	*/
+	protected ImageProcessor getCachedProcessor(int n) {
+		return VirtualStackCache.getProcessor(this, n);
+	}
+
+	/** Called by VirtualStackCache.remove() when the stack is changed or closed. */
+	void clearSliceProperties() {
+		sliceProperties.clear();
+	}
+
+	/** Reads slice 'n' from disk, where {@literal 1<=n<=nslices}. Called
+		by getCachedProcessor(), possibly on the read-ahead thread, so it
+		must not change the state of the stack that describes the current
+		slice; getProcessor() does that. Calls of a stack are serialized
+		(synchronized on the stack). */
+	protected ImageProcessor readProcessor(int n) {
 		n = translate(n);  // update n for hyperstacks not in the default CZT order
 		Opener opener = new Opener();
 		opener.setSilentMode(true);
+		boolean redirect = IJ.redirectingErrorMessages();
 		IJ.redirectErrorMessages(true);
 		ImagePlus imp = opener.openTempImage(path, names[n-1]);
-		IJ.redirectErrorMessages(false);
+		IJ.redirectErrorMessages(redirect);
 		ImageProcessor ip = null;
 		int depthThisImage = 0;
 		if (imp!=null) {
@@ -198,7 +232,10 @@ public class VirtualStack extends ImageStack {
 			depthThisImage = imp.getBitDepth();
 			ip = imp.getProcessor();
 			ip.setOverlay(imp.getOverlay());
-			properties = imp.getProperty("FHT")!=null?imp.getProperties():null;
+			if (imp.getProperty("FHT")!=null)
+				sliceProperties.put(names[n-1], imp.getProperties());
+			else
+				sliceProperties.remove(names[n-1]);
 		} else {
 			File f = new File(path, names[n-1]);
 			String msg = f.exists()?"Error opening ":"File not found: ";
@@ -295,6 +332,7 @@ public class VirtualStack extends ImageStack {
 	/** Sets the bit depth (8, 16, 24 or 32). */
 	public void setBitDepth(int bitDepth) {
 		this.bitDepth = bitDepth;
+		VirtualStackCache.remove(this);
 	}
 
 	/** Returns the bit depth (8, 16, 24 or 32), or 0 if the bit depth is not known. */
@@ -313,6 +351,7 @@ public class VirtualStack extends ImageStack {
 			names[i] = names2[slice-1];
 			labels[i] = info[slice-1];
 		}
+		VirtualStackCache.remove(this);
 		return this;
 	}
 	
@@ -324,6 +363,7 @@ public class VirtualStack extends ImageStack {
 	/** Sets the table that translates slice numbers of hyperstacks not in default CZT order. */
 	public void setIndexes(int[] indexes) {
 		this.indexes = indexes;
+		VirtualStackCache.remove(this);
 	}
 	
 	/** Translates slice numbers of hyperstacks not in default CZT order. */
@@ -342,6 +382,7 @@ public class VirtualStack extends ImageStack {
 			names[i] = names[i*factor];
 			labels[i] = labels[i*factor];
 		}
+		VirtualStackCache.remove(this);
 		ImagePlus imp = WindowManager.getCurrentImage();
 		if (imp!=null) {
 			imp.setSlice(1);
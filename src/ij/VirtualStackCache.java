@@ -0,0 +1,276 @@
+package ij;
+import ij.process.*;
+import java.util.*;
+
+/** A cache of decoded virtual stack slices, shared by all virtual stacks,
+	with a background thread that reads ahead in the direction the stack is
+	being scrolled. The cache is limited to a number of bytes, set in
+	Edit>Options>Memory & Threads; the least recently used slices are
+	removed first. It is off by default, since cached slices are not
+	updated when the files of a stack change on disk. Callers always get a copy of the cached slice, so
+	editing a slice does not change the cache.
+	@see VirtualStack#getCachedProcessor
+*/
+public class VirtualStackCache {
+	private static final int READ_AHEAD = 4;
+
+	private static long maxBytes = -1L;
+	private static long bytes;
+	private static long hits, misses, prefetched;
+	private static LinkedHashMap cache = new LinkedHashMap(64, 0.75f, true);
+	private static HashSet pending = new HashSet();
+	private static LinkedList queue = new LinkedList();
+	private static boolean prefetching;
+	private static final Object lock = cache;
+
+	private VirtualStackCache() {}
+
+	/** Returns slice 'n' of 'stack', from the cache if it is there,
+		otherwise using stack.readProcessor(n), and starts reading
+		the next few slices in the scroll direction in the background. */
+	static ImageProcessor getProcessor(VirtualStack stack, int n) {
+		if (getMaxBytes()<=0L)
+			return read(stack, n);
+		Key key = new Key(stack, n);
+		ImageProcessor ip = null;
+		synchronized(lock) {
+			while (pending.contains(key)) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			ip = (ImageProcessor)cache.get(key);
+			if (ip!=null)
+				hits++;
+			else {
+				misses++;
+				pending.add(key);
+			}
+			int direction = n>stack.lastSlice?1:(n<stack.lastSlice?-1:0);
+			stack.lastSlice = n;
+			if (direction!=0)
+				readAhead(stack, n, direction);
+		}
+		if (ip!=null)
+			return copy(ip);
+		try {
+			ip = read(stack, n);
+		} finally {
+			synchronized(lock) {
+				pending.remove(key);
+				if (ip!=null)
+					put(key, ip);
+				lock.notifyAll();
+			}
+		}
+		return ip!=null?copy(ip):null;
+	}
+
+	/** Reads a slice, one at a time per stack, since the readProcessor()
+		methods of the stacks are not thread-safe. */
+	private static ImageProcessor read(VirtualStack stack, int n) {
+		synchronized(stack) {
+			return stack.readProcessor(n);
+		}
+	}
+
+	/** Queues the slices following 'n' in 'direction' that are not yet cached. */
+	private static void readAhead(VirtualStack stack, int n, int direction) {
+		queue.clear(); // only read ahead of the most recent request
+		long sliceBytes = (long)stack.getWidth()*stack.getHeight()*getBytesPerPixel(stack.getBitDepth());
+		int count = (int)Math.min(READ_AHEAD, maxBytes/4/Math.max(sliceBytes,1L));
+		int size = stack.getSize();
+		for (int i=1; i<=count; i++) {
+			int slice = n + i*direction;
+			if (slice<1 || slice>size)
+				break;
+			Key key = new Key(stack, slice);
+			if (!cache.containsKey(key) && !pending.contains(key))
+				queue.add(key);
+		}
+		if (queue.isEmpty() || prefetching)
+			return;
+		prefetching = true;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				prefetch();
+			}
+		}, "VirtualStack read-ahead");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.NORM_PRIORITY-1);
+		thread.start();
+	}
+
+	private static void prefetch() {
+		while (true) {
+			Key key;
+			synchronized(lock) {
+				if (queue.isEmpty()) {
+					prefetching = false;
+					return;
+				}
+				key = (Key)queue.removeFirst();
+				if (cache.containsKey(key) || pending.contains(key) || !key.isValid())
+					continue;
+				pending.add(key);
+			}
+			ImageProcessor ip = null;
+			try {
+				ip = read(key.stack, key.n);
+			} catch (Throwable e) {
+				if (IJ.debugMode) IJ.log("VirtualStackCache: "+e);
+			} finally {
+				synchronized(lock) {
+					pending.remove(key);
+					if (ip!=null && key.isValid()) {
+						put(key, ip);
+						prefetched++;
+					}
+					lock.notifyAll();
+				}
+			}
+		}
+	}
+
+	/** Adds a slice to the cache, removing least recently used slices as needed. */
+	private static void put(Key key, ImageProcessor ip) {
+		long size = getBytes(ip);
+		if (size>maxBytes/2)
+			return;
+		ImageProcessor old = (ImageProcessor)cache.put(key, ip);
+		if (old!=null)
+			bytes -= getBytes(old);
+		bytes += size;
+		Iterator it = cache.entrySet().iterator();
+		while (bytes>maxBytes && it.hasNext()) {
+			Map.Entry entry = (Map.Entry)it.next();
+			bytes -= getBytes((ImageProcessor)entry.getValue());
+			it.remove();
+		}
+	}
+
+	private static ImageProcessor copy(ImageProcessor ip) {
+		ImageProcessor ip2 = ip.duplicate();
+		if (!(ip instanceof ColorProcessor) && (ip2.getMin()!=ip.getMin() || ip2.getMax()!=ip.getMax()))
+			ip2.setMinAndMax(ip.getMin(), ip.getMax());
+		ip2.setCalibrationTable(ip.getCalibrationTable());
+		ip2.setOverlay(ip.getOverlay());
+		return ip2;
+	}
+
+	private static long getBytes(ImageProcessor ip) {
+		return (long)ip.getPixelCount()*getBytesPerPixel(ip.getBitDepth());
+	}
+
+	private static int getBytesPerPixel(int bitDepth) {
+		switch (bitDepth) {
+			case 16: return 2;
+			case 24: case 32: return 4;
+			default: return 1;
+		}
+	}
+
+	/** Removes all slices of 'stack' from the cache. Called when
+		the stack is changed or its window is closed. */
+	public static void remove(VirtualStack stack) {
+		synchronized(lock) {
+			stack.cacheGeneration++;
+			Iterator it = cache.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry entry = (Map.Entry)it.next();
+				if (((Key)entry.getKey()).stack==stack) {
+					bytes -= getBytes((ImageProcessor)entry.getValue());
+					it.remove();
+				}
+			}
+			stack.clearSliceProperties();
+		}
+	}
+
+	/** Removes all slices from the cache. */
+	public static void clear() {
+		synchronized(lock) {
+			Iterator it = cache.keySet().iterator();
+			while (it.hasNext())
+				((Key)it.next()).stack.cacheGeneration++;
+			cache.clear();
+			queue.clear();
+			bytes = 0L;
+		}
+	}
+
+	/** Sets the maximum size of the cache in bytes. Set to zero to disable
+		caching and read-ahead. The default is the "vstack.cache" preference
+		(in MB), which is zero. */
+	public static void setMaxBytes(long max) {
+		synchronized(lock) {
+			maxBytes = Math.max(max, 0L);
+			if (maxBytes==0L)
+				clear();
+		}
+	}
+
+	/** Returns the maximum size of the cache in bytes. */
+	public static long getMaxBytes() {
+		if (maxBytes<0L)
+			maxBytes = Math.max((long)Prefs.get("vstack.cache", 0), 0L)*1048576L;
+		return maxBytes;
+	}
+
+	/** Returns the number of bytes used by cached slices. */
+	public static long getBytes() {
+		return bytes;
+	}
+
+	/** Returns the number of requests that were found in the cache. */
+	public static long getHits() {
+		return hits;
+	}
+
+	/** Returns the number of requests that had to be read from disk. */
+	public static long getMisses() {
+		return misses;
+	}
+
+	/** Returns the number of slices read ahead in the background. */
+	public static long getPrefetched() {
+		return prefetched;
+	}
+
+	/** Sets the hit, miss and read-ahead counts to zero. */
+	public static void resetCounters() {
+		synchronized(lock) {
+			hits = misses = prefetched = 0L;
+		}
+	}
+
+	private static class Key {
+		VirtualStack stack;
+		int n;
+		int generation;
+
+		Key(VirtualStack stack, int n) {
+			this.stack = stack;
+			this.n = n;
+			generation = stack.cacheGeneration;
+		}
+
+		boolean isValid() {
+			return generation==stack.cacheGeneration;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key key = (Key)obj;
+			return key.stack==stack && key.n==n && key.generation==generation;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(stack)*31 + n;
+		}
+	}
+
+}
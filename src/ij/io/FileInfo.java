@@ -90,6 +90,7 @@ public class FileInfo implements Cloneable {
 	public static final int JPEG = 4;
 	public static final int PACK_BITS = 5;
 	public static final int ZIP = 6;
+	public static final int ZIP_WITH_DIFFERENCING = 7;
 	
 	/* File format (TIFF, GIF_OR_JPG, BMP, etc.). Used by the File/Revert command */
 	public int fileFormat;
@@ -107,9 +108,14 @@ public class FileInfo implements Cloneable {
     public boolean whiteIsZero;
     public boolean intelByteOrder;
 	public int compression;
-    public int[] stripOffsets;  
+    public int[] stripOffsets;  // Use getStripOffset() to read
     public int[] stripLengths;
+    // BigTIFF strip offsets, set only when an offset is larger than 4GB
+    public long[] longStripOffsets;  // Use getStripOffset() to read
     public int rowsPerStrip;
+    // Tile size of tiled TIFFs; the tile offsets and byte counts are stored in stripOffsets and stripLengths
+    public int tileWidth;
+    public int tileHeight;
 	public int lutSize;
 	public byte[] reds;
 	public byte[] greens;
@@ -175,6 +181,11 @@ public class FileInfo implements Cloneable {
     	return longOffset>0L?longOffset:((long)offset)&0xffffffffL;
     }
     
+    /** Returns the offset of the specified strip (or tile) as a long. */
+    public final long getStripOffset(int strip) {
+    	return longStripOffsets!=null?longStripOffsets[strip]:((long)stripOffsets[strip])&0xffffffffL;
+    }
+
     /** Returns the gap between images as a long. */
     public final long getGap() {
     	return longGap>0L?longGap:((long)gapBetweenImages)&0xffffffffL;
@@ -36,6 +36,7 @@ public class FileOpener {
 	private static boolean showConflictMessage = true;
 	private double minValue, maxValue;
 	private static boolean silentMode;
+	private Rectangle region;
 
 	public FileOpener(FileInfo fi) {
 		this.fi = fi;
@@ -220,6 +221,27 @@ public class FileOpener {
 		return ip;
 	}
 
+	/** Opens the part of the image that is inside the specified rectangle.
+		With tiled TIFFs, only the tiles that overlap the rectangle are
+		read, so regions of images that are too large to fit in memory
+		can be opened. Returns null if the rectangle is outside the image.
+	*/
+	public ImageProcessor openProcessor(Rectangle r) {
+		Rectangle bounds = r.intersection(new Rectangle(0, 0, fi.width, fi.height));
+		if (bounds.isEmpty())
+			return null;
+		region = bounds;
+		width = bounds.width;
+		height = bounds.height;
+		try {
+			return openProcessor();
+		} finally {
+			region = null;
+			width = fi.width;
+			height = fi.height;
+		}
+	}
+
 	void setOverlay(ImagePlus imp, byte[][] rois) {
 		Overlay overlay = new Overlay();
 		Overlay proto = null;
@@ -525,11 +547,13 @@ public class FileOpener {
 		    if (gzip) fi.compression = FileInfo.COMPRESSION_UNKNOWN;
 		    if (f==null || !f.exists() || f.isDirectory() || !validateFileInfo(f, fi))
 		    	is = null;
+		    else if ((fi.tileWidth>0 || fi.compression>=FileInfo.LZW) && !gzip)
+				is = new RandomAccessStream(new RandomAccessFile(f, "r")); // seek, rather than cache, strips and tiles
 		    else
 				is = new FileInputStream(f);
 		}
-		if (is!=null) {
-			if (fi.compression>=FileInfo.LZW)
+		if (is!=null && !(is instanceof RandomAccessStream)) {
+			if (fi.compression>=FileInfo.LZW || fi.tileWidth>0)
 				is = new RandomAccessStream(is);
 			else if (gzip)
 				is = new GZIPInputStream(is, 50000);
@@ -550,7 +574,7 @@ public class FileOpener {
 		   error("Offset is negative.", fi, offset, length);
 		   return false;
 		}
-		if (fi.fileType==FileInfo.BITMAP || fi.compression!=FileInfo.COMPRESSION_NONE)
+		if (fi.fileType==FileInfo.BITMAP || fi.compression!=FileInfo.COMPRESSION_NONE || fi.tileWidth>0)
 			return true;
 		length = f.length();
 		long size = fi.width*fi.height*fi.getBytesPerPixel();
@@ -587,6 +611,7 @@ public class FileOpener {
 			if (is==null)
 				return null;
 			ImageReader reader = new ImageReader(fi);
+			reader.setRegion(region);
 			pixels = reader.readPixels(is);
 			minValue = reader.min;
 			maxValue = reader.max;
@@ -20,8 +20,12 @@ public class FileSaver {
 	public static final int DEFAULT_JPEG_QUALITY = 85;
 	private static int jpegQuality;
 	private static int bsize = 32768; // 32K default buffer size
+	private static int tiffCompression = FileInfo.COMPRESSION_NONE;
 	
-    static {setJpegQuality(ij.Prefs.getInt(ij.Prefs.JPEG, DEFAULT_JPEG_QUALITY));}
+    static {
+    	setJpegQuality(ij.Prefs.getInt(ij.Prefs.JPEG, DEFAULT_JPEG_QUALITY));
+    	setTiffCompression(ij.Prefs.getInt(ij.Prefs.TIFF_COMPRESSION, FileInfo.COMPRESSION_NONE));
+    }
 
 	private static String defaultDirectory = null;
 	private ImagePlus imp;
@@ -114,6 +118,7 @@ public class FileSaver {
 		fi.roi = RoiEncoder.saveAsByteArray(imp.getRoi());
 		fi.overlay = getOverlay(imp);
 		fi.properties = imp.getPropertiesAsArray();
+		fi.compression = tiffCompression;
 		DataOutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
@@ -206,10 +211,14 @@ public class FileSaver {
 		fi.overlay = getOverlay(imp);
 		fi.properties = imp.getPropertiesAsArray();
 		if (imp.isComposite()) saveDisplayRangesAndLuts(imp, fi);
+		fi.compression = tiffCompression;
 		DataOutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
-			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path),bsize));
+			FileOutputStream fos = new FileOutputStream(path);
+			if (virtualStack)
+				file.setChannel(fos.getChannel());
+			out = new DataOutputStream(new BufferedOutputStream(fos,bsize));
 			file.write(out);
 			out.close();
 		} catch (IOException e) {
@@ -545,7 +554,10 @@ public class FileSaver {
 				}
 			}
 			ImageWriter file = new ImageWriter(fi);
-			out = new BufferedOutputStream(new FileOutputStream(path),bsize);
+			FileOutputStream fos = new FileOutputStream(path);
+			if (virtualStack)
+				file.setChannel(fos.getChannel());
+			out = new BufferedOutputStream(fos,bsize);
 			file.write(out);
 			out.close();
 		} catch (IOException e) {
@@ -823,6 +835,23 @@ public class FileSaver {
     	if (jpegQuality>100) jpegQuality = 100;
     }
 
+	/** Sets the compression used by saveAsTiff() and saveAsTiffStack():
+		FileInfo.COMPRESSION_NONE (the default), LZW, LZW_WITH_DIFFERENCING,
+		PACK_BITS, ZIP or ZIP_WITH_DIFFERENCING. The "WITH_DIFFERENCING"
+		modes (TIFF predictor 2) usually give the best compression with
+		8 and 16-bit images. The setting is saved in the preferences and
+		can be changed in Edit>Options>Input/Output. */
+	public static void setTiffCompression(int compression) {
+		if (compression<FileInfo.COMPRESSION_NONE || compression>FileInfo.ZIP_WITH_DIFFERENCING || compression==FileInfo.JPEG)
+			compression = FileInfo.COMPRESSION_NONE;
+		tiffCompression = compression;
+	}
+
+	/** Returns the compression used when saving TIFFs. */
+	public static int getTiffCompression() {
+		return tiffCompression;
+	}
+
     /** Returns the current JPEG quality setting (0-100). */
     public static int getJpegQuality() {
         return jpegQuality;
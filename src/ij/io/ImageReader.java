@@ -3,10 +3,17 @@ import ij.*;
 import ij.process.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.util.zip.Inflater;
 import java.util.zip.DataFormatException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.util.ThreadUtil;
 
 
 /** Reads raw 8-bit, 16-bit or 32-bit (float or RGB)
@@ -15,6 +22,10 @@ public class ImageReader {
 
 	private static final int CLEAR_CODE = 256;
 	private static final int EOI_CODE = 257;
+	private static final int MAX_BATCH_BYTES = 64*1024*1024;
+	private static final int DIRECT_BUFFER_SIZE = 1024*1024;
+	private static final ThreadLocal directBuffers = new ThreadLocal(); // one reusable buffer per reading thread
+	private static boolean parallelDecompression = true;
 
     private FileInfo fi;
     private int width, height;
@@ -25,6 +36,10 @@ public class ImageReader {
 	private int eofErrorCount;
 	private int imageCount;
 	private long startTime;
+	private Rectangle region;
+	private boolean differencing;
+	private byte[][] decodedStrips;
+	private int batchStart;
 	public double min, max; // readRGB48() calculates min/max pixel values
 
 	/**
@@ -36,8 +51,25 @@ public class ImageReader {
 	    width = fi.width;
 	    height = fi.height;
 	    skipCount = fi.getOffset();
+	    differencing = fi.compression==FileInfo.LZW_WITH_DIFFERENCING || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING;
 	}
 	
+	/** Restricts readPixels() to the specified rectangle, which must
+		be inside the image. With tiled TIFFs, only the tiles that overlap
+		the rectangle are read and decompressed. Set to null to read
+		the whole image.
+	*/
+	public void setRegion(Rectangle r) {
+		region = r;
+	}
+
+	/** Enables or disables decompression of TIFF strips and tiles
+		using multiple threads. Enabled by default; the pixels are
+		the same either way. */
+	public static void setParallelDecompression(boolean b) {
+		parallelDecompression = b;
+	}
+
 	void eofError() {
 		eofErrorCount++;
 	}
@@ -67,24 +99,10 @@ public class ImageReader {
 		int current = 0;
 		byte last = 0;
 		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+			byte[] byteArray = readStrip(in, i);
 			int length = byteArray.length;
 			length = length - (length%fi.width);
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
+			if (differencing) {
 				for (int b=0; b<length; b++) {
 					byteArray[b] += last;
 					last = b % fi.width == fi.width - 1 ? 0 : byteArray[b];
@@ -103,73 +121,18 @@ public class ImageReader {
 	short[] read16bitImage(InputStream in) throws IOException {
 		if (fi.compression>FileInfo.COMPRESSION_NONE || (fi.stripOffsets!=null&&fi.stripOffsets.length>1) && fi.fileType!=FileInfo.RGB48_PLANAR)
 			return readCompressed16bitImage(in);
-		int pixelsRead;
-		byte[] buffer = new byte[bufferSize];
 		short[] pixels = new short[nPixels];
-		long totalRead = 0L;
-		int base = 0;
-		int count, value;
-		int bufferCount;
-		
-		while (totalRead<byteCount) {
-			if ((totalRead+bufferSize)>byteCount)
-				bufferSize = (int)(byteCount-totalRead);
-			bufferCount = 0;
-			while (bufferCount<bufferSize) { // fill the buffer
-				count = in.read(buffer, bufferCount, bufferSize-bufferCount);
-				if (count==-1) {
-					for (int i=bufferCount; i<bufferSize; i++) buffer[i] = 0;
-					totalRead = byteCount;
-					eofError();
-					break;
-				}
-				bufferCount += count;
-			}
-			totalRead += bufferSize;
-			showProgress(totalRead, byteCount);
-			pixelsRead = bufferSize/bytesPerPixel;
-			if (fi.intelByteOrder) {
-				if (fi.fileType==FileInfo.GRAY16_SIGNED)
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)((((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff))+32768);
-				else
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)(((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff));
-			} else {
-				if (fi.fileType==FileInfo.GRAY16_SIGNED)
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)((((buffer[j]&0xff)<<8) | (buffer[j+1]&0xff))+32768);
-				else
-					for (int i=base,j=0; i<(base+pixelsRead); i++,j+=2)
-						pixels[i] = (short)(((buffer[j]&0xff)<<8) | (buffer[j+1]&0xff));
-			}
-			base += pixelsRead;
-		}
+		readUncompressed(in, pixels);
 		return pixels;
 	}
 	
 	short[] readCompressed16bitImage(InputStream in) throws IOException {
-		if (IJ.debugMode) IJ.log("ImageReader.read16bit, offset="+fi.stripOffsets[0]);
+		if (IJ.debugMode) IJ.log("ImageReader.read16bit, offset="+fi.getStripOffset(0));
 		short[] pixels = new short[nPixels];
 		int base = 0;
 		short last = 0;
 		for (int k=0; k<fi.stripOffsets.length; k++) {
-			//IJ.log("seek: "+k+" "+fi.stripOffsets[k]+" "+fi.stripLengths[k]+"  "+(in instanceof RandomAccessStream));
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+			byte[] byteArray = readStrip(in, k);
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
 			int pmax = base+pixelsRead;
@@ -181,7 +144,7 @@ public class ImageReader {
 				for (int i=base,j=0; i<pmax; i++,j+=2)
 					pixels[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
 			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
+			if (differencing) {
 				for (int b=base; b<pmax; b++) {
 					pixels[b] += last;
 					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
@@ -201,82 +164,101 @@ public class ImageReader {
 	float[] read32bitImage(InputStream in) throws IOException {
 		if (fi.compression>FileInfo.COMPRESSION_NONE || (fi.stripOffsets!=null&&fi.stripOffsets.length>1))
 			return readCompressed32bitImage(in);
-		int pixelsRead;
-		byte[] buffer = new byte[bufferSize];
 		float[] pixels = new float[nPixels];
+		readUncompressed(in, pixels);
+		return pixels;
+	}
+	
+	/** Reads 'byteCount' bytes of contiguous 16 or 32-bit pixel data into
+		'pixels' (a short or float array). The bytes are converted using
+		NIO view buffers with the file's byte order, one chunk at a time
+		so that signed and integer pixels are converted while the chunk
+		is still in the cache. If 'in' is a FileInputStream, the data are
+		read through its channel into a direct buffer that is reused by
+		later reads on the same thread. */
+	private void readUncompressed(InputStream in, Object pixels) throws IOException {
+		FileChannel channel = in instanceof FileInputStream?((FileInputStream)in).getChannel():null;
+		ByteBuffer buffer;
+		byte[] bytes = null;
+		if (channel!=null) {
+			int size = (int)Math.min(byteCount, DIRECT_BUFFER_SIZE);
+			buffer = (ByteBuffer)directBuffers.get();
+			if (buffer==null || buffer.capacity()<size) {
+				buffer = ByteBuffer.allocateDirect(size);
+				directBuffers.set(buffer);
+			}
+		} else {
+			bytes = new byte[bufferSize];
+			buffer = ByteBuffer.wrap(bytes);
+		}
+		buffer.order(fi.intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+		int chunkSize = (buffer.capacity()/8)*8;
+		int[] ints = null;
 		long totalRead = 0L;
 		int base = 0;
-		int count, value;
-		int bufferCount;
-		int tmp;
-		
 		while (totalRead<byteCount) {
-			if ((totalRead+bufferSize)>byteCount)
-				bufferSize = (int)(byteCount-totalRead);
-			bufferCount = 0;
-			while (bufferCount<bufferSize) { // fill the buffer
-				count = in.read(buffer, bufferCount, bufferSize-bufferCount);
-				if (count==-1) {
-					for (int i=bufferCount; i<bufferSize; i++) buffer[i] = 0;
-					totalRead = byteCount;
-					eofError();
-					break;
+			int size = (int)Math.min(chunkSize, byteCount-totalRead);
+			buffer.clear();
+			buffer.limit(size);
+			boolean eof = false;
+			if (channel!=null) {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer)==-1) {
+						eof = true;
+						break;
+					}
+				}
+			} else {
+				while (buffer.hasRemaining()) {
+					int count = in.read(bytes, buffer.position(), buffer.remaining());
+					if (count==-1) {
+						eof = true;
+						break;
+					}
+					buffer.position(buffer.position()+count);
 				}
-				bufferCount += count;
 			}
-			totalRead += bufferSize;
-			showProgress(totalRead, byteCount);
-			pixelsRead = bufferSize/bytesPerPixel;
-			int pmax = base+pixelsRead;
-			if (pmax>nPixels) pmax = nPixels;
-			int j = 0;
-			if (fi.intelByteOrder)
-				for (int i=base; i<pmax; i++) {
-					tmp = (int)(((buffer[j+3]&0xff)<<24) | ((buffer[j+2]&0xff)<<16) | ((buffer[j+1]&0xff)<<8) | (buffer[j]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-					j += 4;
+			if (eof) {
+				while (buffer.hasRemaining())
+					buffer.put((byte)0);
+				eofError();
+			}
+			buffer.flip();
+			int n = Math.min(size/bytesPerPixel, nPixels-base);
+			if (pixels instanceof short[]) {
+				short[] spixels = (short[])pixels;
+				buffer.asShortBuffer().get(spixels, base, n);
+				if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+					for (int i=base; i<base+n; i++)
+						spixels[i] = (short)(spixels[i]+32768);
 				}
-			else
-				for (int i=base; i<pmax; i++) {
-					tmp = (int)(((buffer[j]&0xff)<<24) | ((buffer[j+1]&0xff)<<16) | ((buffer[j+2]&0xff)<<8) | (buffer[j+3]&0xff));
-					if (fi.fileType==FileInfo.GRAY32_FLOAT)
-						pixels[i] = Float.intBitsToFloat(tmp);
-					else if (fi.fileType==FileInfo.GRAY32_UNSIGNED)
-						pixels[i] = (float)(tmp&0xffffffffL);
-					else
-						pixels[i] = tmp;
-					j += 4;
+			} else if (fi.fileType==FileInfo.GRAY32_FLOAT) {
+				buffer.asFloatBuffer().get((float[])pixels, base, n);
+			} else { // read integers as ints; not all int bit patterns survive a float round trip
+				float[] fpixels = (float[])pixels;
+				if (ints==null)
+					ints = new int[chunkSize/4];
+				buffer.asIntBuffer().get(ints, 0, n);
+				if (fi.fileType==FileInfo.GRAY32_UNSIGNED) {
+					for (int i=0; i<n; i++)
+						fpixels[base+i] = (float)(ints[i]&0xffffffffL);
+				} else {
+					for (int i=0; i<n; i++)
+						fpixels[base+i] = ints[i];
 				}
-			base += pixelsRead;
+			}
+			base += n;
+			totalRead = eof?byteCount:totalRead+size;
+			showProgress(totalRead, byteCount);
 		}
-		return pixels;
 	}
-	
+
 	float[] readCompressed32bitImage(InputStream in) throws IOException {
 		float[] pixels = new float[nPixels];
 		int base = 0;
 		float last = 0;
 		for (int k=0; k<fi.stripOffsets.length; k++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+			byte[] byteArray = readStrip(in, k);
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
 			int pmax = base+pixelsRead;
@@ -303,7 +285,7 @@ public class ImageReader {
 						pixels[i] = tmp;
 				}
 			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
+			if (differencing) {
 				for (int b=base; b<pmax; b++) {
 					pixels[b] += last;
 					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
@@ -444,23 +426,8 @@ public class ImageReader {
 		int red=0, green=0, blue=0, alpha = 0;
 		boolean bgr = fi.fileType==FileInfo.BGR;
 		boolean cmyk = fi.fileType==FileInfo.CMYK;
-		boolean differencing = fi.compression == FileInfo.LZW_WITH_DIFFERENCING;
 		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+			byte[] byteArray = readStrip(in, i);
 			if (differencing) {
 				for (int b=0; b<byteArray.length; b++) {
 					if (b / bytesPerPixel % fi.width == 0) continue;
@@ -499,6 +466,254 @@ public class ImageReader {
 		return pixels;
 	}
 	
+	/** Reads the tiles of a tiled TIFF that overlap the current region,
+		assembles them into an uncompressed buffer, and then converts the
+		buffer into a pixel array using the uncompressed code paths. */
+	Object readTiledImage(InputStream in) throws IOException {
+		RandomAccessStream ras = in instanceof RandomAccessStream?(RandomAccessStream)in:new RandomAccessStream(in);
+		Rectangle r = region!=null?region:new Rectangle(0, 0, fi.width, fi.height);
+		int bpp = fi.getBytesPerPixel();
+		int tileWidth = fi.tileWidth;
+		int tileHeight = fi.tileHeight>0?fi.tileHeight:fi.tileWidth;
+		int tilesAcross = (fi.width+tileWidth-1)/tileWidth;
+		long size = (long)r.width*r.height*bpp;
+		if (size>Integer.MAX_VALUE)
+			throw new IOException("Region is larger than 2GB ("+r.width+"x"+r.height+")");
+		byte[] buffer = new byte[(int)size];
+		int tileBytes = tileWidth*tileHeight*bpp;
+		int firstColumn = r.x/tileWidth;
+		int lastColumn = (r.x+r.width-1)/tileWidth;
+		int firstRow = r.y/tileHeight;
+		int lastRow = (r.y+r.height-1)/tileHeight;
+		int[] indexes = new int[(lastColumn-firstColumn+1)*(lastRow-firstRow+1)];
+		int nTiles = 0;
+		for (int row=firstRow; row<=lastRow; row++) {
+			for (int column=firstColumn; column<=lastColumn; column++) {
+				int index = row*tilesAcross + column;
+				if (index<fi.stripOffsets.length)
+					indexes[nTiles++] = index;
+			}
+		}
+		if (fi.compression>FileInfo.COMPRESSION_NONE)
+			byteCount = tileBytes;
+		int batchSize = getBatchSize(nTiles, tileBytes);
+		for (int first=0; first<nTiles; first+=batchSize) {
+			int n = Math.min(batchSize, nTiles-first);
+			byte[][] tiles = new byte[n][];
+			for (int i=0; i<n; i++) {
+				int index = indexes[first+i];
+				tiles[i] = new byte[fi.stripLengths[index]];
+				ras.seek(fi.getStripOffset(index));
+				ras.readFully(tiles[i]);
+			}
+			copyTiles(tiles, indexes, first, r, buffer);
+			showProgress(first+n, nTiles);
+		}
+		FileInfo fi2 = (FileInfo)fi.clone();
+		fi2.width = r.width;
+		fi2.height = r.height;
+		fi2.compression = FileInfo.COMPRESSION_NONE;
+		fi2.tileWidth = fi2.tileHeight = 0;
+		fi2.stripOffsets = new int[] {0};
+		fi2.stripLengths = new int[] {buffer.length};
+		fi2.longStripOffsets = null;
+		fi2.offset = 0;
+		fi2.longOffset = 0L;
+		fi2.nImages = 1;
+		ImageReader reader = new ImageReader(fi2);
+		reader.showProgressBar = false;
+		Object pixels = reader.readPixels(new ByteArrayInputStream(buffer));
+		min = reader.min;
+		max = reader.max;
+		return pixels;
+	}
+
+	/** Decompresses the tiles in 'tiles', which are the tiles indexes[first]
+		to indexes[first+tiles.length-1], and copies the part of each tile
+		that is inside 'r' into 'buffer'. Tiles are decoded in parallel;
+		each one is copied to its own part of the buffer. */
+	private void copyTiles(final byte[][] tiles, final int[] indexes, final int first, final Rectangle r, final byte[] buffer) {
+		final int bpp = fi.getBytesPerPixel();
+		final int tileWidth = fi.tileWidth;
+		final int tileHeight = fi.tileHeight>0?fi.tileHeight:fi.tileWidth;
+		final int tilesAcross = (fi.width+tileWidth-1)/tileWidth;
+		final int tileBytes = tileWidth*tileHeight*bpp;
+		int numThreads = fi.compression>FileInfo.COMPRESSION_NONE?getNumThreads(tiles.length):1;
+		final AtomicInteger next = new AtomicInteger(0);
+		Callable[] callables = new Callable[numThreads];
+		for (int t=0; t<numThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					for (int i=next.getAndIncrement(); i<tiles.length; i=next.getAndIncrement()) {
+						int index = indexes[first+i];
+						byte[] tile = tiles[i];
+						tiles[i] = null;
+						if (fi.compression>FileInfo.COMPRESSION_NONE)
+							tile = uncompress(tile, tileBytes);
+						if (differencing)
+							undoDifferencing(tile, tileWidth, bpp);
+						int x0 = (index%tilesAcross)*tileWidth;
+						int y0 = (index/tilesAcross)*tileHeight;
+						int xstart = Math.max(r.x, x0);
+						int xend = Math.min(r.x+r.width, x0+tileWidth);
+						int ystart = Math.max(r.y, y0);
+						int yend = Math.min(r.y+r.height, y0+tileHeight);
+						int length = (xend-xstart)*bpp;
+						for (int y=ystart; y<yend; y++) {
+							int src = ((y-y0)*tileWidth + (xstart-x0))*bpp;
+							int dst = ((y-r.y)*r.width + (xstart-r.x))*bpp;
+							if (src+length>tile.length)
+								break; // truncated tile
+							System.arraycopy(tile, src, buffer, dst, length);
+						}
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
+
+	/** Reads and decompresses a strip of a compressed image. With a
+		RandomAccessStream and more than one thread, strips are read
+		ahead in batches and the batch is decompressed in parallel;
+		the caller still gets the strips one by one, in order. */
+	private byte[] readStrip(InputStream in, int strip) throws IOException {
+		int nStrips = fi.stripOffsets.length;
+		if (parallelDecompression && in instanceof RandomAccessStream && nStrips>1 && Prefs.getThreads()>1) {
+			if (decodedStrips==null || strip<batchStart || strip>=batchStart+decodedStrips.length)
+				decodeStrips((RandomAccessStream)in, strip);
+			byte[] bytes = decodedStrips[strip-batchStart];
+			decodedStrips[strip-batchStart] = null;
+			if (bytes==null)
+				throw new IOException("Error decompressing strip "+strip);
+			if (strip==nStrips-1)
+				decodedStrips = null;
+			return bytes;
+		}
+		if (in instanceof RandomAccessStream)
+			((RandomAccessStream)in).seek(fi.getStripOffset(strip));
+		else if (strip > 0) {
+			long skip = fi.getStripOffset(strip) - fi.getStripOffset(strip-1) - fi.stripLengths[strip-1];
+			if (skip > 0L) in.skip(skip);
+		}
+		byte[] byteArray = readRawStrip(in, strip);
+		return uncompress(byteArray);
+	}
+
+	private byte[] readRawStrip(InputStream in, int strip) throws IOException {
+		byte[] byteArray = new byte[fi.stripLengths[strip]];
+		int read = 0, left = byteArray.length;
+		while (left > 0) {
+			int r = in.read(byteArray, read, left);
+			if (r == -1) {eofError(); break;}
+			read += r;
+			left -= r;
+		}
+		return byteArray;
+	}
+
+	/** Reads a batch of strips starting with 'first' and decompresses them in parallel. */
+	private void decodeStrips(RandomAccessStream in, int first) throws IOException {
+		int stripBytes = fi.rowsPerStrip*fi.width*fi.getBytesPerPixel();
+		int n = Math.min(getBatchSize(fi.stripOffsets.length, stripBytes), fi.stripOffsets.length-first);
+		final byte[][] strips = new byte[n][];
+		for (int i=0; i<n; i++) {
+			in.seek(fi.getStripOffset(first+i));
+			strips[i] = readRawStrip(in, first+i);
+		}
+		final AtomicInteger next = new AtomicInteger(0);
+		Callable[] callables = new Callable[getNumThreads(n)];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					for (int i=next.getAndIncrement(); i<strips.length; i=next.getAndIncrement()) {
+						byte[] bytes = strips[i];
+						strips[i] = null;
+						strips[i] = uncompress(bytes);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		decodedStrips = strips;
+		batchStart = first;
+	}
+
+	/** Returns the number of strips or tiles to decode at once, so that
+		all threads are busy but the decoded batch does not use too much memory. */
+	private int getBatchSize(int n, int bytesPerChunk) {
+		int batchSize = MAX_BATCH_BYTES/Math.max(bytesPerChunk, 1);
+		batchSize = Math.max(batchSize, 2*Prefs.getThreads());
+		return Math.max(Math.min(batchSize, n), 1);
+	}
+
+	private int getNumThreads(int n) {
+		if (!parallelDecompression)
+			return 1;
+		return Math.max(Math.min(Prefs.getThreads(), n), 1);
+	}
+
+	/** Reverses horizontal differencing (TIFF predictor 2) on uncompressed
+		rows that are 'rowWidth' pixels wide. */
+	private void undoDifferencing(byte[] bytes, int rowWidth, int bytesPerPixel) {
+		int samples = fi.samplesPerPixel>0?fi.samplesPerPixel:1;
+		int bytesPerSample = bytesPerPixel/samples;
+		int rowBytes = rowWidth*bytesPerPixel;
+		boolean intel = fi.intelByteOrder;
+		for (int row=0; row+rowBytes<=bytes.length; row+=rowBytes) {
+			for (int i=row+bytesPerPixel; i<row+rowBytes; i+=bytesPerSample) {
+				int j = i - bytesPerPixel;
+				if (bytesPerSample==1)
+					bytes[i] += bytes[j];
+				else if (bytesPerSample==2) {
+					int value = intel?((bytes[i+1]&0xff)<<8)|(bytes[i]&0xff):((bytes[i]&0xff)<<8)|(bytes[i+1]&0xff);
+					int last = intel?((bytes[j+1]&0xff)<<8)|(bytes[j]&0xff):((bytes[j]&0xff)<<8)|(bytes[j+1]&0xff);
+					value += last;
+					bytes[intel?i:i+1] = (byte)value;
+					bytes[intel?i+1:i] = (byte)(value>>8);
+				} else if (bytesPerSample==4) {
+					int value = 0, last = 0;
+					for (int b=0; b<4; b++) {
+						int shift = intel?b*8:(3-b)*8;
+						value |= (bytes[i+b]&0xff)<<shift;
+						last |= (bytes[j+b]&0xff)<<shift;
+					}
+					value += last;
+					for (int b=0; b<4; b++)
+						bytes[i+b] = (byte)(value>>(intel?b*8:(3-b)*8));
+				}
+			}
+		}
+	}
+
+	/** Returns the part of 'pixels' (a full image) that is inside the current region. */
+	private Object cropPixels(Object pixels) {
+		if (pixels instanceof Object[]) {
+			Object[] channels = (Object[])pixels;
+			Object[] channels2 = new Object[channels.length];
+			for (int i=0; i<channels.length; i++)
+				channels2[i] = cropPixels(channels[i]);
+			return channels2;
+		}
+		Rectangle r = region;
+		Object pixels2 = null;
+		if (pixels instanceof byte[])
+			pixels2 = new byte[r.width*r.height];
+		else if (pixels instanceof short[])
+			pixels2 = new short[r.width*r.height];
+		else if (pixels instanceof float[])
+			pixels2 = new float[r.width*r.height];
+		else if (pixels instanceof int[])
+			pixels2 = new int[r.width*r.height];
+		else
+			return pixels;
+		for (int y=0; y<r.height; y++)
+			System.arraycopy(pixels, (y+r.y)*width+r.x, pixels2, y*r.width, r.width);
+		return pixels2;
+	}
+
 	int[] readJPEG(InputStream in) throws IOException {
 		BufferedImage bi = ImageIO.read(in);
 		ImageProcessor ip =  new ColorProcessor(bi);
@@ -585,7 +800,7 @@ public class ImageReader {
 		}
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.getStripOffset(i) - fi.getStripOffset(i-1) - fi.stripLengths[i-1];
 				if (skip>0L) dis.skip(skip);
 			}
 			int len = fi.stripLengths[i];
@@ -619,23 +834,15 @@ public class ImageReader {
 	}
 
 	Object readCompressedRGB48(InputStream in) throws IOException {
-		if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
-			throw new IOException("ImageJ cannot open 48-bit LZW compressed TIFFs with predictor");
+		if (differencing)
+			throw new IOException("ImageJ cannot open 48-bit compressed TIFFs with predictor");
 		int channels = 3;
 		short[][] stack = new short[channels][nPixels];
-		DataInputStream dis = new DataInputStream(in);
 		int pixel = 0;
 		int min=65535, max=0;
 		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip>0L) dis.skip(skip);
-			}
-			int len = fi.stripLengths[i];
-			byte[] buffer = new byte[len];
-			dis.readFully(buffer);
-			buffer = uncompress(buffer);
-			len = buffer.length;
+			byte[] buffer = readStrip(in, i);
+			int len = buffer.length;
 			if (len % 2 != 0) len--;
 			int value;
 			int channel=0;
@@ -771,6 +978,12 @@ public class ImageReader {
 		Object pixels;
 		startTime = System.currentTimeMillis();
 		try {
+			if (fi.tileWidth>0) {
+				pixels = readTiledImage(in);
+				showProgress(1, 1);
+				imageCount++;
+				return pixels;
+			}
 			switch (fi.fileType) {
 				case FileInfo.GRAY8:
 				case FileInfo.COLOR8:
@@ -842,6 +1055,8 @@ public class ImageReader {
 			}
 			showProgress(1, 1);
 			imageCount++;
+			if (region!=null && pixels!=null)
+				pixels = cropPixels(pixels);
 			return pixels;
 		}
 		catch (IOException e) {
@@ -880,11 +1095,15 @@ public class ImageReader {
 	}
 	
 	private byte[] uncompress(byte[] input) {
+		return uncompress(input, fi.rowsPerStrip*fi.width*fi.getBytesPerPixel());
+	}
+
+	private byte[] uncompress(byte[] input, int expected) {
 		if (fi.compression==FileInfo.PACK_BITS)
-			return packBitsUncompress(input, fi.rowsPerStrip*fi.width*fi.getBytesPerPixel());
+			return packBitsUncompress(input, expected);
 		else if (fi.compression==FileInfo.LZW || fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
 			return lzwUncompress(input);
-		else if (fi.compression==FileInfo.ZIP)
+		else if (fi.compression==FileInfo.ZIP || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING)
 			return zipUncompress(input);
 		else
 			return input;
@@ -1,13 +1,27 @@
 package ij.io;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 import ij.*;  //??
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
 
 /** Writes a raw image described by a FileInfo object to an OutputStream. */
 public class ImageWriter {
+	private static final int CLEAR_CODE = 256;
+	private static final int EOI_CODE = 257;
+	private static final int HASH_SIZE = 16384;
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
 	private FileInfo fi;
 	private boolean showProgressBar=true;
 	private boolean savingStack;
+	private FileChannel channel;
 	
 	public ImageWriter (FileInfo fi) {
 		this.fi = fi;
@@ -42,19 +56,6 @@ public class ImageWriter {
 		}
 	}
 
-	void write8BitVirtualStack(OutputStream out, VirtualStack virtualStack)  throws IOException {
-		showProgressBar = false;
-		boolean flip = "FlipTheseImages".equals(fi.fileName);
-		for (int i=1; i<=fi.nImages; i++) {
-			IJ.showStatus("Writing: " + i + "/" + fi.nImages);
-			ImageProcessor ip = virtualStack.getProcessor(i);
-			if (flip) ip.flipVertical();
-			byte[] pixels = (byte[])ip.getPixels();
-			write8BitImage(out, pixels);
-			IJ.showProgress((double)i/fi.nImages);
-		}
-	}
-
 	void write16BitImage(OutputStream out, short[] pixels)  throws IOException {
 		long bytesWritten = 0L;
 		long size = 2L*fi.width*fi.height;
@@ -95,19 +96,6 @@ public class ImageWriter {
 		}
 	}
 
-	void write16BitVirtualStack(OutputStream out, VirtualStack virtualStack)  throws IOException {
-		showProgressBar = false;
-		boolean flip = "FlipTheseImages".equals(fi.fileName);
-		for (int i=1; i<=fi.nImages; i++) {
-			IJ.showStatus("Writing: " + i + "/" + fi.nImages);
-			ImageProcessor ip = virtualStack.getProcessor(i);
-			if (flip) ip.flipVertical();
-			short[] pixels = (short[])ip.getPixels();
-			write16BitImage(out, pixels);
-			IJ.showProgress((double)i/fi.nImages);
-		}
-	}
-
 	void writeRGB48Image(OutputStream out, Object[] stack)  throws IOException {
 		short[] r = (short[])stack[0];
 		short[] g = (short[])stack[1];
@@ -207,19 +195,6 @@ public class ImageWriter {
 		}
 	}
 
-	void writeFloatVirtualStack(OutputStream out, VirtualStack virtualStack)  throws IOException {
-		showProgressBar = false;
-		boolean flip = "FlipTheseImages".equals(fi.fileName);
-		for (int i=1; i<=fi.nImages; i++) {
-			IJ.showStatus("Writing: " + i + "/" + fi.nImages);
-			ImageProcessor ip = virtualStack.getProcessor(i);
-			if (flip) ip.flipVertical();
-			float[] pixels = (float[])ip.getPixels();
-			writeFloatImage(out, pixels);
-			IJ.showProgress((double)i/fi.nImages);
-		}
-	}
-
 	void writeRGBImage(OutputStream out, int[] pixels)  throws IOException {
 		long bytesWritten = 0L;
 		long size = 3L*fi.width*fi.height;
@@ -250,17 +225,106 @@ public class ImageWriter {
 		}
 	}
 
-	void writeRGBVirtualStack(OutputStream out, VirtualStack virtualStack)  throws IOException {
+	/** Writes a virtual stack. The next slice is read and converted to
+		bytes on a background thread while the current one is being written.
+		If a channel has been set, the slices are written from direct
+		buffers through the channel instead of through 'out'. */
+	void writeVirtualStack(OutputStream out, final VirtualStack virtualStack)  throws IOException {
 		showProgressBar = false;
-		boolean flip = "FlipTheseImages".equals(fi.fileName);
-		for (int i=1; i<=fi.nImages; i++) {
-			IJ.showStatus("Writing: " + i + "/" + fi.nImages);
-			ImageProcessor ip = virtualStack.getProcessor(i);
-			if (flip) ip.flipVertical();
-			int[] pixels = (int[])ip.getPixels();
-			writeRGBImage(out, pixels);
-			IJ.showProgress((double)i/fi.nImages);
+		long size = (long)fi.width*fi.height*fi.getBytesPerPixel();
+		if (size>Integer.MAX_VALUE)
+			throw new IOException("ImageWriter: image is larger than 2GB");
+		final ArrayBlockingQueue free = new ArrayBlockingQueue(2);
+		final ArrayBlockingQueue filled = new ArrayBlockingQueue(2);
+		for (int i=0; i<2; i++)
+			free.add(channel!=null?ByteBuffer.allocateDirect((int)size):ByteBuffer.allocate((int)size));
+		final Throwable[] error = new Throwable[1];
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i=1; i<=fi.nImages; i++) {
+						ByteBuffer buffer = (ByteBuffer)free.take();
+						getBytes(virtualStack, i, buffer);
+						filled.put(buffer);
+					}
+				} catch (InterruptedException e) {
+				} catch (Throwable e) {
+					error[0] = e;
+					filled.offer(END);
+				}
+			}
+		}, "ImageWriter read-ahead");
+		reader.start();
+		try {
+			if (channel!=null)
+				out.flush();
+			for (int i=1; i<=fi.nImages; i++) {
+				IJ.showStatus("Writing: " + i + "/" + fi.nImages);
+				ByteBuffer buffer = (ByteBuffer)filled.take();
+				if (buffer==END) {
+					if (error[0] instanceof IOException)
+						throw (IOException)error[0];
+					throw new IOException("ImageWriter: "+error[0]);
+				}
+				if (channel!=null) {
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+				} else
+					out.write(buffer.array(), 0, buffer.limit());
+				free.put(buffer);
+				IJ.showProgress((double)i/fi.nImages);
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("ImageWriter: interrupted");
+		} finally {
+			reader.interrupt();
+		}
+	}
+
+	/** Reads slice 'n' of a virtual stack into 'buffer', in file format. */
+	private void getBytes(VirtualStack virtualStack, int n, ByteBuffer buffer) throws IOException {
+		ImageProcessor ip = virtualStack.getProcessor(n);
+		if ("FlipTheseImages".equals(fi.fileName))
+			ip.flipVertical();
+		Object pixels = ip.getPixels();
+		buffer.clear();
+		buffer.order(fi.intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+				buffer.put((byte[])pixels);
+				break;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+				buffer.asShortBuffer().put((short[])pixels);
+				buffer.position(buffer.capacity());
+				break;
+			case FileInfo.GRAY32_FLOAT:
+				buffer.asFloatBuffer().put((float[])pixels);
+				buffer.position(buffer.capacity());
+				break;
+			case FileInfo.RGB:
+				int[] rgb = (int[])pixels;
+				byte[] row = new byte[fi.width*3];
+				for (int y=0, j=0; y<fi.height; y++) {
+					for (int i=0; i<row.length; i+=3) {
+						row[i]   = (byte)(rgb[j]>>16);
+						row[i+1] = (byte)(rgb[j]>>8);
+						row[i+2] = (byte)rgb[j];
+						j++;
+					}
+					buffer.put(row);
+				}
+				break;
+			default:
+				throw new IOException("ImageWriter: unsupported file type ("+fi.fileType+")");
 		}
+		buffer.flip();
+	}
+
+	/** Sets the channel of the file that write() writes to. Virtual
+		stacks are then written through the channel. The OutputStream
+		passed to write() is flushed before the channel is used. */
+	public void setChannel(FileChannel channel) {
+		this.channel = channel;
 	}
 
 	/** Writes the image to the specified OutputStream.
@@ -280,7 +344,7 @@ public class ImageWriter {
 			case FileInfo.GRAY8:
 			case FileInfo.COLOR8:
 				if (fi.nImages>1 && fi.virtualStack!=null)
-					write8BitVirtualStack(out, fi.virtualStack);
+					writeVirtualStack(out, fi.virtualStack);
 				else if (fi.nImages>1)
 					write8BitStack(out, (Object[])fi.pixels);
 				else
@@ -289,7 +353,7 @@ public class ImageWriter {
 			case FileInfo.GRAY16_SIGNED:
 			case FileInfo.GRAY16_UNSIGNED:
 				if (fi.nImages>1 && fi.virtualStack!=null)
-					write16BitVirtualStack(out, fi.virtualStack);
+					writeVirtualStack(out, fi.virtualStack);
 				else if (fi.nImages>1)
 					write16BitStack(out, (Object[])fi.pixels);
 				else
@@ -300,7 +364,7 @@ public class ImageWriter {
 				break;
 			case FileInfo.GRAY32_FLOAT:
 				if (fi.nImages>1 && fi.virtualStack!=null)
-					writeFloatVirtualStack(out, fi.virtualStack);
+					writeVirtualStack(out, fi.virtualStack);
 				else if (fi.nImages>1)
 					writeFloatStack(out, (Object[])fi.pixels);
 				else
@@ -308,7 +372,7 @@ public class ImageWriter {
 				break;
 			case FileInfo.RGB:
 				if (fi.nImages>1 && fi.virtualStack!=null)
-					writeRGBVirtualStack(out, fi.virtualStack);
+					writeVirtualStack(out, fi.virtualStack);
 				else if (fi.nImages>1)
 					writeRGBStack(out, (Object[])fi.pixels);
 				else
@@ -318,6 +382,235 @@ public class ImageWriter {
 		}
 		savingStack = false;
 	}
-	
-}
 
+	/** Returns image 'n' (0-based) of fi.pixels or fi.virtualStack
+		as an array of bytes, in the same format as write() would
+		write it to an uncompressed file. */
+	byte[] getBytes(int n) throws IOException {
+		long size = (long)fi.width*fi.height*fi.getBytesPerPixel();
+		if (size>Integer.MAX_VALUE)
+			throw new IOException("ImageWriter: image is larger than 2GB");
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int)size);
+		boolean showProgressBar2 = showProgressBar;
+		showProgressBar = false;
+		savingStack = true;
+		Object pixels;
+		if (fi.virtualStack!=null) {
+			ImageProcessor ip = fi.virtualStack.getProcessor(n+1);
+			if ("FlipTheseImages".equals(fi.fileName))
+				ip.flipVertical();
+			pixels = ip.getPixels();
+		} else if (fi.nImages>1 || fi.fileType==FileInfo.RGB48)
+			pixels = fi.fileType==FileInfo.RGB48?fi.pixels:((Object[])fi.pixels)[n];
+		else
+			pixels = fi.pixels;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+				write8BitImage(out, (byte[])pixels);
+				break;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+				write16BitImage(out, (short[])pixels);
+				break;
+			case FileInfo.RGB48:
+				writeRGB48Image(out, (Object[])pixels);
+				break;
+			case FileInfo.GRAY32_FLOAT:
+				writeFloatImage(out, (float[])pixels);
+				break;
+			case FileInfo.RGB:
+				writeRGBImage(out, (int[])pixels);
+				break;
+			default:
+				throw new IOException("ImageWriter: unsupported file type ("+fi.fileType+")");
+		}
+		savingStack = false;
+		showProgressBar = showProgressBar2;
+		return out.toByteArray();
+	}
+
+	/** Returns image 'n' (0-based) as strips of 'rowsPerStrip' rows,
+		compressed as specified by fi.compression (LZW, PACK_BITS, ZIP,
+		LZW_WITH_DIFFERENCING or ZIP_WITH_DIFFERENCING). The strips are
+		compressed in parallel. Horizontal differencing (TIFF predictor 2)
+		is only done with 8 and 16-bit integer samples. */
+	public byte[][] getCompressedStrips(int n, int rowsPerStrip) throws IOException {
+		final byte[] bytes = getBytes(n);
+		final int rowBytes = fi.width*fi.getBytesPerPixel();
+		final int stripBytes = rowsPerStrip*rowBytes;
+		final byte[][] strips = new byte[(fi.height+rowsPerStrip-1)/rowsPerStrip][];
+		final int compression = fi.compression;
+		final boolean differencing = compression==FileInfo.LZW_WITH_DIFFERENCING || compression==FileInfo.ZIP_WITH_DIFFERENCING;
+		int numThreads = Math.min(Prefs.getThreads(), strips.length);
+		final AtomicInteger next = new AtomicInteger(0);
+		Callable[] callables = new Callable[numThreads];
+		for (int t=0; t<numThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					for (int i=next.getAndIncrement(); i<strips.length; i=next.getAndIncrement()) {
+						int offset = i*stripBytes;
+						byte[] strip = new byte[Math.min(stripBytes, bytes.length-offset)];
+						System.arraycopy(bytes, offset, strip, 0, strip.length);
+						if (differencing)
+							doDifferencing(strip, rowBytes);
+						if (compression==FileInfo.PACK_BITS)
+							strips[i] = packBitsCompress(strip, rowBytes);
+						else if (compression==FileInfo.ZIP || compression==FileInfo.ZIP_WITH_DIFFERENCING)
+							strips[i] = zipCompress(strip);
+						else
+							strips[i] = lzwCompress(strip);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		for (int i=0; i<strips.length; i++) {
+			if (strips[i]==null)
+				throw new IOException("ImageWriter: error compressing strip "+i);
+		}
+		return strips;
+	}
+
+	/** Replaces each sample in the rows of 'bytes' by the difference from the
+		same sample of the previous pixel (TIFF predictor 2). Rows are done from
+		right to left so the original values are still there when needed. */
+	private void doDifferencing(byte[] bytes, int rowBytes) {
+		int bytesPerPixel = fi.getBytesPerPixel();
+		boolean twoBytes = fi.fileType==FileInfo.GRAY16_SIGNED || fi.fileType==FileInfo.GRAY16_UNSIGNED;
+		boolean intel = fi.intelByteOrder;
+		for (int row=0; row+rowBytes<=bytes.length; row+=rowBytes) {
+			if (twoBytes) {
+				for (int i=row+rowBytes-2; i>=row+2; i-=2) {
+					int j = i - 2;
+					int value = intel?((bytes[i+1]&0xff)<<8)|(bytes[i]&0xff):((bytes[i]&0xff)<<8)|(bytes[i+1]&0xff);
+					int last = intel?((bytes[j+1]&0xff)<<8)|(bytes[j]&0xff):((bytes[j]&0xff)<<8)|(bytes[j+1]&0xff);
+					value -= last;
+					bytes[intel?i:i+1] = (byte)value;
+					bytes[intel?i+1:i] = (byte)(value>>8);
+				}
+			} else {
+				for (int i=row+rowBytes-1; i>=row+bytesPerPixel; i--)
+					bytes[i] -= bytes[i-bytesPerPixel];
+			}
+		}
+	}
+
+	/** Compresses 'input' using the LZW variant used in TIFF files. Codes are
+		packed starting with the most significant bit and the code width grows
+		one code early, as decoded by ImageReader.lzwUncompress(). */
+	public byte[] lzwCompress(byte[] input) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length/2+16);
+		int[] hashKeys = new int[HASH_SIZE];
+		short[] hashCodes = new short[HASH_SIZE];
+		java.util.Arrays.fill(hashKeys, -1);
+		int bitBuffer = 0, bitCount = 0;
+		int codeWidth = 9;
+		int nextCode = 258;
+		// emit CLEAR_CODE
+		bitBuffer = CLEAR_CODE; bitCount = 9;
+		int prefix = input.length>0?input[0]&0xff:-1;
+		for (int i=1; i<input.length; i++) {
+			int c = input[i]&0xff;
+			int key = (prefix<<8) | c;
+			int h = (key*0x9E3779B1)>>>18;
+			while (hashKeys[h]!=-1 && hashKeys[h]!=key)
+				h = (h+1)&(HASH_SIZE-1);
+			if (hashKeys[h]==key) {
+				prefix = hashCodes[h];
+				continue;
+			}
+			// output the code for 'prefix'
+			bitBuffer = (bitBuffer<<codeWidth) | prefix;
+			bitCount += codeWidth;
+			while (bitCount>=8) {
+				out.write(bitBuffer>>>(bitCount-8));
+				bitCount -= 8;
+			}
+			hashKeys[h] = key;
+			hashCodes[h] = (short)nextCode;
+			nextCode++;
+			if (nextCode==4094) {
+				bitBuffer = (bitBuffer<<codeWidth) | CLEAR_CODE;
+				bitCount += codeWidth;
+				while (bitCount>=8) {
+					out.write(bitBuffer>>>(bitCount-8));
+					bitCount -= 8;
+				}
+				java.util.Arrays.fill(hashKeys, -1);
+				nextCode = 258;
+				codeWidth = 9;
+			} else if (nextCode==(1<<codeWidth))
+				codeWidth++;
+			prefix = c;
+		}
+		if (prefix!=-1) {
+			bitBuffer = (bitBuffer<<codeWidth) | prefix;
+			bitCount += codeWidth;
+			while (bitCount>=8) {
+				out.write(bitBuffer>>>(bitCount-8));
+				bitCount -= 8;
+			}
+			nextCode++; // the decoder adds a table entry for this code
+			if (nextCode==(1<<codeWidth) && codeWidth<12)
+				codeWidth++;
+		}
+		bitBuffer = (bitBuffer<<codeWidth) | EOI_CODE;
+		bitCount += codeWidth;
+		while (bitCount>=8) {
+			out.write(bitBuffer>>>(bitCount-8));
+			bitCount -= 8;
+		}
+		if (bitCount>0)
+			out.write(bitBuffer<<(8-bitCount));
+		return out.toByteArray();
+	}
+
+	/** Compresses 'input' using PackBits run-length encoding.
+		Each row of 'rowBytes' bytes is encoded separately. */
+	public byte[] packBitsCompress(byte[] input, int rowBytes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length+input.length/128+16);
+		if (rowBytes<=0) rowBytes = input.length;
+		for (int row=0; row<input.length; row+=rowBytes) {
+			int end = Math.min(row+rowBytes, input.length);
+			int i = row;
+			while (i<end) {
+				int run = 1;
+				while (i+run<end && run<128 && input[i+run]==input[i])
+					run++;
+				if (run>1) {
+					out.write(1-run);
+					out.write(input[i]);
+					i += run;
+				} else {
+					int start = i;
+					int count = 0;
+					while (i<end && count<128) {
+						if (i+2<end && input[i]==input[i+1] && input[i]==input[i+2])
+							break;
+						i++;
+						count++;
+					}
+					out.write(count-1);
+					out.write(input, start, count);
+				}
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/** Compresses 'input' using Deflate (TIFF Adobe ZIP compression). */
+	public byte[] zipCompress(byte[] input) {
+		Deflater deflater = new Deflater();
+		deflater.setInput(input);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length/2+16);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			int count = deflater.deflate(buffer);
+			out.write(buffer, 0, count);
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,176 @@
+package ij.io;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/** Reads uncompressed images directly from memory-mapped files. The file is
+	mapped in large windows, so reading an image usually costs a page fault
+	rather than a file open, and the bytes are converted to pixels with bulk
+	NIO transfers. The number of mapped windows is bounded; the least recently
+	used window is dropped when the limit is reached. Used by FileInfoVirtualStack.
+*/
+public class MappedImageReader {
+	private static final long WINDOW_SIZE = 256L*1024L*1024L;
+	private static final int MAX_WINDOWS = 8;
+
+	private LinkedHashMap windows = new LinkedHashMap(MAX_WINDOWS+1, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			if (size()<=MAX_WINDOWS)
+				return false;
+			unmap((MappedByteBuffer)eldest.getValue());
+			return true;
+		}
+	};
+
+	/** Returns 'true' if the image described by 'fi' is stored
+		uncompressed and contiguously in a local file, in a format
+		that this class can read. */
+	public static boolean canRead(FileInfo fi) {
+		if (fi==null || fi.compression!=FileInfo.COMPRESSION_NONE || fi.tileWidth>0)
+			return false;
+		if (fi.inputStream!=null || (fi.url!=null && !fi.url.equals("")))
+			return false;
+		String name = fi.fileName;
+		if (name==null || name.endsWith(".gz") || name.endsWith(".GZ"))
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB:
+				break;
+			default:
+				return false;
+		}
+		if (fi.stripOffsets!=null && fi.stripOffsets.length>1) {
+			if (fi.stripLengths==null || fi.stripLengths.length<fi.stripOffsets.length)
+				return false;
+			for (int i=1; i<fi.stripOffsets.length; i++) {
+				if (fi.getStripOffset(i)!=fi.getStripOffset(i-1)+fi.stripLengths[i-1])
+					return false;
+			}
+			if (fi.getOffset()!=fi.getStripOffset(0))
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns the pixel array (byte, short, float or int) of the image
+		described by 'fi', or null if the image is not in the file. */
+	public Object readPixels(FileInfo fi) throws IOException {
+		synchronized(windows) { // windows may only be unmapped while nobody reads them
+			return readMappedPixels(fi);
+		}
+	}
+
+	private Object readMappedPixels(FileInfo fi) throws IOException {
+		int nPixels = fi.width*fi.height;
+		long size = (long)nPixels*fi.getBytesPerPixel();
+		long offset = fi.getOffset();
+		ByteBuffer buffer = getBuffer(fi.getFilePath(), offset, size);
+		if (buffer==null)
+			return null;
+		buffer.order(fi.intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+				byte[] bytes = new byte[nPixels];
+				buffer.get(bytes);
+				return bytes;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+				short[] shorts = new short[nPixels];
+				buffer.asShortBuffer().get(shorts);
+				if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+					for (int i=0; i<nPixels; i++)
+						shorts[i] = (short)(shorts[i]+32768);
+				}
+				return shorts;
+			case FileInfo.GRAY32_FLOAT:
+				float[] floats = new float[nPixels];
+				buffer.asFloatBuffer().get(floats);
+				return floats;
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED:
+				int[] ints = new int[nPixels];
+				buffer.asIntBuffer().get(ints);
+				float[] pixels = new float[nPixels];
+				if (fi.fileType==FileInfo.GRAY32_UNSIGNED) {
+					for (int i=0; i<nPixels; i++)
+						pixels[i] = (float)(ints[i]&0xffffffffL);
+				} else {
+					for (int i=0; i<nPixels; i++)
+						pixels[i] = ints[i];
+				}
+				return pixels;
+			case FileInfo.RGB:
+				byte[] rgb = new byte[nPixels*3];
+				buffer.get(rgb);
+				int[] colors = new int[nPixels];
+				for (int i=0, j=0; i<nPixels; i++, j+=3)
+					colors[i] = 0xff000000 | ((rgb[j]&0xff)<<16) | ((rgb[j+1]&0xff)<<8) | (rgb[j+2]&0xff);
+				return colors;
+			default:
+				return null;
+		}
+	}
+
+	/** Returns a buffer positioned at 'offset' and limited to 'size' bytes,
+		or null if the file is shorter than offset+size. The window is mapped
+		with an overlap of 'size' bytes, so that every image that starts in
+		the window also ends in it. */
+	private ByteBuffer getBuffer(String path, long offset, long size) throws IOException {
+		long windowSize = Math.min(WINDOW_SIZE, Integer.MAX_VALUE-size);
+		long start = (offset/windowSize)*windowSize;
+		String key = path+"@"+start;
+		MappedByteBuffer window = (MappedByteBuffer)windows.get(key);
+		if (window==null) {
+			RandomAccessFile f = new RandomAccessFile(path, "r");
+			try {
+				long length = Math.min(windowSize+size, f.length()-start);
+				if (length<offset-start+size)
+					return null;
+				window = f.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length);
+			} finally {
+				f.close();
+			}
+			windows.put(key, window);
+		}
+		ByteBuffer buffer = window.duplicate();
+		buffer.position((int)(offset-start));
+		buffer.limit((int)(offset-start+size));
+		return buffer.slice();
+	}
+
+	/** Unmaps all windows, so that the files can be deleted or overwritten. */
+	public void close() {
+		synchronized(windows) {
+			Iterator it = windows.values().iterator();
+			while (it.hasNext())
+				unmap((MappedByteBuffer)it.next());
+			windows.clear();
+		}
+	}
+
+	/** Releases the memory of a mapped buffer now rather than when it is
+		garbage collected; until then Windows does not allow the file to
+		be deleted. The buffer must not be used afterwards. Uses
+		Unsafe.invokeCleaner() on Java 9 and later and the buffer's
+		cleaner on Java 8; does nothing if neither is accessible. */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class unsafeClass = Class.forName("sun.misc.Unsafe");
+			java.lang.reflect.Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			unsafeClass.getMethod("invokeCleaner", new Class[] {ByteBuffer.class}).invoke(unsafe, new Object[] {buffer});
+			return;
+		} catch (Throwable e) {}
+		try {
+			java.lang.reflect.Method cleanerMethod = buffer.getClass().getMethod("cleaner", new Class[0]);
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer, new Object[0]);
+			if (cleaner!=null)
+				cleaner.getClass().getMethod("clean", new Class[0]).invoke(cleaner, new Object[0]);
+		} catch (Throwable e) {}
+	}
+
+}
@@ -776,7 +776,7 @@ public class Opener {
 				&& info[i].height==info[0].height;
 			contiguous &= info[i].getOffset()==startingOffset+i*size;
 		}
-		if (contiguous &&  info[0].fileType!=FileInfo.RGB48)
+		if (contiguous &&  info[0].fileType!=FileInfo.RGB48 && info[0].tileWidth==0)
 			info[0].nImages = info.length;
 		//if (IJ.debugMode) {
 		//	IJ.log("sameSizeAndType: " + sameSizeAndType);
@@ -824,6 +824,7 @@ public class Opener {
 					}
 					fi.stripOffsets = info[i].stripOffsets;
 					fi.stripLengths = info[i].stripLengths;
+					fi.longStripOffsets = info[i].longStripOffsets;
 					int bpp = info[i].getBytesPerPixel();
 					if (info[i].samplesPerPixel>1 && !(bpp==3||bpp==4||bpp==6)) {
 						nChannels = fi.samplesPerPixel;
@@ -838,7 +839,7 @@ public class Opener {
 					loc += imageSize*nChannels+skip;
 					if (i<(info.length-1)) {
 						skip = info[i+1].getOffset()-loc;
-						if (info[i+1].compression>=FileInfo.LZW) skip = 0;
+						if (info[i+1].compression>=FileInfo.LZW || info[i+1].tileWidth>0) skip = 0;
 						if (skip<0L) {
 							IJ.error("Opener", "Unexpected image offset");
 							break;
@@ -946,6 +947,7 @@ public class Opener {
 			fi.offset = 0;
 			fi.stripOffsets = info[n-1].stripOffsets; 
 			fi.stripLengths = info[n-1].stripLengths; 
+			fi.longStripOffsets = info[n-1].longStripOffsets; 
 		}
 		FileOpener fo = new FileOpener(fi);
 		return fo.openImage();
@@ -1119,9 +1121,9 @@ public class Opener {
 		if (imp==null)
 			return null;
 		int[] offsets = info[0].stripOffsets;
-		if (offsets!=null&&offsets.length>1) {
-			long firstOffset = (long)offsets[0]&0xffffffffL;
-			long lastOffset = (long)offsets[offsets.length-1]&0xffffffffL;
+		if (offsets!=null&&offsets.length>1&&info[0].tileWidth==0) {
+			long firstOffset = info[0].getStripOffset(0);
+			long lastOffset = info[0].getStripOffset(offsets.length-1);
 			if (lastOffset<firstOffset)
 				ij.IJ.run(imp, "Flip Vertically", "stack");
 		}
@@ -1355,7 +1357,7 @@ public class Opener {
 			return OJJ;
 
 		// Results table (tab-delimited or comma-separated tabular text)
-		if (name.endsWith(".xls") || name.endsWith(".csv") || name.endsWith(".tsv")) 
+		if (name.endsWith(".xls") || name.endsWith(".csv") || name.endsWith(".tsv") || name.endsWith(".rtb")) 
 			return TABLE;
 
 		// AVI
@@ -1405,7 +1407,7 @@ public class Opener {
 				return null;
 			else {
 				InputStream is = new FileInputStream(f);
-				if (fi.compression>=FileInfo.LZW || (fi.stripOffsets!=null&&fi.stripOffsets.length>1))
+				if (fi.compression>=FileInfo.LZW || (fi.stripOffsets!=null&&fi.stripOffsets.length>1) || fi.tileWidth>0)
 					is = new RandomAccessStream(is);
 				return is;
 			}
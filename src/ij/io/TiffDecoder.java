@@ -35,6 +35,9 @@ public class TiffDecoder {
 	public static final int PREDICTOR = 317;
 	public static final int COLOR_MAP = 320;
 	public static final int TILE_WIDTH = 322;
+	public static final int TILE_LENGTH = 323;
+	public static final int TILE_OFFSETS = 324;
+	public static final int TILE_BYTE_COUNTS = 325;
 	public static final int SAMPLE_FORMAT = 339;
 	public static final int JPEG_TABLES = 347;
 	public static final int METAMORPH1 = 33628;
@@ -52,6 +55,8 @@ public class TiffDecoder {
 	//field types
 	static final int SHORT = 3;
 	static final int LONG = 4;
+	static final int LONG8 = 16; // BigTIFF
+	static final int IFD8 = 18;  // BigTIFF
 
 	// metadata types
 	static final int MAGIC_NUMBER = 0x494a494a;  // "IJIJ"
@@ -70,6 +75,7 @@ public class TiffDecoder {
 	protected RandomAccessStream in;
 	protected boolean debugMode;
 	private boolean littleEndian;
+	private boolean bigTiff;
 	private String dInfo;
 	private int ifdCount;
 	private int[] metaDataCounts;
@@ -140,7 +146,17 @@ public class TiffDecoder {
 			in.close();
 			return -1;
 		}
-		int magicNumber = getShort(); // 42
+		int magicNumber = getShort(); // 42, or 43 for BigTIFF
+		if (magicNumber==43) {
+			bigTiff = true;
+			int offsetSize = getShort(); // 8
+			int unused = getShort();
+			if (offsetSize!=8) {
+				in.close();
+				return -1;
+			}
+			return readLong();
+		}
 		long offset = ((long)getInt())&0xffffffffL;
 		return offset;
 	}
@@ -155,6 +171,34 @@ public class TiffDecoder {
 			value = getInt();
 		return value;
 	}	
+
+	/** Reads the 8-byte value field of a BigTIFF IFD entry. Returns the value
+		if it is a single SHORT, LONG or LONG8, the file position of the data
+		if the data fits in the field, and otherwise the offset of the data. */
+	long getBigValue(int fieldType, long count) throws IOException {
+		long pos = in.getLongFilePointer();
+		long size = count*getFieldSize(fieldType);
+		long value;
+		if (count==1 && fieldType==SHORT)
+			value = getShort();
+		else if (count==1 && fieldType==LONG)
+			value = getUnsignedInt();
+		else if (size>8 || fieldType==LONG8 || fieldType==IFD8)
+			value = readLong();
+		else
+			value = pos;  // data stored in the value field
+		in.seek(pos+8);
+		return value;
+	}
+
+	int getFieldSize(int fieldType) {
+		switch (fieldType) {
+			case 3: case 8: return 2; // SHORT, SSHORT
+			case 4: case 9: case 11: case 13: return 4; // LONG, SLONG, FLOAT, IFD
+			case 5: case 10: case 12: case LONG8: case 17: case IFD8: return 8; // RATIONAL, SRATIONAL, DOUBLE, LONG8, SLONG8, IFD8
+			default: return 1; // BYTE, ASCII, SBYTE, UNDEFINED
+		}
+	}
 	
 	void getColorMap(long offset, FileInfo fi) throws IOException {
 		byte[] colorTable16 = new byte[768*2];
@@ -226,7 +270,7 @@ public class TiffDecoder {
         	tiffMetadata += str;
 	}
 
-	void decodeNIHImageHeader(int offset, FileInfo fi) throws IOException {
+	void decodeNIHImageHeader(long offset, FileInfo fi) throws IOException {
 		long saveLoc = in.getLongFilePointer();
 		
 		in.seek(offset+12);
@@ -306,8 +350,7 @@ public class TiffDecoder {
 		in.seek(saveLoc);
 	}
 	
-	void dumpTag(int tag, int count, int value, FileInfo fi) {
-		long lvalue = ((long)value)&0xffffffffL;
+	void dumpTag(int tag, int count, long lvalue, FileInfo fi) {
 		String name = getName(tag);
 		String cs = (count==1)?"":", count=" + count;
 		dInfo += "    " + tag + ", \"" + name + "\", value=" + lvalue + cs + "\n";
@@ -339,6 +382,10 @@ public class TiffDecoder {
 			case COMPRESSION: name="Compression"; break; 
 			case PREDICTOR: name="Predictor"; break; 
 			case COLOR_MAP: name="ColorMap"; break; 
+			case TILE_WIDTH: name="TileWidth"; break; 
+			case TILE_LENGTH: name="TileLength"; break; 
+			case TILE_OFFSETS: name="TileOffsets"; break; 
+			case TILE_BYTE_COUNTS: name="TileByteCounts"; break; 
 			case SAMPLE_FORMAT: name="SampleFormat"; break; 
 			case JPEG_TABLES: name="JPEGTables"; break; 
 			case NIH_IMAGE_HDR: name="NIHImageHeader"; break; 
@@ -364,7 +411,8 @@ public class TiffDecoder {
 	FileInfo OpenIFD() throws IOException {
 	// Get Image File Directory data
 		int tag, fieldType, count, value;
-		int nEntries = getShort();
+		long lvalue;
+		int nEntries = bigTiff?(int)readLong():getShort();
 		if (nEntries<1 || nEntries>1000)
 			return null;
 		ifdCount++;
@@ -375,10 +423,16 @@ public class TiffDecoder {
 		for (int i=0; i<nEntries; i++) {
 			tag = getShort();
 			fieldType = getShort();
-			count = getInt();
-			value = getValue(fieldType, count);
-			long lvalue = ((long)value)&0xffffffffL;
-			if (debugMode && ifdCount<10) dumpTag(tag, count, value, fi);
+			if (bigTiff) {
+				count = (int)readLong();
+				lvalue = getBigValue(fieldType, count);
+				value = (int)lvalue;
+			} else {
+				count = getInt();
+				value = getValue(fieldType, count);
+				lvalue = ((long)value)&0xffffffffL;
+			}
+			if (debugMode && ifdCount<10) dumpTag(tag, count, lvalue, fi);
 			switch (tag) {
 				case IMAGE_WIDTH: 
 					fi.width = value;
@@ -388,35 +442,12 @@ public class TiffDecoder {
 					fi.height = value;
 					break;
  				case STRIP_OFFSETS:
-					if (count==1)
-						fi.stripOffsets = new int[] {value};
-					else {
-						long saveLoc = in.getLongFilePointer();
-						in.seek(lvalue);
-						fi.stripOffsets = new int[count];
-						for (int c=0; c<count; c++)
-							fi.stripOffsets[c] = getInt();
-						in.seek(saveLoc);
-					}
-					fi.offset = count>0?fi.stripOffsets[0]:value;
-					if (count>1 && (((long)fi.stripOffsets[count-1])&0xffffffffL)<(((long)fi.stripOffsets[0])&0xffffffffL))
-						fi.offset = fi.stripOffsets[count-1];
+					setOffsets(fi, fieldType, count, lvalue);
+					if (count>1 && fi.getStripOffset(count-1)<fi.getStripOffset(0))
+						setOffset(fi, fi.getStripOffset(count-1));
 					break;
 				case STRIP_BYTE_COUNT:
-					if (count==1)
-						fi.stripLengths = new int[] {value};
-					else {
-						long saveLoc = in.getLongFilePointer();
-						in.seek(lvalue);
-						fi.stripLengths = new int[count];
-						for (int c=0; c<count; c++) {
-							if (fieldType==SHORT)
-								fi.stripLengths[c] = getShort();
-							else
-								fi.stripLengths[c] = getInt();
-						}
-						in.seek(saveLoc);
-					}
+					fi.stripLengths = getByteCounts(fieldType, count, lvalue);
 					break;
  				case PHOTO_INTERP:
  					photoInterp = value;
@@ -523,6 +554,8 @@ public class TiffDecoder {
 				case PREDICTOR:
 					if (value==2 && fi.compression==FileInfo.LZW)
 						fi.compression = FileInfo.LZW_WITH_DIFFERENCING;
+					else if (value==2 && fi.compression==FileInfo.ZIP)
+						fi.compression = FileInfo.ZIP_WITH_DIFFERENCING;
 					if (value==3)
 						IJ.log("TiffDecoder: unsupported predictor value of 3");
 					break;
@@ -531,7 +564,16 @@ public class TiffDecoder {
 						getColorMap(lvalue, fi);
 					break;
 				case TILE_WIDTH:
-					error("ImageJ cannot open tiled TIFFs.\nTry using the Bio-Formats plugin.");
+					fi.tileWidth = value;
+					break;
+				case TILE_LENGTH:
+					fi.tileHeight = value;
+					break;
+				case TILE_OFFSETS:
+					setOffsets(fi, fieldType, count, lvalue);
+					break;
+				case TILE_BYTE_COUNTS:
+					fi.stripLengths = getByteCounts(fieldType, count, lvalue);
 					break;
 				case SAMPLE_FORMAT:
 					if (fi.fileType==FileInfo.GRAY32_INT && value==FLOATING_POINT)
@@ -569,7 +611,7 @@ public class TiffDecoder {
 					break;
 				case NIH_IMAGE_HDR: 
 					if (count==256)
-						decodeNIHImageHeader(value, fi);
+						decodeNIHImageHeader(lvalue, fi);
 					break;
  				case META_DATA_BYTE_COUNTS: 
 					long saveLoc = in.getLongFilePointer();
@@ -580,13 +622,15 @@ public class TiffDecoder {
 					in.seek(saveLoc);
 					break;
  				case META_DATA: 
- 					getMetaData(value, fi);
+ 					getMetaData(lvalue, fi);
  					break;
 				default:
 					if (tag>10000 && tag<32768 && ifdCount>1)
 						return null;
 			}
 		}
+		if (fi.tileWidth>0)
+			checkTiles(fi);
 		fi.fileFormat = fi.TIFF;
 		fi.fileName = name;
 		fi.directory = directory;
@@ -595,7 +639,79 @@ public class TiffDecoder {
 		return fi;
 	}
 
-	void getMetaData(int loc, FileInfo fi) throws IOException {
+	/** Reads strip or tile offsets. Offsets beyond 4GB, which only occur
+		in BigTIFFs, are also saved in fi.longStripOffsets. */
+	void setOffsets(FileInfo fi, int fieldType, int count, long lvalue) throws IOException {
+		long[] offsets = new long[count];
+		if (count==1)
+			offsets[0] = lvalue;
+		else {
+			long saveLoc = in.getLongFilePointer();
+			in.seek(lvalue);
+			for (int c=0; c<count; c++) {
+				if (fieldType==LONG8 || fieldType==IFD8)
+					offsets[c] = readLong();
+				else
+					offsets[c] = getUnsignedInt();
+			}
+			in.seek(saveLoc);
+		}
+		fi.stripOffsets = new int[count];
+		fi.longStripOffsets = null;
+		for (int c=0; c<count; c++) {
+			fi.stripOffsets[c] = (int)offsets[c];
+			if (offsets[c]>0xffffffffL)
+				fi.longStripOffsets = offsets;
+		}
+		setOffset(fi, count>0?offsets[0]:lvalue);
+	}
+
+	void setOffset(FileInfo fi, long offset) {
+		if (offset>0xffffffffL) {
+			fi.longOffset = offset;
+			fi.offset = 0;
+		} else {
+			fi.longOffset = 0L;
+			fi.offset = (int)offset;
+		}
+	}
+
+	int[] getByteCounts(int fieldType, int count, long lvalue) throws IOException {
+		if (count==1)
+			return new int[] {(int)lvalue};
+		long saveLoc = in.getLongFilePointer();
+		in.seek(lvalue);
+		int[] counts = new int[count];
+		for (int c=0; c<count; c++) {
+			if (fieldType==SHORT)
+				counts[c] = getShort();
+			else if (fieldType==LONG8)
+				counts[c] = (int)readLong();
+			else
+				counts[c] = getInt();
+		}
+		in.seek(saveLoc);
+		return counts;
+	}
+
+	void checkTiles(FileInfo fi) throws IOException {
+		if (fi.tileHeight==0)
+			fi.tileHeight = fi.tileWidth;
+		switch (fi.fileType) {
+			case FileInfo.BITMAP: case FileInfo.GRAY12_UNSIGNED:
+			case FileInfo.RGB_PLANAR: case FileInfo.RGB48_PLANAR:
+				error("ImageJ cannot open tiled TIFFs of this type.\nTry using the Bio-Formats plugin.");
+		}
+		if (fi.compression==FileInfo.JPEG)
+			error("ImageJ cannot open JPEG-compressed tiled TIFFs.\nTry using the Bio-Formats plugin.");
+		int tilesAcross = (fi.width+fi.tileWidth-1)/fi.tileWidth;
+		int tilesDown = (fi.height+fi.tileHeight-1)/fi.tileHeight;
+		if (fi.stripOffsets==null || fi.stripLengths==null || fi.stripOffsets.length<tilesAcross*tilesDown
+		|| fi.stripLengths.length<tilesAcross*tilesDown)
+			error("Invalid TileOffsets or TileByteCounts");
+	}
+
+	void getMetaData(long loc, FileInfo fi) throws IOException {
 		if (metaDataCounts==null || metaDataCounts.length==0)
 			return;
 		int maxTypes = 10;
@@ -821,7 +937,7 @@ public class TiffDecoder {
 			FileInfo fi = OpenIFD();
 			if (fi!=null) {
 				list.add(fi);
-				ifdOffset = ((long)getInt())&0xffffffffL;
+				ifdOffset = bigTiff?readLong():((long)getInt())&0xffffffffL;
 			} else
 				ifdOffset = 0L;
 			if (debugMode && ifdCount<10) dInfo += "nextIFD=" + ifdOffset + "\n";
@@ -1,12 +1,18 @@
 package ij.io;
 import java.io.*;
+import java.nio.channels.FileChannel;
 
-/**Saves an image described by a FileInfo object as an uncompressed TIFF file.*/
+/**Saves an image described by a FileInfo object as a TIFF file. The image is
+	saved uncompressed unless fi.compression is LZW, LZW_WITH_DIFFERENCING,
+	PACK_BITS, ZIP or ZIP_WITH_DIFFERENCING, in which case it is saved as
+	compressed strips. Stacks larger than 4GB are saved as BigTIFFs (64-bit offsets).*/
 public class TiffEncoder {
 	static final int HDR_SIZE = 8;
+	static final int BIG_HDR_SIZE = 16;
 	static final int MAP_SIZE = 768; // in 16-bit words
 	static final int BPS_DATA_SIZE = 6;
 	static final int SCALE_DATA_SIZE = 16;
+	static final int STRIP_SIZE = 65536; // target size of compressed strips
 		
 	private FileInfo fi;
 	private int bitsPerSample;
@@ -27,6 +33,18 @@ public class TiffEncoder {
 	private boolean littleEndian = ij.Prefs.intelByteOrder;
 	private byte buffer[] = new byte[8];
 	private int colorMapSize = 0;
+	private boolean bigTiff;
+	private int hdrSize = HDR_SIZE;
+	private int entrySize = 12;
+	private boolean compressed;
+	private boolean predictor;
+	private int rowsPerStrip;
+	private int nStrips = 1;
+	private int stripTableSize;
+	private long stripTableOffset;
+	private long[] stripOffsets;
+	private int[] stripByteCounts;
+	private FileChannel channel;
 
 		
 	public TiffEncoder (FileInfo fi) {
@@ -83,6 +101,9 @@ public class TiffEncoder {
 			default:
 				photoInterp = 0;
 		}
+		setCompression(bytesPerPixel);
+		if (predictor)
+			nEntries++; // Predictor tag
 		if (fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0)
 			nEntries += 3; // XResolution, YResolution and ResolutionUnit
 		if (fi.fileType==fi.GRAY32_FLOAT)
@@ -99,23 +120,65 @@ public class TiffEncoder {
 		ifdSize = 2 + nEntries*12 + 4;
 		int descriptionSize = description!=null?description.length:0;
 		scaleSize = fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0?SCALE_DATA_SIZE:0;
-		imageOffset = HDR_SIZE+ifdSize+bpsSize+descriptionSize+scaleSize+colorMapSize + nMetaDataEntries*4 + metaDataSize;
+		int tagDataSize = bpsSize+descriptionSize+scaleSize+colorMapSize + nMetaDataEntries*4 + metaDataSize;
+		stripTableSize = nStrips>1?nStrips*8:0;
+		imageOffset = HDR_SIZE+ifdSize+tagDataSize+stripTableSize;
+		long dataSize = compressed?stackSize+stackSize/2:stackSize; // LZW can expand data by up to 50%
+		if (imageOffset+dataSize+(long)fi.nImages*(ifdSize+stripTableSize)>=0xffffffffL) {
+			bigTiff = true;
+			hdrSize = BIG_HDR_SIZE;
+			entrySize = 20;
+			ifdSize = 8 + nEntries*entrySize + 8;
+			stripTableSize = nStrips>1?nStrips*16:0;
+			imageOffset = hdrSize+ifdSize+tagDataSize+stripTableSize;
+		}
 		fi.offset = (int)imageOffset;
 		//ij.IJ.log(imageOffset+", "+ifdSize+", "+bpsSize+", "+descriptionSize+", "+scaleSize+", "+colorMapSize+", "+nMetaDataEntries*4+", "+metaDataSize);
 	}
 	
+	/** Checks fi.compression and, if the image is to be compressed, divides
+		it into strips of about STRIP_SIZE bytes. Horizontal differencing is
+		only supported with 8 and 16-bit integer samples; other images are
+		compressed without it. */
+	private void setCompression(int bytesPerPixel) {
+		int compression = fi.compression;
+		if (compression!=FileInfo.LZW && compression!=FileInfo.LZW_WITH_DIFFERENCING
+		&& compression!=FileInfo.PACK_BITS && compression!=FileInfo.ZIP
+		&& compression!=FileInfo.ZIP_WITH_DIFFERENCING) {
+			fi.compression = FileInfo.COMPRESSION_NONE;
+			return;
+		}
+		boolean differencing = compression==FileInfo.LZW_WITH_DIFFERENCING || compression==FileInfo.ZIP_WITH_DIFFERENCING;
+		if (differencing && (fi.fileType==FileInfo.GRAY32_FLOAT || fi.fileType==FileInfo.RGB48)) {
+			differencing = false;
+			fi.compression = compression==FileInfo.ZIP_WITH_DIFFERENCING?FileInfo.ZIP:FileInfo.LZW;
+		}
+		compressed = true;
+		predictor = differencing;
+		int rowBytes = fi.width*bytesPerPixel;
+		rowsPerStrip = Math.max(1, Math.min(fi.height, STRIP_SIZE/Math.max(rowBytes,1)));
+		nStrips = (fi.height+rowsPerStrip-1)/rowsPerStrip;
+	}
+
+	/** Sets the channel of the file that write() writes to, allowing
+		virtual stacks to be written through it. */
+	public void setChannel(FileChannel channel) {
+		this.channel = channel;
+	}
+
 	/** Saves the image as a TIFF file. The OutputStream is not closed.
 		The fi.pixels field must contain the image data. If fi.nImages>1
 		then fi.pixels must be a 2D array. The fi.offset field is ignored. */
 	public void write(OutputStream out) throws IOException {
+		if (compressed) {
+			writeCompressed(out);
+			return;
+		}
 		writeHeader(out);
 		long nextIFD = 0L;
 		if (fi.nImages>1)
 			nextIFD = imageOffset+stackSize;
-		boolean bigTiff = nextIFD+fi.nImages*ifdSize>=0xffffffffL;
-		if (bigTiff)
-			nextIFD = 0L;
-		writeIFD(out, (int)imageOffset, (int)nextIFD);
+		writeIFD(out, imageOffset, nextIFD);
 		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48)
 			writeBitsPerPixel(out);
 		if (description!=null)
@@ -126,13 +189,15 @@ public class TiffEncoder {
 			writeColorMap(out);
 		if (metaDataSize>0)
 			writeMetaData(out);
-		new ImageWriter(fi).write(out);
+		ImageWriter writer = new ImageWriter(fi);
+		writer.setChannel(channel);
+		writer.write(out);
 		if (nextIFD>0L) {
 			int ifdSize2 = ifdSize;
 			if (metaDataSize>0) {
 				metaDataSize = 0;
 				nEntries -= 2;
-				ifdSize2 -= 2*12;
+				ifdSize2 -= 2*entrySize;
 			}
 			for (int i=2; i<=fi.nImages; i++) {
 				if (i==fi.nImages)
@@ -140,10 +205,93 @@ public class TiffEncoder {
 				else
 					nextIFD += ifdSize2;
 				imageOffset += imageSize;
-				writeIFD(out, (int)imageOffset, (int)nextIFD);
+				writeIFD(out, imageOffset, nextIFD);
+			}
+		}
+	}
+
+	/** Saves a compressed image or stack. Each image is compressed before its
+		IFD is written, since the IFD contains the strip sizes, so the images are
+		saved as IFD, strip table and compressed strips, one image after another. */
+	private void writeCompressed(OutputStream out) throws IOException {
+		ImageWriter writer = new ImageWriter(fi);
+		writeHeader(out);
+		byte[][] strips = writer.getCompressedStrips(0, rowsPerStrip);
+		long size = setStrips(strips, imageOffset-stripTableSize, imageOffset);
+		long nextIFD = fi.nImages>1?imageOffset+size:0L;
+		writeIFD(out, imageOffset, nextIFD);
+		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48)
+			writeBitsPerPixel(out);
+		if (description!=null)
+			writeDescription(out);
+		if (scaleSize>0)
+			writeScale(out);
+		if (colorMapSize>0)
+			writeColorMap(out);
+		if (metaDataSize>0)
+			writeMetaData(out);
+		writeStrips(out, strips);
+		if (nextIFD==0L)
+			return;
+		int ifdSize2 = ifdSize;
+		if (metaDataSize>0) {
+			metaDataSize = 0;
+			nEntries -= 2;
+			ifdSize2 -= 2*entrySize;
+		}
+		for (int i=2; i<=fi.nImages; i++) {
+			ij.IJ.showStatus("Writing: " + i + "/" + fi.nImages);
+			strips = writer.getCompressedStrips(i-1, rowsPerStrip);
+			long ifdOffset = nextIFD;
+			long offset = ifdOffset+ifdSize2+stripTableSize;
+			size = setStrips(strips, ifdOffset+ifdSize2, offset);
+			nextIFD = i==fi.nImages?0L:offset+size;
+			writeIFD(out, offset, nextIFD);
+			writeStrips(out, strips);
+			ij.IJ.showProgress(i, fi.nImages);
+		}
+	}
+
+	/** Sets the strip offsets and byte counts written by writeIFD() and
+		returns the total size of the strips. */
+	private long setStrips(byte[][] strips, long tableOffset, long offset) {
+		stripOffsets = new long[strips.length];
+		stripByteCounts = new int[strips.length];
+		stripTableOffset = tableOffset;
+		long size = 0L;
+		for (int i=0; i<strips.length; i++) {
+			stripOffsets[i] = offset + size;
+			stripByteCounts[i] = strips[i].length;
+			size += strips[i].length;
+		}
+		return size;
+	}
+
+	/** Writes the strip offsets and byte counts (unless they fit
+		in the IFD entries), followed by the compressed strips. */
+	private void writeStrips(OutputStream out, byte[][] strips) throws IOException {
+		if (nStrips>1) {
+			for (int i=0; i<nStrips; i++) {
+				if (bigTiff)
+					writeLong(out, stripOffsets[i]);
+				else
+					writeInt(out, (int)stripOffsets[i]);
+			}
+			for (int i=0; i<nStrips; i++) {
+				if (bigTiff)
+					writeLong(out, stripByteCounts[i]);
+				else
+					writeInt(out, stripByteCounts[i]);
 			}
-		} else if (bigTiff)
-				ij.IJ.log("Stack is larger than 4GB. Most TIFF readers will only open the first image. Use this information to open as raw:\n"+fi);
+		}
+		for (int i=0; i<strips.length; i++)
+			out.write(strips[i]);
+	}
+
+	/** Returns 'true' if the image is saved as a BigTIFF,
+		which is the case with stacks larger than 4GB. */
+	public boolean isBigTiff() {
+		return bigTiff;
 	}
 	
 	public void write(DataOutputStream out) throws IOException {
@@ -240,8 +388,18 @@ public class TiffEncoder {
 		return size;
 	}
 	
-	/** Writes the 8-byte image file header. */
+	/** Writes the 8-byte image file header, or the 16-byte BigTIFF header. */
 	void writeHeader(OutputStream out) throws IOException {
+		if (bigTiff) {
+			byte[] hdr = new byte[4];
+			hdr[0] = hdr[1] = (byte)(littleEndian?73:77); // "II" or "MM"
+			out.write(hdr, 0, 2);
+			writeShort(out, 43); // 43 (BigTIFF magic number)
+			writeShort(out, 8);  // 8 (size of offsets)
+			writeShort(out, 0);
+			writeLong(out, BIG_HDR_SIZE); // offset to first IFD
+			return;
+		}
 		byte[] hdr = new byte[8];
 		if (littleEndian) {
 			hdr[0] = 73; // "II" (Intel byte order)
@@ -265,43 +423,99 @@ public class TiffEncoder {
 		out.write(hdr);
 	}
 	
-	/** Writes one 12-byte IFD entry. */
-	void writeEntry(OutputStream out, int tag, int fieldType, int count, int value) throws IOException {
+	/** Writes one 12-byte IFD entry, or one 20-byte BigTIFF IFD entry. */
+	void writeEntry(OutputStream out, int tag, int fieldType, int count, long value) throws IOException {
 		writeShort(out, tag);
 		writeShort(out, fieldType);
+		if (bigTiff) {
+			writeLong(out, count);
+			if (count==1 && fieldType==TiffDecoder.SHORT) {
+				writeShort(out, (int)value);
+				writeShort(out, 0);
+				writeInt(out, 0);
+			} else if (count==1 && fieldType==TiffDecoder.LONG) {
+				writeInt(out, (int)value);
+				writeInt(out, 0);
+			} else
+				writeLong(out, value); // LONG8 or offset
+			return;
+		}
 		writeInt(out, count);
 		if (count==1 && fieldType==TiffDecoder.SHORT) {
-			writeShort(out, value);
+			writeShort(out, (int)value);
 			writeShort(out, 0);
 		} else
-			writeInt(out, value); // may be an offset
+			writeInt(out, (int)value); // may be an offset
 	}
 	
-	/** Writes one IFD (Image File Directory). */
-	void writeIFD(OutputStream out, int imageOffset, int nextIFD) throws IOException {	
-		int tagDataOffset = HDR_SIZE + ifdSize;
-		writeShort(out, nEntries);
+	/** Writes one entry of a BigTIFF IFD, where 'data', which is
+		at most 8 bytes long, is stored in the entry's value field. */
+	void writeInlineEntry(OutputStream out, int tag, int fieldType, int count, byte[] data) throws IOException {
+		writeShort(out, tag);
+		writeShort(out, fieldType);
+		writeLong(out, count);
+		out.write(data, 0, data.length);
+		for (int i=data.length; i<8; i++)
+			out.write(0);
+	}
+
+	/** Writes one IFD (Image File Directory). With BigTIFFs,
+		tag data that fits in 8 bytes is stored in the IFD entry. */
+	void writeIFD(OutputStream out, long imageOffset, long nextIFD) throws IOException {	
+		int tagDataOffset = hdrSize + ifdSize;
+		if (bigTiff)
+			writeLong(out, nEntries);
+		else
+			writeShort(out, nEntries);
 		writeEntry(out, TiffDecoder.NEW_SUBFILE_TYPE, 4, 1, 0);
 		writeEntry(out, TiffDecoder.IMAGE_WIDTH, 4, 1, fi.width);
 		writeEntry(out, TiffDecoder.IMAGE_LENGTH, 4, 1, fi.height);
 		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48) {
-			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, tagDataOffset);
+			if (bigTiff) {
+				ByteArrayOutputStream bps = new ByteArrayOutputStream();
+				writeBitsPerPixel(bps);
+				writeInlineEntry(out, TiffDecoder.BITS_PER_SAMPLE, 3, 3, bps.toByteArray());
+			} else
+				writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, tagDataOffset);
 			tagDataOffset += BPS_DATA_SIZE;
 		} else
 			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 1, bitsPerSample);
-		writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, 1);	//No Compression
+		writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, getCompressionCode());
 		writeEntry(out, TiffDecoder.PHOTO_INTERP, 3, 1, photoInterp);
 		if (description!=null) {
-			writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, tagDataOffset);
+			if (bigTiff && description.length<=8)
+				writeInlineEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, description);
+			else
+				writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, tagDataOffset);
 			tagDataOffset += description.length;
 		}
-		writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, 1, imageOffset);
-		writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
-		writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, fi.height);
-		writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, imageSize);
+		if (compressed) {
+			int type = bigTiff?TiffDecoder.LONG8:4;
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS, type, nStrips, nStrips==1?stripOffsets[0]:stripTableOffset);
+			writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
+			writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, rowsPerStrip);
+			long countsOffset = stripTableOffset + nStrips*(bigTiff?8:4);
+			writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, type, nStrips, nStrips==1?stripByteCounts[0]:countsOffset);
+		} else {
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS, bigTiff?TiffDecoder.LONG8:4, 1, imageOffset);
+			writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
+			writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, fi.height);
+			writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, imageSize);
+		}
 		if (fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0) {
-			writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
-			writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
+			if (bigTiff) {
+				ByteArrayOutputStream scale = new ByteArrayOutputStream();
+				writeScale(scale);
+				byte[] bytes = scale.toByteArray();
+				byte[] xres = new byte[8], yres = new byte[8];
+				System.arraycopy(bytes, 0, xres, 0, 8);
+				System.arraycopy(bytes, 8, yres, 0, 8);
+				writeInlineEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, xres);
+				writeInlineEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, yres);
+			} else {
+				writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
+				writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
+			}
 			tagDataOffset += SCALE_DATA_SIZE;
 			int unit = 1;
 			if (fi.unit.equals("inch"))
@@ -310,6 +524,8 @@ public class TiffEncoder {
 				unit = 3;
 			writeEntry(out, TiffDecoder.RESOLUTION_UNIT, 3, 1, unit);
 		}
+		if (predictor)
+			writeEntry(out, TiffDecoder.PREDICTOR, 3, 1, 2); // horizontal differencing
 		if (fi.fileType==fi.GRAY32_FLOAT) {
 			int format = TiffDecoder.FLOATING_POINT;
 			writeEntry(out, TiffDecoder.SAMPLE_FORMAT, 3, 1, format);
@@ -319,13 +535,31 @@ public class TiffEncoder {
 			tagDataOffset += MAP_SIZE*2;
 		}
 		if (metaDataSize>0) {
-			writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, tagDataOffset);
+			if (bigTiff && nMetaDataEntries<=2) {
+				ByteArrayOutputStream counts = new ByteArrayOutputStream();
+				writeMetaDataCounts(counts);
+				writeInlineEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, counts.toByteArray());
+			} else
+				writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, tagDataOffset);
 			writeEntry(out, TiffDecoder.META_DATA, 1, metaDataSize, tagDataOffset+4*nMetaDataEntries);
 			tagDataOffset += nMetaDataEntries*4 + metaDataSize;
 		}
-		writeInt(out, nextIFD);
+		if (bigTiff)
+			writeLong(out, nextIFD);
+		else
+			writeInt(out, (int)nextIFD);
 	}
 	
+	/** Returns the value of the Compression tag. */
+	int getCompressionCode() {
+		switch (fi.compression) {
+			case FileInfo.LZW: case FileInfo.LZW_WITH_DIFFERENCING: return 5;
+			case FileInfo.PACK_BITS: return 32773;
+			case FileInfo.ZIP: case FileInfo.ZIP_WITH_DIFFERENCING: return 8; // Adobe deflate
+			default: return 1; // no compression
+		}
+	}
+
 	/** Writes the 6 bytes of data required by RGB BitsPerSample tag. */
 	void writeBitsPerPixel(OutputStream out) throws IOException {
 		int bitsPerPixel = fi.fileType==FileInfo.RGB48?16:8;
@@ -369,8 +603,12 @@ public class TiffEncoder {
 		stack slice labels, channel display ranges, luts, ROIs,
 		overlays, properties and extra metadata). */
 	void writeMetaData(OutputStream out) throws IOException {
-	
-		// write byte counts (META_DATA_BYTE_COUNTS tag)
+		writeMetaDataCounts(out);
+		writeMetaDataHeaderAndBody(out);
+	}
+
+	/** Writes the byte counts of the META_DATA_BYTE_COUNTS tag. */
+	void writeMetaDataCounts(OutputStream out) throws IOException {
 		writeInt(out, 4+nMetaDataTypes*8); // header size	
 		if (fi.info!=null && fi.info.length()>0)
 			writeInt(out, fi.info.length()*2);
@@ -400,7 +638,9 @@ public class TiffEncoder {
 		}
 		for (int i=0; i<extraMetaDataEntries; i++)
 			writeInt(out, fi.metaData[i].length);	
+	}
 		
+	void writeMetaDataHeaderAndBody(OutputStream out) throws IOException {
 		// write header (META_DATA tag header)
 		writeInt(out, TiffDecoder.MAGIC_NUMBER); // "IJIJ"
 		if (fi.info!=null) {
@@ -2813,8 +2813,8 @@ public class Functions implements MacroConstants, Measurements {
 		boolean open = WindowManager.getWindow(title)!=null;
 		if (open)
 			return true;
-		else if (Interpreter.isBatchMode() && Interpreter.imageTable!=null) {
-			for (Enumeration en=Interpreter.imageTable.elements(); en.hasMoreElements();) {
+		else if (Interpreter.isBatchMode() && Interpreter.getImageTable()!=null) {
+			for (Enumeration en=Interpreter.getImageTable().elements(); en.hasMoreElements();) {
 				ImagePlus imp = (ImagePlus)en.nextElement();
 				if (imp!=null && imp.getTitle().equals(title))
 					return true;
@@ -3215,8 +3215,9 @@ public class Functions implements MacroConstants, Measurements {
 
 	void selectImage(String title) {
 		if (Interpreter.isBatchMode()) {
-			if (Interpreter.imageTable!=null) {
-				for (Enumeration en=Interpreter.imageTable.elements(); en.hasMoreElements();) {
+			Vector imageTable = Interpreter.getImageTable();
+			if (imageTable!=null) {
+				for (Enumeration en=imageTable.elements(); en.hasMoreElements();) {
 					ImagePlus imp = (ImagePlus)en.nextElement();
 					if (imp!=null) {
 						if (imp.getTitle().equals(title)) {
@@ -3465,7 +3466,7 @@ public class Functions implements MacroConstants, Measurements {
 				IJ.selectWindow(imp2.getID());
 			}
 		} else {
-			Vector v = Interpreter.imageTable;
+			Vector v = Interpreter.getImageTable();
 			if (v==null) return;
 			ImagePlus cImp = imp2;
 			interp.setBatchMode(false);
@@ -5897,7 +5898,7 @@ public class Functions implements MacroConstants, Measurements {
 		if (fit==-1 && name!=null) {
 			Interpreter instance = Interpreter.getInstance();
 			int params = fitter.doCustomFit(name, initialValues, showFitDialog);
-			Interpreter.instance = instance;
+			Interpreter.setInstance(instance);
 			if (params==0)
 				interp.error("Invalid custom function");
 		} else
@@ -5,6 +5,7 @@ import ij.gui.*;
 import ij.plugin.Macro_Runner;
 import ij.plugin.frame.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import ij.text.*;
 import ij.measure.ResultsTable;
 import java.awt.*;
@@ -41,6 +42,8 @@ public class Interpreter implements MacroConstants {
 	public static boolean batchMode;
 	static Vector imageTable; // images opened in batch mode
 	static Vector imageActivations; // images ordered by activation time
+	private static int batchMacros; // number of batch macros running
+	private static Hashtable batchThreads = new Hashtable(); // BatchThread of each thread running a batch macro
 	volatile boolean done;
 	Program pgm;
 	Functions func;
@@ -103,9 +106,9 @@ public class Interpreter implements MacroConstants {
 		calledMacro = true;
 		if (IJ.getInstance()==null)
 			setBatchMode(true);
-		Interpreter saveInstance = instance;
+		Interpreter saveInstance = getInstance();
 		run(macro);
-		instance = saveInstance;
+		setInstance(saveInstance);
 		return returnValue;
 	}
 	
@@ -113,7 +116,7 @@ public class Interpreter implements MacroConstants {
 	 * @see ij.Macro#eval
 	*/
 	public String eval(String code) {
-		Interpreter saveInstance = instance;
+		Interpreter saveInstance = getInstance();
 		if (pgm!=null)
 			reuseSymbolTable();
 		Tokenizer tok = new Tokenizer();
@@ -125,7 +128,7 @@ public class Interpreter implements MacroConstants {
 		ignoreErrors = true;
 		calledMacro = true;
 		run(pgm);
-		instance = saveInstance;
+		setInstance(saveInstance);
 		if (errorMessage!=null)
 			return errorMessage;
 		else
@@ -147,7 +150,7 @@ public class Interpreter implements MacroConstants {
 		this.pgm = pgm;
 		pc = -1;
 		callDepth = 0;
-		instance = this;
+		setInstance(this);
 		if (!calledMacro) {
 			batchMode = false;
 			imageTable = imageActivations = null;
@@ -178,8 +181,8 @@ public class Interpreter implements MacroConstants {
 		this.pgm = pgm;
 		this.macroName = macroName;
 		pc = macroLoc-1;
-		previousInstance = instance;
-		instance = this;
+		previousInstance = getInstance();
+		setInstance(this);
 		pushGlobals();
 		if (func==null)
 			func = new Functions(this, pgm);
@@ -196,25 +199,58 @@ public class Interpreter implements MacroConstants {
 	public ImagePlus runBatchMacro(String macro, ImagePlus imp) {
 		calledMacro = true;
 		batchMacro = true;
-		setBatchMode(true);
+		boolean parallel = ThreadUtil.isParallelThread(); // one of several threads running batch macros
+		Thread thread = Thread.currentThread();
+		if (parallel) {
+			synchronized(Interpreter.class) {
+				batchMacros++;
+				batchMode = true;
+				batchThreads.put(thread, new BatchThread());
+			}
+		} else
+			setBatchMode(true);
 		addBatchModeImage(imp);
 		batchMacroImage = null;
-		run(macro);
+		try {
+			run(macro);
+		} finally {
+			if (parallel) {
+				synchronized(Interpreter.class) {
+					batchThreads.remove(thread);
+					batchMacros--;
+					if (batchMacros==0)
+						setBatchMode(false);
+				}
+			}
+		}
 		IJ.showStatus("");
 		return batchMacroImage;
 	}
 
+	/** The interpreter instance and batch mode images of a thread running
+		a batch macro in parallel with others (see ThreadUtil.setParallelThread).
+		Those are kept per thread rather than in the static fields. */
+	private static class BatchThread {
+		Interpreter instance;
+		Vector images, activations;
+	}
+
+	/** Returns the BatchThread of the current thread, or null if it is not running a parallel batch macro. */
+	private static BatchThread getBatchThread() {
+		return batchMacros>0?(BatchThread)batchThreads.get(Thread.currentThread()):null;
+	}
+
 	/** Saves global variables. */
 	public void saveGlobals(Program pgm) {
-		Interpreter saveInstance = instance;
+		Interpreter saveInstance = getInstance();
 		saveGlobals2(pgm);
-		instance = saveInstance; 
+		setInstance(saveInstance); 
 	}
 	
 	void saveGlobals2(Program pgm) {
 		this.pgm = pgm;
 		pc = -1;
-		instance = this;
+		setInstance(this);
 		func = new Functions(this, pgm);
 		while (!done) {
 			getToken();
@@ -225,7 +261,7 @@ public class Interpreter implements MacroConstants {
 				default:
 			}
 		}
-		instance = null;
+		setInstance(null);
 		pgm.saveGlobals(this);
 		pc = -1;
 		topOfStack = -1;
@@ -1366,12 +1402,14 @@ public class Interpreter implements MacroConstants {
 		tokenString = "";
 		IJ.showStatus("");
 		IJ.showProgress(0, 0);
-		batchMode = false;
-		imageTable = imageActivations = null;
+		if (getBatchThread()==null)
+			setBatchMode(false); // the batch macro that started this thread resets it
+		else
+			clearBatchModeImages();
 		WindowManager.setTempCurrentImage(null);
 		wasError = true;
 		if (!evaluating)
-			instance = null;
+			setInstance(null);
 		if (showMessage && message!=null) {
 			String line = getErrorLine();
 			done = true;
@@ -2063,8 +2101,13 @@ public class Interpreter implements MacroConstants {
 		if (batchMacro)
 			batchMacroImage = WindowManager.getCurrentImage();
 		func.updateDisplay();
-		instance = null;
-		if (!calledMacro || batchMacro) {
+		setInstance(null);
+		if (getBatchThread()!=null) { // runBatchMacro() resets batch mode when the last parallel batch macro finishes
+			if (batchMode)
+				showingProgress = true;
+			clearBatchModeImages();
+			WindowManager.setTempCurrentImage(null);
+		} else if (!calledMacro || batchMacro) {
 			if (batchMode)
 				showingProgress = true;
 			batchMode = false;
@@ -2125,7 +2168,9 @@ public class Interpreter implements MacroConstants {
 	
 	/** Aborts this macro. */
 	public void abortMacro() {
-		if (!calledMacro || batchMacro) {
+		if (getBatchThread()!=null)
+			clearBatchModeImages();
+		else if (!calledMacro || batchMacro) {
 			batchMode = false;
 			imageTable = imageActivations = null;
 		}
@@ -2174,53 +2219,106 @@ public class Interpreter implements MacroConstants {
 		}
 	} 
 
+	/** Returns the running interpreter, which is the one of the batch macro
+		running on the current thread, if there is one. */
 	public static Interpreter getInstance() {
-		return instance;
+		BatchThread bt = getBatchThread();
+		return bt!=null?bt.instance:instance;
 	}
 	
 	static void setInstance(Interpreter i) {
-		instance = i;
+		BatchThread bt = getBatchThread();
+		if (bt==null) {
+			instance = i;
+			return;
+		}
+		Interpreter previous = bt.instance;
+		bt.instance = i;
+		if (i!=null) // so that abort() finds a running batch macro
+			instance = i;
+		else if (instance==previous)
+			instance = null;
 	}
 
 	static void setBatchMode(boolean b) {
+		if (b==false && getBatchThread()!=null) {
+			clearBatchModeImages(); // other batch macros may still be running
+			return;
+		}
 		batchMode = b;
 		if (b==false)
 			imageTable = imageActivations = null;
 	}
 
+	/** Returns the batch mode images of the macro running on this thread,
+		or null if there are none. */
+	static Vector getImageTable() {
+		BatchThread bt = getBatchThread();
+		return bt!=null?bt.images:imageTable;
+	}
+
+	private static Vector getActivations() {
+		BatchThread bt = getBatchThread();
+		return bt!=null?bt.activations:imageActivations;
+	}
+
+	private static void clearBatchModeImages() {
+		BatchThread bt = getBatchThread();
+		if (bt!=null)
+			bt.images = bt.activations = null;
+		else
+			imageTable = imageActivations = null;
+	}
+
 	public static boolean isBatchMode() {
 		return batchMode && !tempShowMode;
 	}
 	
 	public static void addBatchModeImage(ImagePlus imp) {
 		if (!batchMode || imp==null) return;
-		if (imageTable==null)
-			imageTable = new Vector();
-		imageTable.add(imp);
+		BatchThread bt = getBatchThread();
+		if (bt!=null) {
+			if (bt.images==null)
+				bt.images = new Vector();
+			bt.images.add(imp);
+		} else {
+			if (imageTable==null)
+				imageTable = new Vector();
+			imageTable.add(imp);
+		}
 		activateImage(imp);
 	}
 
 	public static void removeBatchModeImage(ImagePlus imp) {
+		Vector imageTable = getImageTable();
 		if (imageTable!=null && imp!=null) {
 			int index = imageTable.indexOf(imp);
 			if (index!=-1) {
 				imageTable.remove(index);
-				imageActivations.remove(imp);
+				Vector imageActivations = getActivations();
+				if (imageActivations!=null)
+					imageActivations.remove(imp);
 				WindowManager.setTempCurrentImage(getLastBatchModeImage());
 			}
 		}
 	}
 	
 	public static void activateImage(ImagePlus imp) {
-		if (imageTable!=null && imp!=null) {
-			if (imageActivations==null)
+		if (getImageTable()!=null && imp!=null) {
+			BatchThread bt = getBatchThread();
+			if (bt!=null) {
+				if (bt.activations==null)
+					bt.activations = new Vector();
+			} else if (imageActivations==null)
 				imageActivations = new Vector();
+			Vector imageActivations = getActivations();
 			imageActivations.remove(imp);
 			imageActivations.add(imp);
 		}
 	}
 
 	public static int[] getBatchModeImageIDs() {
+		Vector imageTable = getImageTable();
 		if (!batchMode || imageTable==null)
 			return new int[0];
 		int n = imageTable.size();
@@ -2233,6 +2331,7 @@ public class Interpreter implements MacroConstants {
 	}
 
 	public static int getBatchModeImageCount() {
+		Vector imageTable = getImageTable();
 		if (!batchMode || imageTable==null)
 			return 0;
 		else
@@ -2240,9 +2339,10 @@ public class Interpreter implements MacroConstants {
 	}
 	
 	public static ImagePlus getBatchModeImage(int id) {
+		Vector imageTable = getImageTable();
 		if (!batchMode || imageTable==null)
 			return null;
-		for (Enumeration en=Interpreter.imageTable.elements(); en.hasMoreElements();) {
+		for (Enumeration en=imageTable.elements(); en.hasMoreElements();) {
 			ImagePlus imp = (ImagePlus)en.nextElement();
 			if (id==imp.getID())
 				return imp;
@@ -2251,6 +2351,8 @@ public class Interpreter implements MacroConstants {
 	}
 	
 	public static ImagePlus getLastBatchModeImage() { 
+		Vector imageTable = getImageTable();
+		Vector imageActivations = getActivations();
 		if (!batchMode || imageTable==null)
 			return null; 
 		ImagePlus imp2 = null;
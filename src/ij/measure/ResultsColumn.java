@@ -0,0 +1,346 @@
+package ij.measure;
+import java.util.*;
+
+/** A column of a ResultsTable. The values are stored in chunks of CHUNK_SIZE
+	rows, so adding rows never copies more than one chunk. The first chunk
+	starts with MIN_CHUNK_SIZE rows and doubles in size until it reaches
+	CHUNK_SIZE, so small tables stay small. A chunk holds int, float or
+	double values; it starts with the narrowest type that represents its
+	values exactly and is widened when a value does not fit. String values
+	are dictionary-encoded: each row holds the index of its string in a list
+	of the distinct strings of the column.
+*/
+class ResultsColumn {
+	static final int INT=1, FLOAT=2, DOUBLE=3;
+	static final int CHUNK_BITS = 14;
+	static final int CHUNK_SIZE = 1<<CHUNK_BITS;
+	static final int MIN_CHUNK_SIZE = 64;
+	private static final int MASK = CHUNK_SIZE-1;
+
+	private double emptyValue;	// value of cells that were never set
+	private String emptyString;	// string of rows without string; index 0 of the dictionary
+	private Object[] chunks = new Object[4];	// int[], float[] or double[]
+	private int[][] codes;	// string indexes, in chunks like the values
+	private ArrayList strings;
+	private HashMap stringIndex;
+	private int stringRows;	// rows 0..stringRows-1 have a string
+
+	/** Creates a column where the values of cells not set are NaN
+		(with 'nanEmptyCells' true) or zero, and the strings are 'emptyString'. */
+	ResultsColumn(boolean nanEmptyCells, String emptyString) {
+		emptyValue = nanEmptyCells?Double.NaN:0.0;
+		this.emptyString = emptyString;
+	}
+
+	double get(int row) {
+		int c = row>>>CHUNK_BITS;
+		Object chunk = c<chunks.length?chunks[c]:null;
+		if (chunk==null)
+			return emptyValue;
+		int i = row&MASK;
+		if (i>=length(chunk))
+			return emptyValue;
+		if (chunk instanceof int[])
+			return ((int[])chunk)[i];
+		else if (chunk instanceof float[])
+			return ((float[])chunk)[i];
+		else
+			return ((double[])chunk)[i];
+	}
+
+	void set(int row, double value) {
+		int c = row>>>CHUNK_BITS;
+		if (c>=chunks.length)
+			chunks = Arrays.copyOf(chunks, Math.max(2*chunks.length, c+1));
+		Object chunk = chunks[c];
+		int i = row&MASK;
+		if (chunk==null)
+			chunk = newChunk(c, i, value);
+		else if (i>=length(chunk))
+			chunk = grow(c, i);
+		if (chunk instanceof int[]) {
+			if (isInt(value)) {
+				((int[])chunk)[i] = (int)value;
+				return;
+			}
+			chunk = widen(c, value);
+		}
+		if (chunk instanceof float[]) {
+			if (isFloat(value)) {
+				((float[])chunk)[i] = (float)value;
+				return;
+			}
+			chunk = widen(c, value);
+		}
+		((double[])chunk)[i] = value;
+	}
+
+	/** Returns 'true' if 'value' is an int, but not -0. */
+	private static boolean isInt(double value) {
+		return (int)value==value && (value!=0.0 || 1.0/value>0.0);
+	}
+
+	private static boolean isFloat(double value) {
+		return (float)value==value || value!=value;
+	}
+
+	/** Returns the length of chunk 'c' when it has to hold index 'i': The first
+		chunk grows in powers of two from MIN_CHUNK_SIZE, the others have CHUNK_SIZE. */
+	private static int chunkLength(int c, int i) {
+		if (c>0)
+			return CHUNK_SIZE;
+		int length = MIN_CHUNK_SIZE;
+		while (length<=i)
+			length *= 2;
+		return length;
+	}
+
+	private static int length(Object chunk) {
+		if (chunk instanceof int[])
+			return ((int[])chunk).length;
+		else if (chunk instanceof float[])
+			return ((float[])chunk).length;
+		else
+			return ((double[])chunk).length;
+	}
+
+	/** Creates the chunk with index 'c' for index 'i', with the narrowest type
+		for the value of empty cells and 'value'. */
+	private Object newChunk(int c, int i, double value) {
+		int length = chunkLength(c, i);
+		Object chunk;
+		if (isInt(emptyValue) && isInt(value))
+			chunk = new int[length];
+		else if (isFloat(emptyValue) && isFloat(value)) {
+			chunk = new float[length];
+			if (emptyValue!=0.0)
+				Arrays.fill((float[])chunk, (float)emptyValue);
+		} else {
+			chunk = new double[length];
+			if (emptyValue!=0.0)
+				Arrays.fill((double[])chunk, emptyValue);
+		}
+		chunks[c] = chunk;
+		return chunk;
+	}
+
+	/** Enlarges chunk 'c' to hold index 'i'; the new cells are empty. */
+	private Object grow(int c, int i) {
+		Object chunk = chunks[c];
+		int oldLength = length(chunk);
+		int length = chunkLength(c, i);
+		if (chunk instanceof int[])
+			chunk = Arrays.copyOf((int[])chunk, length);
+		else if (chunk instanceof float[]) {
+			chunk = Arrays.copyOf((float[])chunk, length);
+			if (emptyValue!=0.0)
+				Arrays.fill((float[])chunk, oldLength, length, (float)emptyValue);
+		} else {
+			chunk = Arrays.copyOf((double[])chunk, length);
+			if (emptyValue!=0.0)
+				Arrays.fill((double[])chunk, oldLength, length, emptyValue);
+		}
+		chunks[c] = chunk;
+		return chunk;
+	}
+
+	/** Converts chunk 'c' to float or double, whichever holds its values and 'value'. */
+	private Object widen(int c, double value) {
+		Object chunk = chunks[c];
+		int length = length(chunk);
+		if (chunk instanceof int[] && isFloat(value)) {
+			int[] ints = (int[])chunk;
+			float[] floats = new float[length];
+			int i = 0;
+			for (; i<length && (int)(float)ints[i]==ints[i]; i++)
+				floats[i] = ints[i];
+			if (i==length) {
+				chunks[c] = floats;
+				return floats;
+			}
+		}
+		double[] doubles = new double[length];
+		if (chunk instanceof int[]) {
+			int[] ints = (int[])chunk;
+			for (int i=0; i<length; i++)
+				doubles[i] = ints[i];
+		} else {
+			float[] floats = (float[])chunk;
+			for (int i=0; i<length; i++)
+				doubles[i] = floats[i];
+		}
+		chunks[c] = doubles;
+		return doubles;
+	}
+
+	/** Returns INT, FLOAT or DOUBLE, the narrowest type that holds the
+		values of the first 'size' rows exactly. */
+	int getType(int size) {
+		int type = isInt(emptyValue)?INT:FLOAT;
+		int nChunks = (size+CHUNK_SIZE-1)>>>CHUNK_BITS;
+		for (int c=0; c<nChunks; c++) {
+			Object chunk = c<chunks.length?chunks[c]:null;
+			if (chunk instanceof double[])
+				return DOUBLE;
+			else if (chunk instanceof float[])
+				type = FLOAT;
+		}
+		return type;
+	}
+
+	/** Returns the distinct strings of this column; the first one is the
+		string of rows without string. Returns null if there are no strings. */
+	String[] getDictionary() {
+		if (strings==null)
+			return null;
+		return (String[])strings.toArray(new String[strings.size()]);
+	}
+
+	/** Returns the index in the dictionary of the string of the specified row. */
+	int getCode(int row) {
+		int c = row>>>CHUNK_BITS;
+		int[] chunk = codes!=null&&c<codes.length?codes[c]:null;
+		int i = row&MASK;
+		return chunk==null||i>=chunk.length?0:chunk[i];
+	}
+
+	/** Replaces the strings by 'dictionary', where all rows have the first
+		string. Use setCode() to assign the strings of rows 0 to 'stringRows'-1. */
+	void setDictionary(String[] dictionary, int stringRows) {
+		emptyString = dictionary[0];
+		codes = new int[Math.max(4, chunks.length)][];
+		strings = new ArrayList(Arrays.asList(dictionary));
+		stringIndex = new HashMap();
+		for (int i=dictionary.length-1; i>=0; i--)
+			stringIndex.put(dictionary[i], Integer.valueOf(i));
+		this.stringRows = stringRows;
+	}
+
+	void setCode(int row, int code) {
+		if (code==0 && getCode(row)==0)
+			return;
+		codeChunk(row>>>CHUNK_BITS, row&MASK)[row&MASK] = code;
+	}
+
+	/** Returns the chunk 'c' of string indexes, created or enlarged to hold index 'i'. */
+	private int[] codeChunk(int c, int i) {
+		if (c>=codes.length)
+			codes = Arrays.copyOf(codes, Math.max(2*codes.length, c+1));
+		if (codes[c]==null)
+			codes[c] = new int[chunkLength(c, i)];
+		else if (i>=codes[c].length)
+			codes[c] = Arrays.copyOf(codes[c], chunkLength(c, i));
+		return codes[c];
+	}
+
+	/** Returns the number of rows that have a string, i.e., the index of
+		the last row with a string value plus one. */
+	int getStringRows() {
+		return stringRows;
+	}
+
+	/** Returns the string of the specified row, or the empty string of
+		this column if the row has none. */
+	String getString(int row) {
+		if (codes==null)
+			return emptyString;
+		int c = row>>>CHUNK_BITS;
+		int[] chunk = c<codes.length?codes[c]:null;
+		int i = row&MASK;
+		if (chunk==null || i>=chunk.length)
+			return emptyString;
+		return (String)strings.get(chunk[i]);
+	}
+
+	/** Sets the string of the specified row; rows below that did not have
+		a string before get the empty string of this column. */
+	void setString(int row, String value) {
+		if (codes==null) {
+			codes = new int[Math.max(4, chunks.length)][];
+			strings = new ArrayList();
+			strings.add(emptyString);
+			stringIndex = new HashMap();
+			stringIndex.put(emptyString, Integer.valueOf(0));
+		}
+		Integer code = (Integer)stringIndex.get(value);
+		if (code==null) {
+			code = Integer.valueOf(strings.size());
+			strings.add(value);
+			stringIndex.put(value, code);
+		}
+		if (row>=stringRows)
+			stringRows = row+1;
+		if (code.intValue()==0 && getCode(row)==0)
+			return;
+		codeChunk(row>>>CHUNK_BITS, row&MASK)[row&MASK] = code.intValue();
+	}
+
+	/** Sets the strings of the rows from getStringRows() to 'rows'-1 to 'value'. */
+	void padStrings(int rows, String value) {
+		for (int row=stringRows; row<rows; row++)
+			setString(row, value);
+		if (rows>stringRows)
+			stringRows = rows;
+	}
+
+	/** Removes 'n' rows starting at 'row' of a column with 'size' rows. */
+	void deleteRows(int row, int n, int size) {
+		for (int i=row; i<size-n; i++)
+			set(i, get(i+n));
+		for (int i=Math.max(row, size-n); i<size; i++)
+			set(i, emptyValue);
+		if (codes!=null && stringRows>row) {
+			for (int i=row; i<stringRows-n; i++)
+				setString(i, getString(i+n));
+			int last = stringRows;
+			for (int i=Math.max(row, stringRows-n); i<last; i++)
+				setString(i, emptyString);
+			stringRows = Math.max(row, last-n);
+		}
+	}
+
+	/** Reorders the first 'size' rows so that row i gets the contents of row order[i]. */
+	void reorder(int[] order, int size) {
+		ResultsColumn copy = duplicate();
+		for (int i=0; i<size; i++)
+			set(i, copy.get(order[i]));
+		if (codes!=null) {
+			for (int i=0; i<size; i++)
+				setString(i, copy.getString(order[i]));
+		}
+	}
+
+	/** Returns the values of the first 'size' rows. */
+	double[] getValues(int size) {
+		double[] values = new double[size];
+		for (int i=0; i<size; i++)
+			values[i] = get(i);
+		return values;
+	}
+
+	/** Returns an independent copy of this column. */
+	ResultsColumn duplicate() {
+		ResultsColumn column = new ResultsColumn(false, emptyString);
+		column.emptyValue = emptyValue;
+		column.chunks = new Object[chunks.length];
+		for (int c=0; c<chunks.length; c++) {
+			Object chunk = chunks[c];
+			if (chunk instanceof int[])
+				column.chunks[c] = ((int[])chunk).clone();
+			else if (chunk instanceof float[])
+				column.chunks[c] = ((float[])chunk).clone();
+			else if (chunk instanceof double[])
+				column.chunks[c] = ((double[])chunk).clone();
+		}
+		if (codes!=null) {
+			column.codes = new int[codes.length][];
+			for (int c=0; c<codes.length; c++)
+				column.codes[c] = codes[c]!=null?(int[])codes[c].clone():null;
+			column.strings = (ArrayList)strings.clone();
+			column.stringIndex = (HashMap)stringIndex.clone();
+			column.stringRows = stringRows;
+		}
+		return column;
+	}
+
+}
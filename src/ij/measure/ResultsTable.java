@@ -44,14 +44,13 @@ public class ResultsTable implements Cloneable {
 		"Circ.", "Feret", "IntDen", "Median","Skew","Kurt", "%Area", "RawIntDen", "Ch", "Slice", "Frame", 
 		 "FeretX", "FeretY", "FeretAngle", "MinFeret", "AR", "Round", "Solidity", "MinThr", "MaxThr"};
 
-	private int maxRows = 100; // will be increased as needed
 	private int maxColumns = MAX_COLUMNS; // will be increased as needed
 	private String[] headings = new String[maxColumns];
 	private boolean[] keep = new boolean[maxColumns];
 	private short[] decimalPlaces = new short[maxColumns];
 	private int counter;
-	private double[][] columns = new double[maxColumns][];
-	private String[] rowLabels;
+	private ResultsColumn[] columns = new ResultsColumn[maxColumns];
+	private ResultsColumn rowLabels;
 	private int lastColumn = -1;
 	private	StringBuilder sb;
 	private short precision = 3;
@@ -61,7 +60,6 @@ public class ResultsTable implements Cloneable {
 	private boolean showRowNumbers;
 	private boolean showRowNumbersSet;
 	private int baseRowNumber = 1;
-	private Hashtable stringColumns;
 	private boolean NaNEmptyCells;
 	private boolean quoteCommas;
 	private String title;
@@ -132,26 +130,14 @@ public class ResultsTable implements Cloneable {
 		incrementCounter();
 	}
 
-	/** Adds a row to the table. */
+	/** Adds a row to the table. The columns are stored in chunks
+		(see ResultsColumn), so existing rows are never copied. */
 	public synchronized void incrementCounter() {
 		counter++;
-		if (counter==maxRows) {
-			if (rowLabels!=null) {
-				String[] s = new String[maxRows*2];
-				System.arraycopy(rowLabels, 0, s, 0, maxRows);
-				rowLabels = s;
-			}
-			for (int i=0; i<=lastColumn; i++) {
-				if (columns[i]!=null) {
-					double[] tmp = new double[maxRows*2];
-					if (NaNEmptyCells)
-						Arrays.fill(tmp, maxRows, tmp.length, Double.NaN);
-					System.arraycopy(columns[i], 0, tmp, 0, maxRows);
-					columns[i] = tmp;
-				}
-			}
-			maxRows *= 2;
-		}
+	}
+	
+	private ResultsColumn newColumn() {
+		return new ResultsColumn(NaNEmptyCells, "");
 	}
 	
 	/** Obsolete; the addValue() method automatically adds columns as needed.
@@ -161,7 +147,7 @@ public class ResultsTable implements Cloneable {
 		String[] tmp1 = new String[maxColumns*2];
 		System.arraycopy(headings, 0, tmp1, 0, maxColumns);
 		headings = tmp1;
-		double[][] tmp2 = new double[maxColumns*2][];
+		ResultsColumn[] tmp2 = new ResultsColumn[maxColumns*2];
 		for (int i=0; i<maxColumns; i++)
 			tmp2[i] = columns[i];
 		columns = tmp2;
@@ -202,14 +188,12 @@ public class ResultsTable implements Cloneable {
 		if (counter==0)
 			incrementCounter();
 		if (columns[column]==null) {
-			columns[column] = new double[maxRows];
-			if (NaNEmptyCells)
-				Arrays.fill(columns[column], Double.NaN);
+			columns[column] = newColumn();
 			if (headings[column]==null)
 				headings[column] = "C"+(column+1);
 			if (column>lastColumn) lastColumn = column;
 		}
-		columns[column][counter-1] = value;
+		columns[column].set(counter-1, value);
 		if (counter<25) {
 			if ((int)value!=value && !Double.isNaN(value))
 				decimalPlaces[column] = (short)precision;
@@ -277,8 +261,8 @@ public class ResultsTable implements Cloneable {
 		if (counter==0)
 			throw new IllegalArgumentException("Counter==0");
 		if (rowLabels==null)
-			rowLabels = new String[maxRows];
-		rowLabels[counter-1] = label;
+			rowLabels = new ResultsColumn(false, null);
+		rowLabels.setString(counter-1, label);
 		if (columnHeading!=null)
 			rowLabelHeading = columnHeading;
 	}
@@ -291,10 +275,10 @@ public class ResultsTable implements Cloneable {
 		if (row<0||row>=counter)
 			throw new IllegalArgumentException("row>=counter");
 		if (rowLabels==null)
-			rowLabels = new String[maxRows];
+			rowLabels = new ResultsColumn(false, null);
 		if (rowLabelHeading.equals(""))
 			rowLabelHeading = "Label";
-		rowLabels[row] = label;
+		rowLabels.setString(row, label);
 	}
 	
 	/** Set the row label column to null if the column label is "Label". */
@@ -339,7 +323,7 @@ public class ResultsTable implements Cloneable {
 		else {
 			float[] data = new float[counter];
 			for (int i=0; i<counter; i++)
-				data[i] = (float)columns[column][i];
+				data[i] = (float)columns[column].get(i);
 			return data;
 		}
 	}
@@ -351,12 +335,8 @@ public class ResultsTable implements Cloneable {
 			throw new IllegalArgumentException("Index out of range: "+column);
 		if (columns[column]==null)
 			return null;
-		else {
-			double[] data = new double[counter];
-			for (int i=0; i<counter; i++)
-				data[i] = columns[column][i];
-			return data;
-		}
+		else
+			return columns[column].getValues(counter);
 	}
 	
 	/** Returns the contents of this ResultsTable as a FloatProcessor. */
@@ -420,9 +400,7 @@ public class ResultsTable implements Cloneable {
 	public int getFreeColumn(String heading) {
 		for(int i=0; i<headings.length; i++) {
 			if (headings[i]==null) {
-				columns[i] = new double[maxRows];
-				if (NaNEmptyCells)
-					Arrays.fill(columns[i], Double.NaN);
+				columns[i] = newColumn();
 				headings[i] = heading;
 				if (i>lastColumn) lastColumn = i;
 				return i;
@@ -432,9 +410,7 @@ public class ResultsTable implements Cloneable {
 		}
 		addColumns();
 		lastColumn++;
-		columns[lastColumn] = new double[maxRows];
-		if (NaNEmptyCells)
-			Arrays.fill(columns[lastColumn], Double.NaN);
+		columns[lastColumn] = newColumn();
 		headings[lastColumn] = heading;
 		return lastColumn;
 	}
@@ -448,7 +424,7 @@ public class ResultsTable implements Cloneable {
 			throw new IllegalArgumentException("Index out of range: "+column+","+row);
 		if (columns[column]==null)
 			throw new IllegalArgumentException("Column not defined: "+column);
-		return columns[column][row];
+		return columns[column].get(row);
 	}
 	
 	/**
@@ -519,8 +495,8 @@ public class ResultsTable implements Cloneable {
 		if (row<0 || row>=size())
 			throw new IllegalArgumentException("Row out of range");
 		String label = null;
-		if (rowLabels!=null && rowLabels[row]!=null)
-				label = rowLabels[row];
+		if (rowLabels!=null)
+			label = rowLabels.getString(row);
 		return label;
 	}
 
@@ -552,12 +528,10 @@ public class ResultsTable implements Cloneable {
 				throw new IllegalArgumentException("row>counter");
 		}
 		if (columns[column]==null) {
-			columns[column] = new double[maxRows];
-			if (NaNEmptyCells)
-				Arrays.fill(columns[column], Double.NaN);
+			columns[column] = newColumn();
 			if (column>lastColumn) lastColumn = column;
 		}
-		columns[column][row] = value;
+		columns[column].set(row, value);
 		if (headings[column]==null)
 			headings[column] = "C"+(column+1);
 		if ((int)value!=value && !Double.isNaN(value))
@@ -582,22 +556,7 @@ public class ResultsTable implements Cloneable {
 		where 0&lt;=column&lt;=(lastRow+1 and 0&lt;=row&lt;=size(). */
 	public void setValue(int column, int row, String value) {
 		setValue(column, row, Double.NaN);
-		if (stringColumns==null)
-			stringColumns = new Hashtable();
-		ArrayList stringColumn = (ArrayList)stringColumns.get(Integer.valueOf(column));
-		if (stringColumn==null) {
-			stringColumn = new ArrayList();
-			stringColumns.put(Integer.valueOf(column), stringColumn);
-		}
-		int size = stringColumn.size();
-		if (row>=size) {
-			for (int i=size; i<row; i++)
-				stringColumn.add(i, "");
-		}
-		if (row==stringColumn.size())
-			stringColumn.add(row, value);
-		else
-			stringColumn.set(row, value);
+		columns[column].setString(row, value);
 	}
 	
 	/** Sets the values of the given column to the values in the array.
@@ -680,13 +639,19 @@ public class ResultsTable implements Cloneable {
 			sb = new StringBuilder(200);
 		else
 			sb.setLength(0);
+		appendRow(sb, row);
+		return new String(sb);
+	}
+	
+	/** Appends the contents of the given row to 'sb', as in getRowAsString(). */
+	private void appendRow(StringBuilder sb, int row) {
 		if (showRowNumbers) {
 			sb.append(Integer.toString(row+baseRowNumber));
 			sb.append(delimiter);
 		}
 		if (rowLabels!=null) {
-			if (rowLabels[row]!=null) {
-				String label = rowLabels[row];
+			String label = rowLabels.getString(row);
+			if (label!=null) {
 				if (delimiter==',')
 					label = label.replaceAll(",", ";");
 				sb.append(label);
@@ -705,7 +670,6 @@ public class ResultsTable implements Cloneable {
 					sb.append(delimiter);
 			}
 		}
-		return new String(sb);
 	}
 	
 	/** Implements the Table.getColumn() macro function. */
@@ -726,16 +690,13 @@ public class ResultsTable implements Cloneable {
 		int nValues = size();
 		Variable[] values = new Variable[nValues];
 		for (int row=0; row<size(); row++) {
-			double value = columns[col][row];
+			double value = columns[col].get(row);
 			String str = null;
-			if (Double.isNaN(value) && stringColumns!=null) {
-				ArrayList stringColumn = (ArrayList)stringColumns.get(Integer.valueOf(col));
-				if (stringColumn!=null && row>=0 && row<stringColumn.size()) {
-						str = (String)stringColumn.get(row);
-						if (firstValueNumeric && "".equals(str)) {
-							nValues = row;
-							break;
-						}
+			if (Double.isNaN(value) && row<columns[col].getStringRows()) {
+				str = columns[col].getString(row);
+				if (firstValueNumeric && "".equals(str)) {
+					nValues = row;
+					break;
 				}
 			}
 			if (str!=null)
@@ -786,21 +747,12 @@ public class ResultsTable implements Cloneable {
 	}
 		
 	private String getValueAsString(int column, int row) { 
-		double value = columns[column][row];
-		//IJ.log("getValueAsString1: col="+column+ ", row= "+row+", value= "+value+", size="+stringColumns.size());
-		if (Double.isNaN(value) && stringColumns!=null) {
-			String string = "NaN";
-			ArrayList stringColumn = (ArrayList)stringColumns.get(Integer.valueOf(column));
-			if (stringColumn==null)
-				return string;
-			//IJ.log("getValueAsString2: "+column+ +row+" "+stringColumn.size());
-			if (row>=0 && row<stringColumn.size()) {
-				string = (String)stringColumn.get(row);
-				if (string!=null && string.contains("\n"))
-					string = string.replaceAll("\n", "\\\\n");
-				return string;
-			} else
-				return string;
+		double value = columns[column].get(row);
+		if (Double.isNaN(value) && row>=0 && row<columns[column].getStringRows()) {
+			String string = columns[column].getString(row);
+			if (string!=null && string.contains("\n"))
+				string = string.replaceAll("\n", "\\\\n");
+			return string;
 		} else {
 			int places = decimalPlaces[column];
 			if (places==AUTO_FORMAT)
@@ -827,11 +779,8 @@ public class ResultsTable implements Cloneable {
 		if ((column<0) || (column>=headings.length))
 			throw new IllegalArgumentException("Column out of range: "+column);
 		headings[column] = heading;
-		if (columns[column]==null) {
-			columns[column] = new double[maxRows];
-			if (NaNEmptyCells)
-				Arrays.fill(columns[column], Double.NaN);
-		}
+		if (columns[column]==null)
+			columns[column] = newColumn();
 		if (column>lastColumn) lastColumn = column;
 		headingSet = true;
 	}
@@ -921,6 +870,9 @@ public class ResultsTable implements Cloneable {
 		}
 		if (decimalPlaces<0) decimalPlaces = 0;
 		if (decimalPlaces>9) decimalPlaces = 9;
+		String s = format(n, decimalPlaces);
+		if (s!=null)
+			return s;
 		if (df==null) {
 			dfs = new DecimalFormatSymbols(Locale.US);
 			df = new DecimalFormat[10];
@@ -939,36 +891,59 @@ public class ResultsTable implements Cloneable {
 		return df[decimalPlaces].format(n);
 	}
 
+	private static final double[] powersOf10 = {1.0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+
+	/** Formats 'n' with the given number of decimal places like the DecimalFormats
+		of d2s, but much faster. Returns null if the rounding is not certain, i.e., if
+		the scaled value is too large or too close to a tie; d2s then uses DecimalFormat. */
+	private static String format(double n, int decimalPlaces) {
+		double scaled = Math.abs(n)*powersOf10[decimalPlaces];
+		if (!(scaled<1e15))
+			return null;
+		long rounded = (long)scaled;
+		double fraction = scaled - rounded;
+		double error = 1e-15*scaled;
+		if (Math.abs(fraction-0.5)<=error)
+			return null;
+		if (fraction>0.5)
+			rounded++;
+		char[] chars = new char[24];
+		int i = chars.length;
+		for (int digit=0; digit<decimalPlaces; digit++) {
+			chars[--i] = (char)('0'+rounded%10);
+			rounded /= 10;
+		}
+		if (decimalPlaces>0)
+			chars[--i] = '.';
+		do {
+			chars[--i] = (char)('0'+rounded%10);
+			rounded /= 10;
+		} while (rounded>0);
+		if (Double.doubleToRawLongBits(n)<0)
+			chars[--i] = '-';
+		return new String(chars, i, chars.length-i);
+	}
+
 	/** Deletes the specified row. */
-	public synchronized void deleteRow(int rowIndex) {
-		if (counter==0 || rowIndex<0 || rowIndex>counter-1)
-			return;
-		if (rowLabels!=null) {
-			rowLabels[rowIndex] = null;
-			for (int i=rowIndex; i<counter-1; i++)
-				rowLabels[i] = rowLabels[i+1];
-		}
-		for (int col=0; col<=lastColumn; col++) {
-			if (columns[col]!=null) {
-				for (int i=rowIndex; i<counter-1; i++)
-					columns[col][i] = columns[col][i+1];
-				ArrayList stringColumn = stringColumns!=null?(ArrayList)stringColumns.get(Integer.valueOf(col)):null;
-				if (stringColumn!=null && stringColumn.size()==counter) {
-					for (int i=rowIndex; i<counter-1; i++)
-						stringColumn.set(i,stringColumn.get(i+1));
-					stringColumn.remove(counter-1);
-				}
-			}
-		}
-		counter--;
+	public void deleteRow(int rowIndex) {
+		if (rowIndex>=0)
+			deleteRows(rowIndex, rowIndex);
 	}
 	
 	/** Deletes the specified rows. */
-	public void deleteRows(int index1, int index2) {
+	public synchronized void deleteRows(int index1, int index2) {
 		if (index1<0) index1=0;
+		if (index2>counter-1) index2=counter-1;
 		int n = index2 - index1 + 1;
-		for (int i=index1; i<index1+n; i++)
-			deleteRow(index1);
+		if (n<=0)
+			return;
+		if (rowLabels!=null)
+			rowLabels.deleteRows(index1, n, counter);
+		for (int col=0; col<=lastColumn; col++) {
+			if (columns[col]!=null)
+				columns[col].deleteRows(index1, n, counter);
+		}
+		counter -= n;
 	}
 	
 	/** Deletes the specified column. */
@@ -994,7 +969,6 @@ public class ResultsTable implements Cloneable {
 
 	public synchronized void reset() {
 		counter = 0;
-		maxRows = 100;
 		for (int i=0; i<maxColumns; i++) {
 			columns[i] = null;
 			headings[i] = null;
@@ -1003,7 +977,6 @@ public class ResultsTable implements Cloneable {
 		}
 		lastColumn = -1;
 		rowLabels = null;
-		stringColumns = null;
 		columnDeleted = false;
 	}
 	
@@ -1126,9 +1099,7 @@ public class ResultsTable implements Cloneable {
 		for (int i=0; i<=last; i++) {
 			//IJ.log(i+"  "+rt2.getColumn(i)+"  "+columns[i]+"  "+rt2.getColumnHeading(i)+"  "+getColumnHeading(i));
 			if (rt2.getColumn(i)!=null && columns[i]==null) {
-				columns[i] = new double[maxRows];
-				if (NaNEmptyCells)
-					Arrays.fill(columns[i], Double.NaN);
+				columns[i] = newColumn();
 				headings[i] = rt2.getColumnHeading(i);
 				if (i>lastColumn) lastColumn = i;
 			} else if (rt2.getColumn(i)==null && columns[i]!=null && !keep[i])
@@ -1137,7 +1108,7 @@ public class ResultsTable implements Cloneable {
 		if (rt2.getRowLabels()==null)
 			rowLabels = null;
 		else if (rt2.getRowLabels()!=null && rowLabels==null) {
-			rowLabels = new String[maxRows];
+			rowLabels = new ResultsColumn(false, null);
 			rowLabelHeading = "Label";
 		}
 		if (size()>0) show("Results");
@@ -1147,10 +1118,55 @@ public class ResultsTable implements Cloneable {
 		return maxColumns;
 	}
 	
-	String[] getRowLabels() {
+	ResultsColumn getRowLabels() {
 		return rowLabels;
 	}
 	
+	String getRowLabelHeading() {
+		return rowLabelHeading;
+	}
+	
+	boolean getNaNEmptyCells() {
+		return NaNEmptyCells;
+	}
+	
+	/** Returns 'true' if the rows are numbered from 0 (see showRowIndexes). */
+	boolean showRowIndexes() {
+		return showRowNumbers && baseRowNumber==0;
+	}
+	
+	/** Returns 'true' if showRowNumbers() was called, so that show() keeps the setting. */
+	boolean showRowNumbersSet() {
+		return showRowNumbersSet;
+	}
+	
+	void setRowLabels(String heading, ResultsColumn labels) {
+		rowLabelHeading = heading;
+		rowLabels = labels;
+	}
+	
+	ResultsColumn getResultsColumn(int column) {
+		return columns[column];
+	}
+	
+	/** Sets the contents and heading of a column, as read from a file. */
+	void setResultsColumn(int column, String heading, ResultsColumn data) {
+		while (column>=maxColumns)
+			addColumns();
+		columns[column] = data;
+		headings[column] = heading;
+		keep[column] = true;
+		if (column>lastColumn) lastColumn = column;
+	}
+	
+	int getDecimalPlaces(int column) {
+		return decimalPlaces[column];
+	}
+	
+	int getPrecision() {
+		return precision;
+	}
+	
 	/** Opens a tab or comma delimited text file and returns it 
 	* as a ResultsTable, without requiring a try/catch statement.
 	* Displays a file open dialog if 'path' is empty or null.
@@ -1168,10 +1184,12 @@ public class ResultsTable implements Cloneable {
 	
 	/** Opens a tab or comma delimited text file and returns it as a 
 	* ResultsTable. Displays a file open dialog if 'path' is empty or null.
+	* The file is read line by line, so the text of the whole table is
+	* never held in memory. Files ending with ".rtb" are opened as
+	* binary tables (see saveAsBinary).
 	* @see #open2(String)
 	*/
 	public static ResultsTable open(String path) throws IOException {
-		final String lineSeparator =  "\n";
 		if (path==null || path.equals("")) {
 			OpenDialog od = new OpenDialog("Open Table", "");
 			String dir = od.getDirectory();
@@ -1180,25 +1198,36 @@ public class ResultsTable implements Cloneable {
 				return null;
 			path = dir+name;
 		}
-		String text = IJ.openAsString(path);
-		if (text==null)
-			return null;
-		if (text.length()==0)
-			return new ResultsTable();
-		if (text.startsWith("Error:"))
+		if (path.toLowerCase(Locale.US).endsWith(ResultsTableFile.EXTENSION))
+			return ResultsTableFile.read(path);
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(path));
+		} catch (IOException e) {
 			throw new IOException("Error opening "+path);
+		}
 		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
-		String cellSeparator =  csv?",":"\t";
-		boolean commasReplaced = false;
-		if (csv && text.contains("\"")) {
-			text = replaceQuotedCommas(text);
-			commasReplaced = true;
+		try {
+			return read(new LineReader(reader, csv), path, csv);
+		} finally {
+			reader.close();
 		}
-		String commaSubstitute2 = ""+commaSubstitute;
-		String[] lines = text.split(lineSeparator);
-		if (lines.length==0 || (lines.length==1 && lines[0].length()==0))
+	}
+	
+	private static ResultsTable read(LineReader lines, String path, boolean csv) throws IOException {
+		String line0 = lines.next();
+		if (line0==null) {
+			if (lines.isEmpty())
+				return new ResultsTable();
 			throw new IOException("Table is empty or invalid");
-		String[] headings = lines[0].split(cellSeparator);
+		}
+		if (line0.startsWith("Error:"))
+			throw new IOException("Error opening "+path);
+		String cellSeparator =  csv?",":"\t";
+		line0 = lines.replaceQuotedCommas(line0);
+		String line1 = lines.replaceQuotedCommas(lines.next());
+		String commaSubstitute2 = ""+commaSubstitute;
+		String[] headings = line0.split(cellSeparator);
 		if (headings.length<1)
 			throw new IOException("This is not a tab or comma delimited text file.");
 		String zeroWidthSpace = "\uFEFF";
@@ -1217,18 +1246,18 @@ public class ResultsTable implements Cloneable {
 		int firstColumn = headings.length>0&&headings[0].equals(" ")?1:0;
 		for (int i=0; i<headings.length; i++) {
 			headings[i] = headings[i].trim();
-			if (commasReplaced) {
+			if (lines.commasReplaced()) {
 				if (headings[i].startsWith("\"") && headings[i].endsWith("\""))
 					headings[i] = headings[i].substring(1, headings[i].length()-1);
 			}
 		}
 		int firstRow = allNumericHeadings?0:1;
 		boolean labels = firstColumn==1 && headings[1].equals("Label");
-		int type=getTableType(path, lines, firstRow, cellSeparator);
+		int type=getTableType(path, line1, cellSeparator);
 		//if (!labels && (type==1||type==2))
 		//	labels = true;
 		int labelsIndex = (type==2)?0:1;
-		if (lines[0].startsWith("\t")) {
+		if (line0.startsWith("\t")) {
 			String[] headings2 = new String[headings.length+1];
 			headings2[0] = " ";
 			for (int i=0; i<headings.length; i++)
@@ -1237,7 +1266,7 @@ public class ResultsTable implements Cloneable {
 			firstColumn = 1;
 		}
 		ResultsTable rt = new ResultsTable();
-		if (firstRow>=lines.length) { //empty table?
+		if (firstRow==1 && line1==null) { //empty table?
 			for (int i=0; i<headings.length; i++) {
 				if (headings[i]==null) continue;
 				int col = rt.getColumnIndex(headings[i]);
@@ -1247,34 +1276,52 @@ public class ResultsTable implements Cloneable {
 			return rt;
 		}
 		rt.showRowNumbers(path.contains("Results"));
-		for (int i=firstRow; i<lines.length; i++) {
+		int[] columnIndexes = new int[headings.length];
+		Arrays.fill(columnIndexes, COLUMN_NOT_FOUND);
+		String line = firstRow==0?line0:line1;
+		String next = firstRow==0?line1:null;
+		while (line!=null) {
 			rt.incrementCounter();
-			String[] items = lines[i].split(cellSeparator);
+			String[] items = line.split(cellSeparator);
 			for (int j=firstColumn; j<headings.length; j++) {
 				if (j==labelsIndex&&labels)
 					rt.addLabel(headings[labelsIndex], items[labelsIndex]);
 				else {
+					int col = columnIndexes[j];
+					if (col==COLUMN_NOT_FOUND) {
+						col = rt.getColumnIndex(headings[j]);
+						if (col==COLUMN_NOT_FOUND)
+							col = rt.getFreeColumn(headings[j]);
+						columnIndexes[j] = col;
+					}
 					double defaultValue = -Double.MAX_VALUE;
 					double value = j<items.length?Tools.parseDouble(items[j], defaultValue):Double.NaN;
 					if (value==defaultValue) {
 						String item = j<items.length?items[j]:"";
-						if (commasReplaced) {
+						if (lines.commasReplaced()) {
 							item = item.replaceAll(commaSubstitute2, ",");
 							if (item.startsWith("\"") && item.endsWith("\""))
 								item = item.substring(1, item.length()-1);
 						}
-						rt.addValue(headings[j], item);
+						rt.addValue(col, Double.NaN);
+						rt.setValue(col, rt.size()-1, item);
 					} else
-						rt.addValue(headings[j], value);
+						rt.addValue(col, value);
+					rt.keep[col] = true;
 				}
 			}
+			if (next!=null) {
+				line = next;
+				next = null;
+			} else
+				line = lines.replaceQuotedCommas(lines.next());
 		}
 		return rt;
 	}
 	
-	private static int getTableType(String path, String[] lines, int firstRow, String cellSeparator) {
-		if (lines.length<2) return 0;
-		String[] items=lines[1].split(cellSeparator);
+	private static int getTableType(String path, String line1, String cellSeparator) {
+		if (line1==null) return 0;
+		String[] items=line1.split(cellSeparator);
 		int nonNumericCount = 0;
 		int nonNumericIndex = 0;
 		for (int i=0; i<items.length; i++) {
@@ -1283,7 +1330,6 @@ public class ResultsTable implements Cloneable {
 				nonNumericIndex = i;
 			}
 		}
-		boolean csv = path.endsWith(".csv");
 		if (nonNumericCount==0)
 			return 0; // assume this is all-numeric table
 		if (nonNumericCount==1 && nonNumericIndex==1)
@@ -1293,20 +1339,96 @@ public class ResultsTable implements Cloneable {
 		return 3;
 	}
 	
-	private static String replaceQuotedCommas(String text) {
-		char[] c = text.toCharArray();
-		boolean inQuotes = false;
-		for (int i=0; i<c.length; i++) {
-			if (c[i]=='"')
-				inQuotes = !inQuotes;
-			if (inQuotes && c[i]==',')
-				c[i] = commaSubstitute;
+	/** Reads the lines of a table. Empty lines at the end are skipped, and
+		commas within quotes of CSV files are replaced by 'commaSubstitute'. */
+	private static class LineReader {
+		private BufferedReader reader;
+		private boolean empty = true;
+		private int emptyLines;
+		private String pending;
+		private boolean csv, inQuotes, commasReplaced;
+
+		LineReader(BufferedReader reader, boolean csv) {
+			this.reader = reader;
+			this.csv = csv;
+		}
+
+		/** Returns the next line, or null at the end of the table. */
+		String next() throws IOException {
+			if (emptyLines>0) {
+				emptyLines--;
+				return "";
+			}
+			if (pending!=null) {
+				String line = pending;
+				pending = null;
+				return line;
+			}
+			String line = reader.readLine();
+			if (line!=null)
+				empty = false;
+			if (line==null || line.length()>0)
+				return line;
+			int n = 1;
+			while ((line=reader.readLine())!=null && line.length()==0)
+				n++;
+			if (line==null)
+				return null;
+			pending = line;
+			emptyLines = n-1;
+			return "";
+		}
+
+		/** Returns 'true' if the file has no characters. */
+		boolean isEmpty() {
+			return empty;
+		}
+
+		boolean commasReplaced() {
+			return commasReplaced;
+		}
+
+		String replaceQuotedCommas(String line) {
+			if (!csv || line==null || (!inQuotes && line.indexOf('"')<0))
+				return line;
+			commasReplaced = true;
+			char[] c = line.toCharArray();
+			for (int i=0; i<c.length; i++) {
+				if (c[i]=='"')
+					inQuotes = !inQuotes;
+				if (inQuotes && c[i]==',')
+					c[i] = commaSubstitute;
+			}
+			return new String(c);
 		}
-		return new String(c);
+	}
+	
+	/** Returns the values of a column of a binary table (".rtb" file). Only
+		this column is read from the file, using memory-mapped I/O.
+		Throws an IllegalArgumentException if the column is not found.
+		@see #saveAsBinary(String,boolean)
+	*/
+	public static double[] openColumn(String path, String column) throws IOException {
+		double[] values = ResultsTableFile.readColumn(path, column);
+		if (values==null)
+			throw new IllegalArgumentException("\""+column+"\" column not found");
+		return values;
+	}
+	
+	/** Saves this ResultsTable as a binary table. All values are saved
+		without rounding, the columns as int, float or double, whichever
+		holds their values exactly. With 'compress' true, the data blocks
+		are compressed with Deflate; this is slower but saves space with
+		repetitive data. Use open() or openColumn() to read the file.
+		The extension should be ".rtb".
+	*/
+	public void saveAsBinary(String path, boolean compress) throws IOException {
+		ResultsTableFile.write(this, path, compress);
 	}
 	
 	/** Saves this ResultsTable as a tab or comma delimited text file. The table
-	     is saved as a CSV (comma-separated values) file if 'path' ends with ".csv".
+	     is saved as a CSV (comma-separated values) file if 'path' ends with ".csv",
+	     and as a binary table (uncompressed) if it ends with ".rtb".
 	     Displays a file save dialog if 'path' is empty or null. Does nothing if the
 	     table is empty. Displays an error message and returns 'false' if there is
 	     an error. */
@@ -1338,6 +1460,12 @@ public class ResultsTable implements Cloneable {
 				return;
 			path = sd.getDirectory() + file;
 		}
+		if (path.toLowerCase(Locale.US).endsWith(ResultsTableFile.EXTENSION)) {
+			saveAsBinary(path, false);
+			if (renameWhenSaving)
+				title = new File(path).getName();
+			return;
+		}
 		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
 		delimiter = csv?',':'\t';
 		PrintWriter pw = null;
@@ -1352,8 +1480,17 @@ public class ResultsTable implements Cloneable {
 			pw.println(headings);
 		}
 		quoteCommas = csv?true:false;
-		for (int i=0; i<size(); i++)
-			pw.println(getRowAsString(i));
+		StringBuilder sb = new StringBuilder(200);
+		char[] chars = new char[200];
+		for (int i=0; i<size(); i++) {
+			sb.setLength(0);
+			appendRow(sb, i);
+			if (sb.length()>chars.length)
+				chars = new char[2*sb.length()];
+			sb.getChars(0, sb.length(), chars, 0);
+			pw.write(chars, 0, sb.length());
+			pw.println();
+		}
 		quoteCommas = false;
 		showRowNumbers = saveShowRowNumbers;
 		pw.close();
@@ -1383,29 +1520,13 @@ public class ResultsTable implements Cloneable {
 			rt2.headings = new String[headings.length];
 			for (int i=0; i<=lastColumn; i++)
 				rt2.headings[i] = headings[i];
-			rt2.columns = new double[columns.length][];
+			rt2.columns = new ResultsColumn[columns.length];
 			for (int i=0; i<=lastColumn; i++) {
-				if (columns[i]!=null) {
-					double[] data = new double[maxRows];
-					for (int j=0; j<counter; j++)
-						data[j] = columns[i][j];
-					rt2.columns[i] = data;
-				}
-			}
-			if (rowLabels!=null) {
-				rt2.rowLabels = new String[rowLabels.length];
-				for (int i=0; i<counter; i++)
-					rt2.rowLabels[i] = rowLabels[i];
-			}
-			if (stringColumns!=null) {
-				rt2.stringColumns = new Hashtable();
-				Set set = stringColumns.keySet();
-				for (Iterator i=set.iterator(); i.hasNext();) {
-					Integer column = (Integer)i.next();
-					ArrayList list = (ArrayList)stringColumns.get(column);
-					rt2.stringColumns.put(column, list.clone());
-				}
+				if (columns[i]!=null)
+					rt2.columns[i] = columns[i].duplicate();
 			}
+			if (rowLabels!=null)
+				rt2.rowLabels = rowLabels.duplicate();
 			return rt2;
 		}
 		catch (CloneNotSupportedException e) {return null;}
@@ -1435,7 +1556,7 @@ public class ResultsTable implements Cloneable {
 			sb.append(columnNames[i]);
 			sb.append('=');
 			if (columnIndices[i] < 0)
-				sb.append(rowLabels[0]==null ? "\"\"" : '"'+rowLabels[0]+'"');
+				sb.append(rowLabels.getString(0)==null ? "\"\"" : '"'+rowLabels.getString(0)+'"');
 			else
 				sb.append(Math.abs(getValueAsDouble(columnIndices[i], 0))); //avoid negative values since minus would be extra token
 			sb.append(',');
@@ -1475,7 +1596,7 @@ public class ResultsTable implements Cloneable {
 			for (int col=0; col<columnHeadings.length; col++) {
 				if (columnInUse[col]) {             // set variable values for used columns
 					if (columnIndices[col] < 0) {
-						String str = rowLabels[row];
+						String str = rowLabels.getString(row);
 						interp.setVariable(columnNames[col], str);
 					} else {
 						double v = getValueAsDouble(columnIndices[col], row);
@@ -1491,7 +1612,7 @@ public class ResultsTable implements Cloneable {
 				if (columnInUse[col]) {             // set new values for previous columns
 					if (columnIndices[col] < 0) {
 						String str = interp.getVariableAsString(columnNames[col]);
-						rowLabels[row] = str;
+						rowLabels.setString(row, str);
 					} else {
 						double v = interp.getVariable(columnNames[col]);
 						setValue(columnIndices[col], row, v);
@@ -1590,47 +1711,32 @@ public class ResultsTable implements Cloneable {
 			throw new IllegalArgumentException("Column not found");
 
 		// pad short string columns with "NaN" to avoid "holes" after sorting
-		if (stringColumns!=null) {
-		    for (Object c : stringColumns.values()) {
-			ArrayList sc = (ArrayList) c;
-		        for (int i = sc.size(); i < size(); i++)  sc.add ("NaN");
-		    }
+		for (int i = 0; i <= lastColumn; i++) {
+			if (columns[i]!=null && columns[i].getStringRows()>0)
+				columns[i].padStrings(size(), "NaN");
 		}
 		
 		ComparableEntry[] ces = new ComparableEntry[size()];
-		ArrayList stringColumn = null;
-		if (stringColumns!=null)
-		    stringColumn = (ArrayList) stringColumns.get (Integer.valueOf(col));
+		ResultsColumn sortColumn = columns[col];
+		boolean strings = sortColumn!=null && sortColumn.getStringRows()>0;
 		for (int i = 0; i < size(); i++) {
 		    ComparableEntry ce = new ComparableEntry();
 		    ce.index = i;
-		    ce.dValue = columns[col][i];
-		    if (stringColumn != null)
-			ce.sValue = (String) stringColumn.get (i);
+		    ce.dValue = sortColumn!=null?sortColumn.get(i):0.0;
+		    if (strings)
+			ce.sValue = sortColumn.getString(i);
 		    ces[i] = ce;
 		}
 		Arrays.sort(ces);
-		// copy sorted values back into rt from a duplicate
-		ResultsTable rt2 = (ResultsTable)clone();
-		for (int i = 0; i <= getLastColumn(); i++) {
-			if (columns[i]==null)
-				continue;
-		    for (int j = 0; j < size(); j++)
-				columns[i][j] = rt2.columns[i][ces[j].index];
-		    ArrayList sc = null;
-		    Map scs =  stringColumns;
-		    	if (scs != null)
-			sc = (ArrayList) scs.get (Integer.valueOf(i));
-		    if (sc != null) {
-				ArrayList sc2 = (ArrayList) rt2.stringColumns.get (Integer.valueOf(i));
-				for (int j = 0; j < size(); j++)
-			    	sc.set (j, sc2.get (ces[j].index));
-		    }
-		}
-		if (rowLabels != null) {
-			for (int i = 0; i < size(); i++)
-				rowLabels[i] =  rt2.rowLabels[ces[i].index];
-		}
+		int[] order = new int[size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = ces[i].index;
+		for (int i = 0; i <= lastColumn; i++) {
+			if (columns[i]!=null)
+				columns[i].reorder(order, size());
+		}
+		if (rowLabels != null)
+			rowLabels.reorder(order, size());
 	}
 	
 	class ComparableEntry implements Comparable<ComparableEntry>  {
@@ -0,0 +1,404 @@
+package ij.measure;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.*;
+
+/** Reads and writes ResultsTables in a binary column format (".rtb" files).
+	All numbers are little-endian. The file starts with "IJRT" and the version,
+	followed by the data blocks, a directory, the offset of the directory and
+	"IJRT" again. The values of a column are stored in blocks of BLOCK_ROWS rows
+	as int32, float32 or float64, whichever holds all values exactly. Columns
+	with strings (and the row labels) also have a block with the distinct
+	strings and blocks of int32 indexes into it. A block may be compressed
+	with Deflate. The directory starts with the number of rows and columns,
+	the precision and the table flags (row numbers, NaN empty cells), and
+	has, for each column, the heading, the type, the decimal places and the
+	position of all blocks, so a single column is read by reading only its
+	blocks.
+*/
+class ResultsTableFile {
+	static final String EXTENSION = ".rtb";
+	private static final int MAGIC = 0x54524A49; // "IJRT"
+	private static final int VERSION = 1;
+	private static final int BLOCK_ROWS = 1<<16;
+	private static final int VALUES=0, LABELS=1; // kinds of columns
+	private static final int ROW_NUMBERS=1, NAN_EMPTY_CELLS=2, ROW_INDEXES=4, ROW_NUMBERS_SET=8; // table flags
+
+	private FileChannel channel;
+	private long position;
+	private Deflater deflater;
+	private boolean deflate; // false if the first block of the column did not compress well
+	private byte[] deflated;
+	private ByteBuffer directory;
+
+	/** Saves 'rt' as a binary table; with 'compress' true, the blocks are
+		compressed with Deflate where this makes them smaller. */
+	static void write(ResultsTable rt, String path, boolean compress) throws IOException {
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			new ResultsTableFile().write(rt, out.getChannel(), compress);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void write(ResultsTable rt, FileChannel channel, boolean compress) throws IOException {
+		this.channel = channel;
+		if (compress)
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		ByteBuffer header = newBuffer(8);
+		header.putInt(MAGIC).putInt(VERSION);
+		header.flip();
+		writeFully(header);
+		int rows = rt.size();
+		int nColumns = 0;
+		for (int i=0; i<=rt.getLastColumn(); i++) {
+			if (rt.columnExists(i))
+				nColumns++;
+		}
+		ResultsColumn labels = rt.getRowLabels();
+		if (labels!=null)
+			nColumns++;
+		directory = newBuffer(1024);
+		int flags = 0;
+		if (rt.showRowNumbers()) flags |= ROW_NUMBERS;
+		if (rt.getNaNEmptyCells()) flags |= NAN_EMPTY_CELLS;
+		if (rt.showRowIndexes()) flags |= ROW_INDEXES;
+		if (rt.showRowNumbersSet()) flags |= ROW_NUMBERS_SET;
+		directory.putInt(rows).putInt(nColumns).putShort((short)rt.getPrecision());
+		directory.put((byte)flags);
+		if (labels!=null)
+			writeColumn(rt.getRowLabelHeading(), LABELS, labels, ResultsTable.AUTO_FORMAT, rows);
+		for (int i=0; i<=rt.getLastColumn(); i++) {
+			if (rt.columnExists(i))
+				writeColumn(rt.getColumnHeading(i), VALUES, rt.getResultsColumn(i), rt.getDecimalPlaces(i), rows);
+		}
+		long directoryOffset = position;
+		directory.flip();
+		writeFully(directory);
+		ByteBuffer trailer = newBuffer(12);
+		trailer.putLong(directoryOffset).putInt(MAGIC);
+		trailer.flip();
+		writeFully(trailer);
+		if (deflater!=null)
+			deflater.end();
+	}
+
+	private void writeColumn(String heading, int kind, ResultsColumn column, int decimalPlaces, int rows) throws IOException {
+		putString(heading);
+		deflate = deflater!=null;
+		int type = kind==LABELS?0:column.getType(rows);
+		ensureDirectory(8);
+		directory.put((byte)kind).put((byte)type).putShort((short)decimalPlaces);
+		if (kind==VALUES) {
+			int size = type==ResultsColumn.DOUBLE?8:4;
+			ByteBuffer buffer = newBuffer(Math.min(rows, BLOCK_ROWS)*size);
+			directory.putInt(nBlocks(rows));
+			for (int row0=0; row0<rows; row0+=BLOCK_ROWS) {
+				int row1 = Math.min(rows, row0+BLOCK_ROWS);
+				buffer.clear();
+				if (type==ResultsColumn.INT) {
+					for (int row=row0; row<row1; row++)
+						buffer.putInt((int)column.get(row));
+				} else if (type==ResultsColumn.FLOAT) {
+					for (int row=row0; row<row1; row++)
+						buffer.putFloat((float)column.get(row));
+				} else {
+					for (int row=row0; row<row1; row++)
+						buffer.putDouble(column.get(row));
+				}
+				writeBlock(buffer);
+			}
+		}
+		String[] dictionary = column.getDictionary();
+		int stringRows = dictionary!=null?Math.min(rows, column.getStringRows()):0;
+		if (kind==LABELS && dictionary==null) {
+			dictionary = new String[] {null};
+			stringRows = 0;
+		}
+		ensureDirectory(4);
+		directory.putInt(stringRows);
+		if (dictionary==null || (kind==VALUES && stringRows==0))
+			return; // no strings, no dictionary (the reader relies on this)
+		deflate = deflater!=null;
+		ByteBuffer strings = newBuffer(4+dictionary.length*8);
+		strings.putInt(dictionary.length);
+		for (int i=0; i<dictionary.length; i++) {
+			byte[] bytes = dictionary[i]!=null?dictionary[i].getBytes("UTF-8"):null;
+			int length = bytes!=null?bytes.length:0;
+			if (strings.remaining()<4+length)
+				strings = grow(strings, 4+length);
+			strings.putInt(bytes!=null?length:-1);
+			if (bytes!=null)
+				strings.put(bytes);
+		}
+		writeBlock(strings);
+		deflate = deflater!=null;
+		ByteBuffer buffer = newBuffer(Math.min(stringRows, BLOCK_ROWS)*4);
+		ensureDirectory(4);
+		directory.putInt(nBlocks(stringRows));
+		for (int row0=0; row0<stringRows; row0+=BLOCK_ROWS) {
+			int row1 = Math.min(stringRows, row0+BLOCK_ROWS);
+			buffer.clear();
+			for (int row=row0; row<row1; row++)
+				buffer.putInt(column.getCode(row));
+			writeBlock(buffer);
+		}
+	}
+
+	/** Writes the bytes up to the position of 'buffer' as a block and
+		adds its offset, length and stored length to the directory. */
+	private void writeBlock(ByteBuffer buffer) throws IOException {
+		int length = buffer.position();
+		buffer.flip();
+		int stored = length;
+		if (deflate && length>0) {
+			if (deflated==null || deflated.length<length)
+				deflated = new byte[length];
+			deflater.reset();
+			deflater.setInput(buffer.array(), buffer.arrayOffset(), length);
+			deflater.finish();
+			int n = 0;
+			while (!deflater.finished() && n<length)
+				n += deflater.deflate(deflated, n, length-n);
+			if (deflater.finished() && n<length) {
+				stored = n;
+				buffer = ByteBuffer.wrap(deflated, 0, n);
+			}
+			if (stored>0.9*length)
+				deflate = false;
+		}
+		ensureDirectory(16);
+		directory.putLong(position).putInt(length).putInt(stored);
+		writeFully(buffer);
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer);
+	}
+
+	private void putString(String s) throws IOException {
+		byte[] bytes = s!=null?s.getBytes("UTF-8"):null;
+		ensureDirectory(4+(bytes!=null?bytes.length:0));
+		directory.putInt(bytes!=null?bytes.length:-1);
+		if (bytes!=null)
+			directory.put(bytes);
+	}
+
+	private void ensureDirectory(int n) {
+		if (directory.remaining()<n)
+			directory = grow(directory, n);
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer, int n) {
+		ByteBuffer buffer2 = newBuffer(Math.max(2*buffer.capacity(), buffer.position()+n));
+		buffer.flip();
+		buffer2.put(buffer);
+		return buffer2;
+	}
+
+	private static ByteBuffer newBuffer(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int nBlocks(int rows) {
+		return (rows+BLOCK_ROWS-1)/BLOCK_ROWS;
+	}
+
+	/** Opens a binary table. */
+	static ResultsTable read(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			ResultsTableFile reader = new ResultsTableFile();
+			reader.channel = file.getChannel();
+			return reader.read();
+		} finally {
+			file.close();
+		}
+	}
+
+	/** Returns the values of one column of a binary table, or null if the
+		file has no column with this heading. Only the blocks of this column
+		are read. */
+	static double[] readColumn(String path, String heading) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			ResultsTableFile reader = new ResultsTableFile();
+			reader.channel = file.getChannel();
+			int rows = reader.readDirectory();
+			int nColumns = reader.directory.getInt();
+			reader.directory.getShort();
+			reader.directory.get();
+			for (int i=0; i<nColumns; i++) {
+				String heading2 = reader.getString();
+				int kind = reader.directory.get();
+				if (kind==VALUES && heading.equals(heading2)) {
+					ResultsColumn column = new ResultsColumn(false, "");
+					reader.readColumn(kind, rows, column);
+					return column.getValues(rows);
+				}
+				reader.readColumn(kind, rows, null);
+			}
+			return null;
+		} finally {
+			file.close();
+		}
+	}
+
+	private ResultsTable read() throws IOException {
+		int rows = readDirectory();
+		int nColumns = directory.getInt();
+		int precision = directory.getShort();
+		int flags = directory.get();
+		boolean nanEmptyCells = (flags&NAN_EMPTY_CELLS)!=0;
+		ResultsTable rt = new ResultsTable(Integer.valueOf(rows));
+		rt.setPrecision(precision);
+		rt.setNaNEmptyCells(nanEmptyCells);
+		if ((flags&ROW_NUMBERS_SET)!=0)
+			rt.showRowNumbers((flags&ROW_NUMBERS)!=0);
+		if ((flags&ROW_INDEXES)!=0)
+			rt.showRowIndexes(true);
+		int index = 0;
+		for (int i=0; i<nColumns; i++) {
+			String heading = getString();
+			int kind = directory.get();
+			if (kind==LABELS) {
+				ResultsColumn labels = new ResultsColumn(false, null);
+				readColumn(kind, rows, labels);
+				rt.setRowLabels(heading, labels);
+			} else {
+				ResultsColumn column = new ResultsColumn(nanEmptyCells, "");
+				int decimalPlaces = readColumn(kind, rows, column);
+				rt.setResultsColumn(index, heading, column);
+				rt.setDecimalPlaces(index, decimalPlaces);
+				index++;
+			}
+		}
+		return rt;
+	}
+
+	/** Reads the directory entry of a column after its heading and kind and,
+		if 'column' is not null, its blocks. Returns the decimal places. */
+	private int readColumn(int kind, int rows, ResultsColumn column) throws IOException {
+		int type = directory.get();
+		int decimalPlaces = directory.getShort();
+		if (kind==VALUES) {
+			int nBlocks = directory.getInt();
+			for (int b=0; b<nBlocks; b++) {
+				ByteBuffer block = readBlock(column!=null);
+				if (block==null)
+					continue;
+				int row0 = b*BLOCK_ROWS;
+				int row1 = Math.min(rows, row0+BLOCK_ROWS);
+				if (type==ResultsColumn.INT) {
+					for (int row=row0; row<row1; row++)
+						column.set(row, block.getInt());
+				} else if (type==ResultsColumn.FLOAT) {
+					for (int row=row0; row<row1; row++)
+						column.set(row, block.getFloat());
+				} else {
+					for (int row=row0; row<row1; row++)
+						column.set(row, block.getDouble());
+				}
+			}
+		}
+		int stringRows = directory.getInt();
+		if (kind==VALUES && stringRows==0)
+			return decimalPlaces; // no strings, no dictionary
+		ByteBuffer block = readBlock(column!=null);
+		if (column!=null) {
+			String[] dictionary = new String[block.getInt()];
+			for (int i=0; i<dictionary.length; i++) {
+				int length = block.getInt();
+				if (length>=0) {
+					byte[] bytes = new byte[length];
+					block.get(bytes);
+					dictionary[i] = new String(bytes, "UTF-8");
+				}
+			}
+			column.setDictionary(dictionary, stringRows);
+		}
+		int nBlocks = directory.getInt();
+		for (int b=0; b<nBlocks; b++) {
+			block = readBlock(column!=null);
+			if (block==null)
+				continue;
+			int row1 = Math.min(stringRows, (b+1)*BLOCK_ROWS);
+			for (int row=b*BLOCK_ROWS; row<row1; row++)
+				column.setCode(row, block.getInt());
+		}
+		return decimalPlaces;
+	}
+
+	/** Checks the file and reads the directory; returns the number of rows. */
+	private int readDirectory() throws IOException {
+		long size = channel.size();
+		if (size<20)
+			throw new IOException("Not a binary table");
+		ByteBuffer header = readBytes(0, 8);
+		ByteBuffer trailer = readBytes(size-12, 12);
+		long offset = trailer.getLong();
+		if (header.getInt()!=MAGIC || trailer.getInt()!=MAGIC || offset<8 || offset>size-12)
+			throw new IOException("Not a binary table");
+		int version = header.getInt();
+		if (version>VERSION)
+			throw new IOException("Unsupported binary table version: "+version);
+		directory = readBytes(offset, (int)(size-12-offset));
+		return directory.getInt();
+	}
+
+	/** Reads the position of a block from the directory and returns its
+		contents, or null if 'read' is false. */
+	private ByteBuffer readBlock(boolean read) throws IOException {
+		long offset = directory.getLong();
+		int length = directory.getInt();
+		int stored = directory.getInt();
+		if (!read)
+			return null;
+		ByteBuffer block = readBytes(offset, stored);
+		if (stored==length)
+			return block;
+		byte[] input = block.array();
+		byte[] output = new byte[length];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(input);
+			int n = 0;
+			while (n<length && !inflater.finished())
+				n += inflater.inflate(output, n, length-n);
+			if (n<length)
+				throw new IOException("Binary table: block is truncated");
+		} catch (DataFormatException e) {
+			throw new IOException("Binary table: "+e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(output).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** Reads 'length' bytes at 'offset' into a heap buffer. The file is not
+		memory-mapped, since a mapping would keep the file locked (on Windows)
+		until the buffer is garbage collected. */
+	private ByteBuffer readBytes(long offset, int length) throws IOException {
+		ByteBuffer buffer = newBuffer(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset+buffer.position())<0)
+				throw new IOException("Binary table: file is truncated");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private String getString() throws IOException {
+		int length = directory.getInt();
+		if (length<0)
+			return null;
+		byte[] bytes = new byte[length];
+		directory.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+}
@@ -414,7 +414,14 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 	/** Returns an ImageProcessor for the specified slice of this virtual stack (if it is one)
      *  where {@literal 1<=n<=nslices}. Returns null if no virtual stack or no slices or error reading the frame.
 	 */
-	public synchronized ImageProcessor getProcessor(int n) {
+	public ImageProcessor getProcessor(int n) {
+		if (frameInfos==null || frameInfos.size()==0 || raFilePath==null)
+			return null;
+		return getCachedProcessor(n);
+	}
+
+	/** Reads the specified frame from the AVI file. */
+	protected synchronized ImageProcessor readProcessor(int n) {
 		if (frameInfos==null || frameInfos.size()==0 || raFilePath==null)
 			return null;
 		n = translate(n); // update n for hyperstacks not in default CZT order
@@ -471,6 +478,7 @@ public class AVI_Reader extends VirtualStack implements PlugIn {
 		if (n<1 || n>frameInfos.size())
 			throw new IllegalArgumentException("Argument out of range: "+n);
 		frameInfos.removeElementAt(n-1);
+		VirtualStackCache.remove(this);
 	}
 
 	/** Parameters dialog, returns false on cancel */
@@ -9,7 +9,9 @@ import java.awt.event.*;
 import java.io.*;
 
 /** This plugin implements the File/ /Convert command, 
-	which converts the images in a folder to a specified format. */
+	which converts the images in a folder to a specified format.
+	With more than one "Parallel threads", images are read, converted
+	and saved in parallel. */
 	public class BatchConverter implements PlugIn, ActionListener {
 		private static final String[] formats = {"TIFF", "8-bit TIFF", "JPEG", "GIF", "PNG", "PGM", "BMP", "FITS", "Text Image", "ZIP", "Raw"};
 		private static String format = formats[0];
@@ -17,6 +19,7 @@ import java.io.*;
 		private static boolean useBioFormats;
 		private static int interpolationMethod = ImageProcessor.BILINEAR;
 		private static boolean averageWhenDownSizing;
+		private static int threads = (int)Prefs.get("batch.convert.threads", 1);
 		private String[] methods = ImageProcessor.getInterpolationMethods();
 		private Button input, output;
 		private TextField inputDir, outputDir;
@@ -47,6 +50,14 @@ import java.io.*;
 		}
 		String[] list = (new File(inputPath)).list();
 		IJ.resetEscape();
+		Prefs.set("batch.convert.threads", threads);
+		if (threads>1) {
+			convertInParallel(inputPath, outputPath, list);
+			IJ.showProgress(1,1);
+			Prefs.set("batch.input", inputDir.getText());
+			Prefs.set("batch.output", outputDir.getText());
+			return;
+		}
 		Opener opener = new Opener();
 		opener.setSilentMode(true);
 		long t0 = System.currentTimeMillis();
@@ -73,21 +84,7 @@ import java.io.*;
 				IJ.log(reader+" returned null: "+path);
 				continue;
 			}
-			if (scale!=1.0) {
-				int width = (int)(scale*imp.getWidth());
-				int height = (int)(scale*imp.getHeight());
-				ImageProcessor ip = imp.getProcessor();
-				ip.setInterpolationMethod(interpolationMethod);
-				ip.setProgressBar(null);
-				imp.setProcessor(null, ip.resize(width,height,averageWhenDownSizing));
-				ip = null;
-			}
-			if (format.equals("8-bit TIFF") || format.equals("GIF")) {
-				if (imp.getBitDepth()==24)
-					IJ.run(imp, "8-bit Color", "number=256");
-				else
-					IJ.run(imp, "8-bit", "");
-			}
+			convert(imp);
 			IJ.saveAs(imp, format, outputPath+list[i]);
 			imp.close();
 			imp = null;
@@ -97,6 +94,59 @@ import java.io.*;
 		Prefs.set("batch.input", inputDir.getText());
 		Prefs.set("batch.output", outputDir.getText());
 	}
+
+	/** Opens the files using a reader thread, scales and converts them using
+		'threads' threads and saves them on this thread. */
+	private void convertInParallel(final String inputPath, final String outputPath, final String[] list) {
+		BatchPipeline pipeline = new BatchPipeline(list, threads) {
+			ImagePlus open(int i) {
+				String path = inputPath + list[i];
+				if ((new File(path)).isDirectory())
+					return null;
+				if (list[i].startsWith(".")||list[i].endsWith(".avi")||list[i].endsWith(".AVI"))
+					return null;
+				Opener opener = new Opener();
+				opener.setSilentMode(true);
+				ImagePlus imp = useBioFormats?Opener.openUsingBioFormats(path):opener.openImage(inputPath,list[i]);
+				if (imp==null) {
+					String reader = useBioFormats?"Bio-Formats not found or":"IJ.openImage()";
+					IJ.log(reader+" returned null: "+path);
+				}
+				return imp;
+			}
+			ImagePlus process(ImagePlus imp, int i, int index) {
+				convert(imp);
+				return imp;
+			}
+			void save(ImagePlus imp, int i) {
+				IJ.saveAs(imp, format, outputPath+list[i]);
+			}
+		};
+		long t0 = System.currentTimeMillis();
+		IJ.redirectErrorMessages(true);
+		int count = pipeline.run();
+		IJ.redirectErrorMessages(false);
+		String errors = pipeline.getErrorCount()>0?", "+pipeline.getErrorCount()+" errors (see Log window)":"";
+		IJ.showStatus(count+" files converted in "+IJ.d2s((System.currentTimeMillis()-t0)/1000.0,2)+" seconds"+errors);
+	}
+
+	/** Scales 'imp' and converts it to 8-bits if required by the output format. */
+	private void convert(ImagePlus imp) {
+		if (scale!=1.0) {
+			int width = (int)(scale*imp.getWidth());
+			int height = (int)(scale*imp.getHeight());
+			ImageProcessor ip = imp.getProcessor();
+			ip.setInterpolationMethod(interpolationMethod);
+			ip.setProgressBar(null);
+			imp.setProcessor(null, ip.resize(width,height,averageWhenDownSizing));
+		}
+		if (format.equals("8-bit TIFF") || format.equals("GIF")) {
+			if (imp.getBitDepth()==24)
+				IJ.run(imp, "8-bit Color", "number=256");
+			else
+				IJ.run(imp, "8-bit", "");
+		}
+	}
 			
 	private boolean showDialog() {
 		gd = new GenericDialog("Batch Convert");
@@ -107,6 +157,7 @@ import java.io.*;
 		//gd.addStringField("Height (pixels): ", height==0?"\u2014":""+height, 6);
 		gd.addNumericField("Scale factor:", scale, 2);
 		gd.addCheckbox("Average when downsizing", averageWhenDownSizing);
+		gd.addNumericField("Parallel threads:", threads, 0);
 		//gd.addCheckbox("Read images using Bio-Formats", useBioFormats);
 		gd.setOKLabel("Convert");
 		gd.showDialog();
@@ -117,6 +168,7 @@ import java.io.*;
 		//height = (int)Tools.parseDouble(gd.getNextString(), 0.0);
 		scale = gd.getNextNumber();
 		averageWhenDownSizing = gd.getNextBoolean();
+		threads = Math.max((int)gd.getNextNumber(), 1);
 		//useBioFormats = gd.getNextBoolean();
 		return true;
 	}
@@ -0,0 +1,171 @@
+package ij.plugin;
+import ij.*;
+import ij.util.ThreadUtil;
+import java.util.concurrent.*;
+
+/** Runs the open, process and save steps of a batch operation as a pipeline:
+	a reader thread opens the files in order, 'threads' worker threads process
+	the images and the calling thread saves them. The queues between the
+	stages are bounded, so only a few images are in memory at a time. The
+	worker threads are marked with ThreadUtil.setParallelThread. Output
+	is saved under names derived from the input file names, so the result does
+	not depend on which worker finishes first. Errors are logged per file.
+	Used by BatchProcessor and BatchConverter.
+*/
+abstract class BatchPipeline {
+	private String[] list;
+	private int threads;
+	private ArrayBlockingQueue opened, processed;
+	private volatile boolean canceled;
+	private int nErrors;
+
+	BatchPipeline(String[] list, int threads) {
+		this.list = list;
+		this.threads = Math.max(threads, 1);
+		opened = new ArrayBlockingQueue(2*this.threads);
+		processed = new ArrayBlockingQueue(2*this.threads);
+	}
+
+	/** Opens list[i], or returns null to skip it. Called by the reader thread. */
+	abstract ImagePlus open(int i);
+
+	/** Processes an image and returns the image to save, or null if there
+		is nothing to save. 'index' is the number of images opened before
+		this one. Called by the worker threads. */
+	abstract ImagePlus process(ImagePlus imp, int i, int index) throws Exception;
+
+	/** Saves the result for list[i]. Called by the thread that called run(). */
+	abstract void save(ImagePlus imp, int i);
+
+	/** Runs the pipeline and returns the number of files processed. */
+	int run() {
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "Batch reader");
+		reader.start();
+		for (int t=0; t<threads; t++) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "Batch worker "+(t+1));
+			worker.start();
+		}
+		int count = 0;
+		int finished = 0;
+		while (finished<threads) {
+			Item item = take(processed);
+			if (item==null)
+				break;
+			if (item.i<0) { // a worker has finished
+				finished++;
+				continue;
+			}
+			if (item.imp!=null) {
+				try {
+					save(item.imp, item.i);
+				} catch(Throwable e) {
+					error(item.i, e);
+				}
+				item.imp.changes = false;
+				item.imp.close();
+			}
+			count++;
+			IJ.showProgress(count, list.length);
+			if (IJ.escapePressed())
+				canceled = true;
+		}
+		try {
+			reader.join();
+		} catch (InterruptedException e) {}
+		return count;
+	}
+
+	private void read() {
+		int index = 0;
+		for (int i=0; i<list.length && !canceled; i++) {
+			ImagePlus imp = null;
+			try {
+				imp = open(i);
+			} catch(Throwable e) {
+				error(i, e);
+			}
+			if (imp!=null)
+				put(opened, new Item(imp, i, index++));
+		}
+		for (int t=0; t<threads; t++)
+			put(opened, new Item(null, -1, -1));
+	}
+
+	private void work() {
+		ThreadUtil.setParallelThread(true); // batch macros keep their state per thread; filters use one thread
+		while (true) {
+			Item item = take(opened);
+			if (item==null || item.i<0)
+				break;
+			ImagePlus imp2 = null;
+			if (!canceled) {
+				try {
+					imp2 = process(item.imp, item.i, item.index);
+				} catch(Throwable e) {
+					String msg = e.getMessage();
+					if (e instanceof RuntimeException && Macro.MACRO_CANCELED.equals(msg))
+						canceled = true;
+					else
+						error(item.i, e);
+				}
+			}
+			if (imp2!=item.imp) {
+				item.imp.changes = false;
+				item.imp.close();
+			}
+			put(processed, new Item(imp2, item.i, item.index));
+		}
+		put(processed, new Item(null, -1, -1));
+	}
+
+	private void put(ArrayBlockingQueue queue, Item item) {
+		try {
+			queue.put(item);
+		} catch (InterruptedException e) {}
+	}
+
+	private Item take(ArrayBlockingQueue queue) {
+		try {
+			return (Item)queue.take();
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
+
+	private synchronized void error(int i, Throwable e) {
+		nErrors++;
+		String msg = e.getMessage();
+		if (msg==null || msg.equals(""))
+			msg = ""+e;
+		IJ.log(list[i]+": "+msg);
+	}
+
+	/** Returns the number of files that could not be processed or saved. */
+	int getErrorCount() {
+		return nErrors;
+	}
+
+	boolean wasCanceled() {
+		return canceled;
+	}
+
+	private static class Item {
+		ImagePlus imp;
+		int i, index;
+
+		Item(ImagePlus imp, int i, int index) {
+			this.imp = imp;
+			this.i = i;
+			this.index = index;
+		}
+	}
+
+}
@@ -9,8 +9,11 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.Vector;
+import java.util.Hashtable;
 
-/** This plugin implements the File/Batch/Macro and File/Batch/Virtual Stack commands. */
+/** This plugin implements the File/Batch/Macro and File/Batch/Virtual Stack commands.
+	With more than one thread, File/Batch/Macro opens, processes and saves images
+	in parallel; the macro then must only work on the image it is given. */
 	public class BatchProcessor implements PlugIn, ActionListener, ItemListener, Runnable {
 		private static final String MACRO_FILE_NAME = "BatchMacro.ijm";
 		private static final String[] formats = {"TIFF", "8-bit TIFF", "JPEG", "GIF", "PNG", "PGM", "BMP", "FITS", "Text Image", "ZIP", "Raw"};
@@ -60,6 +63,8 @@ import java.util.Vector;
 		private boolean errorDisplayed;
 		private String filter;
 		private static boolean saveOutput = true;
+		private static Hashtable dontSave = new Hashtable(); // worker threads that called saveOutput(false)
+		private static int threads = (int)Prefs.get("batch.threads", 1);
 
 	public void run(String arg) {
 		if (arg.equals("stack")) {
@@ -113,6 +118,8 @@ import java.util.Vector;
 			Prefs.set("batch.input", inputDir.getText());
 		Prefs.set("batch.output", outputDir.getText());
 		Prefs.set("batch.format", format);
+		if (virtualStack==null)
+			Prefs.set("batch.threads", threads);
 		macro = gd.getTextArea1().getText();
 		if (!macro.equals(""))
 			IJ.saveString(macro, IJ.getDirectory("macros")+MACRO_FILE_NAME);
@@ -126,8 +133,10 @@ import java.util.Vector;
 		gd.addChoice("Output_format:", formats, format);
 		gd.setInsets(0, 0, 5);
 		gd.addChoice("Add macro code:", code, code[0]);
-		if (virtualStack==null)
+		if (virtualStack==null) {
 			gd.addStringField("File name contains:", "", 10);
+			gd.addNumericField("Parallel threads:", threads, 0);
+		}
 		gd.setInsets(15, 10, 0);
 		Dimension screen = IJ.getScreenSize();
 		gd.addTextAreas(macro, null, screen.width<=600?10:15, 60);
@@ -140,8 +149,10 @@ import java.util.Vector;
 		choice.addItemListener(this);
 		gd.showDialog();
 		format = gd.getNextChoice();
-		if (virtualStack==null)
+		if (virtualStack==null) {
 			filter = gd.getNextString();
+			threads = Math.max((int)gd.getNextNumber(), 1);
+		}
 		macro = gd.getNextText();
 		return !gd.wasCanceled();
 	}
@@ -169,7 +180,7 @@ import java.util.Vector;
 				}
 				IJ.saveAs(imp, format, outputPath+pad(i));
 			}
-			saveOutput = true;
+			saveOutput(true);
 			imp.close();
 		}
 		if (outputPath!=null && !outputPath.equals(""))
@@ -189,6 +200,10 @@ import java.util.Vector;
 		list = FolderOpener.getFilteredList(list, filter, "Batch Processor");
 		if (list==null)
 			return;
+		if (threads>1) {
+			processFolderInParallel(inputPath, outputPath, list);
+			return;
+		}
 		int index = 0;
 		int startingCount = WindowManager.getImageCount();
 		for (int i=0; i<list.length; i++) {
@@ -228,11 +243,69 @@ import java.util.Vector;
 				else
 					IJ.saveAs(imp, format, outputPath+list[i]);
 			}
-			saveOutput = true;
+			saveOutput(true);
 			imp.close();
 		}
 	}
 	
+	/** Opens the files using a reader thread, runs the macro on 'threads'
+		threads and saves the output on this thread. Errors are logged
+		for each file and do not stop the other files from being processed. */
+	void processFolderInParallel(final String inputPath, final String outputPath, final String[] list) {
+		final String macro = this.macro;
+		BatchPipeline pipeline = new BatchPipeline(list, threads) {
+			ImagePlus open(int i) {
+				String path = inputPath + list[i];
+				if ((new File(path)).isDirectory())
+					return null;
+				if (list[i].startsWith(".")||list[i].endsWith(".avi")||list[i].endsWith(".AVI") || list[i].equals("Thumbs.db"))
+					return null;
+				ImagePlus imp = IJ.openImage(path);
+				if (imp==null)
+					imp = Opener.openUsingBioFormats(path);
+				if (imp==null)
+					IJ.log("openImage() and openUsingBioFormats() returned null: "+path);
+				return imp;
+			}
+			ImagePlus process(ImagePlus imp, int i, int index) {
+				ImagePlus imp2 = imp;
+				if (!macro.equals("")) {
+					Thread thread = Thread.currentThread();
+					dontSave.remove(thread);
+					WindowManager.setTempCurrentImage(imp);
+					Interpreter interp = new Interpreter();
+					try {
+						ImagePlus output = interp.runBatchMacro("i="+index+";"+macro, imp);
+						if (output!=null)
+							imp2 = output;
+					} finally {
+						WindowManager.setTempCurrentImage(null);
+					}
+					if (dontSave.remove(thread)!=null)
+						return null;
+				}
+				if (outputPath.equals(""))
+					return null;
+				if (format.equals("8-bit TIFF") || format.equals("GIF")) {
+					if (imp2.getBitDepth()==24)
+						IJ.run(imp2, "8-bit Color", "number=256");
+					else
+						IJ.run(imp2, "8-bit", "");
+				}
+				return imp2;
+			}
+			void save(ImagePlus imp, int i) {
+				IJ.saveAs(imp, format, outputPath+list[i]);
+			}
+		};
+		IJ.redirectErrorMessages(true);
+		long t0 = System.currentTimeMillis();
+		int count = pipeline.run();
+		IJ.redirectErrorMessages(false);
+		String errors = pipeline.getErrorCount()>0?", "+pipeline.getErrorCount()+" errors (see Log window)":"";
+		IJ.showStatus(count+" files processed in "+IJ.d2s((System.currentTimeMillis()-t0)/1000.0,2)+" seconds"+errors);
+	}
+
 	private boolean runMacro(String macro, ImagePlus imp) {
 		WindowManager.setTempCurrentImage(imp);
 		Interpreter interp = new Interpreter();
@@ -475,6 +548,10 @@ import java.util.Vector;
 	
 	public static void saveOutput(boolean b) {
 		saveOutput = b;
+		if (b)
+			dontSave.remove(Thread.currentThread());
+		else
+			dontSave.put(Thread.currentThread(), Boolean.TRUE);
 	}
 
 }
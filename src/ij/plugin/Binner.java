@@ -3,13 +3,19 @@ import ij.*;
 import ij.process.*;
 import ij.gui.*;
 import ij.measure.Calibration;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.awt.image.*;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin implements the Image/Transform/Bin command.
  * It reduces the size of an image or stack by binning groups of 
  * pixels of user-specified sizes. The resulting pixel can be 
  * calculated as average, median, maximum or minimum.
+ * Stack slices, or the rows of a single image, are binned in
+ * parallel; the pixel arrays are accessed directly, row by row.
  *
  * @author Nico Stuurman
  * @author Wayne Rasband
@@ -20,6 +26,7 @@ public class Binner implements PlugIn {
 	private int xshrink=2, yshrink=2, zshrink=1;
 	private int method = AVERAGE;
 	private float maxValue;
+	private static final int MIN_PIXELS_PER_THREAD = 1<<16;
 
 	public void run(String arg) {
 		ImagePlus imp = IJ.getImage();
@@ -54,15 +61,9 @@ public class Binner implements PlugIn {
 			else
 				maxValue = 0;
 		}
-		for (int z=1; z<=d; z++) {
-			IJ.showProgress(z, d);
-			ImageProcessor ip = stack.getProcessor(z);
-			if (ip.isInvertedLut()) 
-				ip.invert();
-			ImageProcessor ip2 = shrink(ip, method);
-			if (ip.isInvertedLut()) ip2.invert();
-			stack2.addSlice(stack.getSliceLabel(z), ip2);
-		}
+		ImageProcessor[] ips2 = shrinkSlices(stack, xshrink, yshrink, method);
+		for (int z=1; z<=d; z++)
+			stack2.addSlice(stack.getSliceLabel(z), ips2[z-1]);
 		if (zshrink>1 && !imp.isHyperStack())
 			stack2 = shrinkZ(stack2, zshrink);
 		ImagePlus imp2 = imp.createImagePlus();
@@ -83,34 +84,116 @@ public class Binner implements PlugIn {
 		return imp2;
 	}
 	
-	private ImageStack shrinkZ(ImageStack stack, int zshrink) {
-		int w = stack.getWidth();
-		int h = stack.getHeight();
+	/** Bins all slices, in parallel for stacks. A single image, or the slices
+		of a virtual stack (which are read one at a time), are binned with
+		several threads working on different rows. */
+	private ImageProcessor[] shrinkSlices(final ImageStack stack, final int xshrink, final int yshrink, final int method) {
+		final int d = stack.size();
+		final ImageProcessor[] ips2 = new ImageProcessor[d];
+		boolean sliceThreads = d>1 && !stack.isVirtual();
+		final int nThreads = sliceThreads ? Math.min(Prefs.getThreads(), d) : 1;
+		final int rowThreads = sliceThreads ? 1 : Prefs.getThreads();
+		final AtomicInteger nextSlice = new AtomicInteger(1);
+		final AtomicInteger done = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					for (int z=nextSlice.getAndIncrement(); z<=d; z=nextSlice.getAndIncrement()) {
+						ImageProcessor ip = stack.getProcessor(z);
+						if (ip.isInvertedLut()) 
+							ip.invert();
+						ImageProcessor ip2 = shrink(ip, xshrink, yshrink, method, rowThreads);
+						if (ip.isInvertedLut()) ip2.invert();
+						ips2[z-1] = ip2;
+						IJ.showProgress(done.incrementAndGet(), d);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		return ips2;
+	}
+
+	/** Bins in z direction. Each task bins one row of an output slice;
+		the values are converted like ImageStack.setVoxel does. */
+	private ImageStack shrinkZ(final ImageStack stack, final int zshrink) {
+		final int w = stack.getWidth();
+		final int h = stack.getHeight();
 		int d = stack.size();
-		int d2 = d/zshrink;
+		final int d2 = d/zshrink;
 		ImageStack stack2 = new ImageStack (w, h, stack.getColorModel());
-		for (int z=1; z<=d2; z++)
-			stack2.addSlice(stack.getProcessor(z).duplicate());
-		boolean rgb = stack.getBitDepth()==24;
-		ImageProcessor ip = rgb?new ColorProcessor(d, h):new FloatProcessor(d, h);
-		for (int x=0; x<w; x++) {
-			IJ.showProgress(x+1, w);
-			for (int y=0; y<h; y++) {
-				float value;
-				for (int z=0; z<d; z++) {
-					value = (float)stack.getVoxel(x, y, z);
-					ip.setf(z, y, value);
-				}
-			}
-			ImageProcessor ip2 = shrink(ip, zshrink, 1, method);
-			for (int x2=0; x2<d2; x2++) {
-				for (int y2=0; y2<h; y2++) {
-					stack2.setVoxel(x, y2, x2, ip2.getf(x2,y2));
+		final Object[] pixels = stack.getImageArray();
+		final Object[] pixels2 = new Object[d2];
+		for (int z=0; z<d2; z++) {
+			ImageProcessor ip2 = stack.getProcessor(z+1).createProcessor(w, h);
+			pixels2[z] = ip2.getPixels();
+			stack2.addSlice(ip2);
+		}
+		final int method = this.method<0 || this.method>methods.length ? AVERAGE : this.method;
+		final boolean rgb = pixels[0] instanceof int[];
+		final int nTasks = d2*h;
+		int nThreads = (int)Math.min(Prefs.getThreads(), Math.max(1, (long)nTasks*w*zshrink/MIN_PIXELS_PER_THREAD));
+		final AtomicInteger nextTask = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					float[] row = new float[w];
+					float[] acc = new float[w];
+					float[] buffer = method==MEDIAN ? new float[w*zshrink] : null;
+					for (int task=nextTask.getAndIncrement(); task<nTasks; task=nextTask.getAndIncrement()) {
+						int z2 = task/h, y = task%h;
+						if (z2==0 && (y&63)==0)
+							IJ.showProgress(y, h);
+						int offset = y*w;
+						if (!rgb) {
+							for (int k=0; k<zshrink; k++) {
+								binRow(pixels[z2*zshrink+k], offset, 0, row, acc, buffer, w, 1, zshrink, k, method);
+							}
+							finishRow(acc, buffer, w, 1, zshrink, method);
+							setVoxelRow(acc, pixels2[z2], offset, w);
+						} else {
+							int[] ints = (int[])pixels2[z2];
+							for (int i=0; i<w; i++)
+								ints[offset+i] = 0;
+							for (int shift=16; shift>=0; shift-=8) {
+								for (int k=0; k<zshrink; k++) {
+									binRow(pixels[z2*zshrink+k], offset, shift, row, acc, buffer, w, 1, zshrink, k, method);
+								}
+								finishRow(acc, buffer, w, 1, zshrink, method);
+								for (int i=0; i<w; i++)
+									ints[offset+i] |= (((byte)(acc[i]+0.5f))&255)<<shift;
+							}
+						}
+					}
+					return null;
 				}
-			}
+			};
 		}
+		ThreadUtil.startAndJoin(callables);
+		IJ.showProgress(1.0);
 		return stack2;
 	}
+
+	/** Writes a row with the conversion and clamping of ImageStack.setVoxel. */
+	private static void setVoxelRow(float[] values, Object pixels, int offset, int n) {
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int i=0; i<n; i++) {
+				double value = values[i];
+				bytes[offset+i] = (byte)((value>255.0?255.0:(value<0.0?0.0:value))+0.5);
+			}
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int i=0; i<n; i++) {
+				double value = values[i];
+				shorts[offset+i] = (short)((value>65535.0?65535.0:(value<0.0?0.0:value))+0.5);
+			}
+		} else
+			System.arraycopy(values, 0, pixels, offset, n);
+	}
 	
 	public ImagePlus shrinkHyperstackZ(ImagePlus imp, int zshrink) {
 		int width = imp.getWidth();
@@ -144,116 +227,193 @@ public class Binner implements PlugIn {
 	public ImageProcessor shrink(ImageProcessor ip, int xshrink, int yshrink, int method) {
 		this.xshrink = xshrink;
 		this.yshrink = yshrink;
-		return shrink(ip, method);
+		return shrink(ip, xshrink, yshrink, method, Prefs.getThreads());
 	}
 
-	private ImageProcessor shrink(ImageProcessor ip, int method) {
+	private ImageProcessor shrink(ImageProcessor ip, final int xshrink, final int yshrink, int method, int nThreads) {
 		if (method<0 || method>methods.length)
 			method = AVERAGE;
-		int w = ip.getWidth()/xshrink;
-		int h = ip.getHeight()/yshrink;
+		final int w = ip.getWidth()/xshrink;
+		final int h = ip.getHeight()/yshrink;
 		ImageProcessor ip2 = ip.createProcessor(w, h);
 		if (ip instanceof ColorProcessor)
-			return shrinkRGB((ColorProcessor)ip, (ColorProcessor)ip2, method);
-		for (int y=0; y<h; y++) {
-			for (int x=0; x<w; x++) {
-				if (method==AVERAGE)
-					ip2.setf(x, y, getAverage(ip, x, y));
-				else if (method==MEDIAN)
-					ip2.setf(x, y, getMedian(ip, x, y));
-				else if (method==MIN)
-					ip2.setf(x, y, getMin(ip, x, y));
-				else if (method==MAX)
-					ip2.setf(x, y, getMax(ip, x, y));
-				else if (method==SUM)
-					ip2.setf(x, y, getSum(ip, x, y));
-			}
+			return shrinkRGB((ColorProcessor)ip, (ColorProcessor)ip2, xshrink, yshrink, method, nThreads);
+		final int width = ip.getWidth();
+		final Object pixels = ip.getPixels();
+		final Object pixels2 = ip2.getPixels();
+		final int method2 = method;
+		nThreads = (int)Math.min(nThreads, Math.max(1, (long)w*h*xshrink*yshrink/MIN_PIXELS_PER_THREAD));
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					float[] row = new float[w*xshrink];
+					float[] acc = new float[w];
+					float[] buffer = method2==MEDIAN ? new float[w*xshrink*yshrink] : null;
+					for (int y=nextRow.getAndIncrement(); y<h; y=nextRow.getAndIncrement()) {
+						for (int y2=0; y2<yshrink; y2++) {
+							binRow(pixels, (y*yshrink+y2)*width, 0, row, acc, buffer, w, xshrink, yshrink, y2, method2);
+						}
+						finishRow(acc, buffer, w, xshrink, yshrink, method2);
+						setRow(acc, pixels2, y*w, w);
+					}
+					return null;
+				}
+			};
 		}
+		ThreadUtil.startAndJoin(callables);
 		return ip2;
 	}
 
-	private ImageProcessor shrinkRGB(ColorProcessor cp, ColorProcessor cp2, int method) {
+	private ImageProcessor shrinkRGB(ColorProcessor cp, ColorProcessor cp2, int xshrink, int yshrink, int method, int nThreads) {
 		ByteProcessor bp = cp.getChannel(1, null);
-		cp2.setChannel(1, (ByteProcessor)shrink(bp, method));
-		cp2.setChannel(2, (ByteProcessor)shrink(cp.getChannel(2,bp), method));
-		cp2.setChannel(3, (ByteProcessor)shrink(cp.getChannel(3,bp), method));
+		cp2.setChannel(1, (ByteProcessor)shrink(bp, xshrink, yshrink, method, nThreads));
+		cp2.setChannel(2, (ByteProcessor)shrink(cp.getChannel(2,bp), xshrink, yshrink, method, nThreads));
+		cp2.setChannel(3, (ByteProcessor)shrink(cp.getChannel(3,bp), xshrink, yshrink, method, nThreads));
 		return cp2;
 	}
 
-	private float getAverage(ImageProcessor ip, int x, int y) {
-		float sum = 0;
-		for (int y2=0; y2<yshrink; y2++) {
-			for (int x2=0;  x2<xshrink; x2++)
-				sum += ip.getf(x*xshrink+x2, y*yshrink+y2); 
+	/** Converts n pixels, starting at 'offset', to float. For RGB pixels,
+		the channel at bit position 'shift' is read. */
+	private static void getRow(Object pixels, int offset, float[] row, int n, int shift) {
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int i=0; i<n; i++)
+				row[i] = bytes[offset+i]&255;
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int i=0; i<n; i++)
+				row[i] = shorts[offset+i]&0xffff;
+		} else if (pixels instanceof float[])
+			System.arraycopy(pixels, offset, row, 0, n);
+		else {
+			int[] ints = (int[])pixels;
+			for (int i=0; i<n; i++)
+				row[i] = (ints[offset+i]>>shift)&255;
 		}
-		return (float)(sum/(xshrink*yshrink));
 	}
 
-	private float getMedian(ImageProcessor ip, int x, int y) {
-		int shrinksize=xshrink*yshrink;
-		float[] pixels = new float[shrinksize];
-		int p=0;
-		// fill pixels within local neighborhood
-		for (int y2=0; y2<yshrink; y2++) {
-			for (int x2=0;  x2<xshrink; x2++)
-				pixels[p++]= ip.getf(x*xshrink+x2, y*yshrink+y2); 
+	/** Writes a row of binned values, with the conversion of ImageProcessor.setf. */
+	private static void setRow(float[] values, Object pixels, int offset, int n) {
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int i=0; i<n; i++)
+				bytes[offset+i] = (byte)(values[i]+0.5f);
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int i=0; i<n; i++)
+				shorts[offset+i] = (short)(values[i]+0.5f);
+		} else
+			System.arraycopy(values, 0, pixels, offset, n);
+	}
+
+	/** Adds the input row of w*xshrink pixels starting at 'offset' (row 'y2' of
+		yshrink rows of bins) to 'acc' or, for the median, to 'buffer'. The values
+		of a bin are added in the same order as in the previous getf-based code,
+		so the float sums are the same. RGB pixels and the median use 'row'
+		for the conversion to float. */
+	private static void binRow(Object pixels, int offset, int shift, float[] row, float[] acc, float[] buffer,
+			int w, int xshrink, int yshrink, int y2, int method) {
+		if (method==MEDIAN) {
+			getRow(pixels, offset, row, w*xshrink, shift);
+			int n = xshrink*yshrink;
+			for (int x=0; x<w; x++)
+				System.arraycopy(row, x*xshrink, buffer, x*n+y2*xshrink, xshrink);
+			return;
 		}
-		// find median value
-		int halfsize=shrinksize/2;
-		for (int i=0; i<=halfsize; i++) {
-			float max=0f;
-			int mj=0;
-			for (int j=0; j<shrinksize; j++) {
-				if (pixels[j]>max) {
-					max = pixels[j];
-					mj = j;
+		if (y2==0) {
+			float start = method==MIN ? Float.MAX_VALUE : (method==MAX ? -Float.MAX_VALUE : 0f);
+			for (int x=0; x<w; x++)
+				acc[x] = start;
+		}
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int x=0, i=offset; x<w; x++) {
+				float v = acc[x];
+				if (method==MIN) {
+					for (int x2=0; x2<xshrink; x2++, i++)
+						if ((bytes[i]&255)<v) v = bytes[i]&255;
+				} else if (method==MAX) {
+					for (int x2=0; x2<xshrink; x2++, i++)
+						if ((bytes[i]&255)>v) v = bytes[i]&255;
+				} else {
+					for (int x2=0; x2<xshrink; x2++, i++)
+						v += bytes[i]&255;
 				}
+				acc[x] = v;
 			}
-			pixels[mj] = 0;
-		}
-		float max = -Float.MAX_VALUE;
-		for (int j=0; j<shrinksize; j++) {
-			if (pixels[j]>max)
-				max = pixels[j];
-		}
-		return max;
-	}
-
-	private float getMin(ImageProcessor ip, int x, int y) {
-		float min = Float.MAX_VALUE;
-		float pixel;
-		for (int y2=0; y2<yshrink; y2++) {
-			for (int x2=0;  x2<xshrink; x2++) {
-				pixel = ip.getf(x*xshrink+x2, y*yshrink+y2); 
-				if (pixel<min)
-					min = pixel;
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int x=0, i=offset; x<w; x++) {
+				float v = acc[x];
+				if (method==MIN) {
+					for (int x2=0; x2<xshrink; x2++, i++)
+						if ((shorts[i]&0xffff)<v) v = shorts[i]&0xffff;
+				} else if (method==MAX) {
+					for (int x2=0; x2<xshrink; x2++, i++)
+						if ((shorts[i]&0xffff)>v) v = shorts[i]&0xffff;
+				} else {
+					for (int x2=0; x2<xshrink; x2++, i++)
+						v += shorts[i]&0xffff;
+				}
+				acc[x] = v;
+			}
+		} else {
+			float[] floats;
+			int i0 = offset;
+			if (pixels instanceof float[])
+				floats = (float[])pixels;
+			else {
+				getRow(pixels, offset, row, w*xshrink, shift);
+				floats = row;
+				i0 = 0;
+			}
+			for (int x=0, i=i0; x<w; x++) {
+				float v = acc[x];
+				if (method==MIN) {
+					for (int x2=0; x2<xshrink; x2++, i++)
+						if (floats[i]<v) v = floats[i];
+				} else if (method==MAX) {
+					for (int x2=0; x2<xshrink; x2++, i++)
+						if (floats[i]>v) v = floats[i];
+				} else {
+					for (int x2=0; x2<xshrink; x2++, i++)
+						v += floats[i];
+				}
+				acc[x] = v;
 			}
 		}
-		return min;
 	}
 
-	private float getMax(ImageProcessor ip, int x, int y) {
-		float max = -Float.MAX_VALUE;
-		float pixel;
-		for (int y2=0; y2<yshrink; y2++) {
-			for (int x2=0;  x2<xshrink; x2++) {
-				pixel = ip.getf(x*xshrink+x2, y*yshrink+y2); 
-				if (pixel>max)
-					max = pixel;
+	/** Converts the accumulated values of a row of bins into the results. */
+	private void finishRow(float[] acc, float[] buffer, int w, int xshrink, int yshrink, int method) {
+		int n = xshrink*yshrink;
+		if (method==AVERAGE) {
+			for (int x=0; x<w; x++)
+				acc[x] = acc[x]/n;
+		} else if (method==SUM) {
+			if (maxValue>0f) {
+				for (int x=0; x<w; x++)
+					if (acc[x]>maxValue) acc[x] = maxValue;
 			}
+		} else if (method==MEDIAN) {
+			for (int x=0; x<w; x++)
+				acc[x] = getMedian(buffer, x*n, n);
 		}
-		return max;
 	}
 
-	private float getSum(ImageProcessor ip, int x, int y) {
-		float sum = 0;
-		for (int y2=0; y2<yshrink; y2++) {
-			for (int x2=0;  x2<xshrink; x2++)
-				sum += ip.getf(x*xshrink+x2, y*yshrink+y2); 
-		}
-		if (maxValue>0f && sum>maxValue)
-			sum = maxValue;
-		return sum;
+	/** Returns the value selected by the 'median' of earlier versions, which
+		replaced the n/2+1 highest values by zero and returned the maximum of
+		the rest: the (n/2+2)-th highest positive value, or zero. */
+	private static float getMedian(float[] values, int from, int n) {
+		int k = n - n/2 - 2;        // index in ascending order
+		if (k<0)
+			return 0f;
+		for (int i=from; i<from+n; i++)
+			if (!(values[i]>0f)) values[i] = 0f;
+		Arrays.sort(values, from, from+n);
+		return values[from+k];
 	}
 
 	private boolean showDialog(ImagePlus imp) {
@@ -4,6 +4,7 @@ import ij.process.*;
 import ij.gui.*;
 import ij.io.*;
 import java.awt.*;
+import java.awt.image.ColorModel;
 import java.io.*;
 import java.util.Properties;
 
@@ -12,6 +13,7 @@ import java.util.Properties;
 public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 	private FileInfo[] info;
 	private int nImages;
+	private MappedImageReader mappedReader;
 	
 	/* Default constructor. */
 	public FileInfoVirtualStack() {}
@@ -98,7 +100,7 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 		FileInfo fi = info[0];
 		int n = fi.nImages;
 		if (info.length==1 && n>1) {
-			long bytesPerImage = fi.width*fi.height*fi.getBytesPerPixel();
+			long bytesPerImage = (long)fi.width*fi.height*fi.getBytesPerPixel();
 			if (fi.fileType==FileInfo.GRAY12_UNSIGNED)
 				bytesPerImage = (int)(1.5*fi.width)*fi.height;
 			n = validateNImages(fi, bytesPerImage);
@@ -186,18 +188,31 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 			info[i-1] = info[i];
 		info[nImages-1] = null;
 		nImages--;
+		VirtualStackCache.remove(this);
 	}
 	
 	/** Returns an ImageProcessor for the specified image,
 		where {@literal 1<=n<=nImages}. Returns null if the stack is empty.
 	*/
 	public ImageProcessor getProcessor(int n) {
+		return getCachedProcessor(n);
+	}
+
+	/** Reads the specified image from disk. */
+	protected ImageProcessor readProcessor(int n) {
 		n = translate(n);  // update n for hyperstacks not in default CZT order
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
 		//if (n>1) IJ.log("  "+(info[n-1].getOffset()-info[n-2].getOffset()));
 		info[n-1].nImages = 1; // why is this needed?
 		ImageProcessor ip = null;
+		if (MappedImageReader.canRead(info[n-1]))
+			ip = openMappedProcessor(info[n-1]);
+		if (ip!=null) {
+			if (cTable!=null)
+				ip.setCalibrationTable(cTable);
+			return ip;
+		}
 		if (IJ.debugMode) {
 			long t0 = System.currentTimeMillis();
 			FileOpener fo = new FileOpener(info[n-1]);
@@ -230,6 +245,45 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 		}
 	 }
  
+	/** Returns the image described by 'fi' using pixels copied from a memory-mapped
+		window of the file, or null if the image could not be read this way. */
+	private ImageProcessor openMappedProcessor(FileInfo fi) {
+		Object pixels = null;
+		try {
+			MappedImageReader reader;
+			synchronized(this) {
+				if (mappedReader==null)
+					mappedReader = new MappedImageReader();
+				reader = mappedReader;
+			}
+			pixels = reader.readPixels(fi);
+		} catch (Exception e) {
+			if (IJ.debugMode) IJ.log("FileInfoVirtualStack: "+e);
+		}
+		if (pixels==null)
+			return null;
+		int w = fi.width, h = fi.height;
+		ColorModel cm = new FileOpener(fi).createColorModel(fi);
+		if (pixels instanceof byte[])
+			return new ByteProcessor(w, h, (byte[])pixels, cm);
+		else if (pixels instanceof short[])
+			return new ShortProcessor(w, h, (short[])pixels, cm);
+		else if (pixels instanceof float[])
+			return new FloatProcessor(w, h, (float[])pixels, cm);
+		else
+			return new ColorProcessor(w, h, (int[])pixels);
+	}
+
+	/** Unmaps the memory-mapped windows of the file, so that it can be deleted
+		or overwritten. Called by ImagePlus when the image is closed; the stack
+		can still be read afterwards. */
+	public synchronized void close() {
+		if (mappedReader!=null) {
+			mappedReader.close();
+			mappedReader = null;
+		}
+	}
+
 	/** Returns the number of slices in this stack. */
 	public int size() {
 		return getSize();
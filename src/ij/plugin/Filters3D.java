@@ -6,6 +6,7 @@ import ij.gui.GenericDialog;
 import ij.util.ThreadUtil;
 import ij.plugin.RGBStackMerge;
 import ij.gui.*;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /*
@@ -15,6 +16,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class Filters3D implements PlugIn {
     public final static int MEAN=10, MEDIAN=11, MIN=12, MAX=13, VAR=14, MAXLOCAL=15;
 	private static float xradius = 2, yradius = 2, zradius = 2;
+	private static final int LINES_PER_TILE = 16;
 
 	public void run(String arg) {
 		String name = null;
@@ -72,49 +74,393 @@ public class Filters3D implements PlugIn {
 		imp.setStack(res);
 	}
 	
+	/** Applies a 3D mean, median, minimum, maximum or variance filter with an
+		ellipsoid kernel with radii vx, vy and vz. Only voxels inside the stack
+		are used, so the kernel has fewer voxels near the edges. The variance
+		filter creates a 32-bit stack; the other filters create a stack of the
+		input type, with values rounded to the nearest integer for 8 and 16-bit
+		stacks.
+		<p>The kernel slides along the lines: when moving to the next voxel, only
+		the voxels that enter and leave the kernel at its sides are added and
+		removed. Medians are taken from a histogram (8 and 16-bit) or a sorted
+		buffer (32-bit), means and variances from running sums, and the minimum
+		and maximum (which ignore NaNs) are only searched anew when they leave
+		the kernel. The lines are processed in tiles by parallel threads; the
+		memory used by each thread depends on the kernel size and bit depth,
+		not on the stack size.
+	*/
 	public static ImageStack filter(ImageStack stackorig, int filter, float vx, float vy, float vz) {
 	
 		if (stackorig.getBitDepth()==24)
 			return filterRGB(stackorig, filter, vx, vy, vz);
+		if (!(filter==MEAN || filter==MEDIAN || filter==MIN || filter==MAX || filter==VAR))
+			return null;
 
 		// get stack info
-		final ImageStack stack = stackorig;
-		final float voisx = vx;
-		final float voisy = vy;
-		final float voisz = vz;
-		final int width= stack.getWidth();
-		final int height= stack.getHeight();
-		final int depth= stack.size();
-		ImageStack res = null;
-		
-		if ((filter==MEAN) || (filter==MEDIAN) || (filter==MIN) || (filter==MAX) || (filter==VAR)) {
-			if (filter==VAR)
-				res = ImageStack.create(width, height, depth, 32);
-			else
-				res = ImageStack.create(width, height, depth, stackorig.getBitDepth());
-			IJ.showStatus("3D filtering...");
-			// PARALLEL 
-			final ImageStack out = res;
-			final AtomicInteger ai = new AtomicInteger(0);
-			final int n_cpus = Prefs.getThreads();
-
-			final int f = filter;
-			final int dec = (int) Math.ceil((double) stack.size() / (double) n_cpus);
-			Thread[] threads = ThreadUtil.createThreadArray(n_cpus);
-			for (int ithread = 0; ithread < threads.length; ithread++) {
-				threads[ithread] = new Thread() {
-					public void run() {
-						StackProcessor processor = new StackProcessor(stack);
-						for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) {
-							processor.filter3D(out, voisx, voisy, voisz, dec * k, dec * (k + 1), f);
-						}
+		final int width= stackorig.getWidth();
+		final int height= stackorig.getHeight();
+		final int depth= stackorig.size();
+		final int bitDepth = stackorig.getBitDepth();
+		ImageStack res = ImageStack.create(width, height, depth, filter==VAR?32:bitDepth);
+		IJ.showStatus("3D filtering...");
+		final Object[] in = new Object[depth];
+		final Object[] out = new Object[depth];
+		for (int z=0; z<depth; z++) {
+			in[z] = stackorig.getPixels(z+1);
+			out[z] = res.getPixels(z+1);
+		}
+		final int[] kernel = makeKernelRows(vx, vy, vz);
+		final int f = filter;
+		final int nLines = depth*height;
+		final int nTiles = (nLines+LINES_PER_TILE-1)/LINES_PER_TILE;
+		final AtomicInteger nextTile = new AtomicInteger(0);
+		final AtomicInteger tilesDone = new AtomicInteger(0);
+		int n_cpus = Math.min(Prefs.getThreads(), nTiles);
+		// PARALLEL 
+		Thread[] threads = ThreadUtil.createThreadArray(n_cpus);
+		for (int ithread = 0; ithread < threads.length; ithread++) {
+			threads[ithread] = new Thread() {
+				public void run() {
+					RankBuffer buffer = new RankBuffer(bitDepth, kernel);
+					for (int t=nextTile.getAndIncrement(); t<nTiles; t=nextTile.getAndIncrement()) {
+						int line1 = Math.min((t+1)*LINES_PER_TILE, nLines);
+						for (int line=t*LINES_PER_TILE; line<line1; line++)
+							filterLine(in, out, bitDepth, width, height, depth, kernel, f, line/height, line%height, buffer);
+						IJ.showProgress(tilesDone.incrementAndGet(), nTiles);
 					}
-				};
-			}
-			ThreadUtil.startAndJoin(threads);
+				}
+			};
 		}
+		ThreadUtil.startAndJoin(threads);
 		return res;
 	}
+
+	/** Returns the ellipsoid kernel (the same as used by StackProcessor.filter3D)
+		as triplets (dz, dy, r) of its lines, which extend from x-r to x+r. */
+	private static int[] makeKernelRows(float radx, float rady, float radz) {
+		int vx = (int) Math.ceil(radx);
+		int vy = (int) Math.ceil(rady);
+		int vz = (int) Math.ceil(radz);
+		double rx2 = radx * radx;
+		double ry2 = rady * rady;
+		double rz2 = radz * radz;
+		rx2 = rx2!=0 ? 1.0/rx2 : 0;
+		ry2 = ry2!=0 ? 1.0/ry2 : 0;
+		rz2 = rz2!=0 ? 1.0/rz2 : 0;
+		int[] rows = new int[3*(2*vy+1)*(2*vz+1)];
+		int n = 0;
+		for (int k = -vz; k <= vz; k++) {
+			for (int j = -vy; j <= vy; j++) {
+				int r = -1;
+				for (int i = 0; i <= vx; i++) {
+					double dist = ((double) (i * i)) * rx2 + ((double) (j * j)) * ry2 + ((double) (k * k)) * rz2;
+					if (dist <= 1.0)
+						r = i;
+				}
+				if (r>=0) {
+					rows[n++] = k; rows[n++] = j; rows[n++] = r;
+				}
+			}
+		}
+		int[] rows2 = new int[n];
+		System.arraycopy(rows, 0, rows2, 0, n);
+		return rows2;
+	}
+
+	/** Filters line y of slice z. */
+	private static void filterLine(Object[] in, Object[] out, int bitDepth, int width, int height, int depth,
+			int[] kernel, int filter, int z, int y, RankBuffer buffer) {
+		buffer.start(in, kernel, z, y, width, height, depth, filter);
+		Object pixels = out[z];
+		int p = y*width;
+		for (int x=0; x<width; x++, p++) {
+			int n = buffer.n;
+			double value;
+			switch (filter) {
+				case MEAN:
+					value = buffer.sum/n; break;
+				case VAR:
+					value = n==1 ? 0 : (buffer.sum2 - (buffer.sum * buffer.sum / n)) / (n - 1); break;
+				case MEDIAN:
+					if (n%2==1)
+						value = buffer.get(n/2);
+					else
+						value = 0.5f * (buffer.get(n/2-1) + buffer.get(n/2));
+					break;
+				default: // MIN, MAX
+					value = filter==MIN ? -buffer.extreme : buffer.extreme;
+			}
+			setValue(pixels, p, value);
+			if (x<width-1)
+				buffer.move(x+1);
+		}
+		buffer.finish();
+	}
+
+	/** Writes a value like ImageStack.setVoxel. */
+	private static void setValue(Object pixels, int p, double value) {
+		if (pixels instanceof float[])
+			((float[])pixels)[p] = (float)value;
+		else if (pixels instanceof byte[])
+			((byte[])pixels)[p] = (byte)(Math.max(Math.min(value, 255.0), 0.0)+0.5);
+		else
+			((short[])pixels)[p] = (short)(Math.max(Math.min(value, 65535.0), 0.0)+0.5);
+	}
+
+	/** The voxels in the kernel, for one thread: running sums (mean and variance),
+		the extreme value (minimum and maximum), or a histogram for 8 and 16-bit data
+		and a sorted buffer for float data (median). */
+	private static class RankBuffer {
+		int bitDepth;
+		int filter;
+		int nRows;             // kernel lines inside the stack
+		int x, width;          // position of the kernel and length of the line
+		byte[][] bytes;
+		short[][] shorts;
+		float[][] floats;
+		int[] rowOffset, rowRadius;
+		int n;                 // number of voxels in the kernel
+		double sum, sum2;
+		float extreme;         // maximum, or minus the minimum, ignoring NaNs
+		float[] added, removed; // the values that enter and leave the kernel
+		int nAdded, nRemoved;
+		// 8 and 16-bit: histogram with a coarse level; 'coarseBin' is a bin of the
+		// coarse level, 'below' the number of values in the coarse bins below it
+		int[] histogram, coarse;
+		int shift, coarseBin, below;
+		// float: the sorted values
+		float[] sorted, sorted2;
+		int nSorted;
+
+		RankBuffer(int bitDepth, int[] kernel) {
+			this.bitDepth = bitDepth;
+			int nKernelRows = kernel.length/3;
+			bytes = new byte[nKernelRows][];
+			shorts = new short[nKernelRows][];
+			floats = new float[nKernelRows][];
+			rowOffset = new int[nKernelRows];
+			rowRadius = new int[nKernelRows];
+			int nPoints = 0;
+			for (int k=0; k<kernel.length; k+=3)
+				nPoints += 2*kernel[k+2]+1;
+			added = new float[nPoints];
+			removed = new float[nPoints];
+			if (bitDepth==32) {
+				sorted = new float[nPoints];
+				sorted2 = new float[nPoints];
+			} else {
+				shift = bitDepth==8 ? 4 : 8;
+				histogram = new int[bitDepth==8 ? 256 : 65536];
+				coarse = new int[(histogram.length>>shift)+1];
+			}
+		}
+
+		/** Sets up the kernel at the start (x=0) of line y in slice z. */
+		void start(Object[] in, int[] kernel, int z, int y, int width, int height, int depth, int filter) {
+			this.filter = filter;
+			this.width = width;
+			x = 0;
+			nRows = 0;
+			for (int k=0; k<kernel.length; k+=3) {
+				int zz = z + kernel[k];
+				int yy = y + kernel[k+1];
+				if (zz<0 || zz>=depth || yy<0 || yy>=height)
+					continue;
+				switch (bitDepth) {
+					case 8: bytes[nRows] = (byte[])in[zz]; break;
+					case 16: shorts[nRows] = (short[])in[zz]; break;
+					default: floats[nRows] = (float[])in[zz];
+				}
+				rowOffset[nRows] = yy*width;
+				rowRadius[nRows] = kernel[k+2];
+				nRows++;
+			}
+			n = 0;
+			sum = sum2 = 0.0;
+			extreme = Float.NaN;
+			coarseBin = below = 0;
+			nSorted = nAdded = nRemoved = 0;
+			for (int r=0; r<nRows; r++)
+				getValues(r, 0, Math.min(rowRadius[r], width-1), added);
+			update();
+		}
+
+		/** Moves the kernel to position x. */
+		void move(int x) {
+			this.x = x;
+			for (int r=0; r<nRows; r++) {
+				int xOut = x - 1 - rowRadius[r];
+				int xIn = x + rowRadius[r];
+				if (xOut>=0)
+					getValues(r, xOut, xOut, removed);
+				if (xIn<width)
+					getValues(r, xIn, xIn, added);
+			}
+			update();
+		}
+
+		/** Empties the histogram at the end of a line. */
+		void finish() {
+			if (histogram==null || filter!=MEDIAN)
+				return;
+			for (int r=0; r<nRows; r++)
+				getValues(r, Math.max(width-1-rowRadius[r], 0), width-1, removed);
+			update();
+		}
+
+		/** Appends the values of kernel line r from x0 to x1 to 'added' or 'removed'. */
+		private void getValues(int r, int x0, int x1, float[] values) {
+			int i = values==added ? nAdded : nRemoved;
+			int p0 = rowOffset[r] + x0, p1 = rowOffset[r] + x1;
+			switch (bitDepth) {
+				case 8:
+					byte[] b = bytes[r];
+					for (int p=p0; p<=p1; p++) values[i++] = b[p]&0xff;
+					break;
+				case 16:
+					short[] s = shorts[r];
+					for (int p=p0; p<=p1; p++) values[i++] = s[p]&0xffff;
+					break;
+				default:
+					float[] f = floats[r];
+					for (int p=p0; p<=p1; p++) values[i++] = f[p];
+			}
+			if (values==added)
+				nAdded = i;
+			else
+				nRemoved = i;
+		}
+
+		/** Applies the added and removed values. */
+		private void update() {
+			n += nAdded - nRemoved;
+			if (filter==MEAN || filter==VAR)
+				updateSums();
+			else if (filter==MIN || filter==MAX)
+				updateExtreme();
+			else if (histogram!=null)
+				updateHistogram();
+			else
+				updateSorted();
+			nAdded = nRemoved = 0;
+		}
+
+		private void updateSums() {
+			for (int i=0; i<nAdded; i++) {
+				float v = added[i];
+				sum += v;
+				sum2 += v*v;
+			}
+			for (int i=0; i<nRemoved; i++) {
+				float v = removed[i];
+				sum -= v;
+				sum2 -= v*v;
+			}
+			if (bitDepth==32 && (Double.isNaN(sum+sum2) || Double.isInfinite(sum+sum2)))
+				fullSums(); // the running sums cannot remove a NaN or infinite value
+		}
+
+		/** Calculates the sums from all values in the kernel. */
+		private void fullSums() {
+			sum = sum2 = 0.0;
+			for (int r=0; r<nRows; r++) {
+				float[] f = floats[r];
+				int p1 = rowOffset[r] + Math.min(x+rowRadius[r], width-1);
+				for (int p=rowOffset[r]+Math.max(x-rowRadius[r], 0); p<=p1; p++) {
+					float v = f[p];
+					sum += v;
+					sum2 += v*v;
+				}
+			}
+		}
+
+		/** Updates the extreme value; the whole kernel is only searched
+			if the extreme value has been removed. */
+		private void updateExtreme() {
+			float sign = filter==MIN ? -1f : 1f;
+			for (int i=0; i<nRemoved; i++) {
+				if (removed[i]*sign==extreme) {
+					extreme = kernelExtreme(sign);
+					return;
+				}
+			}
+			for (int i=0; i<nAdded; i++) {
+				float v = added[i]*sign;
+				if (v>extreme || Float.isNaN(extreme))
+					extreme = v;
+			}
+		}
+
+		private float kernelExtreme(float sign) {
+			float max = Float.NaN;
+			nAdded = 0;
+			for (int r=0; r<nRows; r++) {
+				int x0 = Math.max(x-rowRadius[r], 0);
+				int x1 = Math.min(x+rowRadius[r], width-1);
+				getValues(r, x0, x1, added);
+				for (int i=0; i<nAdded; i++) {
+					float v = added[i]*sign;
+					if (v>max || Float.isNaN(max))
+						max = v;
+				}
+				nAdded = 0;
+			}
+			return max;
+		}
+
+		private void updateHistogram() {
+			for (int i=0; i<nAdded; i++) {
+				int v = (int)added[i];
+				histogram[v]++;
+				coarse[v>>shift]++;
+				if ((v>>shift)<coarseBin) below++;
+			}
+			for (int i=0; i<nRemoved; i++) {
+				int v = (int)removed[i];
+				histogram[v]--;
+				coarse[v>>shift]--;
+				if ((v>>shift)<coarseBin) below--;
+			}
+		}
+
+		/** Merges the added values into the sorted buffer and drops the removed ones. */
+		private void updateSorted() {
+			Arrays.sort(added, 0, nAdded);
+			Arrays.sort(removed, 0, nRemoved);
+			int m = 0, iRemoved = 0, iAdded = 0;
+			for (int i=0; i<nSorted; i++) {
+				float v = sorted[i];
+				if (iRemoved<nRemoved && Float.compare(v, removed[iRemoved])==0) {
+					iRemoved++;
+					continue;
+				}
+				while (iAdded<nAdded && Float.compare(added[iAdded], v)<0)
+					sorted2[m++] = added[iAdded++];
+				sorted2[m++] = v;
+			}
+			while (iAdded<nAdded)
+				sorted2[m++] = added[iAdded++];
+			float[] swap = sorted;
+			sorted = sorted2;
+			sorted2 = swap;
+			nSorted = m;
+		}
+
+		/** Returns the k-th smallest value. */
+		float get(int k) {
+			if (histogram==null)
+				return sorted[k];
+			while (below>k)
+				below -= coarse[--coarseBin];
+			while (below+coarse[coarseBin]<=k)
+				below += coarse[coarseBin++];
+			int i = coarseBin<<shift;
+			int count = below + histogram[i];
+			while (count<=k)
+				count += histogram[++i];
+			return i;
+		}
+	}
 	
 	private static void filterHyperstack(ImagePlus imp, int filter, float vx, float vy, float vz) {
 		if (imp.getNDimensions()>4) {
@@ -4,6 +4,8 @@ import java.io.*;
 import java.awt.event.*;
 import java.awt.image.ColorModel;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import ij.*;
 import ij.io.*;
 import ij.gui.*;
@@ -24,6 +26,7 @@ public class FolderOpener implements PlugIn, TextListener {
 	private boolean convertToGrayscale;  //unused
 	private boolean sortFileNames = true;
 	private boolean sortByMetaData = true;
+	private boolean parallel = true;
 	private boolean openAsVirtualStack;
 	private String directory;
 	private boolean directorySet;
@@ -43,6 +46,10 @@ public class FolderOpener implements PlugIn, TextListener {
 	private double scale = 100.0;
 	private boolean openAsSeparateImages;
 	private boolean runningOpen;	
+	private ImagePlus[] decoded;  // images decoded in parallel, starting with list[decodedStart]
+	private int decodedStart;
+	private volatile boolean decodeOutOfMemory;
+	private AtomicInteger decodedCount = new AtomicInteger();
 	private TextField dirField, filterField, startField, countField, stepField;
 
 	
@@ -59,8 +66,9 @@ public class FolderOpener implements PlugIn, TextListener {
 		step, count and scale can also be set, for example
 		"bitdepth=32 start=10 step=2 count=10 scale=50".
 		Add ' noMetaSort' to disable sorting of DICOM stacks by series
-		number (0020,0011). Displays the Import/Sequence dialog if the
-		the 'path' argument is null.
+		number (0020,0011). Images are decoded using multiple threads;
+		add ' noParallel' to open them one at a time. Displays the
+		Import/Sequence dialog if the the 'path' argument is null.
 	*/
 	public static ImagePlus open(String path, String options) {
 		FolderOpener fo = new FolderOpener();
@@ -93,6 +101,8 @@ public class FolderOpener implements PlugIn, TextListener {
 		openAsVirtualStack = options.contains("virtual") || options.contains("use");
 		if (options.contains("noMetaSort")) 
 			sortByMetaData = false;
+		if (options.contains("noParallel")) 
+			parallel = false;
 		bitDepth = (int)Tools.getNumberFromList(options,"bitdepth=",0);
 		filter = Macro.getValue(options, "filter", "");
 		this.start = (int)Tools.getNumberFromList(options,"start=",1);
@@ -261,7 +271,10 @@ public class FolderOpener implements PlugIn, TextListener {
 					IJ.open(directory+list[i]);
 					imp = null;
 				} else if (!openAsVirtualStack||stack==null) {
-					imp = opener.openTempImage(directory, list[i]);
+					if (parallel && !openAsVirtualStack && Prefs.getThreads()>1)
+						imp = openDecodedImage(list, i, this.nFiles-count);
+					else
+						imp = opener.openTempImage(directory, list[i]);
 					stackSize = imp!=null?imp.getStackSize():1;
 				}
 				IJ.redirectErrorMessages(false);
@@ -393,6 +406,7 @@ public class FolderOpener implements PlugIn, TextListener {
 			IJ.outOfMemory("FolderOpener");
 			if (stack!=null) stack.trim();
 		}
+		decoded = null;
 		if (stack!=null && stack.size()>0) {
 			ImagePlus imp2 = new ImagePlus(title, stack);
 			if (imp2.getType()==ImagePlus.GRAY16 || imp2.getType()==ImagePlus.GRAY32)
@@ -496,6 +510,56 @@ public class FolderOpener implements PlugIn, TextListener {
 		}
 	}
 	
+	/** Returns the image in list[i]. If it has not been decoded yet, decodes it,
+		and the files after it that will be opened, using multiple threads. */
+	private ImagePlus openDecodedImage(String[] list, int i, int remaining) {
+		if (decoded==null || i<decodedStart || i>=decodedStart+decoded.length)
+			decodeImages(list, i, remaining);
+		if (decodeOutOfMemory)
+			throw new OutOfMemoryError();
+		ImagePlus imp = decoded[i-decodedStart];
+		decoded[i-decodedStart] = null;
+		return imp;
+	}
+
+	/** Decodes a batch of files, starting with list[first] and taking every
+		'step' file, in parallel. The images are stored in the order of 'list',
+		so the stack is the same as when the files are opened one at a time. */
+	private void decodeImages(final String[] list, final int first, int remaining) {
+		final int threads = Prefs.getThreads();
+		int nImages = Math.max(1, Math.min(4*threads, remaining));
+		final int n = Math.min((nImages-1)*step+1, list.length-first);
+		final ImagePlus[] images = new ImagePlus[n];
+		final AtomicInteger next = new AtomicInteger(0);
+		Callable[] callables = new Callable[Math.min(threads, nImages)];
+		for (int t=0; t<callables.length; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					for (int k=next.getAndIncrement(); k<n; k=next.getAndIncrement()) {
+						if (k%step!=0 || "RoiSet.zip".equals(list[first+k]) || decodeOutOfMemory)
+							continue;
+						if (IJ.escapePressed())
+							break;
+						try {
+							Opener opener = new Opener();
+							opener.setSilentMode(true);
+							images[k] = opener.openTempImage(directory, list[first+k]);
+						} catch(OutOfMemoryError e) {
+							decodeOutOfMemory = true;
+						}
+						int count = decodedCount.incrementAndGet();
+						IJ.showStatus("!"+count+"/"+nFiles);
+						IJ.showProgress(count, nFiles);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		decoded = images;
+		decodedStart = first;
+	}
+
 	private void error(String msg) {
 		IJ.error("Import>Image Sequence", msg);
 	}
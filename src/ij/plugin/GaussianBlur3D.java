@@ -5,8 +5,15 @@ import ij.gui.*;
 import java.awt.*;
 import ij.plugin.filter.*;
 
+/** Implements the Process/Filters/Gaussian Blur 3D command. In z direction, the
+	stack is processed in bands of image rows; all z-lines of a band are blurred
+	in parallel. With the 'Recursive' option, the computing time does not depend
+	on sigma (see GaussianBlur.setRecursive).
+*/
 public class GaussianBlur3D implements PlugIn {
+	private static final int MAX_BAND_PIXELS = 1<<18; // size limit of the buffer for blurring in z
 	private static double xsigma=2, ysigma=2, zsigma=2;
+	private static boolean recursive;
 
 	public void run(String arg) {
 		ImagePlus imp = IJ.getImage();
@@ -17,7 +24,7 @@ public class GaussianBlur3D implements PlugIn {
 		if (!showDialog())
 			return;
 		imp.startTiming();
-		blur(imp, xsigma, ysigma, zsigma);
+		blur(imp, xsigma, ysigma, zsigma, recursive);
 		IJ.showTime(imp, imp.getStartTime(), "", imp.getStackSize());
 	}
 	
@@ -26,20 +33,29 @@ public class GaussianBlur3D implements PlugIn {
 		gd.addNumericField("X sigma:", xsigma, 1);
 		gd.addNumericField("Y sigma:", ysigma, 1);
 		gd.addNumericField("Z sigma:", zsigma, 1);
+		gd.addCheckbox("Recursive (fast for large sigma)", recursive);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return false;
 		xsigma = gd.getNextNumber();
 		ysigma = gd.getNextNumber();
 		zsigma = gd.getNextNumber();
+		recursive = gd.getNextBoolean();
 		return true;
 	}
 	
 	public static void blur(ImagePlus imp, double sigmaX, double sigmaY, double sigmaZ) {
+		blur(imp, sigmaX, sigmaY, sigmaZ, false);
+	}
+
+	/** Blurs 'imp' with a Gaussian; with 'recursive' true, large sigma
+		values use the recursive filter of GaussianBlur. */
+	public static void blur(ImagePlus imp, double sigmaX, double sigmaY, double sigmaZ, boolean recursive) {
 		imp.deleteRoi();
 		ImageStack stack = imp.getStack();
 		if (sigmaX>0.0 || sigmaY>0.0) {
 			GaussianBlur gb = new GaussianBlur();
+			gb.setRecursive(recursive);
 			int channels = stack.getProcessor(1).getNChannels();
 			gb.setNPasses(channels*imp.getStackSize());
 			for (int i=1; i<=imp.getStackSize(); i++) {
@@ -50,37 +66,101 @@ public class GaussianBlur3D implements PlugIn {
 		}
 		if (sigmaZ>0.0) {
 			if (imp.isHyperStack())
-				blurHyperStackZ(imp, sigmaZ);
+				blurHyperStackZ(imp, sigmaZ, recursive);
 			else
-				blurZ(stack, sigmaZ);
+				blurZ(stack, sigmaZ, recursive);
 			imp.updateAndDraw();
 		}
 	}
 
-	private static void blurZ(ImageStack stack, double sigmaZ) {
+	/** Blurs in z direction. The pixels of a band of rows are contiguous in each
+		slice, so a band is read as one line per slice into a FloatProcessor of
+		width w*rows and height d, where every column is a z-line. */
+	private static void blurZ(ImageStack stack, double sigmaZ, boolean recursive) {
 		GaussianBlur gb = new GaussianBlur();
+		gb.setRecursive(recursive);
 		double accuracy = (stack.getBitDepth()==8||stack.getBitDepth()==24)?0.002:0.0002;
 		int w=stack.getWidth(), h=stack.getHeight(), d=stack.size();
-		float[] zpixels = null;
-		FloatProcessor fp =null;
+		Object[] slices = new Object[d];
+		for (int z=0; z<d; z++)
+			slices[z] = stack.getPixels(z+1);
+		int bandHeight = (int)Math.max(1, Math.min(h, MAX_BAND_PIXELS/((long)w*d)));
+		FloatProcessor fp = null;
 		IJ.showStatus("Z blurring");
 		gb.showProgress(false);
 		int channels = stack.getProcessor(1).getNChannels();
-		for (int y=0; y<h; y++) {
-			IJ.showProgress(y, h-1);
+		for (int y=0; y<h; y+=bandHeight) {
+			IJ.showProgress(y, h);
+			int rows = Math.min(bandHeight, h-y);
+			if (fp==null || fp.getWidth()!=w*rows)
+				fp = new FloatProcessor(w*rows, d);
+			float[] band = (float[])fp.getPixels();
 			for (int channel=0; channel<channels; channel++) {
-				zpixels = stack.getVoxels(0, y, 0, w, 1, d, zpixels, channel);
-				if (fp==null)
-					fp = new FloatProcessor(w, d, zpixels);
-				//if (y==h/2) new ImagePlus("before-"+h/2, fp.duplicate()).show();
+				getBand(slices, y*w, w*rows, band, channel);
 				gb.blur1Direction(fp, sigmaZ, accuracy, false, 0);
-				stack.setVoxels(0, y, 0, w, 1, d, zpixels, channel);
+				setBand(slices, y*w, w*rows, band, channel);
 			}
 		}
+		IJ.showProgress(1.0);
 		IJ.showStatus("");
 	}
 
-	private static void blurHyperStackZ(ImagePlus imp, double zsigma) {
+	/** Copies 'n' pixels of each slice, starting at 'offset', into line z of 'band'. */
+	private static void getBand(Object[] slices, int offset, int n, float[] band, int channel) {
+		int shift = 16-8*channel;
+		for (int z=0, i=0; z<slices.length; z++, i+=n) {
+			Object pixels = slices[z];
+			if (pixels instanceof byte[]) {
+				byte[] bytes = (byte[])pixels;
+				for (int j=0; j<n; j++)
+					band[i+j] = bytes[offset+j]&0xff;
+			} else if (pixels instanceof short[]) {
+				short[] shorts = (short[])pixels;
+				for (int j=0; j<n; j++)
+					band[i+j] = shorts[offset+j]&0xffff;
+			} else if (pixels instanceof float[])
+				System.arraycopy(pixels, offset, band, i, n);
+			else {
+				int[] ints = (int[])pixels;
+				for (int j=0; j<n; j++)
+					band[i+j] = (ints[offset+j]>>shift)&0xff;
+			}
+		}
+	}
+
+	/** Writes line z of 'band' back into the slices, with the same rounding as ImageStack.setVoxels. */
+	private static void setBand(Object[] slices, int offset, int n, float[] band, int channel) {
+		int shift = 16-8*channel;
+		for (int z=0, i=0; z<slices.length; z++, i+=n) {
+			Object pixels = slices[z];
+			if (pixels instanceof byte[]) {
+				byte[] bytes = (byte[])pixels;
+				for (int j=0; j<n; j++) {
+					float value = band[i+j];
+					value = value>255f ? 255f : (value<0f ? 0f : value);
+					bytes[offset+j] = (byte)(value+0.5f);
+				}
+			} else if (pixels instanceof short[]) {
+				short[] shorts = (short[])pixels;
+				for (int j=0; j<n; j++) {
+					float value = band[i+j];
+					value = value>65535f ? 65535f : (value<0f ? 0f : value);
+					shorts[offset+j] = (short)(value+0.5f);
+				}
+			} else if (pixels instanceof float[])
+				System.arraycopy(band, i, pixels, offset, n);
+			else {
+				int[] ints = (int[])pixels;
+				for (int j=0; j<n; j++) {
+					float value = band[i+j];
+					int color = value>255f ? 255 : (value<0f ? 0 : (int)value);
+					ints[offset+j] = (ints[offset+j]&~(0xff<<shift)) | (color<<shift);
+				}
+			}
+		}
+	}
+
+	private static void blurHyperStackZ(ImagePlus imp, double zsigma, boolean recursive) {
 		int channels = imp.getNChannels();
 		int slices = imp.getNSlices();
 		int timePoints = imp.getNFrames();
@@ -88,11 +168,11 @@ public class GaussianBlur3D implements PlugIn {
 		for (int c=1; c<=channels; c++) {
 			if (slices==1) {
 				ImageStack stack = getVolume(imp, c, 1);
-				blurZ(stack, zsigma);
+				blurZ(stack, zsigma, recursive);
 			} else {
 				for (int t=1; t<=timePoints; t++) {
 					ImageStack stack = getVolume(imp, c, t);
-					blurZ(stack, zsigma);
+					blurZ(stack, zsigma, recursive);
 					//new ImagePlus("stack-"+c+"-"+t, stack).show();
 				}
 			}
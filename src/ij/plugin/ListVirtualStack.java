@@ -17,6 +17,7 @@ public class ListVirtualStack extends VirtualStack implements PlugIn {
 	private int nImages;
 	private int imageWidth, imageHeight;
 	private ImagePlus imp2;
+	private FileInfo[] fileInfos;  // set by readProcessor(), used by getProcessor()
 
 	public void run(String arg) {
 		OpenDialog  od = new OpenDialog("Open Image List", arg);
@@ -133,15 +134,27 @@ public class ListVirtualStack extends VirtualStack implements PlugIn {
 		for (int i=n; i<nImages; i++)
 			list[i-1] = list[i];
 		list[nImages-1] = null;
+		fileInfos = null;
 		nImages--;
+		VirtualStackCache.remove(this);
 	}
 	
 	/** Returns an ImageProcessor for the specified slice,
 		where {@literal 1<=n<=nslices}. Returns null if the stack is empty.
 	*/
 	public ImageProcessor getProcessor(int n) {
+		ImageProcessor ip = getCachedProcessor(n);
+		FileInfo fi = fileInfos!=null?fileInfos[n-1]:null;
+		if (imp2!=null && fi!=null)
+			imp2.setFileInfo(fi);
+		return ip;
+	}
+
+	/** Reads the specified image from disk. */
+	protected ImageProcessor readProcessor(int n) {
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
+		boolean redirect = IJ.redirectingErrorMessages();
 		IJ.redirectErrorMessages(true);
 		String url = list[n-1];
 		ImagePlus imp = null;
@@ -161,9 +174,10 @@ public class ListVirtualStack extends VirtualStack implements PlugIn {
 			}
 			if (ip.getWidth()!=imageWidth || ip.getHeight()!=imageHeight)
 			ip = ip.resize(imageWidth, imageHeight);
-			IJ.redirectErrorMessages(false);
-			if (imp2!=null)
-				imp2.setFileInfo(imp.getOriginalFileInfo());
+			IJ.redirectErrorMessages(redirect);
+			if (fileInfos==null)
+				fileInfos = new FileInfo[list.length];
+			fileInfos[n-1] = imp.getOriginalFileInfo();
 			return ip;
 		} else {
 				ImageProcessor ip = null;
@@ -173,7 +187,7 @@ public class ListVirtualStack extends VirtualStack implements PlugIn {
 					case 24:  ip=new ColorProcessor(imageWidth,imageHeight); break;
 					case 32: ip=new FloatProcessor(imageWidth,imageHeight); break;
 				}
-			IJ.redirectErrorMessages(false);
+			IJ.redirectErrorMessages(redirect);
 			return ip;
 		}
 	 }
@@ -210,6 +224,7 @@ public class ListVirtualStack extends VirtualStack implements PlugIn {
 			list[i] = list[i*factor];
 			labels[i] = labels[i*factor];
 		}
+		VirtualStackCache.remove(this);
 		ImagePlus imp = WindowManager.getCurrentImage();
 		if (imp!=null) {
 			imp.setSlice(1);
@@ -28,6 +28,7 @@ public class Memory implements PlugIn {
 		GenericDialog gd = new GenericDialog(title);
 		gd.addNumericField("Maximum memory:", max, 0, 5, "MB");
 		gd.addNumericField("Parallel threads:", Prefs.getThreads(), 0, 5, "");
+		gd.addNumericField("Virtual stack cache:", (int)(VirtualStackCache.getMaxBytes()/1048576L), 0, 5, "MB");
 		gd.setInsets(12, 0, 0);
 		gd.addCheckbox("Keep multiple undo buffers", Prefs.keepUndoBuffers);
 		gd.setInsets(12, 0, 0);
@@ -37,6 +38,9 @@ public class Memory implements PlugIn {
 		if (gd.wasCanceled()) return;
 		int max2 = (int)gd.getNextNumber();
 		Prefs.setThreads((int)gd.getNextNumber());
+		int cache = Math.max((int)gd.getNextNumber(), 0);
+		VirtualStackCache.setMaxBytes(cache*1048576L);
+		Prefs.set("vstack.cache", cache);
 		Prefs.keepUndoBuffers = gd.getNextBoolean();
 		Prefs.noClickToGC = !gd.getNextBoolean();
 		if (gd.invalidNumber()) {
@@ -11,6 +11,9 @@ import java.awt.*;
 /** This plugin implements most of the commands
 	in the Edit/Options sub-menu. */
 public class Options implements PlugIn {
+	private static final String[] TIFF_COMPRESSION_NAMES = {"None", "LZW", "LZW with predictor", "PackBits", "Deflate", "Deflate with predictor"};
+	private static final int[] TIFF_COMPRESSIONS = {FileInfo.COMPRESSION_NONE, FileInfo.LZW, FileInfo.LZW_WITH_DIFFERENCING,
+		FileInfo.PACK_BITS, FileInfo.ZIP, FileInfo.ZIP_WITH_DIFFERENCING};
 
  	public void run(String arg) {
 		if (arg.equals("fresh-start"))
@@ -105,6 +108,12 @@ public class Options implements PlugIn {
 	void io() {
 		GenericDialog gd = new GenericDialog("I/O Options");
 		gd.addNumericField("JPEG quality (0-100):", FileSaver.getJpegQuality(), 0, 3, "");
+		int compression = 0;
+		for (int i=0; i<TIFF_COMPRESSIONS.length; i++) {
+			if (TIFF_COMPRESSIONS[i]==FileSaver.getTiffCompression())
+				compression = i;
+		}
+		gd.addChoice("TIFF compression:", TIFF_COMPRESSION_NAMES, TIFF_COMPRESSION_NAMES[compression]);
 		gd.addNumericField("GIF and PNG transparent index:", Prefs.getTransparentIndex(), 0, 3, "");
 		gd.addStringField("File extension for tables (.csv, .tsv or .txt):", Prefs.defaultResultsExtension(), 4);
 		gd.addCheckbox("Use JFileChooser to open/save", Prefs.useJFileChooser);
@@ -131,6 +140,7 @@ public class Options implements PlugIn {
 		if (quality<0) quality = 0;
 		if (quality>100) quality = 100;
 		FileSaver.setJpegQuality(quality);
+		FileSaver.setTiffCompression(TIFF_COMPRESSIONS[gd.getNextChoiceIndex()]);
 		int transparentIndex = (int)gd.getNextNumber();
 		Prefs.setTransparentIndex(transparentIndex);
 		String extension = gd.getNextString();
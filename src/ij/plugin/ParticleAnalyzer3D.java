@@ -0,0 +1,539 @@
+package ij.plugin;
+import ij.*;
+import ij.process.*;
+import ij.gui.*;
+import ij.measure.*;
+import ij.util.Tools;
+import ij.util.ThreadUtil;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Implements the Analyze/Analyze Particles 3D command. Finds the 6, 18 or
+	26-connected objects of a thresholded stack and measures their volume,
+	surface area, centroid, bounding box and intensity. Each line of a slice is
+	split into runs of voxels inside the threshold range; runs touching a run
+	of the previous line or slice are joined with a union-find that keeps the
+	sums of each object at its root. Only the runs of two slices are kept at a
+	time, so large and virtual stacks are read slice by slice. The stack is
+	split into slabs of slices that are labeled in parallel; objects crossing
+	the slab borders are merged at the end. The surface area is the area of
+	the voxel faces between an object and the background.
+*/
+public class ParticleAnalyzer3D implements PlugIn {
+	private static final String[] connectivities = {"6", "18", "26"};
+	private static int staticConnectivity = 26;
+	private static double staticMinSize = 0.0;
+	private static double staticMaxSize = Double.POSITIVE_INFINITY;
+	private static boolean staticExcludeEdges;
+
+	private int connectivity;
+	private double minSize, maxSize;
+	private boolean excludeEdges;
+	private ImageStack stack;
+	private int[] slices;
+	private int width, height, depth;
+	private double level1, level2;
+	private int lower, upper; // threshold range for integer voxel values
+	private float[] cTable;
+	private AtomicInteger slicesDone;
+
+	/** Creates a ParticleAnalyzer3D for 26-connected objects of any size. */
+	public ParticleAnalyzer3D() {
+		this(26, 0.0, Double.POSITIVE_INFINITY, false);
+	}
+
+	/** Creates a ParticleAnalyzer3D for objects with 'connectivity' 6, 18 or 26
+		and 'minSize' to 'maxSize' voxels. With 'excludeEdges', objects touching
+		an edge of the stack are not measured. */
+	public ParticleAnalyzer3D(int connectivity, double minSize, double maxSize, boolean excludeEdges) {
+		if (connectivity!=6 && connectivity!=18 && connectivity!=26)
+			throw new IllegalArgumentException("Connectivity must be 6, 18 or 26");
+		this.connectivity = connectivity;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.excludeEdges = excludeEdges;
+	}
+
+	public void run(String arg) {
+		ImagePlus imp = IJ.getImage();
+		if (imp.getBitDepth()==24) {
+			IJ.error("Analyze Particles 3D", "RGB images are not supported");
+			return;
+		}
+		if (!showDialog())
+			return;
+		connectivity = staticConnectivity;
+		minSize = staticMinSize;
+		maxSize = staticMaxSize;
+		excludeEdges = staticExcludeEdges;
+		imp.startTiming();
+		ResultsTable rt = analyze(imp);
+		if (rt==null)
+			return;
+		IJ.showTime(imp, imp.getStartTime(), rt.size()+" objects, ", imp.getNSlices());
+		rt.show("Particles 3D of "+imp.getTitle());
+	}
+
+	private boolean showDialog() {
+		GenericDialog gd = new GenericDialog("Analyze Particles 3D");
+		gd.addChoice("Connectivity:", connectivities, ""+staticConnectivity);
+		String maxStr = staticMaxSize==Double.POSITIVE_INFINITY?"Infinity":IJ.d2s(staticMaxSize,0);
+		gd.addStringField("Size (voxels):", IJ.d2s(staticMinSize,0)+"-"+maxStr, 12);
+		gd.addCheckbox("Exclude on edges", staticExcludeEdges);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		staticConnectivity = (int)Tools.parseDouble(gd.getNextChoice(), 26);
+		String[] minAndMax = Tools.split(gd.getNextString(), " -");
+		double mins = minAndMax.length>=1?gd.parseDouble(minAndMax[0]):0.0;
+		double maxs = minAndMax.length==2?gd.parseDouble(minAndMax[1]):Double.NaN;
+		staticMinSize = Double.isNaN(mins)||mins<0.0?0.0:mins;
+		staticMaxSize = Double.isNaN(maxs)||maxs<staticMinSize?Double.POSITIVE_INFINITY:maxs;
+		staticExcludeEdges = gd.getNextBoolean();
+		return true;
+	}
+
+	/** Analyzes the objects of 'imp' (the current channel and frame of hyperstacks)
+		within its threshold range. Binary images without threshold are analyzed
+		like by the 2D particle analyzer. Returns a table with a row for each object,
+		in the order of their first voxel (by slice, line and x), or null if the
+		image is not thresholded or an RGB image. */
+	public ResultsTable analyze(ImagePlus imp) {
+		ImageProcessor ip = imp.getProcessor();
+		double t1 = ip.getMinThreshold();
+		double t2 = ip.getMaxThreshold();
+		if (imp.getBitDepth()==24)
+			return null;
+		if (t1==ImageProcessor.NO_THRESHOLD) {
+			if (!ip.isBinary()) {
+				IJ.error("Analyze Particles 3D", "A threshold has not been set using the\n"
+					+"Image->Adjust->Threshold tool or the \n"
+					+"setThreshold(min,max) macro function.");
+				return null;
+			}
+			t1 = t2 = Prefs.blackBackground||imp.isInvertedLut()?255:0;
+		}
+		int[] slices = new int[imp.getNSlices()];
+		for (int z=0; z<slices.length; z++)
+			slices[z] = imp.getStackIndex(imp.getChannel(), z+1, imp.getFrame());
+		return analyze(imp.getStack(), slices, t1, t2, imp.getCalibration());
+	}
+
+	/** Analyzes the objects of 'stack' with voxel values from 'level1' to 'level2'.
+		The calibration 'cal' may be null. */
+	public ResultsTable analyze(ImageStack stack, double level1, double level2, Calibration cal) {
+		int[] slices = new int[stack.getSize()];
+		for (int z=0; z<slices.length; z++)
+			slices[z] = z+1;
+		return analyze(stack, slices, level1, level2, cal);
+	}
+
+	private ResultsTable analyze(ImageStack stack, int[] slices, double level1, double level2, Calibration cal) {
+		if (stack.getBitDepth()==24)
+			throw new IllegalArgumentException("RGB stacks are not supported");
+		this.stack = stack;
+		this.slices = slices;
+		this.level1 = level1;
+		this.level2 = level2;
+		lower = (int)Math.max(Math.ceil(level1), Integer.MIN_VALUE);
+		upper = (int)Math.min(Math.floor(level2), Integer.MAX_VALUE);
+		width = stack.getWidth();
+		height = stack.getHeight();
+		depth = slices.length;
+		cTable = cal!=null&&stack.getBitDepth()!=32?cal.getCTable():null;
+		slicesDone = new AtomicInteger();
+		int nSlabs = Math.max(1, Math.min(Prefs.getThreads(), depth));
+		final Slab[] slabs = new Slab[nSlabs];
+		Callable[] callables = new Callable[nSlabs];
+		for (int s=0; s<nSlabs; s++) {
+			final Slab slab = new Slab((int)((long)depth*s/nSlabs), (int)((long)depth*(s+1)/nSlabs));
+			slabs[s] = slab;
+			callables[s] = new Callable() {
+				public Object call() {
+					slab.label();
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		IJ.showProgress(1.0);
+		Labels objects = slabs[0].labels;
+		int previousOffset = 0;
+		for (int s=1; s<nSlabs; s++) {
+			int offset = objects.append(slabs[s].labels);
+			joinSlabs(objects, slabs[s-1].lastRuns, previousOffset, slabs[s].firstRuns, offset);
+			previousOffset = offset;
+		}
+		return measure(objects, cal);
+	}
+
+	/** Joins the objects of the first slice of a slab with those of the last
+		slice of the slab below, whose labels start at 'offset2' and 'offset1'. */
+	private void joinSlabs(Labels labels, Runs below, int offset1, Runs above, int offset2) {
+		if (below==null || above==null)
+			return;
+		int e = connectivity==6?0:1;
+		for (int y=0; y<height; y++) {
+			for (int i=above.rowStart[y]; i<above.rowStart[y+1]; i++) {
+				int xa=above.x1[i], xb=above.x2[i];
+				int label = labels.join(below, offset1, y, xa, xb, e, above.label[i]+offset2);
+				long overlap = labels.overlap;
+				if (connectivity>6) {
+					if (y>0)
+						label = labels.join(below, offset1, y-1, xa, xb, connectivity==26?1:0, label);
+					if (y<height-1)
+						label = labels.join(below, offset1, y+1, xa, xb, connectivity==26?1:0, label);
+				}
+				labels.facesZ[label] -= 2*overlap;
+			}
+		}
+	}
+
+	private ResultsTable measure(Labels objects, Calibration cal) {
+		double pw=1.0, ph=1.0, pd=1.0;
+		if (cal!=null) {
+			pw = cal.pixelWidth;
+			ph = cal.pixelHeight;
+			pd = cal.pixelDepth;
+		}
+		ResultsTable rt = new ResultsTable();
+		for (int i=0; i<objects.n; i++) {
+			if (objects.parent[i]!=i)
+				continue;
+			long n = objects.count[i];
+			if (n<minSize || n>maxSize)
+				continue;
+			int x1=objects.xmin[i], y1=objects.ymin[i], z1=objects.zmin[i];
+			int x2=objects.xmax[i], y2=objects.ymax[i], z2=objects.zmax[i];
+			if (excludeEdges && (x1==0||y1==0||z1==0||x2==width-1||y2==height-1||z2==depth-1))
+				continue;
+			double sum = objects.sum[i];
+			double mean = sum/n;
+			double variance = (n*objects.sum2[i]-sum*sum)/n;
+			double stdDev = variance>0.0?Math.sqrt(variance/(n-1.0)):0.0;
+			double x = (double)objects.sx[i]/n+0.5;
+			double y = (double)objects.sy[i]/n+0.5;
+			double z = (double)objects.sz[i]/n+0.5;
+			rt.incrementCounter();
+			rt.addValue("Voxels", n);
+			rt.addValue("Volume", n*pw*ph*pd);
+			rt.addValue("Surface", objects.facesX[i]*ph*pd+objects.facesY[i]*pw*pd+objects.facesZ[i]*pw*ph);
+			rt.addValue("Mean", mean);
+			rt.addValue("StdDev", stdDev);
+			rt.addValue("Min", objects.min[i]);
+			rt.addValue("Max", objects.max[i]);
+			rt.addValue("IntDen", n*pw*ph*pd*mean);
+			rt.addValue("X", cal!=null?cal.getX(x):x);
+			rt.addValue("Y", cal!=null?cal.getY(y, height):y);
+			rt.addValue("Z", cal!=null?cal.getZ(z):z);
+			rt.addValue("BX", cal!=null?cal.getX(x1):x1);
+			rt.addValue("BY", cal!=null?cal.getY(y1, height):y1);
+			rt.addValue("BZ", cal!=null?cal.getZ(z1):z1);
+			rt.addValue("Width", (x2-x1+1)*pw);
+			rt.addValue("Height", (y2-y1+1)*ph);
+			rt.addValue("Depth", (z2-z1+1)*pd);
+		}
+		return rt;
+	}
+
+	/** Returns the pixels of slice z (0-based) of the volume. */
+	private Object getPixels(int z) {
+		if (stack.isVirtual()) {
+			synchronized(stack) {
+				return stack.getProcessor(slices[z]).getPixels();
+			}
+		} else
+			return stack.getPixels(slices[z]);
+	}
+
+	/** The slices z0 to z1-1, labeled with their own Labels. */
+	private class Slab {
+		int z0, z1;
+		Labels labels = new Labels();
+		Runs firstRuns, lastRuns;
+
+		Slab(int z0, int z1) {
+			this.z0 = z0;
+			this.z1 = z1;
+		}
+
+		void label() {
+			int e = connectivity==6?0:1;
+			int eDiagonal = connectivity==26?1:0;
+			Runs previous = null;
+			Runs current = new Runs();
+			for (int z=z0; z<z1; z++) {
+				Object pixels = getPixels(z);
+				current.n = 0;
+				for (int y=0; y<height; y++) {
+					current.rowStart[y] = current.n;
+					int offset = y*width;
+					int x = 0;
+					while (true) {
+						x = nextVoxel(pixels, offset, x, true);
+						if (x>=width)
+							break;
+						int xa = x;
+						x = nextVoxel(pixels, offset, x, false);
+						int xb = x-1;
+						int label = -1;
+						long overlapY=0, overlapZ=0;
+						if (y>0) {
+							label = labels.join(current, 0, y-1, xa, xb, e, label);
+							overlapY = labels.overlap;
+						}
+						if (previous!=null) {
+							label = labels.join(previous, 0, y, xa, xb, e, label);
+							overlapZ = labels.overlap;
+							if (connectivity>6) {
+								if (y>0)
+									label = labels.join(previous, 0, y-1, xa, xb, eDiagonal, label);
+								if (y<height-1)
+									label = labels.join(previous, 0, y+1, xa, xb, eDiagonal, label);
+							}
+						}
+						if (label<0)
+							label = labels.newLabel();
+						addRun(pixels, offset, xa, xb, y, z, label, overlapY, overlapZ);
+						current.add(xa, xb, label);
+					}
+				}
+				current.rowStart[height] = current.n;
+				if (z==z0)
+					firstRuns = current;
+				Runs runs = previous;
+				previous = current;
+				current = runs==null||runs==firstRuns?new Runs():runs;
+				IJ.showProgress(slicesDone.incrementAndGet(), depth);
+			}
+			lastRuns = previous;
+		}
+
+		/** Adds the voxels xa to xb of line y in slice z to the object with 'label'. */
+		private void addRun(Object pixels, int offset, int xa, int xb, int y, int z, int label, long overlapY, long overlapZ) {
+			double s=0.0, s2=0.0, vmin=Double.MAX_VALUE, vmax=-Double.MAX_VALUE;
+			for (int x=xa; x<=xb; x++) {
+				double v;
+				if (pixels instanceof byte[]) {
+					int iv = ((byte[])pixels)[offset+x]&255;
+					v = cTable!=null?cTable[iv]:iv;
+				} else if (pixels instanceof short[]) {
+					int iv = ((short[])pixels)[offset+x]&0xffff;
+					v = cTable!=null?cTable[iv]:iv;
+				} else
+					v = ((float[])pixels)[offset+x];
+				s += v;
+				s2 += v*v;
+				if (v<vmin) vmin = v;
+				if (v>vmax) vmax = v;
+			}
+			Labels l = labels;
+			int root = l.find(label);
+			long length = xb-xa+1;
+			if (l.count[root]==0) {
+				l.xmin[root]=xa; l.xmax[root]=xb; l.ymin[root]=y; l.ymax[root]=y; l.zmin[root]=z; l.zmax[root]=z;
+				l.min[root]=vmin; l.max[root]=vmax;
+			} else {
+				if (xa<l.xmin[root]) l.xmin[root] = xa;
+				if (xb>l.xmax[root]) l.xmax[root] = xb;
+				if (y<l.ymin[root]) l.ymin[root] = y;
+				if (y>l.ymax[root]) l.ymax[root] = y;
+				if (z>l.zmax[root]) l.zmax[root] = z;
+				if (vmin<l.min[root]) l.min[root] = vmin;
+				if (vmax>l.max[root]) l.max[root] = vmax;
+			}
+			l.count[root] += length;
+			l.sx[root] += ((long)xa+xb)*length/2;
+			l.sy[root] += y*length;
+			l.sz[root] += z*length;
+			l.sum[root] += s;
+			l.sum2[root] += s2;
+			l.facesX[root] += 2;
+			l.facesY[root] += 2*length-2*overlapY;
+			l.facesZ[root] += 2*length-2*overlapZ;
+		}
+
+		/** Returns the first x from 'x' on where the voxel is inside the threshold
+			range if 'inside' is true, outside if it is false, or 'width' if none. */
+		private int nextVoxel(Object pixels, int offset, int x, boolean inside) {
+			if (pixels instanceof byte[]) {
+				byte[] bytes = (byte[])pixels;
+				for (; x<width; x++) {
+					int v = bytes[offset+x]&255;
+					if ((v>=lower && v<=upper)==inside) break;
+				}
+			} else if (pixels instanceof short[]) {
+				short[] shorts = (short[])pixels;
+				for (; x<width; x++) {
+					int v = shorts[offset+x]&0xffff;
+					if ((v>=lower && v<=upper)==inside) break;
+				}
+			} else {
+				float[] floats = (float[])pixels;
+				for (; x<width; x++) {
+					float v = floats[offset+x];
+					if ((v>=level1 && v<=level2)==inside) break;
+				}
+			}
+			return x;
+		}
+	}
+
+	/** The runs of one slice, line by line, with the label of each run. */
+	private class Runs {
+		int n;
+		int[] x1 = new int[256], x2 = new int[256], label = new int[256];
+		int[] rowStart = new int[height+1];
+
+		void add(int xa, int xb, int l) {
+			if (n==x1.length) {
+				x1 = grow(x1, 2*n);
+				x2 = grow(x2, 2*n);
+				label = grow(label, 2*n);
+			}
+			x1[n] = xa;
+			x2[n] = xb;
+			label[n] = l;
+			n++;
+		}
+	}
+
+	/** Union-find of object labels; the sums of an object are kept at its root,
+		which is the label created first. */
+	private static class Labels {
+		int n;
+		int[] parent = new int[256];
+		long[] count = new long[256], sx = new long[256], sy = new long[256], sz = new long[256];
+		long[] facesX = new long[256], facesY = new long[256], facesZ = new long[256];
+		double[] sum = new double[256], sum2 = new double[256], min = new double[256], max = new double[256];
+		int[] xmin = new int[256], ymin = new int[256], zmin = new int[256];
+		int[] xmax = new int[256], ymax = new int[256], zmax = new int[256];
+		/** Number of voxels of the last run in join() with a face on the runs it was joined with */
+		long overlap;
+
+		int newLabel() {
+			if (n==parent.length)
+				setSize(2*n);
+			parent[n] = n;
+			return n++;
+		}
+
+		int find(int i) {
+			while (parent[i]!=i) {
+				parent[i] = parent[parent[i]];
+				i = parent[i];
+			}
+			return i;
+		}
+
+		/** Joins the objects of labels 'a' and 'b' and returns the root. */
+		int union(int a, int b) {
+			a = find(a);
+			b = find(b);
+			if (a==b)
+				return a;
+			int root = Math.min(a, b);
+			int i = Math.max(a, b);
+			parent[i] = root;
+			if (count[i]>0) {
+				if (count[root]==0) {
+					xmin[root]=xmin[i]; ymin[root]=ymin[i]; zmin[root]=zmin[i];
+					xmax[root]=xmax[i]; ymax[root]=ymax[i]; zmax[root]=zmax[i];
+					min[root]=min[i]; max[root]=max[i];
+				} else {
+					xmin[root]=Math.min(xmin[root],xmin[i]); ymin[root]=Math.min(ymin[root],ymin[i]); zmin[root]=Math.min(zmin[root],zmin[i]);
+					xmax[root]=Math.max(xmax[root],xmax[i]); ymax[root]=Math.max(ymax[root],ymax[i]); zmax[root]=Math.max(zmax[root],zmax[i]);
+					min[root]=Math.min(min[root],min[i]); max[root]=Math.max(max[root],max[i]);
+				}
+			}
+			count[root] += count[i];
+			sx[root] += sx[i]; sy[root] += sy[i]; sz[root] += sz[i];
+			facesX[root] += facesX[i]; facesY[root] += facesY[i]; facesZ[root] += facesZ[i];
+			sum[root] += sum[i]; sum2[root] += sum2[i];
+			return root;
+		}
+
+		/** Joins the run xa-xb with the runs of line 'row' of 'runs' that it
+			touches when extended by 'e' pixels at both ends. The labels of 'runs'
+			start at 'offset'. Returns the root of the run, which is 'label' if
+			that is not negative and no runs are joined, and sets 'overlap'. */
+		int join(Runs runs, int offset, int row, int xa, int xb, int e, int label) {
+			int start = runs.rowStart[row], end = runs.rowStart[row+1];
+			int lo=start, hi=end;
+			while (lo<hi) {
+				int mid = (lo+hi)>>>1;
+				if (runs.x2[mid]<xa-e)
+					lo = mid+1;
+				else
+					hi = mid;
+			}
+			overlap = 0;
+			for (int i=lo; i<end && runs.x1[i]<=xb+e; i++) {
+				int o = Math.min(xb, runs.x2[i])-Math.max(xa, runs.x1[i])+1;
+				if (o>0)
+					overlap += o;
+				int l = runs.label[i]+offset;
+				label = label<0?find(l):union(label, l);
+			}
+			return label<0?label:find(label);
+		}
+
+		/** Appends the labels of 'labels' and returns the offset of their indices. */
+		int append(Labels labels) {
+			int offset = n;
+			setSize(n+labels.n);
+			for (int i=0; i<labels.n; i++)
+				parent[offset+i] = labels.parent[i]+offset;
+			System.arraycopy(labels.count, 0, count, offset, labels.n);
+			System.arraycopy(labels.sx, 0, sx, offset, labels.n);
+			System.arraycopy(labels.sy, 0, sy, offset, labels.n);
+			System.arraycopy(labels.sz, 0, sz, offset, labels.n);
+			System.arraycopy(labels.facesX, 0, facesX, offset, labels.n);
+			System.arraycopy(labels.facesY, 0, facesY, offset, labels.n);
+			System.arraycopy(labels.facesZ, 0, facesZ, offset, labels.n);
+			System.arraycopy(labels.sum, 0, sum, offset, labels.n);
+			System.arraycopy(labels.sum2, 0, sum2, offset, labels.n);
+			System.arraycopy(labels.min, 0, min, offset, labels.n);
+			System.arraycopy(labels.max, 0, max, offset, labels.n);
+			System.arraycopy(labels.xmin, 0, xmin, offset, labels.n);
+			System.arraycopy(labels.ymin, 0, ymin, offset, labels.n);
+			System.arraycopy(labels.zmin, 0, zmin, offset, labels.n);
+			System.arraycopy(labels.xmax, 0, xmax, offset, labels.n);
+			System.arraycopy(labels.ymax, 0, ymax, offset, labels.n);
+			System.arraycopy(labels.zmax, 0, zmax, offset, labels.n);
+			n += labels.n;
+			return offset;
+		}
+
+		private void setSize(int size) {
+			if (size<=parent.length)
+				return;
+			size = Math.max(size, parent.length*2);
+			parent = grow(parent, size);
+			count = grow(count, size); sx = grow(sx, size); sy = grow(sy, size); sz = grow(sz, size);
+			facesX = grow(facesX, size); facesY = grow(facesY, size); facesZ = grow(facesZ, size);
+			sum = grow(sum, size); sum2 = grow(sum2, size); min = grow(min, size); max = grow(max, size);
+			xmin = grow(xmin, size); ymin = grow(ymin, size); zmin = grow(zmin, size);
+			xmax = grow(xmax, size); ymax = grow(ymax, size); zmax = grow(zmax, size);
+		}
+	}
+
+	private static int[] grow(int[] a, int size) {
+		int[] a2 = new int[size];
+		System.arraycopy(a, 0, a2, 0, Math.min(a.length, size));
+		return a2;
+	}
+
+	private static long[] grow(long[] a, int size) {
+		long[] a2 = new long[size];
+		System.arraycopy(a, 0, a2, 0, Math.min(a.length, size));
+		return a2;
+	}
+
+	private static double[] grow(double[] a, int size) {
+		double[] a2 = new double[size];
+		System.arraycopy(a, 0, a2, 0, Math.min(a.length, size));
+		return a2;
+	}
+
+}
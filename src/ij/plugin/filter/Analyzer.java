@@ -2,6 +2,8 @@ package ij.plugin.filter;
 import java.awt.*;
 import java.util.Vector;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import ij.*;
 import ij.gui.*;
 import ij.process.*;
@@ -11,6 +13,7 @@ import ij.plugin.MeasurementsWriter;
 import ij.plugin.Straightener;
 import ij.plugin.frame.RoiManager;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import ij.macro.Interpreter;
 
 /** This plugin implements ImageJ's Analyze/Measure and Analyze/Set Measurements commands. */
@@ -279,6 +282,142 @@ public class Analyzer implements PlugInFilter, Measurements {
 			reset();
 		saveResults(stats, roi);
 	}
+
+	/** Measures the area selections in 'rois' on the stack images in 'slices'
+		and adds the results to the results table, one row per selection and
+		image, ordered by image and then by selection. A null selection
+		measures the whole image and a null 'slices' the current image. The
+		mask of each selection is created once for all images, and the
+		selection and image pairs are measured in parallel. Line and point
+		selections, and measurements redirected to another image, are
+		measured one at a time with measure().
+		Returns the index of the first row added, or -1 if the table could
+		not be reset or if not exactly one row was added per selection and
+		image (e.g., a redirected measurement failed).
+	*/
+	public int measure(Roi[] rois, int[] slices) {
+		String lastHdr = rt.getColumnHeading(ResultsTable.LAST_HEADING);
+		if (lastHdr==null || lastHdr.charAt(0)!='M') {
+			if (!reset()) return -1;
+		}
+		if (!IJ.isResultsWindow() && IJ.getInstance()!=null)
+			reset();
+		firstParticle = lastParticle = 0;
+		if (slices==null)
+			slices = new int[] {imp.getCurrentSlice()};
+		final int nRois = rois.length;
+		final int firstRow = rt.size();
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final Roi[] rois2 = new Roi[nRois];
+		final Rectangle[] bounds = new Rectangle[nRois];
+		final ImageProcessor[] masks = new ImageProcessor[nRois];
+		boolean redirect = isRedirectImage();
+		for (int i=0; i<nRois; i++) {
+			Roi roi = rois[i];
+			if (roi==null)
+				continue;
+			Rectangle r = roi.getBounds();
+			if (roi.isArea() && r.width==0 && r.height==0)
+				continue;	// measured as the whole image, like ImagePlus.setRoi does
+			roi = (Roi)roi.clone();
+			roi.setImage(imp);
+			rois2[i] = roi;
+			if (!roi.isArea() || redirect)
+				continue;
+			ImageProcessor mask = roi.getMask();
+			Rectangle r2 = r.intersection(new Rectangle(0, 0, width, height));
+			if (r2.width<=0 || r2.height<=0) {
+				r2 = new Rectangle(0, 0, 0, 0);
+				mask = null;
+			} else if (mask!=null && !r2.equals(r)) {
+				mask.setRoi(r2.x-r.x, r2.y-r.y, r2.width, r2.height);
+				mask = mask.crop();
+			}
+			bounds[i] = r2;
+			masks[i] = mask;
+		}
+		final ImageStatistics[] stats = new ImageStatistics[slices.length*nRois];
+		if (!redirect)
+			measureAreas(rois2, bounds, masks, slices, stats);
+		int currentSlice = imp.getCurrentSlice();
+		Roi currentRoi = imp.getRoi();
+		boolean changed = false;
+		for (int s=0, pair=0; s<slices.length; s++) {
+			for (int i=0; i<nRois; i++, pair++) {
+				if (stats[pair]!=null) {
+					saveResults(stats[pair], rois2[i], rois2[i], slices[s]);
+					continue;
+				}
+				if (imp.getStackSize()>1)
+					imp.setSliceWithoutUpdate(slices[s]);
+				imp.setRoi(rois2[i], false);
+				changed = true;
+				measure();
+			}
+		}
+		if (changed) {
+			if (imp.getStackSize()>1)
+				imp.setSliceWithoutUpdate(currentSlice);
+			imp.setRoi(currentRoi, false);
+		}
+		return rt.size()-firstRow==slices.length*nRois?firstRow:-1;
+	}
+
+	/** Fills 'stats' with the statistics of each area selection (with its
+		bounds and mask) on each of the 'slices', using Prefs.getThreads()
+		threads. The statistics of pair (slice s, roi i) go to index
+		s*rois.length+i; pairs with a line or point selection are skipped. */
+	private void measureAreas(final Roi[] rois, final Rectangle[] bounds, final ImageProcessor[] masks,
+			final int[] slices, final ImageStatistics[] stats) {
+		final int nRois = rois.length;
+		final int nPairs = slices.length*nRois;
+		final ImageStack stack;
+		if (imp.getStackSize()>1)
+			stack = imp.getImageStack();
+		else {
+			stack = new ImageStack(imp.getWidth(), imp.getHeight());
+			stack.addSlice(null, imp.getProcessor().getPixels());
+		}
+		ImageProcessor ip = imp.getProcessor();
+		final double minThreshold = ip.getMinThreshold();
+		final double maxThreshold = ip.getMaxThreshold();
+		final Calibration cal = imp.getCalibration();
+		final int mOptions = measurements;
+		final boolean oneSlice = imp.getStackSize()==1;
+		int nThreads = stack.isVirtual()?1:Math.min(Prefs.getThreads(), nPairs);
+		final AtomicInteger nextPair = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					ImageProcessor ip = null;
+					int ipSlice = 0;
+					for (int pair=nextPair.getAndIncrement(); pair<nPairs; pair=nextPair.getAndIncrement()) {
+						int i = pair%nRois;
+						if (rois[i]!=null && !rois[i].isArea())
+							continue;
+						int slice = oneSlice?1:slices[pair/nRois];
+						if (ip==null || slice!=ipSlice) {
+							ip = stack.getProcessor(slice);
+							if (minThreshold!=ImageProcessor.NO_THRESHOLD)
+								ip.setThreshold(minThreshold, maxThreshold, ImageProcessor.NO_LUT_UPDATE);
+							ipSlice = slice;
+						}
+						if (rois[i]==null)
+							ip.resetRoi();
+						else {
+							ip.setRoi(bounds[i]);
+							ip.setMask(masks[i]);
+						}
+						stats[pair] = ImageStatistics.getStatistics(ip, mOptions, cal);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
 		
 	/*
 	void showHeadings() {
@@ -537,6 +676,12 @@ public class Analyzer implements PlugInFilter, Measurements {
 		or by calling setMeasurements(), in the default results table.
 	*/
 	public void saveResults(ImageStatistics stats, Roi roi) {
+		saveResults(stats, roi, imp!=null?imp.getRoi():null, imp!=null?imp.getCurrentSlice():1);
+	}
+
+	/** Saves the measurements, where 'labelRoi' (the name of which goes into the
+		label) and the stack position 'slice' may differ from the image's. */
+	private void saveResults(ImageStatistics stats, Roi roi, Roi labelRoi, int slice) {
 		if (rt.getColumnHeading(ResultsTable.LAST_HEADING)==null)
 			reset();
 		clearSummary();
@@ -547,7 +692,7 @@ public class Analyzer implements PlugInFilter, Measurements {
 			umeans[counter-1] = (float)stats.umean;
 		}
 		if ((measurements&LABELS)!=0)
-			rt.addLabel("Label", getFileName());
+			rt.addLabel("Label", getFileName(labelRoi, slice));
 		if ((measurements&AREA)!=0) rt.addValue(ResultsTable.AREA,stats.area);
 		if ((measurements&MEAN)!=0) rt.addValue(ResultsTable.MEAN,stats.mean);
 		if ((measurements&STD_DEV)!=0) rt.addValue(ResultsTable.STD_DEV,stats.stdDev);
@@ -655,7 +800,7 @@ public class Analyzer implements PlugInFilter, Measurements {
 		if ((measurements&STACK_POSITION)!=0) {
 			boolean update = false;
 			if (imp!=null && (imp.isHyperStack()||imp.isComposite())) {
-				int[] position = imp.convertIndexToPosition(imp.getCurrentSlice());
+				int[] position = imp.convertIndexToPosition(slice);
 				if (imp.getNChannels()>1) {
 					int index = rt.getColumnIndex("Ch");
 					if (index<0 || !rt.columnExists(index)) update=true;
@@ -674,7 +819,7 @@ public class Analyzer implements PlugInFilter, Measurements {
 			} else {
 				int index = rt.getColumnIndex("Slice");
 				if (index<0 || !rt.columnExists(index)) update=true;
-				rt.addValue("Slice", imp!=null?imp.getCurrentSlice():1.0);
+				rt.addValue("Slice", slice);
 			}
 			if (update && rt==systemRT && IJ.isResultsWindow())
 				rt.update(measurements, imp, roi);
@@ -805,6 +950,10 @@ public class Analyzer implements PlugInFilter, Measurements {
 	}
 
 	String getFileName() {
+		return imp!=null?getFileName(imp.getRoi(), imp.getCurrentSlice()):"";
+	}
+
+	private String getFileName(Roi roi, int currentSlice) {
 		String s = "";
 		if (imp!=null) {
 			if (redirectTarget!=0) {
@@ -816,7 +965,6 @@ public class Analyzer implements PlugInFilter, Measurements {
 			//int len = s.length();
 			//if (len>4 && s.charAt(len-4)=='.' && !Character.isDigit(s.charAt(len-1)))
 			//	s = s.substring(0,len-4); 
-			Roi roi = imp.getRoi();
 			String roiName = roi!=null?roi.getName():null;
 			if (roiName!=null && !roiName.contains(".")) {
 				if (roiName.length()>30)
@@ -825,7 +973,6 @@ public class Analyzer implements PlugInFilter, Measurements {
 			}
 			if (imp.getStackSize()>1) {
 				ImageStack stack = imp.getStack();
-				int currentSlice = imp.getCurrentSlice();
 				String label = stack.getShortSliceLabel(currentSlice);
 				String colon = s.equals("")?"":":";
 				if (label!=null && !label.equals(""))
@@ -5,6 +5,9 @@ import ij.process.*;
 import ij.measure.*;
 import ij.util.Tools;
 import java.awt.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.util.ThreadUtil;
 
 
 /** Implements ImageJ's Subtract Background command. Based on the concept of the
@@ -65,6 +68,7 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     private final static int X_DIRECTION = 0, Y_DIRECTION = 1,
             DIAGONAL_1A = 2, DIAGONAL_1B = 3, DIAGONAL_2A = 4, DIAGONAL_2B = 5; //filter directions
     private final static int DIRECTION_PASSES = 9; //number of passes for different directions
+    private final static int LINES_PER_CHUNK = 50;  //lines per work unit of filter1D and filter3x3
     private int nPasses = DIRECTION_PASSES;
     private int pass;
     private int flags = DOES_ALL|FINAL_PROCESSING|KEEP_PREVIEW|PARALLELIZE_STACKS;
@@ -319,8 +323,8 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
      *  the two diagonal directions (diagonals are processed only for half the image per call). */
     void filter1D(FloatProcessor fp, int direction, float coeff2, float[] cache, int[] nextPoint) {
         float[] pixels = (float[])fp.getPixels();   //this will become the background
-        int width = fp.getWidth();
-        int height = fp.getHeight();
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
         int startLine = 0;          //index of the first line to handle
         int nLines = 0;             //index+1 of the last line to handle (initialized to avoid compile-time error)
         int lineInc = 0;            //increment from one line to the next in pixels array
@@ -363,11 +367,41 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
                 pointInc = width - 1;
             break;
         }
-        for (int i=startLine; i<nLines; i++) {
-            if (i%50==0) {
-                if (Thread.currentThread().isInterrupted()) return;
-                showProgress(i/(double)nLines);
-            }
+        final float[] pixels2 = pixels;
+        final int direction2=direction, startLine2=startLine, nLines2=nLines, lineInc2=lineInc, pointInc2=pointInc, length2=length;
+        final float coeff = coeff2;
+        final int nChunks = (nLines-startLine+LINES_PER_CHUNK-1)/LINES_PER_CHUNK;
+        final AtomicInteger nextChunk = new AtomicInteger(0);
+        final Thread thread = Thread.currentThread();
+        int nThreads = Math.max(1, Math.min(getThreads(), nChunks));
+        Callable[] callables = new Callable[nThreads];
+        for (int t=0; t<nThreads; t++) {
+            final boolean showProgress = t==0;
+            final float[] cache2 = t==0 ? cache : new float[cache.length];      //each thread needs its own work arrays
+            final int[] nextPoint2 = t==0 ? nextPoint : new int[nextPoint.length];
+            callables[t] = new Callable() {
+                public Object call() {
+                    for (int chunk=nextChunk.getAndIncrement(); chunk<nChunks; chunk=nextChunk.getAndIncrement()) {
+                        if (thread.isInterrupted() || Thread.currentThread().isInterrupted()) return null;
+                        if (showProgress) showProgress(chunk/(double)nChunks);
+                        int i0 = startLine2 + chunk*LINES_PER_CHUNK;
+                        int i1 = Math.min(i0+LINES_PER_CHUNK, nLines2);
+                        filterLines(pixels2, width, height, direction2, i0, i1, lineInc2, pointInc2, length2, coeff, cache2, nextPoint2);
+                    }
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+        if (thread.isInterrupted()) return;
+        pass++;
+    } //void filter1D
+
+    /** Filter lines i0 to i1-1 of one direction. The lines do not share any pixels,
+     *  so different lines may be processed in parallel (with separate work arrays). */
+    private static void filterLines(float[] pixels, int width, int height, int direction, int i0, int i1,
+            int lineInc, int pointInc, int length, float coeff2, float[] cache, int[] nextPoint) {
+        for (int i=i0; i<i1; i++) {
             int startPixel = i*lineInc;
             if (direction == DIAGONAL_2B) startPixel += width-1;
             switch (direction) {
@@ -378,8 +412,7 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
             }
             lineSlideParabola(pixels, startPixel, pointInc, length, coeff2, cache, nextPoint, null);
         }
-        pass++;
-    } //void filter1D
+    }
 
     /** Process one straight line in the image by sliding a parabola along the line
      *  (from the bottom) and setting the values to make all points reachable by
@@ -597,6 +630,11 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         float[] zBall = ball.data;
         int ballWidth = ball.width;
         int radius = ballWidth/2;
+        int nThreads = getThreads();
+        if (nThreads>1 && height>=4*ballWidth) {
+            rollBallInBands(ball, fp, nThreads);
+            return;
+        }
         float[] cache = new float[width*ballWidth]; //temporarily stores the pixels we work on
 
 		Thread thread = Thread.currentThread();
@@ -647,6 +685,83 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         
         //new ImagePlus("bg rolled", fp.duplicate()).show();
     }
+
+    /** Rolls the ball with several threads. The image is split into bands of
+     *  lines; each band is raised by all ball positions within 'radius' of it
+     *  (the halo), reading the input from a copy of the image. The result is
+     *  the same as with rollBall in one thread. */
+    void rollBallInBands(RollingBall ball, FloatProcessor fp, int nThreads) {
+        final float[] pixels = (float[])fp.getPixels();
+        final float[] input = (float[])pixels.clone();
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final RollingBall ball2 = ball;
+        final int bandHeight = Math.max(2*ball.width, (height+nThreads-1)/nThreads);
+        final int nBands = (height+bandHeight-1)/bandHeight;
+        final AtomicInteger nextBand = new AtomicInteger(0);
+        final AtomicInteger bandsDone = new AtomicInteger(0);
+        final Thread thread = Thread.currentThread();
+        nThreads = Math.min(nThreads, nBands);
+        Callable[] callables = new Callable[nThreads];
+        for (int t=0; t<nThreads; t++) {
+            final boolean showProgress = t==0;
+            callables[t] = new Callable() {
+                public Object call() {
+                    for (int band=nextBand.getAndIncrement(); band<nBands; band=nextBand.getAndIncrement()) {
+                        if (thread.isInterrupted() || Thread.currentThread().isInterrupted()) return null;
+                        int yStart = band*bandHeight;
+                        int yEnd = Math.min(yStart+bandHeight, height);
+                        rollBallBand(ball2, input, pixels, width, height, yStart, yEnd);
+                        int done = bandsDone.incrementAndGet();
+                        if (showProgress) showProgress(0.1+0.8*done/nBands);
+                    }
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+    }
+
+    /** Raises the lines yStart to yEnd-1 of 'pixels' to the surface of the
+     *  ball rolled over 'input', for all ball positions that touch these lines. */
+    private static void rollBallBand(RollingBall ball, float[] input, float[] pixels, int width, int height, int yStart, int yEnd) {
+        float[] zBall = ball.data;
+        int ballWidth = ball.width;
+        int radius = ballWidth/2;
+        for (int p=yStart*width; p<yEnd*width; p++)
+            pixels[p] = -Float.MAX_VALUE;           //unprocessed pixels start at minus infinity
+        for (int y=yStart-radius; y<yEnd+radius; y++) { //all positions of the ball center touching the band
+            int y0 = y-radius;                      //the first line to see whether the ball touches
+            if (y0 < 0) y0 = 0;
+            int yBall0 = y0-y+radius;               //y coordinate in the ball corresponding to y0
+            int yend = y+radius;                    //the last line to see whether the ball touches
+            if (yend>=height) yend = height-1;
+            int y0Band = Math.max(y0, yStart);      //the lines of the band that may be raised
+            int yBall0Band = y0Band-y+radius;
+            int yendBand = Math.min(yend, yEnd-1);
+            for (int x=-radius; x<width+radius; x++) {
+                float z = Float.MAX_VALUE;          //the height of the ball (ball is in position x,y)
+                int x0 = x-radius;
+                if (x0 < 0) x0 = 0;
+                int xBall0 = x0-x+radius;
+                int xend = x+radius;
+                if (xend>=width) xend = width-1;
+                for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) { //for all points inside the ball
+                    for (int xp=x0, p=xp+yp*width, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, p++, bp++) {
+                        float zReduced = input[p] - zBall[bp];
+                        if (z > zReduced)           //does this point imply a greater height?
+                            z = zReduced;
+                    }
+                }
+                for (int yp=y0Band, yBall=yBall0Band; yp<=yendBand; yp++,yBall++) //raise pixels to ball surface
+                    for (int xp=x0, p=xp+yp*width, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, p++, bp++) {
+                        float zMin = z + zBall[bp];
+                        if (pixels[p] < zMin)
+                            pixels[p] = zMin;
+                    }
+            }
+        }
+    }
     
     /** Uses bilinear interpolation to find the points in the full-scale background
         given the points from the shrunken image background. (At the edges, it is
@@ -716,14 +831,39 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
      *  pixel value by this operation
      */
     double filter3x3(FloatProcessor fp, int type) {
-        int width = fp.getWidth();
-        int height = fp.getHeight();
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final float[] pixels = (float[])fp.getPixels();
+        final double[] shifts = new double[width+height];   //per line, summed up in a fixed order
+        final int type2 = type;
+        for (int xDirection=1; xDirection>=0; xDirection--) {
+            final boolean inX = xDirection==1;
+            final int nLines = inX ? height : width;
+            final int nChunks = (nLines+LINES_PER_CHUNK-1)/LINES_PER_CHUNK;
+            final AtomicInteger nextChunk = new AtomicInteger(0);
+            int nThreads = Math.max(1, Math.min(getThreads(), nChunks));
+            Callable[] callables = new Callable[nThreads];
+            for (int t=0; t<nThreads; t++) {
+                callables[t] = new Callable() {
+                    public Object call() {
+                        for (int chunk=nextChunk.getAndIncrement(); chunk<nChunks; chunk=nextChunk.getAndIncrement()) {
+                            int i1 = Math.min((chunk+1)*LINES_PER_CHUNK, nLines);
+                            for (int i=chunk*LINES_PER_CHUNK; i<i1; i++) {
+                                if (inX)
+                                    shifts[i] = filter3(pixels, width, i*width, 1, type2);
+                                else
+                                    shifts[height+i] = filter3(pixels, height, i, width, type2);
+                            }
+                        }
+                        return null;
+                    }
+                };
+            }
+            ThreadUtil.startAndJoin(callables);
+        }
         double shiftBy = 0;
-        float[] pixels = (float[])fp.getPixels();
-        for (int y=0; y<height; y++)
-            shiftBy += filter3(pixels, width, y*width, 1, type);
-        for (int x=0; x<width; x++)
-            shiftBy += filter3(pixels, height, x, width, type);
+        for (int i=0; i<shifts.length; i++)
+            shiftBy += shifts[i];
         return shiftBy/width/height;
     }
 
@@ -758,6 +898,12 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         pass = 0;
     }
 
+    /** Number of threads for processing one image; 1 if the slices of a stack are
+     *  already processed in parallel. */
+    private int getThreads() {
+        return ThreadUtil.isParallelThread() ? 1 : Prefs.getThreads();
+    }
+
     private void showProgress(double percent) {
         if (nPasses <= 0) return;
         percent = (double)pass/nPasses + percent/nPasses;
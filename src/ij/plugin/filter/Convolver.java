@@ -10,13 +10,20 @@ import java.awt.*;
 import java.util.*;
 import java.awt.event.*;
 import java.io.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.util.ThreadUtil;
 
-/** This plugin convolves images using user user defined kernels. */
+/** This plugin convolves images using user user defined kernels. Kernels
+	with rank 1 (for example Gaussian or box kernels) are applied as a row
+	pass followed by a column pass, large kernels are applied in the frequency
+	domain, using the FHT on overlapping tiles, and other kernels are applied
+	directly. Rows or tiles of an image are processed in parallel threads. */
 public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionListener {
 
 	private ImagePlus imp;
 	private int kw, kh;
-	private boolean canceled;
+	private volatile boolean canceled;
 	private float[] kernel;
 	private boolean isLineRoi;
 	private Button open, save;
@@ -30,6 +37,8 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 	private PlugInFilterRunner pfr;
 	private Thread mainThread;
 	private int pass;
+	private static final int MIN_FHT_SIZE = 64, MAX_FHT_SIZE = 1024;
+	private static final double FHT_COST = 8.0; // time of an FHT per pixel and log2(size), relative to a multiply-add
 	private static String defaultKernelText = "-1 -1 -1 -1 -1\n-1 -1 -1 -1 -1\n-1 -1 24 -1 -1\n-1 -1 -1 -1 -1\n-1 -1 -1 -1 -1\n";
 	private static boolean defaultNormalizeFlag = true;
 	private static String lastKernelText = defaultKernelText;
@@ -51,10 +60,8 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		Roi roi = imp.getRoi();
 		isLineRoi= roi!=null && roi.isLine();
 		nSlices = imp.getStackSize();
-		if (imp.getStackSize()==1)
-			flags |= PARALLELIZE_IMAGES;
-		else
-			flags |= PARALLELIZE_STACKS;
+		if (imp.getStackSize()>1)
+			flags |= PARALLELIZE_STACKS; // single images use threads in convolveFloat
 		imp.startTiming();
 		return flags;
 	}
@@ -229,67 +236,242 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		if (!(ip instanceof FloatProcessor))
 			throw new IllegalArgumentException("FloatProcessor required");
 		if (canceled) return false;
-		int width = ip.getWidth();
-		int height = ip.getHeight();
-		Rectangle r = ip.getRoi();
-		int x1 = r.x;
-		int y1 = r.y;
-		int x2 = x1 + r.width;
-		int y2 = y1 + r.height;
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final Rectangle r = ip.getRoi();
+		final float[] pixels = (float[])ip.getPixels();
+		float[] snapshot = (float[])ip.getSnapshotPixels();
+		final float[] pixels2 = snapshot!=null?snapshot:(float[])ip.getPixelsCopy();
+		final double scale = normalize?getScale(kernel):1.0;
+		final Thread thread = Thread.currentThread();
+		final boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
+		if (isMainThread) pass++;
+		final float[] kernel2 = kernel;
+		final int kw2=kw, kh2=kh;
+		final float[][] separated = separate(kernel, kw, kh);
+		final int fhtSize = separated==null?getFHTSize(kw, kh, r.width, r.height):0;
+		final FHT kernelFHT = fhtSize>0?getKernelFHT(kernel, kw, kh, fhtSize):null;
+		final int tileWidth = fhtSize-kw+1, tileHeight = fhtSize-kh+1;
+		final int nTilesX = fhtSize>0?(r.width+tileWidth-1)/tileWidth:1;
+		int nThreads = ThreadUtil.isParallelThread()?1:Prefs.getThreads();
+		final int bandHeight = Math.max(Math.max(2*kh, 32), (r.height+4*nThreads-1)/(4*nThreads));
+		final int nUnits = fhtSize>0?nTilesX*((r.height+tileHeight-1)/tileHeight):(r.height+bandHeight-1)/bandHeight;
+		final AtomicInteger nextUnit = new AtomicInteger(0);
+		final AtomicInteger unitsDone = new AtomicInteger(0);
+		final boolean[] escaped = new boolean[1];
+		nThreads = Math.max(1, Math.min(nThreads, nUnits));
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					long lastTime = System.currentTimeMillis();
+					for (int unit=nextUnit.getAndIncrement(); unit<nUnits; unit=nextUnit.getAndIncrement()) {
+						if (canceled || thread.isInterrupted() || Thread.currentThread().isInterrupted())
+							return null;
+						if (fhtSize>0) {
+							int x = (unit%nTilesX)*tileWidth;
+							int y = (unit/nTilesX)*tileHeight;
+							convolveTile(pixels, pixels2, width, height, r, x, y, fhtSize, kernelFHT, kw2, kh2, scale);
+						} else {
+							int y1 = r.y + unit*bandHeight;
+							int y2 = Math.min(y1+bandHeight, r.y+r.height);
+							if (separated!=null)
+								convolveBandSeparable(pixels, pixels2, width, height, r, y1, y2, separated[0], separated[1], scale);
+							else
+								convolveBand(pixels, pixels2, width, height, r, y1, y2, kernel2, kw2, kh2, scale);
+						}
+						int done = unitsDone.incrementAndGet();
+						long time = System.currentTimeMillis();
+						if (isMainThread && time-lastTime>100) {
+							lastTime = time;
+							if (IJ.escapePressed()) {
+								escaped[0] = true;
+								canceled = true;
+								return null;
+							}
+							showProgress(done/(double)nUnits);
+						}
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		if (escaped[0]) {
+			ip.reset();
+			ImageProcessor originalIp = imp.getProcessor();
+			if (originalIp.getNChannels() > 1)
+				originalIp.reset();
+			return false;
+		}
+		return !(canceled || thread.isInterrupted());
+	}
+
+	/** Convolves rows y1 to y2-1 of the rectangle 'r', using a copy of
+		these rows, padded with the edge pixels, as input. */
+	private void convolveBand(float[] pixels, float[] pixels2, int width, int height, Rectangle r,
+	int y1, int y2, float[] kernel, int kw, int kh, double scale) {
 		int uc = kw/2;
 		int vc = kh/2;
-		float[] pixels = (float[])ip.getPixels();
-		float[] pixels2 = (float[])ip.getSnapshotPixels();
-		if (pixels2==null)
-			pixels2 = (float[])ip.getPixelsCopy();
-		double scale = normalize?getScale(kernel):1.0;
-        Thread thread = Thread.currentThread();
-        boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
-        if (isMainThread) pass++;
+		int pw = r.width+kw-1;
+		float[] padded = getPadded(pixels2, width, height, r.x-uc, y1-vc, pw, y2-y1+kh-1);
 		double sum;
 		int offset, i;
-		boolean edgePixel;
-		int xedge = width-uc;
-		int yedge = height-vc;
-		long lastTime = System.currentTimeMillis();
 		for (int y=y1; y<y2; y++) {
-			long time = System.currentTimeMillis();
-			if (time-lastTime>100) {
-				lastTime = time;
-				if (thread.isInterrupted()) return false;
-				if (isMainThread) {
-					if (IJ.escapePressed()) {
-						canceled = true;
-						ip.reset();
-						ImageProcessor originalIp = imp.getProcessor();
-						if (originalIp.getNChannels() > 1)
-							originalIp.reset();
-						return false;
-					}
-					showProgress((y-y1)/(double)(y2-y1));
+			for (int x=0; x<r.width; x++) {
+				sum = 0.0;
+				i = 0;
+				for (int v=0; v<kh; v++) {
+					offset = x+(y-y1+v)*pw;
+					for (int u=0; u<kw; u++)
+						sum += padded[offset+u]*kernel[i++];
 				}
+				pixels[r.x+x+y*width] = (float)(sum*scale);
 			}
-			for (int x=x1; x<x2; x++) {
-				if (canceled) return false;
+		}
+	}
+
+	/** Convolves rows y1 to y2-1 of the rectangle 'r' with a rank 1 kernel,
+		given as a row kernel and a column kernel. */
+	private void convolveBandSeparable(float[] pixels, float[] pixels2, int width, int height, Rectangle r,
+	int y1, int y2, float[] rowKernel, float[] columnKernel, double scale) {
+		int kw = rowKernel.length;
+		int kh = columnKernel.length;
+		int pw = r.width+kw-1;
+		int ph = y2-y1+kh-1;
+		float[] padded = getPadded(pixels2, width, height, r.x-kw/2, y1-kh/2, pw, ph);
+		float[] rows = new float[r.width*ph];
+		double sum;
+		for (int y=0; y<ph; y++) {
+			for (int x=0; x<r.width; x++) {
 				sum = 0.0;
-				i = 0;
-				edgePixel = y<vc || y>=yedge || x<uc || x>=xedge;
-				for (int v=-vc; v <= vc; v++) {
-					offset = x+(y+v)*width;
-					for(int u = -uc; u <= uc; u++) {
-						if (edgePixel) {
- 							if (i>=kernel.length) // work around for JIT compiler bug on Linux
- 								IJ.log("kernel index error: "+i);
-							sum += getPixel(x+u, y+v, pixels2, width, height)*kernel[i++];
-						} else
-							sum += pixels2[offset+u]*kernel[i++];
-					}
-		    	}
-				pixels[x+y*width] = (float)(sum*scale);
+				int offset = x+y*pw;
+				for (int u=0; u<kw; u++)
+					sum += padded[offset+u]*rowKernel[u];
+				rows[x+y*r.width] = (float)sum;
 			}
-    	}
-   		return true;
-   	 }
+		}
+		for (int y=y1; y<y2; y++) {
+			for (int x=0; x<r.width; x++) {
+				sum = 0.0;
+				int offset = x+(y-y1)*r.width;
+				for (int v=0; v<kh; v++) {
+					sum += rows[offset]*columnKernel[v];
+					offset += r.width;
+				}
+				pixels[r.x+x+y*width] = (float)(sum*scale);
+			}
+		}
+	}
+
+	/** Convolves the part of rectangle 'r' that starts at (x,y) and has a size of
+		size-kw+1 by size-kh+1 pixels, by multiplication in the frequency domain. */
+	private void convolveTile(float[] pixels, float[] pixels2, int width, int height, Rectangle r,
+	int x, int y, int size, FHT kernelFHT, int kw, int kh, double scale) {
+		int uc = kw/2;
+		int vc = kh/2;
+		float[] tile = getPadded(pixels2, width, height, r.x+x-uc, r.y+y-vc, size, size);
+		FHT fht = new FHT(new FloatProcessor(size, size, tile, null));
+		fht.transform();
+		FHT result = fht.conjugateMultiply(kernelFHT);
+		result.inverseTransform();
+		float[] values = (float[])result.getPixels();
+		int w = Math.min(size-kw+1, r.width-x);
+		int h = Math.min(size-kh+1, r.height-y);
+		for (int ty=0; ty<h; ty++) {
+			int offset = r.x+x+(r.y+y+ty)*width;
+			int offset2 = uc+(ty+vc)*size;
+			for (int tx=0; tx<w; tx++)
+				pixels[offset+tx] = (float)(values[offset2+tx]*scale);
+		}
+	}
+
+	/** Returns the frequency domain representation of the kernel, with the
+		kernel center at (0,0) and wrapped around at the edges. */
+	private FHT getKernelFHT(float[] kernel, int kw, int kh, int size) {
+		float[] values = new float[size*size];
+		int uc = kw/2;
+		int vc = kh/2;
+		for (int v=-vc, i=0; v<=vc; v++) {
+			for (int u=-uc; u<=uc; u++)
+				values[((u+size)%size)+((v+size)%size)*size] = kernel[i++];
+		}
+		FHT fht = new FHT(new FloatProcessor(size, size, values, null));
+		fht.transform();
+		return fht;
+	}
+
+	/** Returns the size of the FHT tiles that makes convolving a w x h area
+		fastest, or 0 if direct convolution is faster. */
+	private int getFHTSize(int kw, int kh, int w, int h) {
+		double bestCost = (double)kw*kh; // multiply-adds per pixel
+		int bestSize = 0;
+		int maxSize = Math.min(MAX_FHT_SIZE, 2*Math.max(w+kw-1, h+kh-1));
+		for (int size=MIN_FHT_SIZE, log2=6; size<=maxSize; size*=2, log2++) {
+			if (size<2*kw || size<2*kh)
+				continue;
+			long nTiles = (long)((w+size-kw)/(size-kw+1))*((h+size-kh)/(size-kh+1));
+			double cost = FHT_COST*nTiles*size*size*log2/((double)w*h);
+			if (cost<bestCost) {
+				bestCost = cost;
+				bestSize = size;
+			}
+		}
+		return bestSize;
+	}
+
+	/** If the kernel has rank 1, returns a row and a column kernel whose
+		product is the kernel; otherwise returns null. */
+	private float[][] separate(float[] kernel, int kw, int kh) {
+		if (kw==1 || kh==1)
+			return null;
+		int maxIndex = 0;
+		for (int i=1; i<kernel.length; i++) {
+			if (Math.abs(kernel[i])>Math.abs(kernel[maxIndex]))
+				maxIndex = i;
+		}
+		double max = kernel[maxIndex];
+		if (max==0.0)
+			return null;
+		int x0 = maxIndex%kw;
+		int y0 = maxIndex/kw;
+		double tolerance = 1e-6*max*max;
+		for (int y=0; y<kh; y++) {
+			for (int x=0; x<kw; x++) {
+				if (Math.abs(kernel[x+y*kw]*max-kernel[x0+y*kw]*kernel[x+y0*kw])>tolerance)
+					return null;
+			}
+		}
+		float[] rowKernel = new float[kw];
+		float[] columnKernel = new float[kh];
+		for (int x=0; x<kw; x++)
+			rowKernel[x] = kernel[x+y0*kw];
+		for (int y=0; y<kh; y++)
+			columnKernel[y] = (float)(kernel[x0+y*kw]/max);
+		return new float[][] {rowKernel, columnKernel};
+	}
+
+	/** Returns a w x h copy of the image, starting at (x0,y0). Pixels
+		outside the image are set to the value of the nearest edge pixel. */
+	private float[] getPadded(float[] pixels, int width, int height, int x0, int y0, int w, int h) {
+		float[] padded = new float[w*h];
+		int xStart = Math.max(0, Math.min(-x0, w));
+		int xEnd = Math.max(xStart, Math.min(width-x0, w));
+		for (int y=0; y<h; y++) {
+			int yy = Math.max(0, Math.min(y0+y, height-1));
+			int offset = yy*width;
+			int offset2 = y*w;
+			if (xEnd>xStart)
+				System.arraycopy(pixels, offset+x0+xStart, padded, offset2+xStart, xEnd-xStart);
+			float left = pixels[offset];
+			for (int x=0; x<xStart; x++)
+				padded[offset2+x] = left;
+			float right = pixels[offset+width-1];
+			for (int x=xEnd; x<w; x++)
+				padded[offset2+x] = right;
+		}
+		return padded;
+	}
 
 	/** Convolves the image <code>ip</code> with a kernel of width
 		<code>kw</code> and height <code>kh</code>. */
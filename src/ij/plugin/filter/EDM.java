@@ -3,6 +3,10 @@ import ij.*;
 import ij.plugin.*;
 import ij.process.*;
 import ij.gui.*;
+import ij.measure.Calibration;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This plugin implements the Euclidean Distance Map (EDM), Watershed,
@@ -32,19 +36,12 @@ import ij.gui.*;
  * "watershed" for watershed segmentation, "points" for ultimate eroded points and
  * "voronoi" for Voronoi segmentation of the background
  *
- * The EDM algorithm is similar to the 8SSEDT in
- *   F. Leymarie, M. D. Levine, in: CVGIP Image Understanding, vol. 55 (1992), pp 84-94
- *   http://dx.doi.org/10.1016/1049-9660(92)90008-Q
- *
- * The algorithm provides a fast approximation of the EDM, with the deviation from a
- * full calculation being between -0.09 and 0. The algorithm is exact for distances<13.
- * For d>=13, deviations from the true result can occur, but are very rare: typically
- * the fraction of pixels deviating from the exact result is in the 10^-5 range, with
- * most deviations between -0.03 and -0.04.
- *
- * Limitations:
- * Maximum image diagonal for EDM: 46340 pixels (sqrt(2^31)); if the particles are
- * dense enough it also works for width, height <=65534.
+ * The EDM is exact. It is calculated in separate passes for the y and x directions
+ * (and z for stacks), as in
+ *   P. Felzenszwalb, D. Huttenlocher, Theory of Computing 8 (2012), pp 415-428
+ *   http://dx.doi.org/10.4086/toc.2012.v008a019
+ * The lines of each pass are processed in parallel threads. For stacks, makeFloatEDM
+ * can also create a 3D EDM, taking the voxel size into account.
  *
  * Version 30-Apr-2008 Michael Schmid:  more accurate EDM algorithm,
  *                                      16-bit and float output possible,
@@ -93,7 +90,8 @@ public class EDM implements ExtendedPlugInFilter {
     //prefixes for titles of separate output images; for each processType:
     private static final String[] TITLE_PREFIX = new String[] {
             "EDM of ", null, "UEPs of ", "Voronoi of "};
-    private static final int NO_POINT = -1; //no nearest point in array of nearest points
+    private static final int Y_PASS = 0, X_PASS = 1, Z_PASS = 2; //passes of the EDM algorithm
+    private static final int LINES_PER_UNIT = 64; //lines per work unit of the parallel threads
     private static final double MAXFINDER_TOLERANCE = 0.5; //reasonable values are 0.3 ... 0.8;
                                     //segmentation is more aggressive with smaller values
     /** Output type (BYTE_OVERWRITE, BYTE, SHORT or FLOAT) */
@@ -271,124 +269,193 @@ public class EDM implements ExtendedPlugInFilter {
         int width = ip.getWidth();
         int height = ip.getHeight();
         FloatProcessor fp = new FloatProcessor(width, height);
-        byte[] bPixels = (byte[])ip.getPixels();
-        float[] fPixels = (float[])fp.getPixels();
-        final int progressInterval = 100;
-        int nProgressUpdates = height/progressInterval;  //how often the progress bar is updated when passing once through y range
-        double progressAddendum = (nProgressUpdates>0) ? 0.5/nProgressUpdates : 0;
+        byte[][] bSlices = new byte[][] {(byte[])ip.getPixels()};
+        float[][] fSlices = new float[][] {(float[])fp.getPixels()};
+        if (!edmPass(Y_PASS, bSlices, fSlices, width, height, backgroundValue, edgesAreBackground, 1.0, false))
+            return null;
+        addProgress(0.5);
+        if (!edmPass(X_PASS, bSlices, fSlices, width, height, backgroundValue, edgesAreBackground, 1.0, true))
+            return null;
+        addProgress(0.5);
+        fp.resetMinAndMax();
+        return fp;
+    } //public FloatProcessor makeFloatEDM
 
-        for (int i=0; i<width*height; i++)
-            if (bPixels[i]!=backgroundValue) fPixels[i] = Float.MAX_VALUE;
+    /**
+     * Creates the 3D Euclidian Distance Map of a (binary) stack of byte images.
+     * Distances are measured in 3D, with the voxel size given by the calibration.
+     * @param stack             The input stack, not modified; must consist of ByteProcessors.
+     * @param backgroundValue   Pixels in the input with this value are interpreted as background.
+     *                          Note: for pixel value 255, write either -1 or (byte)255.
+     * @param edgesAreBackground Whether out-of-stack voxels are considered background
+     * @param cal               Voxel width, height and depth; if null, all are 1 (distances in pixels)
+     * @return                  A stack of FloatProcessors with the distances to the nearest background
+     *                          voxel, in calibrated units. Returns null if the thread is interrupted.
+     */
+    public ImageStack makeFloatEDM (ImageStack stack, int backgroundValue, boolean edgesAreBackground, Calibration cal) {
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        int depth = stack.getSize();
+        double pw = cal==null ? 1.0 : cal.pixelWidth;
+        double ph = cal==null ? 1.0 : cal.pixelHeight;
+        double pd = cal==null ? 1.0 : cal.pixelDepth;
+        byte[][] bSlices = new byte[depth][];
+        float[][] fSlices = new float[depth][];
+        ImageStack edmStack = new ImageStack(width, height);
+        for (int z=0; z<depth; z++) {
+            bSlices[z] = (byte[])stack.getPixels(z+1);
+            FloatProcessor fp = new FloatProcessor(width, height);
+            fSlices[z] = (float[])fp.getPixels();
+            edmStack.addSlice(stack.getSliceLabel(z+1), fp);
+        }
+        if (!edmPass(Y_PASS, bSlices, fSlices, width, height, backgroundValue, edgesAreBackground, ph, false))
+            return null;
+        addProgress(0.3);
+        if (!edmPass(X_PASS, bSlices, fSlices, width, height, backgroundValue, edgesAreBackground, pw, depth==1))
+            return null;
+        addProgress(0.3);
+        if (depth>1 && !edmPass(Z_PASS, bSlices, fSlices, width, height, backgroundValue, edgesAreBackground, pd, true))
+            return null;
+        addProgress(0.4);
+        return edmStack;
+    } //public ImageStack makeFloatEDM
 
-        int[][] pointBufs = new int[2][width];  //two buffers for two passes; low short contains x, high short y
-        int yDist = Integer.MAX_VALUE;          //this value is used only if edges are not background
-        // pass 1 & 2: increasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
+    /** Does one pass of the EDM, with the lines of the pass distributed over parallel threads.
+     *  The Y_PASS determines the squared distance to the nearest background point along y,
+     *  the X_PASS and Z_PASS replace each value by the minimum of value + (squared distance)
+     *  along the line. 'scale' is the pixel size in the direction of the pass.
+     *  With 'sqrt', the squared distances are converted to distances at the end of the pass.
+     *  Returns false if the thread is interrupted. */
+    private boolean edmPass(final int pass, final byte[][] bSlices, final float[][] fSlices, final int width, final int height,
+            final int backgroundValue, final boolean edgesAreBackground, final double scale, final boolean sqrt) {
+        final int depth = fSlices.length;
+        final int nUnitsPerSlice = pass==Y_PASS ? (width+LINES_PER_UNIT-1)/LINES_PER_UNIT : (height+LINES_PER_UNIT-1)/LINES_PER_UNIT;
+        final int nUnits = pass==Z_PASS ? nUnitsPerSlice : depth*nUnitsPerSlice;
+        final int length = pass==Y_PASS ? height : (pass==X_PASS ? width : depth);
+        final AtomicInteger nextUnit = new AtomicInteger(0);
+        final Thread thread = Thread.currentThread();
+        int nThreads = Math.max(1, Math.min(ThreadUtil.isParallelThread() ? 1 : Prefs.getThreads(), nUnits));
+        Callable[] callables = new Callable[nThreads];
+        for (int t=0; t<nThreads; t++) {
+            callables[t] = new Callable() {
+                public Object call() {
+                    float[] f = new float[length];  //work arrays of this thread
+                    float[] d = pass==Z_PASS ? new float[length] : null;
+                    int[] v = new int[length];
+                    double[] zz = new double[length+1];
+                    int[] dist = pass==Y_PASS ? new int[LINES_PER_UNIT] : null;
+                    for (int unit=nextUnit.getAndIncrement(); unit<nUnits; unit=nextUnit.getAndIncrement()) {
+                        if (thread.isInterrupted() || Thread.currentThread().isInterrupted()) return null;
+                        int slice = pass==Z_PASS ? 0 : unit/nUnitsPerSlice;
+                        int line0 = (unit%nUnitsPerSlice)*LINES_PER_UNIT;
+                        if (pass==Y_PASS) {
+                            int x1 = Math.min(line0+LINES_PER_UNIT, width);
+                            yDistances(bSlices[slice], fSlices[slice], width, height, line0, x1, backgroundValue, edgesAreBackground, scale, dist);
+                        } else if (pass==X_PASS) {
+                            float[] pixels = fSlices[slice];
+                            for (int y=line0; y<Math.min(line0+LINES_PER_UNIT, height); y++) {
+                                System.arraycopy(pixels, y*width, f, 0, width);
+                                edmLine(f, pixels, y*width, width, scale*scale, edgesAreBackground, v, zz);
+                                if (sqrt)
+                                    for (int p=y*width; p<(y+1)*width; p++)
+                                        pixels[p] = (float)Math.sqrt(pixels[p]);
+                            }
+                        } else {
+                            for (int y=line0; y<Math.min(line0+LINES_PER_UNIT, height); y++) {
+                                for (int x=0, p=y*width; x<width; x++, p++) {
+                                    for (int z=0; z<depth; z++)
+                                        f[z] = fSlices[z][p];
+                                    edmLine(f, d, 0, depth, scale*scale, edgesAreBackground, v, zz);
+                                    for (int z=0; z<depth; z++)
+                                        fSlices[z][p] = sqrt ? (float)Math.sqrt(d[z]) : d[z];
+                                }
+                            }
+                        }
+                    }
+                    return null;
+                }
+            };
         }
+        ThreadUtil.startAndJoin(callables);
+        return !thread.isInterrupted();
+    } //private boolean edmPass
+
+    // Squared distances along y to the nearest background pixel for columns x0 to x1-1,
+    // Float.MAX_VALUE if there is none. 'dist' is a work array, length at least x1-x0.
+    private static void yDistances(byte[] bPixels, float[] fPixels, int width, int height, int x0, int x1,
+            int backgroundValue, boolean edgesAreBackground, double scale, int[] dist) {
+        int nX = x1 - x0;
+        int noBackground = Integer.MAX_VALUE;
+        for (int i=0; i<nX; i++)        // downwards
+            dist[i] = edgesAreBackground ? 0 : noBackground;
         for (int y=0; y<height; y++) {
-            if (edgesAreBackground) yDist = y+1; //distance to nearest background point (along y)
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
+            for (int x=x0, i=0, p=x0+y*width; x<x1; x++, i++, p++) {
+                if (bPixels[p] == backgroundValue)
+                    dist[i] = 0;
+                else if (dist[i] != noBackground)
+                    dist[i]++;
+                fPixels[p] = dist[i] == noBackground ? Float.MAX_VALUE : (float)(scale*dist[i]*scale*dist[i]);
             }
         }
-        //pass 3 & 4: decreasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
-        }
+        for (int i=0; i<nX; i++)        // upwards
+            dist[i] = edgesAreBackground ? 0 : noBackground;
         for (int y=height-1; y>=0; y--) {
-            if (edgesAreBackground) yDist = height-y;
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
+            for (int x=x0, i=0, p=x0+y*width; x<x1; x++, i++, p++) {
+                if (bPixels[p] == backgroundValue)
+                    dist[i] = 0;
+                else if (dist[i] != noBackground)
+                    dist[i]++;
+                if (dist[i] != noBackground) {
+                    float d2 = (float)(scale*dist[i]*scale*dist[i]);
+                    if (fPixels[p] > d2) fPixels[p] = d2;
+                }
             }
         }
+    } //private void yDistances
 
-        fp.sqrt();
-        return fp;
-    } //public FloatProcessor makeFloatEDM
-
-    // Handle a line; two passes: left-to-right and right-to-left
-    private void edmLine(byte[] bPixels, float[] fPixels, int[][] pointBufs, int width,
-            int offset, int y, int backgroundValue, int yDist) {
-        int[] points = pointBufs[0];        // the buffer for the left-to-right pass
-        int pPrev = NO_POINT;
-        int pDiag = NO_POINT;               // point at (-/+1, -/+1) to current one (-1,-1 in the first pass)
-        int pNextDiag;
-        boolean edgesAreBackground = yDist != Integer.MAX_VALUE;
-        int distSqr = Integer.MAX_VALUE;    // this value is used only if edges are not background
-        for (int x=0; x<width; x++, offset++) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (x+1 < yDist) ? (x+1)*(x+1) : yDist*yDist; //distance from edge
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+    // Handles a line of squared distances 'f' of given length: writes to 'd' (starting at 'offset') the minimum over all
+    // points j of f[j] + scale2*(i-j)^2 (the lower envelope of parabolas, as in
+    // P. Felzenszwalb, D. Huttenlocher, Theory of Computing 8, 415-428 (2012)).
+    // Points with f=Float.MAX_VALUE have no background in the previous directions and are skipped.
+    // 'v' and 'zz' are work arrays for the positions of the parabolas and the envelope boundaries.
+    private static void edmLine(float[] f, float[] d, int offset, int length, double scale2, boolean edgesAreBackground,
+            int[] v, double[] zz) {
+        int k = -1;                         // index of the rightmost parabola in the envelope
+        for (int q=0; q<length; q++) {
+            if (f[q] == Float.MAX_VALUE) continue;
+            double fq = f[q] + scale2*q*q;
+            double s = 0;
+            while (k >= 0) {                // intersection with the rightmost parabola
+                int vk = v[k];
+                s = (fq - (f[vk] + scale2*vk*vk))/(2*scale2*(q - vk));
+                if (k > 0 && s <= zz[k])
+                    k--;                    // parabola k is hidden by q and k-1
+                else
+                    break;
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
+            k++;
+            v[k] = q;
+            zz[k] = k==0 ? -Double.MAX_VALUE : s;
         }
-        offset--; //now points to the last pixel in the line
-        points = pointBufs[1];              // the buffer for the right-to-left pass. Low short contains x, high short y
-        pPrev = NO_POINT;
-        pDiag = NO_POINT;
-        for (int x=width-1; x>=0; x--, offset--) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (width-x < yDist) ? (width-x)*(width-x) : yDist*yDist;
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+        if (k < 0) {                        // no background in this line
+            for (int q=0; q<length; q++)
+                d[offset+q] = Float.MAX_VALUE;
+        } else {
+            zz[k+1] = Double.MAX_VALUE;
+            for (int q=0, j=0; q<length; q++) {
+                while (zz[j+1] < q) j++;
+                double dq = (q - v[j]);
+                d[offset+q] = (float)(f[v[j]] + scale2*dq*dq);
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
         }
-    } //private void edmLine
-
-    // Calculates minimum distance^2 of x,y from the following three points:
-    //  - points[x] (nearest point found for previous line, same x)
-    //  - pPrev (nearest point found for same line, previous x), and
-    //  - pDiag (nearest point found for diagonal, i.e., previous line, previous x)
-    // Sets array element points[x] to the coordinates of the point having the minimum distance to x,y
-    // If the distSqr parameter is lower than the distance^2, then distSqr is used
-    // Returns to the minimum distance^2 obtained
-    private float minDist2 (int[] points, int pPrev, int pDiag, int x, int y, int distSqr) {
-        int p0 = points[x];              // the nearest background point for the same x in the previous line
-        int nearestPoint = p0;
-        if (p0 != NO_POINT) {
-            int x0 = p0& 0xffff; int y0 = (p0>>16)&0xffff;
-            int dist1Sqr = (x-x0)*(x-x0)+(y-y0)*(y-y0);
-            if (dist1Sqr < distSqr)
-                distSqr = dist1Sqr;
-        }
-        if (pDiag!=p0 && pDiag!=NO_POINT) {
-            int x1 = pDiag&0xffff; int y1 = (pDiag>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pDiag;
-                distSqr = dist1Sqr;
+        if (edgesAreBackground) {           // out-of-image points at -1 and length
+            for (int q=0; q<length; q++) {
+                int dEdge = Math.min(q+1, length-q);
+                float d2 = (float)(scale2*dEdge*dEdge);
+                if (d[offset+q] > d2) d[offset+q] = d2;
             }
         }
-        if (pPrev!=pDiag && pPrev!=NO_POINT) {
-            int x1 = pPrev& 0xffff; int y1 = (pPrev>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pPrev;
-                distSqr = dist1Sqr;
-            }
-        }
-        points[x] = nearestPoint;
-        return (float)distSqr;
-    } //private float minDist2
+    } //private void edmLine
 
     // overwrite ip with floatEdm converted to bytes
     private void byteFromFloat(ImageProcessor ip, FloatProcessor floatEdm) {
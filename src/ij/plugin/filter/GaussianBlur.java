@@ -26,6 +26,11 @@ import java.util.concurrent.atomic.AtomicLong;
  * - For increased speed, except for small blur radii, the lines (rows or
  * columns of the image) are downscaled before convolution and upscaled
  * to their original length thereafter.
+ * - With the 'Recursive' option (or setRecursive(true)), large blur radii
+ * use a recursive (IIR) filter (Young, van Vliet, Verbeek), where the
+ * computing time per pixel does not depend on sigma. It deviates from the
+ * exact Gaussian by up to about 1% of the kernel peak (about twice the
+ * truncation error with accuracy=0.01), so it is not used by default.
  * 
  * Version 03-Jun-2007 M. Schmid with preview, progressBar stack-aware,
  * snapshot via snapshot flag; restricted range for resetOutOfRoi
@@ -39,6 +44,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     /** for remembering till the next invocation */
     private static double sigmaS = 2.0;
     private static boolean sigmaScaledS = false;
+    private static boolean recursiveS = false;
     /** the standard deviation of the Gaussian*/
     private double sigma = sigmaS;
     /** whether sigma is given in units corresponding to the pixel scale (not pixels)*/
@@ -52,6 +58,13 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     private int pass;                        // Current pass
     private boolean noProgress;      // Do not show progress bar
     private boolean calledAsPlugin;
+    private boolean recursive;       // Use the recursive filter for large sigma
+    /** Minimum sigma where the recursive filter is used; below, it is less accurate and not faster */
+    private static final double MIN_RECURSIVE_SIGMA = 3.0;
+    /** Maximum sigma where the recursive filter is used; above, its coefficients are too close to 1 */
+    private static final double MAX_RECURSIVE_SIGMA = 1000.0;
+    /** Number of columns filtered together by the recursive filter in y direction */
+    private static final int RECURSIVE_COLUMNS = 32;
     
     /** Method to return types supported
      * @param arg unused
@@ -91,6 +104,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
             gd.addCheckbox("Scaled Units ("+imp.getCalibration().getUnits()+")", sigmaScaled);
         } else
             sigmaScaled = false;
+        gd.addCheckbox("Recursive (fast for large sigma)", recursiveS);
         gd.addPreviewCheckbox(pfr);
         gd.addDialogListener(this);
         gd.showDialog();                    // input by the user (or macro) happens here
@@ -98,6 +112,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         if (options==null) {                // interactive use: remember values as default for the next invocation
             sigmaS = sigma;
             sigmaScaledS = sigmaScaled;
+            recursiveS = recursive;
         }
         if (oldMacro) sigma /= 2.5;         // for old macros, "radius" was 2.5 sigma
         IJ.register(this.getClass());       // protect static class variables (parameters) from garbage collection
@@ -111,6 +126,7 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
             return false;
         if (hasScale)
             sigmaScaled = gd.getNextBoolean();
+        recursive = gd.getNextBoolean();
         return true;
     }
 
@@ -222,6 +238,10 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     public void blur1Direction( final FloatProcessor ip, final double sigma, final double accuracy,
             final boolean xDirection, final int extraLines) {
         
+        if (recursive && sigma >= MIN_RECURSIVE_SIGMA && sigma <= MAX_RECURSIVE_SIGMA) {
+            blur1DirectionRecursive(ip, sigma, xDirection, extraLines);
+            return;
+        }
         final int UPSCALE_K_RADIUS = 2;                     //number of pixels to add for upscaling
         final double MIN_DOWNSCALED_SIGMA = 4.;             //minimum standard deviation in the downscaled image
         final float[] pixels = (float[])ip.getPixels();
@@ -318,6 +338,165 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         if (pass > nPasses) pass = 1;
     }
 
+    /** Blur an image in one direction (x or y) with the recursive approximation of
+     * a Gaussian. Lines are always read over their full length, since the filter
+     * has no finite kernel radius. In y direction, several columns are filtered
+     * together, so that the pixels are accessed row by row.
+     */
+    private void blur1DirectionRecursive(final FloatProcessor ip, final double sigma,
+            final boolean xDirection, final int extraLines) {
+        final float[] pixels = (float[])ip.getPixels();
+        final int width = ip.getWidth();
+        final int height = ip.getHeight();
+        final Rectangle roi = ip.getRoi();
+        final int length = xDirection ? width : height;
+        final int lineFrom = Math.max((xDirection ? roi.y : roi.x) - extraLines, 0);
+        final int lineTo = Math.min((xDirection ? roi.y+roi.height : roi.x+roi.width) + extraLines,
+                xDirection ? height : width);
+        final int writeFrom = xDirection? roi.x : roi.y;
+        final int writeTo = xDirection ? roi.x+roi.width : roi.y+roi.height;
+        final int lineStep = xDirection ? 1 : RECURSIVE_COLUMNS; //lines processed together
+        final double[] coefficients = makeRecursiveCoefficients(sigma);
+
+        int numThreads = Math.min(Prefs.getThreads(), (lineTo-lineFrom+lineStep-1)/lineStep);
+        numThreads = Math.min(numThreads, (int)((lineTo-lineFrom)*(long)length/20000) + 1);
+        final Callable[] callables = new Callable[numThreads];
+        final AtomicInteger nextLine = new AtomicInteger(lineFrom);
+        final AtomicLong lastShowProgressTime = new AtomicLong(System.currentTimeMillis());
+        for (int t = 0; t < numThreads; t++) {
+            final double[] cache = new double[(length+6)*lineStep];
+            callables[t] = new Callable() {
+                final public Void call() {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        int line = nextLine.getAndAdd(lineStep);
+                        if (line >= lineTo) break;
+                        long time = System.currentTimeMillis();
+                        if (time - lastShowProgressTime.get() > 110) {
+                            lastShowProgressTime.set(time);
+                            showProgress((double)(line-lineFrom)/(lineTo-lineFrom));
+                        }
+                        if (xDirection) {
+                            for (int i=0, p=line*width; i<length; i++, p++)
+                                cache[i+3] = pixels[p];
+                            recursiveGaussianLines(cache, length, 1, coefficients);
+                            for (int i=writeFrom, p=line*width+writeFrom; i<writeTo; i++, p++)
+                                pixels[p] = (float)cache[i+3];
+                        } else {
+                            int n = Math.min(lineStep, lineTo-line);
+                            for (int i=0, p=line, c=3*n; i<length; i++, p+=width, c+=n)
+                                for (int j=0; j<n; j++)
+                                    cache[c+j] = pixels[p+j];
+                            recursiveGaussianLines(cache, length, n, coefficients);
+                            for (int i=writeFrom, p=line+writeFrom*width, c=(writeFrom+3)*n; i<writeTo; i++, p+=width, c+=n)
+                                for (int j=0; j<n; j++)
+                                    pixels[p+j] = (float)cache[c+j];
+                        }
+                    }
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+        showProgress(1.0);
+        pass++;
+        if (pass > nPasses) pass = 1;
+    }
+
+    /** Filters 'n' interleaved lines with the recursive Gaussian, in place.
+     * Point i of line j is cache[(i+3)*n+j]; the 3 points before and after
+     * each line are used for the boundary values. Out-of-line points are
+     * assumed to equal the nearest edge point, as for the convolution.
+     * @param cache     the lines, with 3 spare points at both ends
+     * @param length    number of points per line
+     * @param n         number of lines
+     * @param c         coefficients as returned by makeRecursiveCoefficients
+     */
+    final static private void recursiveGaussianLines(final double[] cache, final int length, final int n, final double[] c) {
+        final double b = c[0], a1 = c[1], a2 = c[2], a3 = c[3];
+        final int start = 3*n;                  //index of the first point
+        final int end = (length+3)*n;           //index of the point after the last one
+        for (int j=0; j<n; j++) {               //for constant input, the output of the causal filter is the same constant
+            cache[j] = cache[n+j] = cache[2*n+j] = cache[start+j];
+            cache[end+j] = cache[end-n+j];      //remember the last input point
+        }
+        for (int i=start; i<end; i+=n)          //causal filter
+            for (int j=i; j<i+n; j++)
+                cache[j] = b*cache[j] + a1*cache[j-n] + a2*cache[j-2*n] + a3*cache[j-3*n];
+        for (int j=end; j<end+n; j++) {         //initial values of the anticausal filter (Triggs & Sdika)
+            double last = cache[j];
+            double w1 = cache[j-n]-last, w2 = cache[j-2*n]-last, w3 = cache[j-3*n]-last;
+            cache[j] = last + c[4]*w1 + c[5]*w2 + c[6]*w3;
+            cache[j+n] = last + c[7]*w1 + c[8]*w2 + c[9]*w3;
+            cache[j+2*n] = last + c[10]*w1 + c[11]*w2 + c[12]*w3;
+        }
+        for (int i=end-n; i>=start; i-=n)       //anticausal filter
+            for (int j=i; j<i+n; j++)
+                cache[j] = b*cache[j] + a1*cache[j+n] + a2*cache[j+2*n] + a3*cache[j+3*n];
+    }
+
+    /** Coefficients of the 3rd-order recursive Gaussian filter
+     * y[i] = b*x[i] + a1*y[i-1] + a2*y[i-2] + a3*y[i-3], applied forward and backward.
+     * The poles are those of van Vliet, Young and Verbeek (Proc. ICPR 1998), scaled such
+     * that the variance of the filter is exactly sigma^2. The boundary condition at the end
+     * of a line follows Triggs and Sdika (IEEE Trans. Signal Process. 54, 2365, 2006); the
+     * matrix is obtained by running the filter beyond the end of the line.
+     * @return {b, a1, a2, a3, followed by the 3x3 matrix (row by row) that gives
+     *         the anticausal filter output at points length, length+1, length+2 from the
+     *         causal filter output at points length-1, length-2, length-3,
+     *         all relative to the last input value}
+     */
+    private static double[] makeRecursiveCoefficients(double sigma) {
+        final double[] poleRe = {1.41650, 1.86543}, poleIm = {1.00829, 0}; //complex pair and real pole for sigma=2
+        double q = sigma/2;                     //scaling exponent for the poles, approximately
+        for (int i=0; i<50; i++) {              //Newton iteration for the variance
+            double variance = recursiveVariance(poleRe, poleIm, q);
+            double derivative = (recursiveVariance(poleRe, poleIm, q*1.0001) - variance)/(q*0.0001);
+            double dq = (variance - sigma*sigma)/derivative;
+            q -= dq;
+            if (Math.abs(dq) < 1e-10*q) break;
+        }
+        double[] mag = new double[2], re = new double[2];
+        for (int k=0; k<2; k++) {               //poles inside the unit circle: 1/d^(1/q)
+            mag[k] = Math.pow(Math.hypot(poleRe[k], poleIm[k]), -1/q);
+            re[k] = mag[k]*Math.cos(Math.atan2(poleIm[k], poleRe[k])/q);
+        }
+        double a1 = 2*re[0] + re[1];
+        double a2 = -(mag[0]*mag[0] + 2*re[0]*re[1]);
+        double a3 = mag[0]*mag[0]*re[1];
+        double b = 1 - a1 - a2 - a3;
+        double[] c = new double[13];
+        c[0] = b; c[1] = a1; c[2] = a2; c[3] = a3;
+        int nExtra = (int)Math.ceil(Math.log(1e-12)/Math.log(Math.max(mag[0], mag[1]))) + 3;
+        double[] w = new double[nExtra];
+        double[] y = new double[nExtra+3];
+        for (int j=0; j<3; j++) {               //response to a deviation of the causal output at point length-1-j
+            for (int k=0; k<3; k++)
+                w[k] = k==2-j ? 1 : 0;
+            for (int k=3; k<nExtra; k++)
+                w[k] = a1*w[k-1] + a2*w[k-2] + a3*w[k-3];
+            for (int k=nExtra-1; k>=3; k--)
+                y[k] = b*w[k] + a1*y[k+1] + a2*y[k+2] + a3*y[k+3];
+            for (int i=0; i<3; i++)
+                c[4+3*i+j] = y[3+i];
+        }
+        return c;
+    }
+
+    /** Variance of the forward-backward recursive filter with poles d^(1/q),
+     * where d are the complex pair poleRe[0]+-i*poleIm[0] and the real pole poleRe[1] */
+    private static double recursiveVariance(double[] poleRe, double[] poleIm, double q) {
+        double sum = 0;
+        for (int k=0; k<2; k++) {               //2*sum of d/(d-1)^2 over the poles
+            double m = Math.pow(Math.hypot(poleRe[k], poleIm[k]), 1/q);
+            double phi = Math.atan2(poleIm[k], poleRe[k])/q;
+            double dRe = m*Math.cos(phi), dIm = m*Math.sin(phi);
+            double sRe = (dRe-1)*(dRe-1) - dIm*dIm, sIm = 2*(dRe-1)*dIm;
+            double v = (dRe*sRe + dIm*sIm)/(sRe*sRe + sIm*sIm);
+            sum += poleIm[k]==0 ? v : 2*v;
+        }
+        return 2*sum;
+    }
+
     /** Scale a line (row or column of a FloatProcessor or part thereof)
      * down by a factor <code>reduceBy</code> and write the result into
      * <code>cache</code>.
@@ -605,5 +784,15 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
     public void showProgress(boolean showProgressBar) {
     	noProgress = !showProgressBar;
     }
+
+    /** Whether to use a recursive (IIR) filter instead of the convolution for
+     * sigma >= 3 (up to 1000). Its computing time does not depend on sigma,
+     * but the result deviates from the exact Gaussian by up to about 1% of
+     * the kernel peak, irrespective of the 'accuracy' requested. Images are
+     * not downscaled, and complete lines are processed even with a roi.
+     */
+    public void setRecursive(boolean recursive) {
+        this.recursive = recursive;
+    }
     
 }
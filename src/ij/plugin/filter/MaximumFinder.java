@@ -5,8 +5,11 @@ import ij.gui.*;
 import ij.measure.*;
 import ij.process.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This ImageJ plug-in filter finds the maxima (or minima) of an image.
  * It can create a mask where the local maxima of the current image are
@@ -104,6 +107,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
     /** type masks corresponding to the output types */
     final static byte[] outputTypeMasks = new byte[] {MAX_POINT, MAX_AREA, MAX_AREA};
     final static float SQRT2 = 1.4142135624f;
+    final static int ROWS_PER_CHUNK = 64;           // image lines per work unit of the parallel loops
+    final static int MIN_POINTS_PER_THREAD = 10000; // watershed levels with fewer points are processed in one thread
 
 
     /** Method to return types supported
@@ -565,14 +570,77 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
      */    
     long[] getSortedMaxPoints(ImageProcessor ip, ByteProcessor typeP, boolean excludeEdgesNow,
             boolean isEDM, float globalMin, float globalMax, double threshold) {
-        Rectangle roi = ip.getRoi();
-        byte[] types =  (byte[])typeP.getPixels();
+        final Rectangle roi = ip.getRoi();
+        final byte[] types =  (byte[])typeP.getPixels();
+        final Thread thread = Thread.currentThread();
+        final ImageProcessor ip2 = ip;
+        final boolean excludeEdgesNow2=excludeEdgesNow, isEDM2=isEDM;
+        final float globalMin2 = globalMin;
+        final double threshold2 = threshold;
+        final int nChunks = (roi.height+ROWS_PER_CHUNK-1)/ROWS_PER_CHUNK;
+        final int[] chunkMax = new int[nChunks+1];          //number of maxima per chunk, then start index of the chunk
+        //long t0 = System.currentTimeMillis();
+        final AtomicInteger nextChunk = new AtomicInteger(0);
+        Callable[] callables = new Callable[Math.max(1, Math.min(Prefs.getThreads(), nChunks))];
+        for (int t=0; t<callables.length; t++) {
+            callables[t] = new Callable() {
+                public Object call() {
+                    for (int chunk=nextChunk.getAndIncrement(); chunk<nChunks; chunk=nextChunk.getAndIncrement()) {
+                        if (thread.isInterrupted()) return null;
+                        int y0 = roi.y + chunk*ROWS_PER_CHUNK;
+                        int y1 = Math.min(y0+ROWS_PER_CHUNK, roi.y+roi.height);
+                        chunkMax[chunk+1] = markLocalMaxima(ip2, types, roi, y0, y1, excludeEdgesNow2, isEDM2, globalMin2, threshold2);
+                    }
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+        if (thread.isInterrupted()) return null;
+        //long t1 = System.currentTimeMillis();IJ.log("markMax:"+(t1-t0));
+
+        for (int chunk=0; chunk<nChunks; chunk++)
+            chunkMax[chunk+1] += chunkMax[chunk];
+        final float vFactor = (float)(2e9/(globalMax-globalMin)); //for converting float values into a 32-bit int
+        final long[] maxPoints = new long[chunkMax[nChunks]];     //value (int) is in the upper 32 bit, pixel offset in the lower
+        nextChunk.set(0);
+        for (int t=0; t<callables.length; t++) {
+            callables[t] = new Callable() {
+                public Object call() {
+                    for (int chunk=nextChunk.getAndIncrement(); chunk<nChunks; chunk=nextChunk.getAndIncrement()) {
+                        int y0 = roi.y + chunk*ROWS_PER_CHUNK;
+                        int y1 = Math.min(y0+ROWS_PER_CHUNK, roi.y+roi.height);
+                        int iMax = chunkMax[chunk];
+                        for (int y=y0; y<y1; y++)           //enter all maxima into an array
+                            for (int x=roi.x, p=x+y*width; x<roi.x+roi.width; x++, p++)
+                                if (types[p]==MAXIMUM) {
+                                    float fValue = isEDM2?trueEdmHeight(x,y,ip2):ip2.getPixelValue(x,y);
+                                    int iValue = (int)((fValue-globalMin2)*vFactor); //32-bit int, linear function of float value
+                                    maxPoints[iMax++] = (long)iValue<<32|p;
+                                }
+                    }
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+        //long t2 = System.currentTimeMillis();IJ.log("makeArray:"+(t2-t1));
+        if (thread.isInterrupted()) return null;
+        if (callables.length>1)
+            Arrays.parallelSort(maxPoints);                     //sort the maxima by value
+        else
+            Arrays.sort(maxPoints);
+        //long t3 = System.currentTimeMillis();IJ.log("sort:"+(t3-t2));
+        return maxPoints;
+    } //getSortedMaxPoints
+
+    /** Marks the local maxima in lines y0 to y1-1 of the roi as MAXIMUM in the types array
+     *  and returns their number. Called for different lines in parallel by getSortedMaxPoints. */
+    int markLocalMaxima(ImageProcessor ip, byte[] types, Rectangle roi, int y0, int y1, boolean excludeEdgesNow,
+            boolean isEDM, float globalMin, double threshold) {
         int nMax = 0;  //counts local maxima
         boolean checkThreshold = threshold!=ImageProcessor.NO_THRESHOLD;
-        Thread thread = Thread.currentThread();
-        //long t0 = System.currentTimeMillis();
-        for (int y=roi.y; y<roi.y+roi.height; y++) {         // find local maxima now
-            if (y%50==0 && thread.isInterrupted()) return null;
+        for (int y=y0; y<y1; y++) {                             // find local maxima now
             for (int x=roi.x, i=x+y*width; x<roi.x+roi.width; x++, i++) {      // for better performance with rois, restrict search to roi
                 float v = ip.getPixelValue(x,y);
                 float vTrue = isEDM ? trueEdmHeight(x,y,ip) : v;  // for EDMs, use interpolated ridge height
@@ -600,25 +668,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
                 }
             } // for x
         } // for y
-        if (thread.isInterrupted()) return null;
-        //long t1 = System.currentTimeMillis();IJ.log("markMax:"+(t1-t0));
-        
-        float vFactor = (float)(2e9/(globalMax-globalMin)); //for converting float values into a 32-bit int
-        long[] maxPoints = new long[nMax];                  //value (int) is in the upper 32 bit, pixel offset in the lower
-        int iMax = 0;
-        for (int y=roi.y; y<roi.y+roi.height; y++)           //enter all maxima into an array
-            for (int x=roi.x, p=x+y*width; x<roi.x+roi.width; x++, p++)
-                if (types[p]==MAXIMUM) {
-                    float fValue = isEDM?trueEdmHeight(x,y,ip):ip.getPixelValue(x,y);
-                    int iValue = (int)((fValue-globalMin)*vFactor); //32-bit int, linear function of float value
-                    maxPoints[iMax++] = (long)iValue<<32|p;
-                }
-        //long t2 = System.currentTimeMillis();IJ.log("makeArray:"+(t2-t1));
-        if (thread.isInterrupted()) return null;
-        Arrays.sort(maxPoints);                                 //sort the maxima by value
-        //long t3 = System.currentTimeMillis();IJ.log("sort:"+(t3-t2));
-        return maxPoints;
-    } //getSortedMaxPoints
+        return nMax;
+    } //markLocalMaxima
 
    /** Check all maxima in list maxPoints, mark type of the points in typeP
     * @param ip             the image to be analyzed
@@ -840,23 +891,41 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
             factor = 1;   // with EDM, no better resolution
         ByteProcessor outIp = new ByteProcessor(width, height);
         //convert possibly calibrated image to byte without damaging threshold (setMinAndMax would kill threshold)
-        byte[] pixels = (byte[])outIp.getPixels();
-        long v;
-        for (int y=0, i=0; y<height; y++) {
-            for (int x=0; x<width; x++, i++) {
-                float rawValue = ip.getPixelValue(x, y);
-                if (threshold!=ImageProcessor.NO_THRESHOLD && rawValue<threshold)
-                    pixels[i] = (byte)0;
-                else if ((types[i]&MAX_AREA)!=0)
-                    pixels[i] = (byte)255;  //prepare watershed by setting "true" maxima+surroundings to 255
-                else {
-                    v = 1 + Math.round((rawValue-offset)*factor);
-                    if (v < 1) pixels[i] = (byte)1;
-                    else if (v<=254) pixels[i] = (byte)(v&255);
-                    else pixels[i] = (byte)254;
+        final byte[] pixels = (byte[])outIp.getPixels();
+        final byte[] types2 = types;
+        final ImageProcessor ip2 = ip;
+        final double threshold2=threshold, offset2=offset, factor2=factor;
+        final int nChunks = (height+ROWS_PER_CHUNK-1)/ROWS_PER_CHUNK;
+        final AtomicInteger nextChunk = new AtomicInteger(0);
+        Callable[] callables = new Callable[Math.max(1, Math.min(Prefs.getThreads(), nChunks))];
+        for (int t=0; t<callables.length; t++) {
+            callables[t] = new Callable() {
+                public Object call() {
+                    for (int chunk=nextChunk.getAndIncrement(); chunk<nChunks; chunk=nextChunk.getAndIncrement()) {
+                        int y0 = chunk*ROWS_PER_CHUNK;
+                        int y1 = Math.min(y0+ROWS_PER_CHUNK, height);
+                        long v;
+                        for (int y=y0, i=y0*width; y<y1; y++) {
+                            for (int x=0; x<width; x++, i++) {
+                                float rawValue = ip2.getPixelValue(x, y);
+                                if (threshold2!=ImageProcessor.NO_THRESHOLD && rawValue<threshold2)
+                                    pixels[i] = (byte)0;
+                                else if ((types2[i]&MAX_AREA)!=0)
+                                    pixels[i] = (byte)255;  //prepare watershed by setting "true" maxima+surroundings to 255
+                                else {
+                                    v = 1 + Math.round((rawValue-offset2)*factor2);
+                                    if (v < 1) pixels[i] = (byte)1;
+                                    else if (v<=254) pixels[i] = (byte)(v&255);
+                                    else pixels[i] = (byte)254;
+                                }
+                            }
+                        }
+                    }
+                    return null;
                 }
-            }
+            };
         }
+        ThreadUtil.startAndJoin(callables);
         return outIp;
     } // byteProcessor make8bit
 
@@ -1154,6 +1223,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         // whose values are at that level and also constrained (by the fateTable)
         // to prevent features from merging.
         int[] table = makeFateTable();
+        int nThreads = Prefs.getThreads();
+        int[][] threadPointLists = new int[nThreads][];    //for processing large levels in parallel
         IJ.showStatus("Segmenting (Esc to cancel)");
         final int[] directionSequence = new int[] {7, 3, 1, 5, 0, 4, 2, 6}; // diagonal directions first
         for (int level=highestValue; level>=1; level--) {
@@ -1163,8 +1234,11 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
                 int sumN = 0;
                 int dIndex = 0;
                 do {                        // expand each level in 8 directions
-                    int n = processLevel(directionSequence[dIndex%8], ip, table,
-                            levelStart[level], remaining, coordinates, setPointList);
+                    int n = nThreads>1 && remaining>=2*MIN_POINTS_PER_THREAD ?
+                            processLevel(directionSequence[dIndex%8], ip, table,
+                                levelStart[level], remaining, coordinates, threadPointLists) :
+                            processLevel(directionSequence[dIndex%8], ip, table,
+                                levelStart[level], remaining, coordinates, setPointList);
                     //IJ.log("level="+level+" direction="+directionSequence[dIndex%8]+" remain="+remaining+"-"+n);
                     remaining -= n;         // number of points processed
                     sumN += n;
@@ -1274,6 +1348,81 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         return nChanged;
     } //processLevel
 
+    /** Same as processLevel above, but with the points of the level split among threads.
+     * All pixels are set only after all points have been checked, thus the result does not
+     * depend on the number of threads. The points that remain unchanged are kept in the
+     * same sequence as with a single thread.
+     * @param pointLists        One work array per thread for the offsets of the pixels to set;
+     *                          allocated here if null or too small
+     */
+    private int processLevel(final int pass, ImageProcessor ip, final int[] fateTable,
+            final int levelStart, final int levelNPoints, final int[] coordinates, final int[][] pointLists) {
+        final byte[] pixels = (byte[])ip.getPixels();
+        final int nThreads = Math.min(pointLists.length, levelNPoints/MIN_POINTS_PER_THREAD);
+        final int pointsPerThread = (levelNPoints+nThreads-1)/nThreads;
+        final int[] nChanged = new int[nThreads];
+        final int[] nUnchanged = new int[nThreads];
+        Callable[] callables = new Callable[nThreads];
+        for (int t=0; t<nThreads; t++) {
+            if (pointLists[t]==null || pointLists[t].length<pointsPerThread)
+                pointLists[t] = new int[pointsPerThread];
+            final int thread = t;
+            callables[t] = new Callable() {
+                public Object call() {
+                    int start = levelStart + thread*pointsPerThread;
+                    int n = Math.min(pointsPerThread, levelStart+levelNPoints-start);
+                    int nSet = 0, nKept = 0;
+                    int[] setPointList = pointLists[thread];
+                    int xmax = width - 1;
+                    int ymax = height - 1;
+                    int mask = 1<<pass;
+                    for (int i=0, p=start; i<n; i++, p++) {
+                        int xy = coordinates[p];
+                        int x = xy&intEncodeXMask;
+                        int y = (xy&intEncodeYMask)>>intEncodeShift;
+                        int offset = x + y*width;
+                        int index = 0;      //neighborhood pixel ocupation: index in fateTable
+                        if (y>0 && (pixels[offset-width]&255)==255)
+                            index ^= 1;
+                        if (x<xmax && y>0 && (pixels[offset-width+1]&255)==255)
+                            index ^= 2;
+                        if (x<xmax && (pixels[offset+1]&255)==255)
+                            index ^= 4;
+                        if (x<xmax && y<ymax && (pixels[offset+width+1]&255)==255)
+                            index ^= 8;
+                        if (y<ymax && (pixels[offset+width]&255)==255)
+                            index ^= 16;
+                        if (x>0 && y<ymax && (pixels[offset+width-1]&255)==255)
+                            index ^= 32;
+                        if (x>0 && (pixels[offset-1]&255)==255)
+                            index ^= 64;
+                        if (x>0 && y>0 && (pixels[offset-width-1]&255)==255)
+                            index ^= 128;
+                        if ((fateTable[index]&mask)==mask)
+                            setPointList[nSet++] = offset;  //remember to set pixel to 255
+                        else
+                            coordinates[start+(nKept++)] = xy; //keep this pixel for future passes
+                    }
+                    nChanged[thread] = nSet;
+                    nUnchanged[thread] = nKept;
+                    return null;
+                }
+            };
+        }
+        ThreadUtil.startAndJoin(callables);
+        int nChangedTotal = 0;
+        int nUnchangedTotal = 0;
+        for (int t=0; t<nThreads; t++) {
+            int[] setPointList = pointLists[t];
+            for (int i=0; i<nChanged[t]; i++)
+                pixels[setPointList[i]] = (byte)255;
+            nChangedTotal += nChanged[t];
+            System.arraycopy(coordinates, levelStart+t*pointsPerThread, coordinates, levelStart+nUnchangedTotal, nUnchanged[t]);
+            nUnchangedTotal += nUnchanged[t];
+        }
+        return nChangedTotal;
+    } //processLevel
+
     /** Creates the lookup table used by the watershed function for dilating the particles.
      * The algorithm allows dilation in both straight and diagonal directions.
      * There is an entry in the table for each possible 3x3 neighborhood:
@@ -26,6 +26,9 @@ import ij.util.Tools;
 			else
 				continue the scan
 	</pre>
+	If the measurements and options allow it, the particles are instead found and
+	measured in one pass by a ParticleLabeler; outlines are then only traced for
+	the particles that are kept, when they are needed.
 */
 public class ParticleAnalyzer implements PlugInFilter, Measurements {
 
@@ -603,35 +606,40 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		particleCount = 0;
 		wand = new Wand(ip);
 		pf = new PolygonFiller();
-		if (floodFill) {
+		boolean labeled = canLabelParticles(ip);
+		if (floodFill && !labeled) {
 			ImageProcessor ipf = ip.duplicate();
 			ipf.setValue(fillColor);
 			ff = new FloodFiller(ipf);
 		}
 		roiType = Wand.allPoints()?Roi.FREEROI:Roi.TRACED_ROI;
 
-		boolean done = false;
-		for (int y=r.y; y<(r.y+r.height); y++) {
-			offset = y*width;
-			for (int x=r.x; x<(r.x+r.width); x++) {
-				if (pixels!=null)
-					value = pixels[offset+x]&255;
-				else if (imageType==SHORT)
-					value = ip.getPixel(x, y);
-				else
-					value = ip.getPixelValue(x, y);
-				if (value>=level1 && value<=level2 && !done) {
-					analyzeParticle(x, y, imp, ip);
-					done = level1==0.0&&level2==255.0&&imp.getBitDepth()==8;
+		if (labeled)
+			analyzeLabeledParticles(imp, ip);
+		else {
+			boolean done = false;
+			for (int y=r.y; y<(r.y+r.height); y++) {
+				offset = y*width;
+				for (int x=r.x; x<(r.x+r.width); x++) {
+					if (pixels!=null)
+						value = pixels[offset+x]&255;
+					else if (imageType==SHORT)
+						value = ip.getPixel(x, y);
+					else
+						value = ip.getPixelValue(x, y);
+					if (value>=level1 && value<=level2 && !done) {
+						analyzeParticle(x, y, imp, ip);
+						done = level1==0.0&&level2==255.0&&imp.getBitDepth()==8;
+					}
+				}
+				if (showProgress && ((y%inc)==0))
+					IJ.showProgress((double)(y-r.y)/r.height);
+				if (win!=null)
+					canceled = !win.running;
+				if (canceled) {
+					Macro.abort();
+					break;
 				}
-			}
-			if (showProgress && ((y%inc)==0))
-				IJ.showProgress((double)(y-r.y)/r.height);
-			if (win!=null)
-				canceled = !win.running;
-			if (canceled) {
-				Macro.abort();
-				break;
 			}
 		}
 		if (showProgress)
@@ -936,6 +944,104 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		ip.fill(mask);
 	}
 
+	/** Returns true if the particles can be found with a ParticleLabeler and measured
+		from its sums, with the same results as tracing them one by one. This requires
+		8-connected particles without filled holes, no exclusion ROI, measurements that
+		do not need a histogram and, for 16 and 32-bit images, no histogram range. */
+	boolean canLabelParticles(ImageProcessor ip) {
+		ImageProcessor ip2 = redirectIP!=null?redirectIP:ip;
+		if (!floodFill || wandMode!=Wand.LEGACY_MODE || exclusionRoi!=null || showChoice==ELLIPSES)
+			return false;
+		if ((measurements&(MODE|MEDIAN|SKEWNESS|KURTOSIS|AREA_FRACTION))!=0)
+			return false;
+		if (fillColor>=level1 && fillColor<=level2)
+			return false;
+		if (imageType2==RGB || (redirectIP!=null && imageType2==FLOAT) || calibration.calibrated())
+			return false;
+		if (imageType2!=BYTE && (ip2.getHistogramMin()!=0.0 || ip2.getHistogramMax()!=0.0))
+			return false;
+		return true;
+	}
+
+	/** Measures the particles found by a ParticleLabeler in the order in which
+		they would be traced. ROIs and masks are only created for the particles
+		that are kept, and only if they are needed for measuring, filtering or
+		the output. Subclasses always get a ROI. */
+	void analyzeLabeledParticles(ImagePlus imp, ImageProcessor ip) {
+		ImageProcessor ip2 = redirectIP!=null?redirectIP:ip;
+		ParticleLabeler labeler = new ParticleLabeler(ip, ip2, r, level1, level2);
+		ImageWindow win = imp.getWindow();
+		labeler.showProgress = showProgress;
+		labeler.win = win;
+		int n = labeler.label(Prefs.getThreads());
+		if (win!=null)
+			canceled = !win.running;
+		if (canceled) {
+			Macro.abort();
+			return;
+		}
+		int inc = Math.max(n/25, 1);
+		boolean circularityFilter = minCircularity>0.0 || maxCircularity!=1.0;
+		boolean showParticle = showChoice!=NOTHING || showOverlay;
+		boolean subclass = getClass()!=ParticleAnalyzer.class;
+		boolean needsMask = addToManager || showParticle || compositeRois || subclass;
+		boolean needsRoi = needsMask || roiNeedsImage || circularityFilter;
+		for (int i=0; i<n; i++) {
+			if (showProgress && (i%inc)==0)
+				IJ.showProgress(0.5+0.5*i/n);
+			if (win!=null)
+				canceled = !win.running;
+			if (canceled) {
+				Macro.abort();
+				break;
+			}
+			int count = labeler.count[i];
+			if (count<minSize || count>maxSize)
+				continue;
+			Rectangle b = labeler.getBounds(i);
+			if (excludeEdgeParticles && (b.x==minX||b.y==minY||b.x+b.width==maxX||b.y+b.height==maxY))
+				continue;
+			Roi roi = null;
+			if (needsRoi) {
+				wand.autoOutline(labeler.xstart[i], labeler.ystart[i], level1, level2, wandMode);
+				if (wand.npoints==0)
+					{IJ.log("wand error: "+labeler.xstart[i]+" "+labeler.ystart[i]); continue;}
+				roi = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, roiType);
+			}
+			ImageProcessor mask = null;
+			if (needsMask && b.width>1 && b.height>1)
+				mask = labeler.getMask(i);
+			if (compositeRois && mask!=null) {
+				mask.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+				Roi roi2 = new ThresholdToSelection().convert(mask);
+				if (roi2!=null && (roi2 instanceof ShapeRoi)) {
+					roi2.setLocation(roi.getXBase(), roi.getYBase());
+					roi = roi2;
+				}
+			}
+			if (circularityFilter) {
+				double perimeter = roi.getLength();
+				double circularity = perimeter==0.0?0.0:4.0*Math.PI*(count/(perimeter*perimeter));
+				if (circularity>1.0 && maxCircularity<=1.0) circularity = 1.0;
+				if (circularity<minCircularity || circularity>maxCircularity)
+					continue;
+			}
+			ImageStatistics stats = labeler.getStatistics(i, measurements, calibration);
+			particleCount++;
+			if (roiNeedsImage)
+				roi.setImage(imp);
+			saveResults(stats, roi);
+			if (addToManager)
+				addToRoiManager(roi, mask, particleCount);
+			int saveShowChoice = showChoice;
+			if (showOverlay && showChoice==NOTHING)
+				showChoice = OVERLAY_OUTLINES;
+			if (showChoice!=NOTHING)
+				drawParticle(drawIP, roi, stats, mask);
+			showChoice = saveShowChoice;
+		}
+	}
+
 	ImageStatistics getStatistics(ImageProcessor ip, int mOptions, Calibration cal) {
 		switch (imageType2) {
 			case BYTE:
@@ -0,0 +1,438 @@
+package ij.plugin.filter;
+import ij.*;
+import ij.gui.ImageWindow;
+import ij.process.*;
+import ij.measure.*;
+import ij.util.ThreadUtil;
+import java.awt.Rectangle;
+import java.util.concurrent.*;
+
+/** Finds the 8-connected particles of a thresholded image and measures them in
+	one pass over the pixels. Each line is split into runs of pixels inside the
+	threshold range; runs touching a run of the previous line are joined with a
+	union-find. The image is labeled in horizontal bands, one per thread, and
+	particles crossing the band borders are merged afterwards. For each particle,
+	the pixel count, bounding box, coordinate moments and the minimum, maximum and
+	sums of the pixel values are collected. Particles are numbered in raster order
+	of their first pixel, i.e., in the order the ParticleAnalyzer finds them when
+	scanning the image. Used by the ParticleAnalyzer.
+*/
+class ParticleLabeler implements Measurements {
+	private static final int MIN_BAND_ROWS = 64;
+
+	private ImageProcessor ip, ip2;
+	private Rectangle r;
+	private double level1, level2;
+	private int lower, upper; // threshold range for integer pixel values
+	private int width;
+
+	private int nRuns;
+	private int[] runY, runX1, runX2, parent;
+	private double[] runSum, runSum2, runSumX, runMin, runMax;
+
+	/** Number of particles */
+	int n;
+	/** First pixel (in raster order) of each particle */
+	int[] xstart, ystart;
+	/** Pixel count and bounding box */
+	int[] count, xmin, ymin, xmax, ymax;
+	/** Sums of x, y, x*x, y*y and x*y of the pixel coordinates */
+	long[] sx, sy, sxx, syy, sxy;
+	/** Sums of v, v*v, x*v and y*v and range of the pixel values v */
+	double[] sum, sum2, sumX, sumY, min, max;
+	private int[] firstRun;
+	/** If true, label() shows the progress of the first band on the first half of the progress bar */
+	boolean showProgress;
+	/** If not null, label() stops when the 'running' flag of this window is cleared (Esc) */
+	ImageWindow win;
+
+	/** Finds the particles with pixel values of 'ip' between 'level1' and 'level2'
+		inside the rectangle 'r'. The pixel values are measured in 'ip2', which may
+		be 'ip' or an image of the same size (8 or 16 bits if not 'ip'). */
+	ParticleLabeler(ImageProcessor ip, ImageProcessor ip2, Rectangle r, double level1, double level2) {
+		this.ip = ip;
+		this.ip2 = ip2;
+		this.r = r;
+		this.level1 = level1;
+		this.level2 = level2;
+		lower = (int)Math.max(Math.ceil(level1), Integer.MIN_VALUE);
+		upper = (int)Math.min(Math.floor(level2), Integer.MAX_VALUE);
+		width = ip.getWidth();
+	}
+
+	/** Labels the image with up to 'nThreads' threads and returns the number of
+		particles, or 0 if labeling was canceled with 'win'. */
+	int label(int nThreads) {
+		int nBands = Math.max(1, Math.min(nThreads, r.height/MIN_BAND_ROWS));
+		final Band[] bands = new Band[nBands];
+		Callable[] callables = new Callable[nBands];
+		for (int b=0; b<nBands; b++) {
+			final Band band = new Band(r.y+(int)((long)r.height*b/nBands), r.y+(int)((long)r.height*(b+1)/nBands));
+			bands[b] = band;
+			callables[b] = new Callable() {
+				public Object call() {
+					band.label();
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		if (canceled())
+			return 0;
+		joinBands(bands);
+		measure();
+		return n;
+	}
+
+	private boolean canceled() {
+		return win!=null && !win.running;
+	}
+
+	/** Copies the runs of all bands into one list and joins the particles at the band borders. */
+	private void joinBands(Band[] bands) {
+		if (bands.length==1) {
+			Band band = bands[0];
+			nRuns = band.nRuns;
+			runY = band.y; runX1 = band.x1; runX2 = band.x2; parent = band.parent;
+			runSum = band.sum; runSum2 = band.sum2; runSumX = band.sumX;
+			runMin = band.min; runMax = band.max;
+			return;
+		}
+		nRuns = 0;
+		for (int b=0; b<bands.length; b++)
+			nRuns += bands[b].nRuns;
+		runY = new int[nRuns];
+		runX1 = new int[nRuns];
+		runX2 = new int[nRuns];
+		parent = new int[nRuns];
+		runSum = new double[nRuns];
+		runSum2 = new double[nRuns];
+		runSumX = new double[nRuns];
+		runMin = new double[nRuns];
+		runMax = new double[nRuns];
+		int offset = 0;
+		for (int b=0; b<bands.length; b++) {
+			Band band = bands[b];
+			int nb = band.nRuns;
+			System.arraycopy(band.y, 0, runY, offset, nb);
+			System.arraycopy(band.x1, 0, runX1, offset, nb);
+			System.arraycopy(band.x2, 0, runX2, offset, nb);
+			System.arraycopy(band.sum, 0, runSum, offset, nb);
+			System.arraycopy(band.sum2, 0, runSum2, offset, nb);
+			System.arraycopy(band.sumX, 0, runSumX, offset, nb);
+			System.arraycopy(band.min, 0, runMin, offset, nb);
+			System.arraycopy(band.max, 0, runMax, offset, nb);
+			for (int i=0; i<nb; i++)
+				parent[offset+i] = band.parent[i]+offset;
+			band.offset = offset;
+			offset += nb;
+		}
+		for (int b=1; b<bands.length; b++) {
+			Band above = bands[b-1], below = bands[b];
+			if (above.nRuns==0 || below.nRuns==0)
+				continue;
+			int lastRowStart = above.offset+above.lastRowStart;
+			if (runY[lastRowStart]!=below.y0-1 || runY[below.offset]!=below.y0)
+				continue;
+			joinRows(parent, runX1, runX2, lastRowStart, above.offset+above.nRuns,
+				below.offset, below.offset+below.firstRowEnd);
+		}
+	}
+
+	/** Sums the runs of each particle, in raster order. */
+	private void measure() {
+		int[] label = new int[nRuns];
+		n = 0;
+		for (int i=0; i<nRuns; i++) {
+			int root = find(parent, i);
+			label[i] = root==i ? n++ : label[root];
+		}
+		xstart = new int[n]; ystart = new int[n];
+		count = new int[n];
+		xmin = new int[n]; ymin = new int[n]; xmax = new int[n]; ymax = new int[n];
+		sx = new long[n]; sy = new long[n]; sxx = new long[n]; syy = new long[n]; sxy = new long[n];
+		sum = new double[n]; sum2 = new double[n]; sumX = new double[n]; sumY = new double[n];
+		min = new double[n]; max = new double[n];
+		firstRun = new int[n];
+		int[] lastRun = new int[n];
+		int[] next = parent; // no longer needed as such
+		for (int i=0; i<nRuns; i++) {
+			int p = label[i];
+			long y=runY[i], x1=runX1[i], x2=runX2[i];
+			long c = x2-x1+1;
+			long xs = (x1+x2)*c/2;
+			long x2s = (x2*(x2+1)*(2*x2+1)-(x1-1)*x1*(2*x1-1))/6;
+			if (count[p]==0) {
+				xstart[p] = (int)x1; ystart[p] = (int)y;
+				xmin[p] = (int)x1; xmax[p] = (int)x2;
+				ymin[p] = (int)y;
+				min[p] = runMin[i]; max[p] = runMax[i];
+				firstRun[p] = i;
+			} else {
+				if (x1<xmin[p]) xmin[p] = (int)x1;
+				if (x2>xmax[p]) xmax[p] = (int)x2;
+				if (runMin[i]<min[p]) min[p] = runMin[i];
+				if (runMax[i]>max[p]) max[p] = runMax[i];
+				next[lastRun[p]] = i;
+			}
+			ymax[p] = (int)y;
+			lastRun[p] = i;
+			next[i] = -1;
+			count[p] += c;
+			sx[p] += xs;
+			sy[p] += y*c;
+			sxx[p] += x2s;
+			syy[p] += y*y*c;
+			sxy[p] += y*xs;
+			sum[p] += runSum[i];
+			sum2[p] += runSum2[i];
+			sumX[p] += runSumX[i];
+			sumY[p] += y*runSum[i];
+		}
+		runSum = runSum2 = runSumX = runMin = runMax = null;
+	}
+
+	/** Returns the bounding rectangle of particle 'p'. */
+	Rectangle getBounds(int p) {
+		return new Rectangle(xmin[p], ymin[p], xmax[p]-xmin[p]+1, ymax[p]-ymin[p]+1);
+	}
+
+	/** Returns a mask of particle 'p' with the size of its bounding rectangle. */
+	ImageProcessor getMask(int p) {
+		Rectangle b = getBounds(p);
+		byte[] pixels = new byte[b.width*b.height];
+		for (int i=firstRun[p]; i>=0; i=parent[i]) {
+			int offset = (runY[i]-b.y)*b.width-b.x;
+			for (int x=runX1[i]; x<=runX2[i]; x++)
+				pixels[offset+x] = (byte)255;
+		}
+		return new ByteProcessor(b.width, b.height, pixels, null);
+	}
+
+	/** Returns the statistics of particle 'p' that the ByteStatistics or ShortStatistics
+		(FloatStatistics for float images) of 'ip2' with a mask of the particle would
+		give for the area, mean, standard deviation, min and max, centroid, center of
+		mass, bounding rectangle and fitted ellipse. */
+	ImageStatistics getStatistics(int p, int measurements, Calibration cal) {
+		ImageStatistics stats = new ImageStatistics();
+		int nPixels = count[p];
+		Rectangle b = getBounds(p);
+		double pw = cal!=null?cal.pixelWidth:1.0;
+		double ph = cal!=null?cal.pixelHeight:1.0;
+		int height = ip2.getHeight();
+		stats.pixelCount = nPixels;
+		stats.longPixelCount = nPixels;
+		stats.area = nPixels*pw*ph;
+		stats.mean = sum[p]/nPixels;
+		stats.umean = stats.mean;
+		double stdDev = (nPixels*sum2[p]-sum[p]*sum[p])/nPixels;
+		stats.stdDev = stdDev>0.0?Math.sqrt(stdDev/(nPixels-1.0)):0.0;
+		if ((measurements&MIN_MAX)!=0) {
+			stats.min = min[p];
+			stats.max = max[p];
+		}
+		stats.roiX = cal!=null?cal.getX(b.x):b.x;
+		stats.roiY = cal!=null?cal.getY(b.y, height):b.y;
+		stats.roiWidth = b.width*pw;
+		stats.roiHeight = b.height*ph;
+		if ((measurements&(ELLIPSE|SHAPE_DESCRIPTORS))!=0) {
+			EllipseFitter ef = new EllipseFitter();
+			if (b.width>1 && b.height>1) {
+				long l=b.x, t=b.y;
+				ef.fit(b, nPixels, sx[p]-nPixels*l, sy[p]-nPixels*t, sxx[p]-2*l*sx[p]+nPixels*l*l,
+					syy[p]-2*t*sy[p]+nPixels*t*t, sxy[p]-t*sx[p]-l*sy[p]+nPixels*l*t);
+			} else { // the ParticleAnalyzer uses no mask for these
+				ip2.setRoi(b);
+				ip2.setMask(null);
+				ef.fit(ip2, null);
+			}
+			double psize = (Math.abs(pw-ph)/pw)<.01?pw:0.0;
+			stats.major = ef.major*psize;
+			stats.minor = ef.minor*psize;
+			stats.angle = ef.angle;
+			stats.xCentroid = ef.xCenter;
+			stats.yCentroid = ef.yCenter;
+		} else if ((measurements&CENTROID)!=0) {
+			stats.xCentroid = (double)sx[p]/nPixels+0.5;
+			stats.yCentroid = (double)sy[p]/nPixels+0.5;
+		}
+		if (cal!=null) {
+			stats.xCentroid = cal.getX(stats.xCentroid);
+			stats.yCentroid = cal.getY(stats.yCentroid, height);
+		}
+		if ((measurements&CENTER_OF_MASS)!=0) {
+			if (sum[p]==0.0 && ip2 instanceof ByteProcessor) {
+				// ByteStatistics adds Double.MIN_VALUE to each value
+				stats.xCenterOfMass = (double)sx[p]/nPixels+0.5;
+				stats.yCenterOfMass = (double)sy[p]/nPixels+0.5;
+			} else {
+				stats.xCenterOfMass = sumX[p]/sum[p]+0.5;
+				stats.yCenterOfMass = sumY[p]/sum[p]+0.5;
+			}
+			if (cal!=null) {
+				stats.xCenterOfMass = cal.getX(stats.xCenterOfMass);
+				stats.yCenterOfMass = cal.getY(stats.yCenterOfMass, height);
+			}
+		}
+		stats.xstart = xstart[p];
+		stats.ystart = ystart[p];
+		return stats;
+	}
+
+	/** Returns the root of run 'i', halving the path on the way. */
+	private static int find(int[] parent, int i) {
+		while (parent[i]!=i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/** Joins the particles of runs 'a' and 'b'; the run that comes first in raster order becomes the root. */
+	private static void union(int[] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		if (a<b)
+			parent[b] = a;
+		else if (b<a)
+			parent[a] = b;
+	}
+
+	/** Joins the runs [start1, end1) of a line with the 8-connected runs [start2, end2) of the next line. */
+	private static void joinRows(int[] parent, int[] x1, int[] x2, int start1, int end1, int start2, int end2) {
+		int p = start1;
+		for (int i=start2; i<end2; i++) {
+			while (p<end1 && x2[p]<x1[i]-1)
+				p++;
+			for (int q=p; q<end1 && x1[q]<=x2[i]+1; q++)
+				union(parent, q, i);
+		}
+	}
+
+	/** The runs of the lines y0 to y1-1, joined within the band. */
+	private class Band {
+		int y0, y1;
+		int nRuns, firstRowEnd, lastRowStart, offset;
+		int[] y, x1, x2, parent;
+		double[] sum, sum2, sumX, min, max;
+
+		Band(int y0, int y1) {
+			this.y0 = y0;
+			this.y1 = y1;
+			int size = Math.max(256, 4*(y1-y0));
+			y = new int[size]; x1 = new int[size]; x2 = new int[size]; parent = new int[size];
+			sum = new double[size]; sum2 = new double[size]; sumX = new double[size];
+			min = new double[size]; max = new double[size];
+		}
+
+		void label() {
+			Object pixels = ip.getPixels();
+			Object pixels2 = ip2.getPixels();
+			byte[] bytes2 = pixels2 instanceof byte[]?(byte[])pixels2:null;
+			short[] shorts2 = pixels2 instanceof short[]?(short[])pixels2:null;
+			float[] floats2 = pixels2 instanceof float[]?(float[])pixels2:null;
+			int xEnd = r.x+r.width;
+			int previousStart=0, previousEnd=0;
+			boolean progress = showProgress && y0==r.y;
+			int inc = Math.max((y1-y0)/25, 1);
+			for (int yy=y0; yy<y1; yy++) {
+				if ((yy-y0)%inc==0) {
+					if (canceled())
+						return;
+					if (progress)
+						IJ.showProgress(0.5*(yy-y0)/(y1-y0));
+				}
+				int rowStart = nRuns;
+				int offset = yy*width;
+				int x = r.x;
+				while (true) {
+					x = nextPixel(pixels, offset, x, xEnd, true);
+					if (x>=xEnd)
+						break;
+					int start = x;
+					x = nextPixel(pixels, offset, x, xEnd, false);
+					addRun(yy, start, x-1, bytes2, shorts2, floats2);
+				}
+				if (yy==y0)
+					firstRowEnd = nRuns;
+				else
+					joinRows(parent, x1, x2, previousStart, previousEnd, rowStart, nRuns);
+				if (nRuns>rowStart)
+					lastRowStart = rowStart;
+				previousStart = rowStart;
+				previousEnd = nRuns;
+			}
+		}
+
+		/** Returns the first x from 'x' on where the pixel is inside the threshold
+			range if 'inside' is true, outside if it is false, or 'xEnd' if none. */
+		private int nextPixel(Object pixels, int offset, int x, int xEnd, boolean inside) {
+			if (pixels instanceof byte[]) {
+				byte[] bytes = (byte[])pixels;
+				for (; x<xEnd; x++) {
+					int v = bytes[offset+x]&255;
+					if ((v>=lower && v<=upper)==inside) break;
+				}
+			} else if (pixels instanceof short[]) {
+				short[] shorts = (short[])pixels;
+				for (; x<xEnd; x++) {
+					int v = shorts[offset+x]&0xffff;
+					if ((v>=lower && v<=upper)==inside) break;
+				}
+			} else {
+				float[] floats = (float[])pixels;
+				for (; x<xEnd; x++) {
+					float v = floats[offset+x];
+					if ((v>=level1 && v<=level2)==inside) break;
+				}
+			}
+			return x;
+		}
+
+		/** Adds the run from xa to xb (inclusive) in line yy and sums its values in 'ip2'. */
+		private void addRun(int yy, int xa, int xb, byte[] bytes2, short[] shorts2, float[] floats2) {
+			if (nRuns==y.length)
+				grow();
+			int i = nRuns++;
+			y[i] = yy; x1[i] = xa; x2[i] = xb; parent[i] = i;
+			double s=0.0, s2=0.0, sx=0.0, vmin=Double.MAX_VALUE, vmax=-Double.MAX_VALUE;
+			int offset = yy*width;
+			for (int x=xa; x<=xb; x++) {
+				double v;
+				if (bytes2!=null)
+					v = bytes2[offset+x]&255;
+				else if (shorts2!=null)
+					v = shorts2[offset+x]&0xffff;
+				else
+					v = floats2[offset+x];
+				s += v;
+				s2 += v*v;
+				sx += x*v;
+				if (v<vmin) vmin = v;
+				if (v>vmax) vmax = v;
+			}
+			sum[i] = s; sum2[i] = s2; sumX[i] = sx;
+			min[i] = vmin; max[i] = vmax;
+		}
+
+		private void grow() {
+			int size = y.length*2;
+			y = copy(y, size); x1 = copy(x1, size); x2 = copy(x2, size); parent = copy(parent, size);
+			sum = copy(sum, size); sum2 = copy(sum2, size); sumX = copy(sumX, size);
+			min = copy(min, size); max = copy(max, size);
+		}
+	}
+
+	private static int[] copy(int[] a, int size) {
+		int[] a2 = new int[size];
+		System.arraycopy(a, 0, a2, 0, a.length);
+		return a2;
+	}
+
+	private static double[] copy(double[] a, int size) {
+		double[] a2 = new double[size];
+		System.arraycopy(a, 0, a2, 0, a.length);
+		return a2;
+	}
+
+}
@@ -6,6 +6,7 @@ import ij.plugin.filter.PlugInFilter.*;
 import ij.plugin.filter.*;
 import ij.measure.Calibration;
 import ij.macro.Interpreter;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.util.*;
 
@@ -146,7 +147,13 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 					startSlice = endSlice+1;
 				}
 				//IJ.log("Stack: Slices "+startSlice+"-"+slices+" by main thread");
-				processStack(startSlice, slices);			// the current thread does the rest
+				boolean wasParallel = ThreadUtil.isParallelThread();
+				if (threads>1) ThreadUtil.setParallelThread(true);
+				try {
+					processStack(startSlice, slices);		// the current thread does the rest
+				} finally {
+					ThreadUtil.setParallelThread(wasParallel);
+				}
 				if (slicesForThread != null) {
 					while (slicesForThread.size()>0) {	  // for all other threads:
 						Thread theThread = (Thread)slicesForThread.keys().nextElement();
@@ -337,7 +344,13 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		if (IJ.debugMode)
 			IJ.log("  main thread "+y1+"-"+(roi.y+roi.height));
 		Rectangle roi2 = new Rectangle(roi.x, y1, roi.width, roi.y+roi.height-y1);
-		((PlugInFilter)theFilter).run(duplicateProcessor(ip, roi2)); 	// current thread does the rest
+		boolean wasParallel = ThreadUtil.isParallelThread();
+		if (threads>1) ThreadUtil.setParallelThread(true);
+		try {
+			((PlugInFilter)theFilter).run(duplicateProcessor(ip, roi2)); 	// current thread does the rest
+		} finally {
+			ThreadUtil.setParallelThread(wasParallel);
+		}
 		pass++;
 		if (roisForThread != null) {
 			for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();) {
@@ -454,11 +467,13 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 			if (thread==previewThread)
 				runPreview();
 			else if (roisForThread!=null && roisForThread.containsKey(thread)) {
+				ThreadUtil.setParallelThread(true);
 				ImageProcessor ip = (ImageProcessor)roisForThread.get(thread);
 				((PlugInFilter)theFilter).run(ip);
 				ip.setPixels(null);
 				ip.setSnapshotPixels(null);
 			} else if (slicesForThread!=null && slicesForThread.containsKey(thread)) {
+				ThreadUtil.setParallelThread(true);
 				int[] range = (int[])slicesForThread.get(thread);
 				processStack(range[0], range[1]);
 			} else
@@ -27,6 +27,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	public static final int BRIGHT_OUTLIERS = 0, DARK_OUTLIERS = 1;
 	private static final String[] outlierStrings = {"Bright","Dark"};
 	private static int HIGHEST_FILTER = TOP_HAT;
+	// Median of integer data: from this kernel radius on, a histogram is faster than selecting from the kernel area
+	private static final int MIN_HISTOGRAM_RADIUS = 2;
 	// Filter parameters
 	private int filterType;
 	private double radius;
@@ -412,6 +414,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		boolean isFloat = pixels instanceof float[];
 		float maxValue = isFloat ? Float.NaN : (float)ip.maxValue();
 		float[] values = isFloat ? (float[])pixels : new float[roi.width];
+		MedianHistogram medianHistogram = filterType==MEDIAN && !isFloat && kRadius>=MIN_HISTOGRAM_RADIUS ?
+				new MedianHistogram((int)maxValue+1) : null;
 
 		int numThreads = yForThread.length();
 		long lastTime = System.currentTimeMillis();
@@ -500,7 +504,10 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			}
 
 			int cacheLineP = cacheWidth * (y % cacheHeight) + kRadius;	//points to pixel (roi.x, y)
-			filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,	// F I L T E R
+			if (medianHistogram != null)
+				filterLineMedian(values, cache, cachePointers, kNPoints, roi.width, medianHistogram);
+			else
+				filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,	// F I L T E R
 					sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
 					smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
 			if (!isFloat)		//Float images: data are written already during 'filterLine'
@@ -590,6 +597,78 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			} // for x
 		}
 
+	/** Median of a line of integer data (8-bit, 16-bit or one channel of RGB) with a histogram
+	 *	of the kernel area. Moving to the next pixel, only the values at the left and right border
+	 *	of the kernel are removed from and added to the histogram, i.e., the time per pixel
+	 *	increases with the kernel height, not with the kernel area as with 'getMedian'. */
+	private static void filterLineMedian(float[] values, float[] cache, int[] kernel, int kNPoints,
+			int roiWidth, MedianHistogram histogram) {
+		int half = kNPoints/2;
+		for (int kk=0; kk<kernel.length; kk++)
+			for (int p=kernel[kk++]; p<=kernel[kk]; p++)
+				histogram.add((int)cache[p]);
+		values[0] = histogram.get(half);
+		for (int x=1; x<roiWidth; x++) {
+			for (int kk=0; kk<kernel.length; /*k++;k++ below*/) {
+				histogram.remove((int)cache[kernel[kk++]+(x-1)]);	//this value is not in the kernel area any more
+				histogram.add((int)cache[kernel[kk++]+x]);			//this value comes into the kernel area
+			}
+			values[x] = histogram.get(half);
+		}
+		for (int kk=0; kk<kernel.length; kk++)		//leave the histogram empty for the next line
+			for (int p=kernel[kk++]+roiWidth-1; p<=kernel[kk]+roiWidth-1; p++)
+				histogram.remove((int)cache[p]);
+	}
+
+	/** Histogram of the values in the kernel area, for the median of integer data. A coarse
+	 *	histogram, with 16 (8-bit) or 256 (16-bit) values per bin, is used to find the bin of the
+	 *	median quickly; the median is then searched in the fine histogram, starting at its previous
+	 *	position. The bins of the median and the number of values below them are kept between calls,
+	 *	so finding the median usually takes only a few steps. */
+	private static class MedianHistogram {
+		int[] fine, coarse;
+		int shift;
+		int coarseBin, coarseBelow;		//coarse bin of the median and number of values in the coarse bins below
+		int fineBin, fineBelow;			//the same for the fine histogram
+
+		MedianHistogram(int nBins) {
+			shift = nBins>256 ? 8 : 4;
+			fine = new int[nBins];
+			coarse = new int[(nBins>>shift)+1];
+		}
+
+		void add(int v) {
+			fine[v]++;
+			coarse[v>>shift]++;
+			if ((v>>shift) < coarseBin) coarseBelow++;
+			if (v < fineBin) fineBelow++;
+		}
+
+		void remove(int v) {
+			fine[v]--;
+			coarse[v>>shift]--;
+			if ((v>>shift) < coarseBin) coarseBelow--;
+			if (v < fineBin) fineBelow--;
+		}
+
+		/** Returns the n-th lowest value; n=0 for the lowest */
+		int get(int n) {
+			while (coarseBelow > n)
+				coarseBelow -= coarse[--coarseBin];
+			while (coarseBelow+coarse[coarseBin] <= n)
+				coarseBelow += coarse[coarseBin++];
+			if (fineBin>>shift != coarseBin) {	//restart the fine search at the start of the coarse bin
+				fineBin = coarseBin<<shift;
+				fineBelow = coarseBelow;
+			}
+			while (fineBelow > n)
+				fineBelow -= fine[--fineBin];
+			while (fineBelow+fine[fineBin] <= n)
+				fineBelow += fine[fineBin++];
+			return fineBin;
+		}
+	}
+
 	/** Read a line into the cache (including padding in x).
 	 *	If y>=height, instead of reading new data, it duplicates the line y=height-1.
 	 *	If y==0, it also creates the data for y<0, as far as necessary, thus filling the cache with
@@ -15,10 +15,13 @@ import java.awt.*;
  * "Radius (Sigma)" is the standard deviation (blur radius) of the Gaussian blur that
  * is subtracted. "Mask Weight" determines the strength of filtering, where "Mask Weight"=1
  * would be an infinite weight of the high-pass filtered image that is added.
+ * With "Recursive", the blur takes the same time for any radius, see
+ * GaussianBlur.setRecursive.
  */
 public class UnsharpMask implements ExtendedPlugInFilter, DialogListener {
     private static double sigma = 1.0; // standard deviation of the Gaussian
     private static double weight = 0.6; // weight of the mask
+    private static boolean recursive; // use the recursive Gaussian for large sigma
     private final int flags = DOES_ALL|SUPPORTS_MASKING|CONVERT_TO_FLOAT|SNAPSHOT|KEEP_PREVIEW;
     private GaussianBlur gb;
 
@@ -39,6 +42,8 @@ public class UnsharpMask implements ExtendedPlugInFilter, DialogListener {
      * @param ip The image, slice or channel to filter
      */
     public void run(ImageProcessor ip) {
+        if (gb == null) gb = new GaussianBlur();
+        gb.setRecursive(recursive);
         sharpenFloat((FloatProcessor)ip, sigma, (float)weight);
     }
     
@@ -72,6 +77,7 @@ public class UnsharpMask implements ExtendedPlugInFilter, DialogListener {
         if (weight>0.99) weight = 0.99; 
         gd.addNumericField("Radius (Sigma)", sigma, 1, 6, "pixels");
         gd.addNumericField("Mask Weight (0.1-0.9)", weight,2);
+        gd.addCheckbox("Recursive (fast for large sigma)", recursive);
         gd.addPreviewCheckbox(pfr);
         gd.addDialogListener(this);
         gd.showDialog();                        //input by the user (or macro) happens here
@@ -84,6 +90,7 @@ public class UnsharpMask implements ExtendedPlugInFilter, DialogListener {
     public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
         sigma = gd.getNextNumber();
         weight = gd.getNextNumber();
+        recursive = gd.getNextBoolean();
         if (sigma < 0 || weight < 0 || weight > 0.99 || gd.invalidNumber())
             return false;
         else return true;
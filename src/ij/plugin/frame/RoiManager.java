@@ -1223,30 +1223,45 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			rtMulti = mmResults;
 		rtSys.reset();
 		int currentSlice = imp.getCurrentSlice();
+		boolean areas = true;
+		for (int i=0; i<rois.length; i++) {
+			if (rois[i]!=null && !rois[i].isArea())
+				areas = false;
+		}
+		int firstRow = 0;
+		if (areas) { // one row per roi and slice, measured in parallel
+			int[] slices = new int[nSlices];
+			for (int slice=1; slice<=nSlices; slice++)
+				slices[slice-1] = nSlices==1?currentSlice:slice;
+			firstRow = aSys.measure(rois, slices);
+			if (firstRow<0) { // rows do not match the pairs; measure one at a time
+				areas = false;
+				rtSys.reset();
+			}
+		}
 		for (int slice=1; slice<=nSlices; slice++) {
 			int sliceUse = slice;
 			if (nSlices==1) sliceUse = currentSlice;
-			imp.setSliceWithoutUpdate(sliceUse);
+			if (!areas)
+				imp.setSliceWithoutUpdate(sliceUse);
 			rtMulti.incrementCounter();
 			if ((Analyzer.getMeasurements()&Measurements.LABELS)!=0)
 				rtMulti.addLabel("Label", imp.getTitle());
-			int roiIndex = 0;
 			for (int i=0; i<rois.length; i++) {
-				imp.setRoi(rois[i]);
-				roiIndex++;
-				aSys.measure();
+				int row = firstRow+(slice-1)*rois.length+i;
+				if (!areas) {
+					imp.setRoi(rois[i]);
+					aSys.measure();
+					row = rtSys.getCounter()-1;
+				}
+				String suffix = ""+(i+1);
+				String name = rois[i]!=null?rois[i].getName():null;
+				if (name!=null && name.length()>0 && (name.length()<9||!Character.isDigit(name.charAt(0))))
+					suffix = "("+name+")";
 				for (int j=0; j<=rtSys.getLastColumn(); j++){
-					float[] col = rtSys.getColumn(j);
 					String head = rtSys.getColumnHeading(j);
-					String suffix = ""+roiIndex;
-					Roi roi = imp.getRoi();
-					if (roi!=null) {
-						String name = roi.getName();
-						if (name!=null && name.length()>0 && (name.length()<9||!Character.isDigit(name.charAt(0))))
-							suffix = "("+name+")";
-					}
-					if (head!=null && col!=null && !head.equals("Slice"))
-						rtMulti.addValue(head+suffix, rtSys.getValue(j,rtSys.getCounter()-1));
+					if (head!=null && rtSys.columnExists(j) && !head.equals("Slice"))
+						rtMulti.addValue(head+suffix, rtSys.getValue(j,row));
 				}
 			}
 			if (nSlices>1) IJ.showProgress(slice,nSlices);
@@ -514,48 +514,8 @@ public class ByteProcessor extends ImageProcessor {
 	}
 
     public void convolve3x3(int[] kernel) {
-        int v1, v2, v3;    //input pixel values around the current pixel
-        int v4, v5, v6;
-        int v7, v8, v9;
-        int scale = 0;
-		int k1=kernel[0], k2=kernel[1], k3=kernel[2],
-		k4=kernel[3], k5=kernel[4], k6=kernel[5],
-		k7=kernel[6], k8=kernel[7], k9=kernel[8];
-		for (int i=0; i<kernel.length; i++)
-			scale += kernel[i];
-		if (scale==0) scale = 1;
-        byte[] pixels2 = (byte[])getPixelsCopy();
-        int xEnd = roiX + roiWidth;
-        int yEnd = roiY + roiHeight;
-        for (int y=roiY; y<yEnd; y++) {
-            int p  = roiX + y*width;            //points to current pixel
-            int p6 = p - (roiX>0 ? 1 : 0);      //will point to v6, currently lower
-            int p3 = p6 - (y>0 ? width : 0);    //will point to v3, currently lower
-            int p9 = p6 + (y<height-1 ? width : 0); // ...  to v9, currently lower
-            v2 = pixels2[p3]&0xff;
-            v5 = pixels2[p6]&0xff;
-            v8 = pixels2[p9]&0xff;
-            if (roiX>0) { p3++; p6++; p9++; }
-            v3 = pixels2[p3]&0xff;
-            v6 = pixels2[p6]&0xff;
-            v9 = pixels2[p9]&0xff;
-			for (int x=roiX; x<xEnd; x++,p++) {
-				if (x<width-1) { p3++; p6++; p9++; }
-				v1 = v2; v2 = v3;
-				v3 = pixels2[p3]&0xff;
-				v4 = v5; v5 = v6;
-				v6 = pixels2[p6]&0xff;
-				v7 = v8; v8 = v9;
-				v9 = pixels2[p9]&0xff;
-				int sum = k1*v1 + k2*v2 + k3*v3
-						+ k4*v4 + k5*v5 + k6*v6
-						+ k7*v7 + k8*v8 + k9*v9;
-				sum = (sum+scale/2)/scale;   //add scale/2 to round
-				if (sum>255) sum = 255;
-				if (sum<0) sum = 0;
-				pixels[p] = (byte)sum;
-			}
-        }
+		byte[] pixels2 = (byte[])getFilterPixelsCopy();
+		filterInBands(CONVOLVE, kernel, pixels2, roiY, roiY+roiHeight);
     }
 
 	/** Filters using a 3x3 neighborhood. The p1, p2, etc variables, which
@@ -566,123 +526,175 @@ public class ByteProcessor extends ImageProcessor {
 		    p4 p5 p6
 		    p7 p8 p9
 		</pre>
+		@throws IllegalArgumentException if 'type' is not BLUR_MORE, FIND_EDGES,
+		MEDIAN_FILTER, MIN, MAX, ERODE or DILATE
 	*/
 	public void filter(int type) {
-		int p1, p2, p3, p4, p5, p6, p7, p8, p9;
-		byte[] pixels2 = (byte[])getPixelsCopy();
+		if (type<BLUR_MORE || (type>MAX && type!=ERODE && type!=DILATE))
+			throw new IllegalArgumentException("Invalid filter type: "+type);
+		byte[] pixels2 = (byte[])getFilterPixelsCopy();
 		if (width==1) {
         	filterEdge(type, pixels2, roiHeight, roiX, roiY, 0, 1);
         	return;
 		}
-		int offset, sum1, sum2=0, sum=0;
-        int[] values = new int[10];
-        if (type==MEDIAN_FILTER) values = new int[10];
-        int rowOffset = width;
-        int count;
-        int binaryForeground = 255 - binaryBackground;
-		for (int y=yMin; y<=yMax; y++) {
-			offset = xMin + y * width;
-			p2 = pixels2[offset-rowOffset-1]&0xff;
-			p3 = pixels2[offset-rowOffset]&0xff;
-			p5 = pixels2[offset-1]&0xff;
-			p6 = pixels2[offset]&0xff;
-			p8 = pixels2[offset+rowOffset-1]&0xff;
-			p9 = pixels2[offset+rowOffset]&0xff;
-
-			for (int x=xMin; x<=xMax; x++) {
-				p1 = p2; p2 = p3;
-				p3 = pixels2[offset-rowOffset+1]&0xff;
-				p4 = p5; p5 = p6;
-				p6 = pixels2[offset+1]&0xff;
-				p7 = p8; p8 = p9;
-				p9 = pixels2[offset+rowOffset+1]&0xff;
-
-				switch (type) {
-					case BLUR_MORE:
-						sum = (p1+p2+p3+p4+p5+p6+p7+p8+p9+4)/9;
-						break;
-					case FIND_EDGES: // 3x3 Sobel filter
-	        			sum1 = p1 + 2*p2 + p3 - p7 - 2*p8 - p9;
-	        			sum2 = p1  + 2*p4 + p7 - p3 - 2*p6 - p9;
-	        			sum = (int)Math.sqrt(sum1*sum1 + sum2*sum2);
-	        			if (sum> 255) sum = 255;
-						break;
-					case MEDIAN_FILTER:
-						values[1]=p1; values[2]=p2; values[3]=p3; values[4]=p4; values[5]=p5;
-						values[6]=p6; values[7]=p7; values[8]=p8; values[9]=p9;
-						sum = findMedian(values);
-						break;
-					case MIN:
-						sum = p5;
-						if (p1<sum) sum = p1;
-						if (p2<sum) sum = p2;
-						if (p3<sum) sum = p3;
-						if (p4<sum) sum = p4;
-						if (p6<sum) sum = p6;
-						if (p7<sum) sum = p7;
-						if (p8<sum) sum = p8;
-						if (p9<sum) sum = p9;
-						break;
-					case MAX:
-						sum = p5;
-						if (p1>sum) sum = p1;
-						if (p2>sum) sum = p2;
-						if (p3>sum) sum = p3;
-						if (p4>sum) sum = p4;
-						if (p6>sum) sum = p6;
-						if (p7>sum) sum = p7;
-						if (p8>sum) sum = p8;
-						if (p9>sum) sum = p9;
-						break;
-					case ERODE:
-						if (p5==binaryBackground)
-							sum = binaryBackground;
-						else {
-							count = 0;
-							if (p1==binaryBackground) count++;
-							if (p2==binaryBackground) count++;
-							if (p3==binaryBackground) count++;
-							if (p4==binaryBackground) count++;
-							if (p6==binaryBackground) count++;
-							if (p7==binaryBackground) count++;
-							if (p8==binaryBackground) count++;
-							if (p9==binaryBackground) count++;							
-							if (count>=binaryCount)
-								sum = binaryBackground;
-							else
-							sum = binaryForeground;
-						}
-						break;
-					case DILATE:
-						if (p5==binaryForeground)
-							sum = binaryForeground;
-						else {
-							count = 0;
-							if (p1==binaryForeground) count++;
-							if (p2==binaryForeground) count++;
-							if (p3==binaryForeground) count++;
-							if (p4==binaryForeground) count++;
-							if (p6==binaryForeground) count++;
-							if (p7==binaryForeground) count++;
-							if (p8==binaryForeground) count++;
-							if (p9==binaryForeground) count++;							
-							if (count>=binaryCount)
-								sum = binaryForeground;
-							else
-								sum = binaryBackground;
-						}
-						break;
-				}
-				
-				pixels[offset++] = (byte)sum;
-			}
-		}
+		filterInBands(type, null, pixels2, yMin, yMax+1);
         if (xMin==1) filterEdge(type, pixels2, roiHeight, roiX, roiY, 0, 1);
         if (yMin==1) filterEdge(type, pixels2, roiWidth, roiX, roiY, 1, 0);
         if (xMax==width-2) filterEdge(type, pixels2, roiHeight, width-1, roiY, 0, 1);
         if (yMax==height-2) filterEdge(type, pixels2, roiWidth, roiX, height-1, 1, 0);
 	}
 
+	/** Filters lines y0 to y1-1. For CONVOLVE, these are lines of the roi and
+		the image edges are handled by using the nearest edge pixels. For the
+		other filter types, only the interior xMin-xMax is filtered; the edge
+		pixels are done by filterEdge. The type is selected once per line,
+		so the loops over the pixels have no branches. */
+	void filter3x3Rows(int type, int[] kernel, Object pixelsCopy, int y0, int y1) {
+		byte[] pixels2 = (byte[])pixelsCopy;
+		if (type==CONVOLVE && kernel!=null) {
+			convolveRows(kernel, pixels2, y0, y1);
+			return;
+		}
+		int[] values = type==MEDIAN_FILTER?new int[10]:null;
+		int bg = binaryBackground;
+		int fg = 255 - binaryBackground;
+		int count = binaryCount;
+		for (int y=y0; y<y1; y++) {
+			int start = xMin + y*width;
+			int end = xMax + 1 + y*width;
+			switch (type) {
+				case BLUR_MORE:
+					for (int p=start; p<end; p++) {
+						int a = p-width, b = p+width;
+						int sum = (pixels2[a-1]&0xff) + (pixels2[a]&0xff) + (pixels2[a+1]&0xff)
+							+ (pixels2[p-1]&0xff) + (pixels2[p]&0xff) + (pixels2[p+1]&0xff)
+							+ (pixels2[b-1]&0xff) + (pixels2[b]&0xff) + (pixels2[b+1]&0xff);
+						pixels[p] = (byte)((sum+4)/9);
+					}
+					break;
+				case FIND_EDGES: // 3x3 Sobel filter
+					for (int p=start; p<end; p++) {
+						int a = p-width, b = p+width;
+						int p1=pixels2[a-1]&0xff, p2=pixels2[a]&0xff, p3=pixels2[a+1]&0xff;
+						int p4=pixels2[p-1]&0xff, p6=pixels2[p+1]&0xff;
+						int p7=pixels2[b-1]&0xff, p8=pixels2[b]&0xff, p9=pixels2[b+1]&0xff;
+						int sum1 = p1 + 2*p2 + p3 - p7 - 2*p8 - p9;
+						int sum2 = p1 + 2*p4 + p7 - p3 - 2*p6 - p9;
+						pixels[p] = (byte)Math.min((int)Math.sqrt(sum1*sum1 + sum2*sum2), 255);
+					}
+					break;
+				case MEDIAN_FILTER:
+					for (int p=start; p<end; p++) {
+						int a = p-width, b = p+width;
+						values[1]=pixels2[a-1]&0xff; values[2]=pixels2[a]&0xff; values[3]=pixels2[a+1]&0xff;
+						values[4]=pixels2[p-1]&0xff; values[5]=pixels2[p]&0xff; values[6]=pixels2[p+1]&0xff;
+						values[7]=pixels2[b-1]&0xff; values[8]=pixels2[b]&0xff; values[9]=pixels2[b+1]&0xff;
+						pixels[p] = (byte)findMedian(values);
+					}
+					break;
+				case MIN:
+					for (int p=start; p<end; p++) {
+						int a = p-width, b = p+width;
+						int v = Math.min(Math.min(pixels2[a-1]&0xff, pixels2[a]&0xff), pixels2[a+1]&0xff);
+						v = Math.min(v, Math.min(Math.min(pixels2[p-1]&0xff, pixels2[p]&0xff), pixels2[p+1]&0xff));
+						v = Math.min(v, Math.min(Math.min(pixels2[b-1]&0xff, pixels2[b]&0xff), pixels2[b+1]&0xff));
+						pixels[p] = (byte)v;
+					}
+					break;
+				case MAX:
+					for (int p=start; p<end; p++) {
+						int a = p-width, b = p+width;
+						int v = Math.max(Math.max(pixels2[a-1]&0xff, pixels2[a]&0xff), pixels2[a+1]&0xff);
+						v = Math.max(v, Math.max(Math.max(pixels2[p-1]&0xff, pixels2[p]&0xff), pixels2[p+1]&0xff));
+						v = Math.max(v, Math.max(Math.max(pixels2[b-1]&0xff, pixels2[b]&0xff), pixels2[b+1]&0xff));
+						pixels[p] = (byte)v;
+					}
+					break;
+				case ERODE:
+					for (int p=start; p<end; p++) {
+						int a = p-width, b = p+width;
+						int n = ((pixels2[a-1]&0xff)==bg?1:0) + ((pixels2[a]&0xff)==bg?1:0) + ((pixels2[a+1]&0xff)==bg?1:0)
+							+ ((pixels2[p-1]&0xff)==bg?1:0) + ((pixels2[p+1]&0xff)==bg?1:0)
+							+ ((pixels2[b-1]&0xff)==bg?1:0) + ((pixels2[b]&0xff)==bg?1:0) + ((pixels2[b+1]&0xff)==bg?1:0);
+						pixels[p] = (byte)((pixels2[p]&0xff)==bg || n>=count ? bg : fg);
+					}
+					break;
+				case DILATE:
+					for (int p=start; p<end; p++) {
+						int a = p-width, b = p+width;
+						int n = ((pixels2[a-1]&0xff)==fg?1:0) + ((pixels2[a]&0xff)==fg?1:0) + ((pixels2[a+1]&0xff)==fg?1:0)
+							+ ((pixels2[p-1]&0xff)==fg?1:0) + ((pixels2[p+1]&0xff)==fg?1:0)
+							+ ((pixels2[b-1]&0xff)==fg?1:0) + ((pixels2[b]&0xff)==fg?1:0) + ((pixels2[b+1]&0xff)==fg?1:0);
+						pixels[p] = (byte)((pixels2[p]&0xff)==fg || n>=count ? fg : bg);
+					}
+					break;
+			}
+		}
+	}
+
+	/** 3x3 convolution of roi lines y0 to y1-1. The first and last columns of
+		the image are convolved from a copy of their clamped neighborhood,
+		using the same loop as the interior pixels. */
+	private void convolveRows(int[] kernel, byte[] pixels2, int y0, int y1) {
+		int scale = 0;
+		for (int i=0; i<kernel.length; i++)
+			scale += kernel[i];
+		if (scale==0) scale = 1;
+		byte[] edge = new byte[9];
+		int xEnd = roiX + roiWidth;
+		int xInnerEnd = Math.min(xEnd, width-1);
+		for (int y=y0; y<y1; y++) {
+			int a = (y>0 ? y-1 : y)*width;         //line above
+			int c = y*width;
+			int b = (y<height-1 ? y+1 : y)*width;  //line below
+			int x = roiX;
+			if (x==0) {
+				edgeNeighborhood(edge, pixels2, a, c, b, 0);
+				convolveLine(edge, 1, 4, 7, 1, pixels, c, kernel, scale);
+				x++;
+			}
+			if (x<xInnerEnd) {
+				convolveLine(pixels2, a+x, c+x, b+x, xInnerEnd-x, pixels, c+x, kernel, scale);
+				x = xInnerEnd;
+			}
+			if (x<xEnd) {
+				edgeNeighborhood(edge, pixels2, a, c, b, x);
+				convolveLine(edge, 1, 4, 7, 1, pixels, c+x, kernel, scale);
+			}
+		}
+	}
+
+	/** Copies the 3x3 neighborhood of pixel x on the lines starting at a, c
+		and b into 'edge', using the nearest pixels outside the image. */
+	private void edgeNeighborhood(byte[] edge, byte[] pixels2, int a, int c, int b, int x) {
+		int x1 = x>0 ? x-1 : x;
+		int x3 = x<width-1 ? x+1 : x;
+		edge[0]=pixels2[a+x1]; edge[1]=pixels2[a+x]; edge[2]=pixels2[a+x3];
+		edge[3]=pixels2[c+x1]; edge[4]=pixels2[c+x]; edge[5]=pixels2[c+x3];
+		edge[6]=pixels2[b+x1]; edge[7]=pixels2[b+x]; edge[8]=pixels2[b+x3];
+	}
+
+	/** Convolves 'n' pixels; a, c and b point to the input pixels above,
+		at and below the first output pixel at 'p'. */
+	private static void convolveLine(byte[] in, int a, int c, int b, int n, byte[] out, int p, int[] kernel, int scale) {
+		int k1=kernel[0], k2=kernel[1], k3=kernel[2],
+		k4=kernel[3], k5=kernel[4], k6=kernel[5],
+		k7=kernel[6], k8=kernel[7], k9=kernel[8];
+		int v1, v2=in[a-1]&0xff, v3=in[a]&0xff;    //input pixel values around the current pixel
+		int v4, v5=in[c-1]&0xff, v6=in[c]&0xff;
+		int v7, v8=in[b-1]&0xff, v9=in[b]&0xff;
+		for (int end=p+n; p<end; p++) {
+			v1 = v2; v2 = v3; v3 = in[++a]&0xff;
+			v4 = v5; v5 = v6; v6 = in[++c]&0xff;
+			v7 = v8; v8 = v9; v9 = in[++b]&0xff;
+			int sum = k1*v1 + k2*v2 + k3*v3
+					+ k4*v4 + k5*v5 + k6*v6
+					+ k7*v7 + k8*v8 + k9*v9;
+			sum = (sum+scale/2)/scale;   //add scale/2 to round
+			out[p] = (byte)Math.max(Math.min(sum, 255), 0);
+		}
+	}
+
 	void filterEdge(int type, byte[] pixels2, int n, int x, int y, int xinc, int yinc) {
 		int p1, p2, p3, p4, p5, p6, p7, p8, p9;
         int sum=0, sum1, sum2;
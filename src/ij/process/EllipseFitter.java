@@ -117,11 +117,28 @@ public class EllipseFitter {
 		height = r.height;
 		getEllipseParam();
 	}
+
+	/** Fits an ellipse to a particle of 'n' pixels with bounding rectangle 'r',
+		given the sums of the pixel coordinates (relative to r.x and r.y), of
+		their squares and of their products. The result is the same as that of
+		fit(ip, stats) with a mask of the particle, but the pixels are not needed. */
+	public void fit(Rectangle r, int n, double xsum, double ysum, double x2sum, double y2sum, double xysum) {
+		left = r.x;
+		top = r.y;
+		width = r.width;
+		height = r.height;
+		bitCount = n;
+		this.xsum = xsum;
+		this.ysum = ysum;
+		this.x2sum = x2sum;
+		this.y2sum = y2sum;
+		this.xysum = xysum;
+		fitMoments();
+	}
 	
 	void getEllipseParam() {
 		double    sqrtPi = 1.772453851;
-		double    a11, a12, a22, m4, z, scale, tmp, xoffset, yoffset;
-		double    RealAngle;
+		double    tmp;
 
 		if (mask==null) {
 			major = (width*2) / sqrtPi;
@@ -141,6 +158,12 @@ public class EllipseFitter {
 		}
 
 		computeSums();
+		fitMoments();
+	}
+
+	void fitMoments() {
+		double    a11, a12, a22, m4, z, scale, tmp, xoffset, yoffset;
+
 		getMoments();
 		m4 = 4.0 * Math.abs(u02 * u20 - u11 * u11);
 		if (m4 < 0.000001)
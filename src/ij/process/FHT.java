@@ -2,7 +2,11 @@ package ij.process;
 import ij.*;
 import ij.plugin.FFT;
 import ij.plugin.ContrastEnhancer;
+import ij.util.ThreadUtil;
 import java.awt.image.ColorModel; 
+import java.util.Hashtable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 This class contains a Java implementation of the Fast Hartley
@@ -19,7 +23,13 @@ public class FHT extends FloatProcessor {
 	private float[] S;
 	private int[] bitrev;
 	private float[] tempArr;
+	private int tableSize;      // size of the tables C, S and bitrev
 	private boolean showProgress;
+	/** Sin, cos and bit-reverse tables by size, shared by all FHTs */
+	private static Hashtable tableCache = new Hashtable();
+	private static final int MAX_CACHED_SIZE = 1<<20;
+	/** Minimum number of pixels per thread for the 2D and 3D transforms */
+	private static final int MIN_PIXELS_PER_THREAD = 1<<16;
 
 	
 	/** Used by the FFT class. */
@@ -169,7 +179,7 @@ public class FHT extends FloatProcessor {
 	 */
 	public void transform1D(float[] x) {
 		int n = x.length;
-		if (S==null || n!=maxN) {
+		if (S==null || n!=tableSize) {
 			if (!isPowerOf2(n))
 				throw new IllegalArgumentException("Not power of 2 length: "+n);
 			initializeTables(n);
@@ -180,7 +190,7 @@ public class FHT extends FloatProcessor {
     /** Performs an inverse 1D Fast Hartley Transform (FHT) of an array */
 	public void inverseTransform1D(float[] fht) {
 		int n = fht.length;
-		if (S==null || n!=maxN) {
+		if (S==null || n!=tableSize) {
 			if (!isPowerOf2(n))
 				throw new IllegalArgumentException("Not power of 2 length: "+n);
 			initializeTables(n);
@@ -193,18 +203,30 @@ public class FHT extends FloatProcessor {
 			throw new  IllegalArgumentException("Image not power of 2 size or not square: "+width+"x"+height);
 		setShowProgress(true);
 		maxN = width;
-		if (S==null)
+		if (S==null || maxN!=tableSize)
 			initializeTables(maxN);
 		float[] fht = (float[])getPixels();
 	 	rc2DFHT(fht, inverse, maxN);
 		isFrequencyDomain = !inverse;
 	}
 	
+	/** Gets the tables for size maxN from the cache, or creates them. */
 	void initializeTables(int maxN) {
 	    if (maxN>0x40000000)
 	        throw new  IllegalArgumentException("Too large for FHT:  "+maxN+" >2^30");
-		makeSinCosTables(maxN);
-		makeBitReverseTable(maxN);
+		Integer key = Integer.valueOf(maxN);
+		Object[] tables = (Object[])tableCache.get(key);
+		if (tables!=null) {
+			C = (float[])tables[0];
+			S = (float[])tables[1];
+			bitrev = (int[])tables[2];
+		} else {
+			makeSinCosTables(maxN);
+			makeBitReverseTable(maxN);
+			if (maxN<=MAX_CACHED_SIZE)
+				tableCache.put(key, new Object[] {C, S, bitrev});
+		}
+		tableSize = maxN;
 		tempArr = new float[maxN];
 	}
 
@@ -228,40 +250,195 @@ public class FHT extends FloatProcessor {
 			bitrev[i] = bitRevX(i, nLog2);
 	}
 
-	/** Performs a 2D FHT (Fast Hartley Transform). */
+	/** Performs a 2D FHT (Fast Hartley Transform). The rows and columns are
+		transformed in parallel for large images. */
 	public void rc2DFHT(float[] x, boolean inverse, int maxN) {
-		if (S==null) initializeTables(maxN);
-		for (int row=0; row<maxN; row++)
-			dfht3(x, row*maxN, inverse, maxN);		
+		if (S==null || maxN!=tableSize) initializeTables(maxN);
+		int nThreads = getThreads(maxN*maxN);
+		transformRows(x, 0, maxN, inverse, maxN, nThreads);
 		progress(0.4);
-		transposeR(x, maxN);
+		transposeR(x, 0, maxN, nThreads);
 		progress(0.5);
-		for (int row=0; row<maxN; row++)		
-			dfht3(x, row*maxN, inverse, maxN);
+		transformRows(x, 0, maxN, inverse, maxN, nThreads);
 		progress(0.7);
-		transposeR(x, maxN);
+		transposeR(x, 0, maxN, nThreads);
 		progress(0.8);
+		BracewellRows(x, maxN, nThreads); // Now calculate actual Hartley transform
+		progress(0.95);
+	}
 
-		int mRow, mCol;
-		float A,B,C,D,E;
-		for (int row=0; row<=maxN/2; row++) { // Now calculate actual Hartley transform
-			for (int col=0; col<=maxN/2; col++) {
-				mRow = (maxN - row) % maxN;
-				mCol = (maxN - col)  % maxN;
-				A = x[row * maxN + col];	//  see Bracewell, 'Fast 2D Hartley Transf.' IEEE Procs. 9/86
-				B = x[mRow * maxN + col];
-				C = x[row * maxN + mCol];
-				D = x[mRow * maxN + mCol];
-				E = ((A + D) - (B + C)) / 2;
-				x[row * maxN + col] = A - E;
-				x[mRow * maxN + col] = B + E;
-				x[row * maxN + mCol] = C + E;
-				x[mRow * maxN + mCol] = D - E;
-			}
+	private static int getThreads(long nPixels) {
+		return (int)Math.max(1, Math.min(Prefs.getThreads(), nPixels/MIN_PIXELS_PER_THREAD));
+	}
+
+	/** Transforms all rows of the maxN*maxN image starting at x[base], with nThreads threads. */
+	private void transformRows(final float[] x, final int base, final int maxN, final boolean inverse,
+			final int n, int nThreads) {
+		if (nThreads<=1) {
+			for (int row=0; row<n; row++)
+				dfht3(x, base+row*maxN, inverse, maxN);
+			return;
 		}
-		progress(0.95);
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					float[] temp = new float[maxN];
+					for (int row=nextRow.getAndIncrement(); row<n; row=nextRow.getAndIncrement())
+						dfht3(x, base+row*maxN, inverse, maxN, temp);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
+
+	/** Replaces the transforms of rows and columns in x (a 2D Hartley transform
+		in the separable form) by the actual 2D Hartley transform.
+		See Bracewell, 'Fast 2D Hartley Transf.' IEEE Procs. 9/86 */
+	private static void BracewellRows(final float[] x, final int maxN, int nThreads) {
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					int mRow, mCol;
+					float A,B,C,D,E;
+					for (int row=nextRow.getAndIncrement(); row<=maxN/2; row=nextRow.getAndIncrement()) {
+						for (int col=0; col<=maxN/2; col++) {
+							mRow = (maxN - row) % maxN;
+							mCol = (maxN - col)  % maxN;
+							A = x[row * maxN + col];
+							B = x[mRow * maxN + col];
+							C = x[row * maxN + mCol];
+							D = x[mRow * maxN + mCol];
+							E = ((A + D) - (B + C)) / 2;
+							x[row * maxN + col] = A - E;
+							x[mRow * maxN + col] = B + E;
+							x[row * maxN + mCol] = C + E;
+							x[mRow * maxN + mCol] = D - E;
+						}
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
 	}
 	
+	/** Performs a forward 3D FHT of a 32-bit stack, in place. The slices must be
+		square with a power of 2 width, and the number of slices must be a power of 2.
+		The slices are transformed one by one, then the z-lines in blocks of adjacent
+		pixels, so that only small buffers are needed in addition to the stack.
+		As with the 2D transform, the output is multiplied by the number of voxels. */
+	public static void transform3D(ImageStack stack) {
+		rc3DFHT(stack, false);
+	}
+
+	/** Performs an inverse 3D FHT of a 32-bit stack, in place.
+		@see #transform3D(ImageStack) */
+	public static void inverseTransform3D(ImageStack stack) {
+		rc3DFHT(stack, true);
+	}
+
+	private static void rc3DFHT(ImageStack stack, boolean inverse) {
+		int maxN = stack.getWidth();
+		int depth = stack.getSize();
+		if (stack.getBitDepth()!=32 || maxN!=stack.getHeight() || !isPowerOf2(maxN)
+		|| !(depth==1 || isPowerOf2(depth)))
+			throw new IllegalArgumentException("32-bit stack with square power of 2 slices and power of 2 depth required: "
+				+maxN+"x"+stack.getHeight()+"x"+depth);
+		float[][] slices = new float[depth][];
+		for (int z=0; z<depth; z++)
+			slices[z] = (float[])stack.getPixels(z+1);
+		FHT fht = new FHT();
+		fht.initializeTables(maxN);
+		int nThreads = getThreads((long)maxN*maxN);
+		for (int z=0; z<depth; z++) {
+			IJ.showProgress(z, depth+1);
+			fht.transformRows(slices[z], 0, maxN, inverse, maxN, nThreads);
+			transposeR(slices[z], 0, maxN, nThreads);
+			fht.transformRows(slices[z], 0, maxN, inverse, maxN, nThreads);
+			transposeR(slices[z], 0, maxN, nThreads);
+		}
+		nThreads = getThreads((long)maxN*maxN*depth);
+		if (depth>1)
+			transformZ(slices, maxN*maxN, inverse, nThreads);
+		BracewellSlices(slices, maxN, nThreads);
+		IJ.showProgress(1.0);
+	}
+
+	/** Transforms the z-lines of 'slices' (each with nPixels pixels). Blocks of
+		adjacent pixels are copied into a buffer where the z-lines are contiguous. */
+	private static void transformZ(final float[][] slices, final int nPixels, final boolean inverse, int nThreads) {
+		final int depth = slices.length;
+		final int blockSize = 64;
+		final FHT fht = new FHT();
+		fht.initializeTables(depth);
+		final AtomicInteger nextPixel = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					float[] buffer = new float[blockSize*depth];
+					float[] temp = new float[depth];
+					for (int p0=nextPixel.getAndAdd(blockSize); p0<nPixels; p0=nextPixel.getAndAdd(blockSize)) {
+						int n = Math.min(blockSize, nPixels-p0);
+						for (int z=0; z<depth; z++)
+							for (int j=0, i=z; j<n; j++, i+=depth)
+								buffer[i] = slices[z][p0+j];
+						for (int j=0; j<n; j++)
+							fht.dfht3(buffer, j*depth, inverse, depth, temp);
+						for (int z=0; z<depth; z++)
+							for (int j=0, i=z; j<n; j++, i+=depth)
+								slices[z][p0+j] = buffer[i];
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
+
+	/** Converts the separable 3D transform into the actual 3D Hartley transform, using
+		2*cas(a+b+c) = cas(-a)cas(b)cas(c) + cas(a)cas(-b)cas(c) + cas(a)cas(b)cas(-c) - cas(-a)cas(-b)cas(-c).
+		Each task handles the 8 voxels at (+-col, +-row, +-z) for one pair of slices and rows. */
+	private static void BracewellSlices(final float[][] slices, final int maxN, int nThreads) {
+		final int depth = slices.length;
+		final int nRows = maxN/2+1;
+		final int nTasks = (depth/2+1)*nRows;
+		final AtomicInteger nextTask = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					float[] v = new float[8];   // index: 4*zSign + 2*rowSign + colSign
+					for (int task=nextTask.getAndIncrement(); task<nTasks; task=nextTask.getAndIncrement()) {
+						int z = task/nRows, row = task%nRows;
+						float[] s0 = slices[z], s1 = slices[(depth-z)%depth];
+						int r0 = row*maxN, r1 = ((maxN-row)%maxN)*maxN;
+						for (int col=0; col<=maxN/2; col++) {
+							int c0 = col, c1 = (maxN-col)%maxN;
+							v[0] = s0[r0+c0]; v[1] = s0[r0+c1]; v[2] = s0[r1+c0]; v[3] = s0[r1+c1];
+							v[4] = s1[r0+c0]; v[5] = s1[r0+c1]; v[6] = s1[r1+c0]; v[7] = s1[r1+c1];
+							s0[r0+c0] = (v[1] + v[2] + v[4] - v[7])/2;
+							s0[r0+c1] = (v[0] + v[3] + v[5] - v[6])/2;
+							s0[r1+c0] = (v[3] + v[0] + v[6] - v[5])/2;
+							s0[r1+c1] = (v[2] + v[1] + v[7] - v[4])/2;
+							s1[r0+c0] = (v[5] + v[6] + v[0] - v[3])/2;
+							s1[r0+c1] = (v[4] + v[7] + v[1] - v[2])/2;
+							s1[r1+c0] = (v[7] + v[4] + v[2] - v[1])/2;
+							s1[r1+c1] = (v[6] + v[5] + v[3] - v[0])/2;
+						}
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
+
 	void progress(double percent) {
 		if (showProgress)
 			IJ.showProgress(percent);
@@ -276,14 +453,25 @@ public class FHT extends FloatProcessor {
 	 *  Note that all amplitudes in the output 'x' are multiplied by maxN.
 	 */
 	public void dfht3(float[] x, int base, boolean inverse, int maxN) {
+		if (S==null || maxN!=tableSize) initializeTables(maxN);
+		dfht3(x, base, inverse, maxN, tempArr);
+	}
+
+	/** Performs a 1D FHT as dfht3(x, base, inverse, maxN), using 'temp' (size maxN)
+		as work array, so that several threads can transform different lines. */
+	private void dfht3(float[] x, int base, boolean inverse, int maxN, float[] temp) {
 		int i, stage, gpNum, gpIndex, gpSize, numGps, Nlog2;
 		int bfNum, numBfs;
 		int Ad0, Ad1, Ad2, Ad3, Ad4, CSAd;
 		float rt1, rt2, rt3, rt4;
 
-		if (S==null) initializeTables(maxN);
 		Nlog2 = log2(maxN);
-		BitRevRArr(x, base, Nlog2, maxN);	//bitReverse the input array
+		BitRevRArr(x, base, maxN, temp);	//bitReverse the input array
+		if (maxN==2) {                      //a single butterfly
+			rt1 = x[base];
+			x[base] = rt1 + x[base+1];
+			x[base+1] = rt1 - x[base+1];
+		}
 		gpSize = 2;     //first & second stages - do radix 4 butterflies once thru
 		numGps = maxN / 4;
 		for (gpNum=0; gpNum<numGps; gpNum++)  {
@@ -350,18 +538,30 @@ public class FHT extends FloatProcessor {
 	}
 
 	void transposeR (float[] x, int maxN) {
-		int   r, c;
-		float  rTemp;
-
-		for (r=0; r<maxN; r++)  {
-			for (c=r; c<maxN; c++) {
-				if (r != c)  {
-					rTemp = x[r*maxN + c];
-					x[r*maxN + c] = x[c*maxN + r];
-					x[c*maxN + r] = rTemp;
+		transposeR(x, 0, maxN, 1);
+	}
+
+	/** Transposes the maxN*maxN image starting at x[base]. With several threads,
+		each thread swaps the elements right of the diagonal in different rows. */
+	private static void transposeR(final float[] x, final int base, final int maxN, int nThreads) {
+		final AtomicInteger nextRow = new AtomicInteger(0);
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			callables[t] = new Callable() {
+				public Object call() {
+					float rTemp;
+					for (int r=nextRow.getAndIncrement(); r<maxN; r=nextRow.getAndIncrement()) {
+						for (int c=r+1; c<maxN; c++) {
+							rTemp = x[base + r*maxN + c];
+							x[base + r*maxN + c] = x[base + c*maxN + r];
+							x[base + c*maxN + r] = rTemp;
+						}
+					}
+					return null;
 				}
-			}
+			};
 		}
+		ThreadUtil.startAndJoin(callables);
 	}
 	
 	int log2 (int x) {
@@ -377,10 +577,13 @@ public class FHT extends FloatProcessor {
 	}
 
 	void BitRevRArr (float[] x, int base, int bitlen, int maxN) {
+		BitRevRArr(x, base, maxN, tempArr);
+	}
+
+	private void BitRevRArr (float[] x, int base, int maxN, float[] temp) {
 		for (int i=0; i<maxN; i++)
-			tempArr[i] = x[base+bitrev[i]];
-		for (int i=0; i<maxN; i++)
-			x[base+i] = tempArr[i];
+			temp[i] = x[base+bitrev[i]];
+		System.arraycopy(temp, 0, x, base, maxN);
 	}
 
 	private int bitRevX (int  x, int bitlen) {
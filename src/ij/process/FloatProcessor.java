@@ -574,84 +574,98 @@ public class FloatProcessor extends ImageProcessor {
 	/** 3x3 filter operations, code partly based on 3x3 convolution code
 	 *	contributed by Glynne Casteel. */
 	void filter3x3(int type, int[] kernel) {
-		float v1, v2, v3;			//input pixel values around the current pixel
-		float v4, v5, v6;
-		float v7, v8, v9;
-		float k1=0f, k2=0f, k3=0f;	//kernel values (used for CONVOLVE only)
-		float k4=0f, k5=0f, k6=0f;
-		float k7=0f, k8=0f, k9=0f;
-		float scale = 0f;
-		if (type==CONVOLVE) {
-			k1=kernel[0]; k2=kernel[1]; k3=kernel[2];
-			k4=kernel[3]; k5=kernel[4]; k6=kernel[5];
-			k7=kernel[6]; k8=kernel[7]; k9=kernel[8];
+		if (type!=BLUR_MORE && type!=FIND_EDGES && type!=CONVOLVE)
+			return;
+		float[] pixels2 = (float[])getFilterPixelsCopy();
+		filterInBands(type, kernel, pixels2, roiY, roiY+roiHeight);
+	}
+
+	/** Filters roi lines y0 to y1-1. The first and last columns of the image
+	 *	are filtered from a copy of their neighborhood, with the nearest edge
+	 *	pixels used outside the image, so the loops over the pixels have no
+	 *	edge tests. */
+	void filter3x3Rows(int type, int[] kernel, Object pixelsCopy, int y0, int y1) {
+		float[] pixels2 = (float[])pixelsCopy;
+		float[] edge = new float[9];
+		int xEnd = roiX + roiWidth;
+		int xInnerEnd = Math.min(xEnd, width-1);
+		for (int y=y0; y<y1; y++) {
+			int a = (y>0 ? y-1 : y)*width;			//line above
+			int c = y*width;
+			int b = (y<height-1 ? y+1 : y)*width;	//line below
+			int x = roiX;
+			if (x==0) {
+				edgeNeighborhood(edge, pixels2, a, c, b, 0);
+				filterLine(type, kernel, edge, 1, 4, 7, 1, c);
+				x++;
+			}
+			if (x<xInnerEnd) {
+				filterLine(type, kernel, pixels2, a+x, c+x, b+x, xInnerEnd-x, c+x);
+				x = xInnerEnd;
+			}
+			if (x<xEnd) {
+				edgeNeighborhood(edge, pixels2, a, c, b, x);
+				filterLine(type, kernel, edge, 1, 4, 7, 1, c+x);
+			}
+		}
+	}
+
+	/** Copies the 3x3 neighborhood of pixel x on the lines starting at a, c
+	 *	and b into 'edge', using the nearest pixels outside the image. */
+	private void edgeNeighborhood(float[] edge, float[] pixels2, int a, int c, int b, int x) {
+		int x1 = x>0 ? x-1 : x;
+		int x3 = x<width-1 ? x+1 : x;
+		edge[0]=pixels2[a+x1]; edge[1]=pixels2[a+x]; edge[2]=pixels2[a+x3];
+		edge[3]=pixels2[c+x1]; edge[4]=pixels2[c+x]; edge[5]=pixels2[c+x3];
+		edge[6]=pixels2[b+x1]; edge[7]=pixels2[b+x]; edge[8]=pixels2[b+x3];
+	}
+
+	/** Filters 'n' pixels; a, c and b point to the input pixels above, at
+	 *	and below the first output pixel at 'p'. The neighborhood is shifted
+	 *	along the line, so only three input pixels are read per pixel. */
+	private void filterLine(int type, int[] kernel, float[] in, int a, int c, int b, int n, int p) {
+		float v1, v2=in[a-1], v3=in[a];	//input pixel values around the current pixel
+		float v4, v5=in[c-1], v6=in[c];
+		float v7, v8=in[b-1], v9=in[b];
+		int end = p + n;
+		switch (type) {
+			case BLUR_MORE:
+			for (; p<end; p++) {
+				v1 = v2; v2 = v3; v3 = in[++a];
+				v4 = v5; v5 = v6; v6 = in[++c];
+				v7 = v8; v8 = v9; v9 = in[++b];
+				pixels[p] = (v1+v2+v3+v4+v5+v6+v7+v8+v9)*0.11111111f; //0.111... = 1/9
+			}
+			break;
+			case FIND_EDGES:
+			for (; p<end; p++) {
+				v1 = v2; v2 = v3; v3 = in[++a];
+				v4 = v5; v5 = v6; v6 = in[++c];
+				v7 = v8; v8 = v9; v9 = in[++b];
+				float sum1 = v1 + 2*v2 + v3 - v7 - 2*v8 - v9;
+				float sum2 = v1	 + 2*v4 + v7 - v3 - 2*v6 - v9;
+				pixels[p] = (float)Math.sqrt(sum1*sum1 + sum2*sum2);
+			}
+			break;
+			case CONVOLVE:
+			float k1=kernel[0], k2=kernel[1], k3=kernel[2];
+			float k4=kernel[3], k5=kernel[4], k6=kernel[5];
+			float k7=kernel[6], k8=kernel[7], k9=kernel[8];
+			float scale = 0f;
 			for (int i=0; i<kernel.length; i++)
 				scale += kernel[i];
 			if (scale==0) scale = 1f;
 			scale = 1f/scale; //multiplication factor (multiply is faster than divide)
-		}
-		
-		float[] pixels2 = (float[])getPixelsCopy();
-		//float[] pixels2 = (float[])getPixelsCopy();
-		int xEnd = roiX + roiWidth;
-		int yEnd = roiY + roiHeight;
-		for (int y=roiY; y<yEnd; y++) {
-			int p  = roiX + y*width;			//points to current pixel
-			int p6 = p - (roiX>0 ? 1 : 0);		//will point to v6, currently lower
-			int p3 = p6 - (y>0 ? width : 0);	//will point to v3, currently lower
-			int p9 = p6 + (y<height-1 ? width : 0); // ...	to v9, currently lower
-			v2 = pixels2[p3];
-			v5 = pixels2[p6];
-			v8 = pixels2[p9];
-			if (roiX>0) { p3++; p6++; p9++; }
-			v3 = pixels2[p3];
-			v6 = pixels2[p6];
-			v9 = pixels2[p9];
-
-			switch (type) {
-				case BLUR_MORE:
-				for (int x=roiX; x<xEnd; x++,p++) {
-					if (x<width-1) { p3++; p6++; p9++; }
-					v1 = v2; v2 = v3;
-					v3 = pixels2[p3];
-					v4 = v5; v5 = v6;
-					v6 = pixels2[p6];
-					v7 = v8; v8 = v9;
-					v9 = pixels2[p9];
-					pixels[p] = (v1+v2+v3+v4+v5+v6+v7+v8+v9)*0.11111111f; //0.111... = 1/9
-				}
-				break;
-				case FIND_EDGES:
-				for (int x=roiX; x<xEnd; x++,p++) {
-					if (x<width-1) { p3++; p6++; p9++; }
-					v1 = v2; v2 = v3;
-					v3 = pixels2[p3];
-					v4 = v5; v5 = v6;
-					v6 = pixels2[p6];
-					v7 = v8; v8 = v9;
-					v9 = pixels2[p9];
-					float sum1 = v1 + 2*v2 + v3 - v7 - 2*v8 - v9;
-					float sum2 = v1	 + 2*v4 + v7 - v3 - 2*v6 - v9;
-					pixels[p] = (float)Math.sqrt(sum1*sum1 + sum2*sum2);
-				}
-				break;
-				case CONVOLVE:
-				for (int x=roiX; x<xEnd; x++,p++) {
-					if (x<width-1) { p3++; p6++; p9++; }
-					v1 = v2; v2 = v3;
-					v3 = pixels2[p3];
-					v4 = v5; v5 = v6;
-					v6 = pixels2[p6];
-					v7 = v8; v8 = v9;
-					v9 = pixels2[p9];
-					float sum = k1*v1 + k2*v2 + k3*v3
-							  + k4*v4 + k5*v5 + k6*v6
-							  + k7*v7 + k8*v8 + k9*v9;
-					sum *= scale;
-					pixels[p] = sum;
-				}
-				break;
+			for (; p<end; p++) {
+				v1 = v2; v2 = v3; v3 = in[++a];
+				v4 = v5; v5 = v6; v6 = in[++c];
+				v7 = v8; v8 = v9; v9 = in[++b];
+				float sum = k1*v1 + k2*v2 + k3*v3
+						  + k4*v4 + k5*v5 + k6*v6
+						  + k7*v7 + k8*v8 + k9*v9;
+				pixels[p] = sum*scale;
 			}
+			break;
 		}
 	}
 
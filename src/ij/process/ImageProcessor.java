@@ -11,6 +11,7 @@ import ij.plugin.Binner;
 import ij.process.AutoThresholder.Method;
 import ij.Prefs;
 import ij.measure.Measurements;
+import java.util.concurrent.Callable;
 
 /**
 This abstract class is the superclass for classes that process
@@ -109,6 +110,9 @@ public abstract class ImageProcessor implements Cloneable {
 	protected static double seed = Double.NaN;
 	protected static Random rnd;
 	protected boolean fillValueSet;
+	private static ThreadLocal filterBuffers = new ThreadLocal(); // soft reference to each thread's 3x3 filter buffer
+	static final int MAX_FILTER_BUFFER_PIXELS = 1<<20;      // larger images get a new copy each time
+	static final int MIN_PIXELS_PER_FILTER_THREAD = 1<<17;  // smaller images are filtered in one thread
 
 	protected void showProgress(double percentDone) {
 		if (progressBar!=null)
@@ -2624,6 +2628,57 @@ public abstract class ImageProcessor implements Cloneable {
 		return defaultColorModel;
 	}
 
+	/** Returns a copy of the pixels for the 3x3 filters, like getPixelsCopy().
+		For images with up to MAX_FILTER_BUFFER_PIXELS pixels, the array is
+		kept (softly referenced, one per thread) and reused by the next
+		filter call on the same thread, which avoids allocating a new copy
+		when filters are applied repeatedly. */
+	Object getFilterPixelsCopy() {
+		int n = width*height;
+		if (snapshotCopyMode || n>MAX_FILTER_BUFFER_PIXELS)
+			return getPixelsCopy();
+		Object pixels = getPixels();
+		java.lang.ref.SoftReference ref = (java.lang.ref.SoftReference)filterBuffers.get();
+		Object buffer = ref!=null?ref.get():null;
+		if (buffer==null || buffer.getClass()!=pixels.getClass() || java.lang.reflect.Array.getLength(buffer)!=n) {
+			buffer = getPixelsCopy();
+			filterBuffers.set(new java.lang.ref.SoftReference(buffer));
+		} else
+			System.arraycopy(pixels, 0, buffer, 0, n);
+		return buffer;
+	}
+
+	/** Calls filter3x3Rows for the lines yStart to yEnd-1. Large images
+		are split into bands of lines, which are filtered in parallel threads,
+		unless the current thread is already one of several parallel threads
+		(e.g. of a PlugInFilterRunner processing stack slices in parallel). */
+	void filterInBands(final int type, final int[] kernel, final Object pixels2, int yStart, int yEnd) {
+		int nLines = yEnd - yStart;
+		int nThreads = (int)Math.min(Prefs.getThreads(), (long)nLines*roiWidth/MIN_PIXELS_PER_FILTER_THREAD);
+		if (nThreads<=1 || ThreadUtil.isParallelThread()) {
+			filter3x3Rows(type, kernel, pixels2, yStart, yEnd);
+			return;
+		}
+		int linesPerBand = (nLines+nThreads-1)/nThreads;
+		Callable[] callables = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final int y0 = yStart + t*linesPerBand;
+			final int y1 = Math.min(y0+linesPerBand, yEnd);
+			callables[t] = new Callable() {
+				public Object call() {
+					filter3x3Rows(type, kernel, pixels2, y0, y1);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+	}
+
+	/** Filters the lines y0 to y1-1 of the roi with a 3x3 filter, reading the
+		input from 'pixels2'. Implemented by the subclasses that use filterInBands. */
+	void filter3x3Rows(int type, int[] kernel, Object pixels2, int y0, int y1) {
+	}
+
 	/**	The getPixelsCopy() method returns a reference to the
 		snapshot buffer if it is not null and 'snapshotCopyMode' is true.
 		@see ImageProcessor#getPixelsCopy
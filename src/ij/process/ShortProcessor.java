@@ -635,86 +635,98 @@ public class ShortProcessor extends ImageProcessor {
     /** 3x3 filter operations, code partly based on 3x3 convolution code
      *  contributed by Glynne Casteel. */
     void filter3x3(int type, int[] kernel) {
-        int v1, v2, v3;           //input pixel values around the current pixel
-        int v4, v5, v6;
-        int v7, v8, v9;
-        int k1=0, k2=0, k3=0;  //kernel values (used for CONVOLVE only)
-        int k4=0, k5=0, k6=0;
-        int k7=0, k8=0, k9=0;
-        int scale = 0;
-        if (type==CONVOLVE) {
-            k1=kernel[0]; k2=kernel[1]; k3=kernel[2];
-            k4=kernel[3]; k5=kernel[4]; k6=kernel[5];
-            k7=kernel[6]; k8=kernel[7]; k9=kernel[8];
+        if (type!=BLUR_MORE && type!=FIND_EDGES && type!=CONVOLVE)
+            return;
+        short[] pixels2 = (short[])getFilterPixelsCopy();
+        filterInBands(type, kernel, pixels2, roiY, roiY+roiHeight);
+    }
+
+    /** Filters roi lines y0 to y1-1. The first and last columns of the image
+     *  are filtered from a copy of their neighborhood, with the nearest edge
+     *  pixels used outside the image, so the loops over the pixels have no
+     *  edge tests. */
+    void filter3x3Rows(int type, int[] kernel, Object pixelsCopy, int y0, int y1) {
+        short[] pixels2 = (short[])pixelsCopy;
+        short[] edge = new short[9];
+        int xEnd = roiX + roiWidth;
+        int xInnerEnd = Math.min(xEnd, width-1);
+        for (int y=y0; y<y1; y++) {
+            int a = (y>0 ? y-1 : y)*width;          //line above
+            int c = y*width;
+            int b = (y<height-1 ? y+1 : y)*width;   //line below
+            int x = roiX;
+            if (x==0) {
+                edgeNeighborhood(edge, pixels2, a, c, b, 0);
+                filterLine(type, kernel, edge, 1, 4, 7, 1, c);
+                x++;
+            }
+            if (x<xInnerEnd) {
+                filterLine(type, kernel, pixels2, a+x, c+x, b+x, xInnerEnd-x, c+x);
+                x = xInnerEnd;
+            }
+            if (x<xEnd) {
+                edgeNeighborhood(edge, pixels2, a, c, b, x);
+                filterLine(type, kernel, edge, 1, 4, 7, 1, c+x);
+            }
+        }
+    }
+
+    /** Copies the 3x3 neighborhood of pixel x on the lines starting at a, c
+     *  and b into 'edge', using the nearest pixels outside the image. */
+    private void edgeNeighborhood(short[] edge, short[] pixels2, int a, int c, int b, int x) {
+        int x1 = x>0 ? x-1 : x;
+        int x3 = x<width-1 ? x+1 : x;
+        edge[0]=pixels2[a+x1]; edge[1]=pixels2[a+x]; edge[2]=pixels2[a+x3];
+        edge[3]=pixels2[c+x1]; edge[4]=pixels2[c+x]; edge[5]=pixels2[c+x3];
+        edge[6]=pixels2[b+x1]; edge[7]=pixels2[b+x]; edge[8]=pixels2[b+x3];
+    }
+
+    /** Filters 'n' pixels; a, c and b point to the input pixels above, at
+     *  and below the first output pixel at 'p'. The neighborhood is shifted
+     *  along the line, so only three input pixels are read per pixel. */
+    private void filterLine(int type, int[] kernel, short[] in, int a, int c, int b, int n, int p) {
+        int v1, v2=in[a-1]&0xffff, v3=in[a]&0xffff;   //input pixel values around the current pixel
+        int v4, v5=in[c-1]&0xffff, v6=in[c]&0xffff;
+        int v7, v8=in[b-1]&0xffff, v9=in[b]&0xffff;
+        int end = p + n;
+        switch (type) {
+            case BLUR_MORE:
+            for (; p<end; p++) {
+                v1 = v2; v2 = v3; v3 = in[++a]&0xffff;
+                v4 = v5; v5 = v6; v6 = in[++c]&0xffff;
+                v7 = v8; v8 = v9; v9 = in[++b]&0xffff;
+                pixels[p] = (short)((v1+v2+v3+v4+v5+v6+v7+v8+v9+4)/9);
+            }
+            break;
+            case FIND_EDGES:
+            for (; p<end; p++) {
+                v1 = v2; v2 = v3; v3 = in[++a]&0xffff;
+                v4 = v5; v5 = v6; v6 = in[++c]&0xffff;
+                v7 = v8; v8 = v9; v9 = in[++b]&0xffff;
+                double sum1 = v1 + 2*v2 + v3 - v7 - 2*v8 - v9;
+                double sum2 = v1  + 2*v4 + v7 - v3 - 2*v6 - v9;
+                pixels[p] = (short)Math.min(Math.sqrt(sum1*sum1 + sum2*sum2), 65535.0);
+            }
+            break;
+            case CONVOLVE:
+            int k1=kernel[0], k2=kernel[1], k3=kernel[2];
+            int k4=kernel[3], k5=kernel[4], k6=kernel[5];
+            int k7=kernel[6], k8=kernel[7], k9=kernel[8];
+            int scale = 0;
             for (int i=0; i<kernel.length; i++)
                 scale += kernel[i];
             if (scale==0) scale = 1;
-        }
-
-        short[] pixels2 = (short[])getPixelsCopy();
-        int xEnd = roiX + roiWidth;
-        int yEnd = roiY + roiHeight;
-        for (int y=roiY; y<yEnd; y++) {
-            int p  = roiX + y*width;            //points to current pixel
-            int p6 = p - (roiX>0 ? 1 : 0);      //will point to v6, currently lower
-            int p3 = p6 - (y>0 ? width : 0);    //will point to v3, currently lower
-            int p9 = p6 + (y<height-1 ? width : 0); // ...  to v9, currently lower
-            v2 = pixels2[p3]&0xffff;
-            v5 = pixels2[p6]&0xffff;
-            v8 = pixels2[p9]&0xffff;
-            if (roiX>0) { p3++; p6++; p9++; }
-            v3 = pixels2[p3]&0xffff;
-            v6 = pixels2[p6]&0xffff;
-            v9 = pixels2[p9]&0xffff;
-
-            switch (type) {
-                case BLUR_MORE:
-                for (int x=roiX; x<xEnd; x++,p++) {
-                    if (x<width-1) { p3++; p6++; p9++; }
-                    v1 = v2; v2 = v3;
-                    v3 = pixels2[p3]&0xffff;
-                    v4 = v5; v5 = v6;
-                    v6 = pixels2[p6]&0xffff;
-                    v7 = v8; v8 = v9;
-                    v9 = pixels2[p9]&0xffff;
-                    pixels[p] = (short)((v1+v2+v3+v4+v5+v6+v7+v8+v9+4)/9);
-                }
-                break;
-                case FIND_EDGES:
-                for (int x=roiX; x<xEnd; x++,p++) {
-                    if (x<width-1) { p3++; p6++; p9++; }
-                    v1 = v2; v2 = v3;
-                    v3 = pixels2[p3]&0xffff;
-                    v4 = v5; v5 = v6;
-                    v6 = pixels2[p6]&0xffff;
-                    v7 = v8; v8 = v9;
-                    v9 = pixels2[p9]&0xffff;
-                    double sum1 = v1 + 2*v2 + v3 - v7 - 2*v8 - v9;
-                    double sum2 = v1  + 2*v4 + v7 - v3 - 2*v6 - v9;
-                    double result = Math.sqrt(sum1*sum1 + sum2*sum2);
-                    if (result>65535.0) result = 65535.0;
-                    pixels[p] = (short)result;
-                }
-                break;
-                case CONVOLVE:
-                for (int x=roiX; x<xEnd; x++,p++) {
-                    if (x<width-1) { p3++; p6++; p9++; }
-                    v1 = v2; v2 = v3;
-                    v3 = pixels2[p3]&0xffff;
-                    v4 = v5; v5 = v6;
-                    v6 = pixels2[p6]&0xffff;
-                    v7 = v8; v8 = v9;
-                    v9 = pixels2[p9]&0xffff;
-                    int sum = k1*v1 + k2*v2 + k3*v3
-                            + k4*v4 + k5*v5 + k6*v6
-                            + k7*v7 + k8*v8 + k9*v9;
-                    sum = (sum+scale/2)/scale;   //scale/2 for rounding
-                    if(sum>65535) sum = 65535;
-                    if(sum<0) sum = 0;
-                    pixels[p] = (short)sum;
-                }
-                break;
+            for (; p<end; p++) {
+                v1 = v2; v2 = v3; v3 = in[++a]&0xffff;
+                v4 = v5; v5 = v6; v6 = in[++c]&0xffff;
+                v7 = v8; v8 = v9; v9 = in[++b]&0xffff;
+                int sum = k1*v1 + k2*v2 + k3*v3
+                        + k4*v4 + k5*v5 + k6*v6
+                        + k7*v7 + k8*v8 + k9*v9;
+                sum = (sum+scale/2)/scale;   //scale/2 for rounding
+                pixels[p] = (short)Math.max(Math.min(sum, 65535), 0);
             }
+            break;
         }
     }
 
@@ -3,6 +3,23 @@ import java.util.concurrent.*;
 
 public class ThreadUtil {
 	
+	private static ThreadLocal parallelThread = new ThreadLocal();
+
+	/** Marks the current thread as one of several threads that already work
+	 *  in parallel, e.g. on different slices of a stack. Code that could split
+	 *  its work over more threads should then run in the current thread. */
+	public static void setParallelThread(boolean b) {
+		if (b)
+			parallelThread.set(Boolean.TRUE);
+		else
+			parallelThread.remove();
+	}
+
+	/** Returns 'true' if the current thread has been marked with setParallelThread(true). */
+	public static boolean isParallelThread() {
+		return parallelThread.get()!=null;
+	}
+
 	/** Start all given threads and wait on each of them until all are done.
 	 * From Stephan Preibisch's Multithreading.java class. See:
 	 * http://repo.or.cz/w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD
@@ -155,6 +155,14 @@ import java.security.MessageDigest;
 	public static double parseDouble(String s, double defaultValue) {
 		if (s==null)
 			return defaultValue;
+		int i = 0, n = s.length();
+		while (i<n && s.charAt(i)<=' ')
+			i++;
+		if (i==n)
+			return defaultValue;
+		char c = s.charAt(i);
+		if (!(c>='0'&&c<='9' || c=='-' || c=='+' || c=='.' || c=='N' || c=='I'))
+			return defaultValue; // not a number; avoids the costly exception
 		try {
 			defaultValue = Double.parseDouble(s);
 		} catch (NumberFormatException e) {}
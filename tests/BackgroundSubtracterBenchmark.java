@@ -0,0 +1,86 @@
+import ij.Prefs;
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.process.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Times BackgroundSubtracter.rollingBallBackground with one thread (the
+	serial code paths) and with several threads, and checks that both
+	give the same background. Each case is run with the rolling ball and
+	the sliding paraboloid, with and without presmoothing. To time another
+	version of the class, put its classes first on the class path.
+	<pre>
+	mvn -q compile
+	javac -cp target/classes -d /tmp/bench tests/BackgroundSubtracterBenchmark.java
+	java -Djava.awt.headless=true -cp target/classes:/tmp/bench BackgroundSubtracterBenchmark [threads [width height]]
+	</pre>
+*/
+public class BackgroundSubtracterBenchmark {
+	static final int REPEATS = 3;
+	static int[][] sizes = {{97,1000}, {512,512}, {1024,1024}, {1536,1536}};
+	static final double[] RADII = {5, 20, 50, 150};
+
+	public static void main(String[] args) {
+		int threads = args.length>0?Integer.parseInt(args[0]):4;
+		if (args.length>2)
+			sizes = new int[][] {{Integer.parseInt(args[1]), Integer.parseInt(args[2])}};
+		System.out.println("1 vs "+threads+" threads, "+Runtime.getRuntime().availableProcessors()+" processors, best of "+REPEATS);
+		boolean identical = true;
+		for (int s=0; s<sizes.length; s++) {
+			FloatProcessor fp = createImage(sizes[s][0], sizes[s][1]);
+			for (int r=0; r<RADII.length; r++) {
+				for (int mode=0; mode<4; mode++) {
+					boolean paraboloid = mode>=2;
+					boolean presmooth = (mode&1)!=0;
+					Prefs.setThreads(1);
+					float[] serial = null;
+					double serialTime = Double.MAX_VALUE;
+					for (int i=0; i<REPEATS; i++) {
+						long t0 = System.nanoTime();
+						serial = background(fp, RADII[r], paraboloid, presmooth);
+						serialTime = Math.min(serialTime, (System.nanoTime()-t0)/1e9);
+					}
+					Prefs.setThreads(threads);
+					float[] parallel = null;
+					double parallelTime = Double.MAX_VALUE;
+					for (int i=0; i<REPEATS; i++) {
+						long t0 = System.nanoTime();
+						parallel = background(fp, RADII[r], paraboloid, presmooth);
+						parallelTime = Math.min(parallelTime, (System.nanoTime()-t0)/1e9);
+					}
+					boolean same = Arrays.equals(serial, parallel);
+					identical &= same;
+					System.out.println(sizes[s][0]+"x"+sizes[s][1]+" r="+(int)RADII[r]
+						+(paraboloid?" paraboloid":" ball")+(presmooth?" smoothed":"")
+						+": "+String.format("%.3f s, %.3f s, %.2fx", serialTime, parallelTime, serialTime/parallelTime)
+						+(same?"":", OUTPUT DIFFERS"));
+				}
+			}
+		}
+		System.out.println(identical?"all outputs identical":"SOME OUTPUTS DIFFER");
+		System.exit(identical?0:1);
+	}
+
+	/** Returns a smooth gradient with noise and a few bright particles. */
+	static FloatProcessor createImage(int width, int height) {
+		Random random = new Random(1);
+		float[] pixels = new float[width*height];
+		for (int y=0, i=0; y<height; y++)
+			for (int x=0; x<width; x++, i++)
+				pixels[i] = (float)(50.0 + 0.05*x + 0.03*y + 10.0*random.nextGaussian());
+		for (int p=0; p<width*height/2000; p++) {
+			int xc = random.nextInt(width), yc = random.nextInt(height);
+			for (int y=Math.max(0,yc-4); y<Math.min(height,yc+5); y++)
+				for (int x=Math.max(0,xc-4); x<Math.min(width,xc+5); x++)
+					pixels[y*width+x] += 200f;
+		}
+		return new FloatProcessor(width, height, pixels, null);
+	}
+
+	static float[] background(FloatProcessor fp, double radius, boolean paraboloid, boolean presmooth) {
+		FloatProcessor fp2 = (FloatProcessor)fp.duplicate();
+		new BackgroundSubtracter().rollingBallBackground(fp2, radius, true, false, paraboloid, presmooth, true);
+		return (float[])fp2.getPixels();
+	}
+
+}
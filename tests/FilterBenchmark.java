@@ -0,0 +1,125 @@
+import ij.Prefs;
+import ij.process.*;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Times the 3x3 filters (ImageProcessor.filter and convolve3x3) of byte,
+	short, float and RGB images with one thread and with several threads,
+	and checks that both give the same pixels, for the whole image and for
+	a rectangular roi.
+	<pre>
+	mvn -q compile
+	javac -cp target/classes -d /tmp/bench tests/FilterBenchmark.java
+	java -Djava.awt.headless=true -cp target/classes:/tmp/bench FilterBenchmark [threads [size]]
+	</pre>
+*/
+public class FilterBenchmark {
+	static final int REPEATS = 5;
+	static final String[] NAMES = {"BLUR_MORE", "FIND_EDGES", "MEDIAN_FILTER", "MIN", "MAX", "ERODE", "DILATE", "CONVOLVE"};
+	static final int ERODE=5, DILATE=6, CONVOLVE=7; // indexes in NAMES
+	static final int[] KERNEL = {1, 2, 1, 2, 4, 2, 1, 2, 1};
+
+	public static void main(String[] args) {
+		int threads = args.length>0?Integer.parseInt(args[0]):4;
+		int size = args.length>1?Integer.parseInt(args[1]):2048;
+		System.out.println("1 vs "+threads+" threads, "+size+"x"+size+", "
+			+Runtime.getRuntime().availableProcessors()+" processors, best of "+REPEATS);
+		ImageProcessor[] images = createImages(size);
+		boolean identical = true;
+		for (int i=0; i<images.length; i++) {
+			for (int f=0; f<NAMES.length; f++) {
+				if (!supported(images[i], f))
+					continue;
+				for (int roi=0; roi<2; roi++) {
+					Prefs.setThreads(1);
+					double serialTime = Double.MAX_VALUE;
+					ImageProcessor serial = null;
+					for (int r=0; r<REPEATS; r++) {
+						serial = prepare(images[i], roi==1);
+						long t0 = System.nanoTime();
+						filter(serial, f);
+						serialTime = Math.min(serialTime, (System.nanoTime()-t0)/1e6);
+					}
+					Prefs.setThreads(threads);
+					double parallelTime = Double.MAX_VALUE;
+					ImageProcessor parallel = null;
+					for (int r=0; r<REPEATS; r++) {
+						parallel = prepare(images[i], roi==1);
+						long t0 = System.nanoTime();
+						filter(parallel, f);
+						parallelTime = Math.min(parallelTime, (System.nanoTime()-t0)/1e6);
+					}
+					boolean same = equal(serial, parallel);
+					identical &= same;
+					System.out.println(type(images[i])+" "+NAMES[f]+(roi==1?" roi":"")+": "
+						+String.format("%.1f ms, %.1f ms, %.2fx", serialTime, parallelTime, serialTime/parallelTime)
+						+(same?"":", OUTPUT DIFFERS"));
+				}
+			}
+		}
+		System.out.println(identical?"all outputs identical":"SOME OUTPUTS DIFFER");
+		System.exit(identical?0:1);
+	}
+
+	/** Returns noisy byte (binary, for erode and dilate), short, float and RGB images. */
+	static ImageProcessor[] createImages(int size) {
+		Random random = new Random(1);
+		int n = size*size;
+		byte[] bytes = new byte[n];
+		short[] shorts = new short[n];
+		float[] floats = new float[n];
+		int[] rgb = new int[n];
+		for (int i=0; i<n; i++) {
+			bytes[i] = (byte)(random.nextInt(8)==0?255:0);
+			shorts[i] = (short)random.nextInt(65536);
+			floats[i] = (float)random.nextGaussian();
+			rgb[i] = random.nextInt();
+		}
+		return new ImageProcessor[] {new ByteProcessor(size, size, bytes), new ShortProcessor(size, size, shorts, null),
+			new FloatProcessor(size, size, floats), new ColorProcessor(size, size, rgb)};
+	}
+
+	static boolean supported(ImageProcessor ip, int f) {
+		if (ip instanceof ShortProcessor || ip instanceof FloatProcessor)
+			return f==0 || f==1 || f==CONVOLVE; // the other types are ignored
+		if (ip instanceof ColorProcessor)
+			return f!=ERODE && f!=DILATE;
+		return true;
+	}
+
+	static ImageProcessor prepare(ImageProcessor ip, boolean roi) {
+		ImageProcessor ip2 = ip.duplicate();
+		if (roi)
+			ip2.setRoi(new Rectangle(ip.getWidth()/7, ip.getHeight()/5, ip.getWidth()/2, ip.getHeight()/2));
+		return ip2;
+	}
+
+	static void filter(ImageProcessor ip, int f) {
+		if (f==CONVOLVE)
+			ip.convolve3x3(KERNEL);
+		else if (f==ERODE)
+			((ByteProcessor)ip).erode(1, 0);
+		else if (f==DILATE)
+			((ByteProcessor)ip).dilate(1, 0);
+		else
+			ip.filter(f);
+	}
+
+	static boolean equal(ImageProcessor ip1, ImageProcessor ip2) {
+		Object p1 = ip1.getPixels(), p2 = ip2.getPixels();
+		if (p1 instanceof byte[])
+			return Arrays.equals((byte[])p1, (byte[])p2);
+		else if (p1 instanceof short[])
+			return Arrays.equals((short[])p1, (short[])p2);
+		else if (p1 instanceof float[])
+			return Arrays.equals((float[])p1, (float[])p2);
+		else
+			return Arrays.equals((int[])p1, (int[])p2);
+	}
+
+	static String type(ImageProcessor ip) {
+		return ip instanceof ByteProcessor?"8-bit":ip instanceof ShortProcessor?"16-bit":ip instanceof FloatProcessor?"32-bit":"RGB";
+	}
+
+}
@@ -0,0 +1,103 @@
+import ij.measure.ResultsTable;
+import java.io.File;
+
+/** Saves ResultsTables as binary tables (".rtb") and checks that they
+	are read back with the same contents and settings. Exits with status 1
+	if a check fails.
+	<pre>
+	mvn -q compile
+	javac -cp target/classes -d /tmp/test tests/ResultsTableFileTest.java
+	java -Djava.awt.headless=true -cp target/classes:/tmp/test ResultsTableFileTest
+	</pre>
+*/
+public class ResultsTableFileTest {
+	static int failures;
+
+	public static void main(String[] args) throws Exception {
+		deletedStringRows();
+		stringsAndValues();
+		tableFlags();
+		System.out.println(failures==0?"all checks passed":failures+" checks FAILED");
+		System.exit(failures==0?0:1);
+	}
+
+	/** A column whose rows with strings were all deleted keeps its
+		dictionary, but has no string rows. */
+	static void deletedStringRows() throws Exception {
+		ResultsTable rt = new ResultsTable();
+		for (int i=0; i<10; i++) {
+			rt.incrementCounter();
+			rt.addValue("A", i);
+			if (i<3)
+				rt.addValue("S", "s"+i);
+			else
+				rt.addValue("S", i*0.5);
+			rt.addValue("B", -i);
+		}
+		rt.deleteRows(0, 2);
+		ResultsTable rt2 = roundTrip(rt, "deleted string rows");
+		check(rt2.size()==rt.size(), "deleted string rows: size");
+		for (int row=0; row<rt.size(); row++) {
+			check(rt2.getValue("A", row)==rt.getValue("A", row), "deleted string rows: A["+row+"]");
+			check(rt2.getStringValue("S", row).equals(rt.getStringValue("S", row)), "deleted string rows: S["+row+"]");
+			check(rt2.getValue("B", row)==rt.getValue("B", row), "deleted string rows: B["+row+"]");
+		}
+	}
+
+	static void stringsAndValues() throws Exception {
+		ResultsTable rt = new ResultsTable();
+		for (int i=0; i<100000; i++) {
+			rt.incrementCounter();
+			rt.addLabel("L"+(i%7));
+			rt.addValue("Int", i);
+			rt.addValue("Float", i*0.25);
+			rt.addValue("Double", Math.sqrt(i));
+			if (i%1000==0)
+				rt.addValue("Text", "t"+(i%3));
+		}
+		ResultsTable rt2 = roundTrip(rt, "strings and values");
+		check(rt2.size()==rt.size(), "strings and values: size");
+		for (int row=0; row<rt.size(); row+=97) {
+			check(rt2.getLabel(row).equals(rt.getLabel(row)), "strings and values: label["+row+"]");
+			check(rt2.getValue("Int", row)==rt.getValue("Int", row), "strings and values: Int["+row+"]");
+			check(rt2.getValue("Float", row)==rt.getValue("Float", row), "strings and values: Float["+row+"]");
+			check(rt2.getValue("Double", row)==rt.getValue("Double", row), "strings and values: Double["+row+"]");
+			check(rt2.getStringValue("Text", row).equals(rt.getStringValue("Text", row)), "strings and values: Text["+row+"]");
+		}
+	}
+
+	static void tableFlags() throws Exception {
+		ResultsTable rt = new ResultsTable();
+		rt.setNaNEmptyCells(true);
+		rt.showRowIndexes(true);
+		for (int i=0; i<5; i++) {
+			rt.incrementCounter();
+			if (i%2==0)
+				rt.addValue("A", i);
+		}
+		ResultsTable rt2 = roundTrip(rt, "flags");
+		check(Double.isNaN(rt2.getValue("A", 1)), "flags: empty cell is NaN");
+		rt2.incrementCounter();
+		rt2.addValue("B", 1);
+		check(Double.isNaN(rt2.getValue("A", 5)), "flags: new row is NaN");
+		check(rt2.getRowAsString(0).startsWith("0\t"), "flags: row indexes");
+	}
+
+	/** Saves 'rt' with an upper-case extension and opens it again. */
+	static ResultsTable roundTrip(ResultsTable rt, String name) throws Exception {
+		File file = File.createTempFile("ResultsTableFileTest", ".RTB");
+		file.deleteOnExit();
+		rt.saveAs(file.getPath());
+		ResultsTable rt2 = ResultsTable.open(file.getPath());
+		check(rt2!=null, name+": open");
+		return rt2;
+	}
+
+	static void check(boolean ok, String what) {
+		if (!ok) {
+			failures++;
+			System.out.println("FAILED: "+what);
+		}
+	}
+
+}